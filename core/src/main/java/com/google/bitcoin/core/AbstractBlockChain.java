@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Preconditions;
@@ -108,25 +109,56 @@ public abstract class AbstractBlockChain {
     private final CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>> listeners;
 
     // Holds a block header and, optionally, a list of tx hashes or block's transactions
-    class OrphanBlock {
+    static class OrphanBlock {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
-        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
+        // Roughly how much memory the block takes up, for the limit of the orphan pool.
+        final int size;
+        OrphanBlock(Block block, boolean keepTransactions, @Nullable List<Sha256Hash> filteredTxHashes,
+                    @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
                                         || (block.transactions != null && !filtered));
-            if (!shouldVerifyTransactions())
+            if (!keepTransactions)
                 this.block = block.cloneAsHeader();
             else
                 this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = sizeOf(this.block);
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += sizeOf(tx);
+            }
+            this.size = size;
+        }
+
+        private static int sizeOf(Message message) {
+            return message.length != Message.UNKNOWN_LENGTH ? message.length : message.bitcoinSerialize().length;
         }
     }
+    /** How many blocks the orphan pool holds by default, see {@link #setOrphanLimits(int, long)}. */
+    public static final int DEFAULT_MAX_ORPHAN_BLOCKS = 10000;
+    /** How many bytes the orphan pool takes up at most by default, see {@link #setOrphanLimits(int, long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 64 * 1024 * 1024;
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private OrphanPool orphanBlocks = new OrphanPool(DEFAULT_MAX_ORPHAN_BLOCKS, DEFAULT_MAX_ORPHAN_BYTES);
+    // How many orphans were connected, and how long that took including the time spent in connectBlock. Guarded by lock.
+    private long orphansConnected;
+    private long orphanConnectNanos;
+
+    // How many of the most recently seen blocks the ancestor index keeps skip pointers for. This covers a couple of
+    // difficulty intervals and much deeper forks than we expect to see, at around 200 bytes per block.
+    private static final int ANCESTOR_INDEX_SIZE = 5000;
+    private final AncestorIndex ancestorIndex = new AncestorIndex(ANCESTOR_INDEX_SIZE);
+
+    // The first block of the current difficulty interval of the best chain, so that the difficulty transition check
+    // doesn't have to look it up when the chain is extended normally. Guarded by lock, and cleared when a re-organize
+    // or rollback removes it from the best chain.
+    @Nullable private StoredBlock intervalStart;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -145,6 +177,7 @@ public abstract class AbstractBlockChain {
                               BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
         chainHead = blockStore.getChainHead();
+        ancestorIndex.add(chainHead);
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
         this.listeners = new CopyOnWriteArrayList<ListenerRegistration<BlockChainListener>>();
@@ -163,7 +196,7 @@ public abstract class AbstractBlockChain {
         int chainHeight = getBestChainHeight();
         if (walletHeight != chainHeight) {
             log.warn("Wallet/chain height mismatch: {} vs {}", walletHeight, chainHeight);
-            log.warn("Hashes: {} vs {}", wallet.getLastBlockSeenHash(), getChainHead().getHeader().getHash());
+            log.warn("Hashes: {} vs {}", wallet.getLastBlockSeenHash(), getChainHead().getHash());
 
             // This special case happens when the VM crashes because of a transaction received. It causes the updated
             // block store to persist, but not the wallet. In order to fix the issue, we roll back the block store to
@@ -344,6 +377,15 @@ public abstract class AbstractBlockChain {
      */
     protected abstract TransactionOutputChanges connectTransactions(StoredBlock newBlock) throws VerificationException, BlockStoreException, PrunedException;    
     
+    /**
+     * Returns true if {@link Block#verifyHeader()} and {@link Block#verifyTransactions()} already passed for this very
+     * block object, so that adding it doesn't have to repeat them. Subclasses that check blocks ahead of adding them
+     * override this, by default it returns false.
+     */
+    protected boolean isVerifiedAhead(Block block) {
+        return false;
+    }
+
     // Stat counters.
     private long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
@@ -362,12 +404,11 @@ public abstract class AbstractBlockChain {
                 statsLastTime = System.currentTimeMillis();
                 statsBlocksAdded = 0;
             }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
-            if (block.equals(getChainHead().getHeader())) {
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
+            if (block.getHash().equals(getChainHead().getHash())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -394,9 +435,11 @@ public abstract class AbstractBlockChain {
             // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
             // article here for more details: http://code.google.com/p/bitcoinj/wiki/SecurityModel
             try {
-                block.verifyHeader();
-                if (contentsImportant)
-                    block.verifyTransactions();
+                if (!isVerifiedAhead(block)) {
+                    block.verifyHeader();
+                    if (contentsImportant)
+                        block.verifyTransactions();
+                }
             } catch (VerificationException e) {
                 log.error("Failed to verify block: ", e);
                 log.error(block.getHashAsString());
@@ -412,7 +455,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                orphanBlocks.add(new OrphanBlock(block, shouldVerifyTransactions(), filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -420,8 +463,8 @@ public abstract class AbstractBlockChain {
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
-            if (tryConnecting)
-                tryConnectingOrphans();
+            if (tryConnecting && orphanBlocks.size() > 0)
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -465,6 +508,9 @@ public abstract class AbstractBlockChain {
             StoredBlock newStoredBlock = addToBlockStore(storedPrev,
                     block.transactions == null ? block : block.cloneAsHeader(), txOutChanges);
             setChainHead(newStoredBlock);
+            ancestorIndex.add(newStoredBlock);
+            if (newStoredBlock.getHeight() % params.getInterval() == 0)
+                intervalStart = newStoredBlock;
             log.debug("Chain is now {} blocks high, running listeners", newStoredBlock.getHeight());
             informListenersForNewBlock(block, NewBlockType.BEST_CHAIN, filteredTxHashList, filteredTxn, newStoredBlock);
         } else {
@@ -473,17 +519,18 @@ public abstract class AbstractBlockChain {
             // Note that we send the transactions to the wallet FIRST, even if we're about to re-organize this block
             // to become the new best chain head. This simplifies handling of the re-org in the Wallet class.
             StoredBlock newBlock = storedPrev.build(block);
+            ancestorIndex.add(newBlock);
             boolean haveNewBestChain = newBlock.moreWorkThan(head);
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
                     // Re-processing it is confusing for the wallet so just skip.
                     log.warn("Saw duplicated block in main chain at height {}: {}",
-                            newBlock.getHeight(), newBlock.getHeader().getHash());
+                            newBlock.getHeight(), newBlock.getHash());
                     return;
                 }
                 if (splitPoint == null) {
@@ -495,9 +542,9 @@ public abstract class AbstractBlockChain {
                     // We aren't actually spending any transactions (yet) because we are on a fork
                     addToBlockStore(storedPrev, block);
                     int splitPointHeight = splitPoint.getHeight();
-                    String splitPointHash = splitPoint.getHeader().getHashAsString();
+                    String splitPointHash = splitPoint.getHash().toString();
                     log.info("Block forks the chain at height {}/block {}, but it did not cause a reorganize:\n{}",
-                            splitPointHeight, splitPointHash, newBlock.getHeader().getHashAsString());
+                            splitPointHeight, splitPointHash, newBlock.getHash().toString());
                 }
             }
             
@@ -599,9 +646,9 @@ public abstract class AbstractBlockChain {
                                                          BlockStore store) throws BlockStoreException {
         long[] timestamps = new long[11];
         int unused = 9;
-        timestamps[10] = storedBlock.getHeader().getTimeSeconds();
+        timestamps[10] = storedBlock.getTimeSeconds();
         while (unused >= 0 && (storedBlock = storedBlock.getPrev(store)) != null)
-            timestamps[unused--] = storedBlock.getHeader().getTimeSeconds();
+            timestamps[unused--] = storedBlock.getTimeSeconds();
         
         Arrays.sort(timestamps, unused+1, 11);
         return timestamps[unused + (11-unused)/2];
@@ -629,11 +676,13 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
-        log.info("Old chain head: {}", head.getHeader().getHashAsString());
-        log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
-        log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
+        if (intervalStart != null && intervalStart.getHeight() > splitPoint.getHeight())
+            intervalStart = null;
+        log.info("Old chain head: {}", head.getHash().toString());
+        log.info("New chain head: {}", newChainHead.getHash().toString());
+        log.info("Split at block: {}", splitPoint.getHash().toString());
         // Then build a list of all blocks in the old part of the chain and the new part.
         final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, blockStore);
         final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, blockStore);
@@ -655,7 +704,7 @@ public abstract class AbstractBlockChain {
             // Walk in ascending chronological order.
             for (Iterator<StoredBlock> it = newBlocks.descendingIterator(); it.hasNext();) {
                 cursor = it.next();
-                if (expensiveChecks && cursor.getHeader().getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
+                if (expensiveChecks && cursor.getTimeSeconds() <= getMedianTimestampOfRecentBlocks(cursor.getPrev(blockStore), blockStore))
                     throw new VerificationException("Block's timestamp is too early during reorg");
                 TransactionOutputChanges txOutChanges;
                 if (cursor != newChainHead || block == null)
@@ -713,8 +762,8 @@ public abstract class AbstractBlockChain {
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
      * but are part of the same chain.
      */
-    private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
-                                         BlockStore store) throws BlockStoreException {
+    private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        BlockStore store = blockStore;
         StoredBlock currentChainCursor = oldChainHead;
         StoredBlock newChainCursor = newChainHead;
         // Loop until we find the block both chains have in common. Example:
@@ -723,18 +772,73 @@ public abstract class AbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
-        while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+        if (store instanceof HeightIndexedBlockStore) {
+            HeightIndexedBlockStore indexedStore = (HeightIndexedBlockStore) store;
+            if (oldChainHead.equals(indexedStore.getByHeight(oldChainHead.getHeight()))) {
+                // The old chain is the indexed one, so only the new chain has to be walked back, until we reach a block
+                // that the index has at its height.
+                while (newChainCursor.getHeight() > oldChainHead.getHeight() ||
+                        !newChainCursor.equals(indexedStore.getByHeight(newChainCursor.getHeight()))) {
+                    newChainCursor = newChainCursor.getPrev(store);
+                    checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+                }
+                return newChainCursor;
             }
         }
+        // Jump the higher chain down to the height of the other one, then walk both back in step. Forks are rarely
+        // more than a block or two deep, so it's the first part that would otherwise take long.
+        if (currentChainCursor.getHeight() > newChainCursor.getHeight())
+            currentChainCursor = checkNotNull(getAncestor(currentChainCursor, newChainCursor.getHeight()),
+                    "Attempt to follow an orphan chain");
+        else if (newChainCursor.getHeight() > currentChainCursor.getHeight())
+            newChainCursor = checkNotNull(getAncestor(newChainCursor, currentChainCursor.getHeight()),
+                    "Attempt to follow an orphan chain");
+        while (!currentChainCursor.equals(newChainCursor)) {
+            currentChainCursor = currentChainCursor.getPrev(store);
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+            newChainCursor = newChainCursor.getPrev(store);
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+        }
         return currentChainCursor;
     }
 
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if it is at that height. Returns
+     * null if the block store doesn't have the chain that far back, for instance because it only keeps recent blocks.
+     *
+     * <p>Recently seen blocks are kept in an in memory index of skip pointers, which finds the ancestor with a single
+     * read from the block store. Otherwise the chain is walked back one block at a time, like
+     * {@link StoredBlock#getPrev(BlockStore)} would.</p>
+     */
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "height %s not within 0 and %s", height, block.getHeight());
+        if (blockStore instanceof HeightIndexedBlockStore) {
+            HeightIndexedBlockStore indexedStore = (HeightIndexedBlockStore) blockStore;
+            if (block.equals(indexedStore.getByHeight(block.getHeight())))
+                return indexedStore.getByHeight(height);
+        }
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height) {
+            Sha256Hash hash = ancestorIndex.getAncestorHash(cursor.getHash(), height);
+            if (hash != null)
+                return blockStore.get(hash);
+            cursor = cursor.getPrev(blockStore);
+            if (cursor != null)
+                ancestorIndex.add(cursor);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the hash of the ancestor of the given block at the given height if the in memory ancestor index has it,
+     * otherwise null. This never reads from the block store.
+     */
+    @Nullable
+    Sha256Hash getIndexedAncestorHash(StoredBlock block, int height) {
+        return ancestorIndex.getAncestorHash(block.getHash(), height);
+    }
+
     /**
      * @return the height of the best known chain, convenience for <tt>getChainHead().getHeight()</tt>.
      */
@@ -774,46 +878,49 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        if (intervalStart != null && intervalStart.getHeight() > chainHead.getHeight())
+            intervalStart = null;
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the block with the given hash, which was just connected, and then those
+     * that build on them, and so on.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException,
+            PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
+        long start = System.nanoTime();
+        int blocksConnected = 0;
+        try {
+            LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+            parents.add(connected);
+            while (!parents.isEmpty()) {
+                Sha256Hash parent = parents.removeFirst();
+                for (OrphanBlock orphanBlock : orphanBlocks.getChildren(parent)) {
+                    log.debug("Trying to connect {}", orphanBlock.block.getHash());
+                    if (getStoredBlockInCurrentScope(parent) == null) {
+                        // The parent was connected, but is out of reach again, e.g. pruned.
+                        log.debug("  but it is not connectable right now");
+                        break;
+                    }
+                    // Removed first, so that a block which fails to verify isn't tried over and over again.
+                    orphanBlocks.remove(orphanBlock.block.getHash());
+                    // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+                    add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+                    blocksConnected++;
+                    parents.add(orphanBlock.block.getHash());
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
-            }
-        } while (blocksConnectedThisRound > 0);
+        } finally {
+            orphansConnected += blocksConnected;
+            orphanConnectNanos += System.nanoTime() - start;
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks, {} left.", blocksConnected, orphanBlocks.size());
+        }
     }
 
     // February 16th 2012
@@ -824,8 +931,7 @@ public abstract class AbstractBlockChain {
      */
     private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
         checkState(lock.isHeldByCurrentThread());
-        Block prev = storedPrev.getHeader();
-        
+
         // Is this supposed to be a difficulty transition point?
         if ((storedPrev.getHeight() + 1) % params.getInterval() != 0) {
 
@@ -833,36 +939,37 @@ public abstract class AbstractBlockChain {
             // This should be a method of the NetworkParameters, which should in turn be using singletons and a subclass
             // for each network type. Then each network can define its own difficulty transition rules.
             if (params.getId().equals(NetworkParameters.ID_TESTNET) && nextBlock.getTime().after(testnetDiffDate)) {
-                checkTestnetDifficulty(storedPrev, prev, nextBlock);
+                checkTestnetDifficulty(storedPrev, nextBlock);
                 return;
             }
 
             // No ... so check the difficulty didn't actually change.
-            if (nextBlock.getDifficultyTarget() != prev.getDifficultyTarget())
+            if (nextBlock.getDifficultyTarget() != storedPrev.getDifficultyTarget())
                 throw new VerificationException("Unexpected change in difficulty at height " + storedPrev.getHeight() +
                         ": " + Long.toHexString(nextBlock.getDifficultyTarget()) + " vs " +
-                        Long.toHexString(prev.getDifficultyTarget()));
+                        Long.toHexString(storedPrev.getDifficultyTarget()));
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find the first block of the interval, far back in the chain. When extending the best chain we
+        // remember it from when it was connected, otherwise the ancestor index finds it without walking all the way.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        int intervalStartHeight = storedPrev.getHeight() - (params.getInterval() - 1);
+        StoredBlock cursor;
+        if (intervalStart != null && intervalStart.getHeight() == intervalStartHeight && storedPrev.equals(getChainHead()))
+            cursor = intervalStart;
+        else
+            cursor = getAncestor(storedPrev, intervalStartHeight);
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
             log.info("Difficulty transition traversal took {}msec", elapsed);
 
-        Block blockIntervalAgo = cursor.getHeader();
-        int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
+        int timespan = (int) (storedPrev.getTimeSeconds() - cursor.getTimeSeconds());
         // Limit the adjustment step.
         final int targetTimespan = params.getTargetTimespan();
         if (timespan < targetTimespan / 4)
@@ -870,7 +977,7 @@ public abstract class AbstractBlockChain {
         if (timespan > targetTimespan * 4)
             timespan = targetTimespan * 4;
 
-        BigInteger newTarget = Utils.decodeCompactBits(prev.getDifficultyTarget());
+        BigInteger newTarget = Utils.decodeCompactBits(storedPrev.getDifficultyTarget());
         newTarget = newTarget.multiply(BigInteger.valueOf(timespan));
         newTarget = newTarget.divide(BigInteger.valueOf(targetTimespan));
 
@@ -892,19 +999,19 @@ public abstract class AbstractBlockChain {
                     newTargetCompact + " vs " + receivedTargetCompact);
     }
 
-    private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next) throws VerificationException, BlockStoreException {
+    private void checkTestnetDifficulty(StoredBlock storedPrev, Block next) throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
         // and then leaving, making it too hard to mine a block. On non-difficulty transition points, easy
         // blocks are allowed if there has been a span of 20 minutes without one.
-        final long timeDelta = next.getTimeSeconds() - prev.getTimeSeconds();
+        final long timeDelta = next.getTimeSeconds() - storedPrev.getTimeSeconds();
         // There is an integer underflow bug in bitcoin-qt that means mindiff blocks are accepted when time
         // goes backwards.
         if (timeDelta >= 0 && timeDelta <= NetworkParameters.TARGET_SPACING * 2) {
             // Walk backwards until we find a block that doesn't have the easiest proof of work, then check
             // that difficulty is equal to that one.
             StoredBlock cursor = storedPrev;
-            while (!cursor.getHeader().equals(params.getGenesisBlock()) &&
+            while (!cursor.getHash().equals(params.getGenesisBlock().getHash()) &&
                    cursor.getHeight() % params.getInterval() != 0 &&
                    cursor.getHeader().getDifficultyTargetAsInteger().equals(params.getMaxTarget()))
                 cursor = cursor.getPrev(blockStore);
@@ -912,7 +1019,7 @@ public abstract class AbstractBlockChain {
             BigInteger newTarget = next.getDifficultyTargetAsInteger();
             if (!cursorTarget.equals(newTarget))
                 throw new VerificationException("Testnet block transition that is not allowed: " +
-                    Long.toHexString(cursor.getHeader().getDifficultyTarget()) + " vs " +
+                    Long.toHexString(cursor.getDifficultyTarget()) + " vs " +
                     Long.toHexString(next.getDifficultyTarget()));
         }
     }
@@ -976,7 +1083,71 @@ public abstract class AbstractBlockChain {
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits how many orphan blocks are kept, and roughly how many bytes they take up. When a new orphan goes over
+     * either limit, the oldest ones are dropped, and fetched again once the blocks they build on arrive. The orphans
+     * that are kept now are dropped too.
+     */
+    public void setOrphanLimits(int maxBlocks, long maxBytes) {
+        lock.lock();
+        try {
+            orphanBlocks = new OrphanPool(maxBlocks, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks that are kept. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how many bytes the orphan blocks that are kept take up. */
+    public long getOrphanBytes() {
+        lock.lock();
+        try {
+            return orphanBlocks.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were dropped to keep within the limits set with {@link #setOrphanLimits}. */
+    public long getOrphansEvicted() {
+        lock.lock();
+        try {
+            return orphanBlocks.getEvicted();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were connected once the block they build on arrived. */
+    public long getOrphansConnected() {
+        lock.lock();
+        try {
+            return orphansConnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many milliseconds were spent connecting orphan blocks, including verifying them. */
+    public long getOrphanConnectMillis() {
+        lock.lock();
+        try {
+            return orphanConnectNanos / 1000000;
         } finally {
             lock.unlock();
         }
@@ -991,7 +1162,7 @@ public abstract class AbstractBlockChain {
     public Date estimateBlockTime(int height) {
         synchronized (chainHeadLock) {
             long offset = height - chainHead.getHeight();
-            long headTime = chainHead.getHeader().getTimeSeconds();
+            long headTime = chainHead.getTimeSeconds();
             long estimated = (headTime * 1000) + (1000L * 60L * 10L * offset);
             return new Date(estimated);
         }
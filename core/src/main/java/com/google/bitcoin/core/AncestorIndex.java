@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>An in memory index of recently seen blocks, which keeps for each block the hash of its parent and of one more
+ * distant ancestor, a skip pointer. The skip heights are picked the same way as in Bitcoin Core, so that following
+ * them finds the ancestor of a block at any height in O(log n) steps, none of which touch the block store.</p>
+ *
+ * <p>Only the most recently added blocks are kept, so a walk can run off the end of the index. The index is purely an
+ * optimization: callers then go back to the block store, and can {@link #add(StoredBlock)} what they read from it.
+ * Blocks are added in any order, but only get a skip pointer if their ancestors were added before them.</p>
+ */
+class AncestorIndex {
+    private static class Entry {
+        final int height;
+        final Sha256Hash prev;
+        @Nullable final Sha256Hash skip;
+
+        Entry(int height, Sha256Hash prev, @Nullable Sha256Hash skip) {
+            this.height = height;
+            this.prev = prev;
+            this.skip = skip;
+        }
+    }
+
+    private final LinkedHashMap<Sha256Hash, Entry> entries;
+
+    /** Creates an index that keeps up to the given number of the most recently added blocks. */
+    AncestorIndex(final int capacity) {
+        entries = new LinkedHashMap<Sha256Hash, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Adds the given block, unless it is already there with a skip pointer. */
+    synchronized void add(StoredBlock block) {
+        Sha256Hash hash = block.getHash();
+        Entry existing = entries.get(hash);
+        if (existing != null && (existing.skip != null || existing.height < 2))
+            return;
+        int height = block.getHeight();
+        Sha256Hash prev = block.getPrevBlockHash();
+        Sha256Hash skip = height < 2 ? null : findAncestor(prev, height - 1, skipHeight(height));
+        entries.put(hash, new Entry(height, prev, skip));
+    }
+
+    /**
+     * Returns the hash of the ancestor at the given height of the block with the given hash, or null if the index
+     * doesn't reach that far back from it.
+     */
+    @Nullable
+    synchronized Sha256Hash getAncestorHash(Sha256Hash hash, int height) {
+        Entry entry = entries.get(hash);
+        if (entry == null || height > entry.height || height < 0)
+            return null;
+        return findAncestor(hash, entry.height, height);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // This is CBlockIndex::GetAncestor from Bitcoin Core, on hashes instead of pointers.
+    @Nullable
+    private Sha256Hash findAncestor(Sha256Hash hash, int hashHeight, int height) {
+        Sha256Hash walk = hash;
+        int heightWalk = hashHeight;
+        while (heightWalk > height) {
+            Entry entry = entries.get(walk);
+            if (entry == null)
+                return null;
+            int heightSkip = skipHeight(heightWalk);
+            int heightSkipPrev = skipHeight(heightWalk - 1);
+            // Only follow the skip pointer if it doesn't overshoot, and the one of the parent wouldn't be better.
+            if (entry.skip != null && (heightSkip == height ||
+                    (heightSkip > height && !(heightSkipPrev < heightSkip - 2 && heightSkipPrev >= height)))) {
+                walk = entry.skip;
+                heightWalk = heightSkip;
+            } else {
+                walk = entry.prev;
+                heightWalk--;
+            }
+        }
+        return walk;
+    }
+
+    /** Returns the height the skip pointer of a block at the given height points to. */
+    static int skipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Keeps the pointers of odd heights short, which makes walks that start out at them much faster.
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+}
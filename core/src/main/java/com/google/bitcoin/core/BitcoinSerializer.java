@@ -17,6 +17,8 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.SharedByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +27,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -46,7 +49,60 @@ public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
 
+    // The commands we can deserialize, indexed by the constants below.
+    private static final String[] COMMANDS = { "version", "inv", "block", "merkleblock", "getdata", "getblocks",
+            "getheaders", "tx", "addr", "ping", "pong", "verack", "headers", "alert", "filterload", "notfound",
+            "mempool", "reject", "utxos", "getutxos" };
+    private static final int VERSION = 0, INV = 1, BLOCK = 2, MERKLEBLOCK = 3, GETDATA = 4, GETBLOCKS = 5,
+            GETHEADERS = 6, TX = 7, ADDR = 8, PING = 9, PONG = 10, VERACK = 11, HEADERS = 12, ALERT = 13,
+            FILTERLOAD = 14, NOTFOUND = 15, MEMPOOL = 16, REJECT = 17, UTXOS = 18, GETUTXOS = 19;
+    private static final int UNKNOWN_COMMAND = -1;
+
+    // An open addressing hash table from the zero padded command field of a header, read as a long and an int, to the
+    // index of the command, so that the command of a header can be found without decoding it into a String first.
+    private static final int COMMAND_TABLE_SIZE = 64;
+    private static final long[] commandTableHigh = new long[COMMAND_TABLE_SIZE];
+    private static final int[] commandTableLow = new int[COMMAND_TABLE_SIZE];
+    private static final int[] commandTableIndex = new int[COMMAND_TABLE_SIZE];
+    private static final Map<String, Integer> commandIndices = new HashMap<String, Integer>();
+
+    static {
+        Arrays.fill(commandTableIndex, UNKNOWN_COMMAND);
+        for (int i = 0; i < COMMANDS.length; i++) {
+            byte[] field = new byte[COMMAND_LEN];
+            for (int j = 0; j < COMMANDS[i].length(); j++)
+                field[j] = (byte) COMMANDS[i].charAt(j);
+            long high = readInt64(field, 0);
+            int low = (int) readUint32(field, 8);
+            int slot = commandSlot(high, low);
+            while (commandTableIndex[slot] != UNKNOWN_COMMAND)
+                slot = (slot + 1) & (COMMAND_TABLE_SIZE - 1);
+            commandTableHigh[slot] = high;
+            commandTableLow[slot] = low;
+            commandTableIndex[slot] = i;
+            commandIndices.put(COMMANDS[i], i);
+        }
+    }
+
+    private static int commandSlot(long high, int low) {
+        long h = (high ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 58);
+    }
+
+    /** Returns the index of the command in the given zero padded header field, or -1 if it isn't one of ours. */
+    private static int lookupCommand(byte[] header, int offset) {
+        long high = readInt64(header, offset);
+        int low = (int) readUint32(header, offset + 8);
+        for (int slot = commandSlot(high, low); commandTableIndex[slot] != UNKNOWN_COMMAND;
+             slot = (slot + 1) & (COMMAND_TABLE_SIZE - 1)) {
+            if (commandTableHigh[slot] == high && commandTableLow[slot] == low)
+                return commandTableIndex[slot];
+        }
+        return UNKNOWN_COMMAND;
+    }
+
     private NetworkParameters params;
+    private final byte[] packetMagic;
     private boolean parseLazy = false;
     private boolean parseRetain = false;
 
@@ -95,6 +151,8 @@ public class BitcoinSerializer {
         this.params = params;
         this.parseLazy = parseLazy;
         this.parseRetain = parseRetain;
+        this.packetMagic = new byte[4];
+        uint32ToByteArrayBE(params.getPacketMagic(), packetMagic, 0);
     }
 
     /**
@@ -112,7 +170,7 @@ public class BitcoinSerializer {
 
         Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = doubleDigest(message);
+        byte[] hash = Sha256.hashTwice(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
         out.write(header);
         out.write(message);
@@ -132,6 +190,86 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Serializes the message, header included, straight into a buffer from the given pool, without an intermediate
+     * array. The payload is written first, after room for the header, which is filled in once the length and checksum
+     * are known. The result can be written to any number of connections, see {@link SharedByteBuffer}, and the buffer
+     * goes back to the pool once all of them have released it.
+     */
+    public SharedByteBuffer serialize(Message message, ByteBufferPool pool) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        int headerLength = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
+        int sizeHint = message.length != Message.UNKNOWN_LENGTH ? message.length : 256;
+        BufferOutputStream stream = new BufferOutputStream(pool, headerLength + sizeHint);
+        ByteBuffer buffer;
+        try {
+            stream.buffer.position(headerLength);
+            message.bitcoinSerialize(stream);
+            buffer = stream.buffer;
+            int length = buffer.position() - headerLength;
+
+            ByteBuffer payload = buffer.duplicate();
+            payload.flip();
+            payload.position(headerLength);
+            byte[] hash = Sha256.hashTwice(payload);
+
+            buffer.put(0, packetMagic[0]).put(1, packetMagic[1]).put(2, packetMagic[2]).put(3, packetMagic[3]);
+            for (int i = 0; i < COMMAND_LEN; i++)
+                buffer.put(4 + i, i < name.length() ? (byte) (name.codePointAt(i) & 0xFF) : 0);
+            for (int i = 0; i < 4; i++)
+                buffer.put(4 + COMMAND_LEN + i, (byte) (length >>> (8 * i)));
+            for (int i = 0; i < 4; i++)
+                buffer.put(4 + COMMAND_LEN + 4 + i, hash[i]);
+            buffer.flip();
+        } catch (IOException e) {
+            pool.release(stream.buffer);
+            throw e;
+        } catch (RuntimeException e) {
+            pool.release(stream.buffer);
+            throw e;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message of {} bytes", name, buffer.remaining());
+        return new SharedByteBuffer(buffer, pool);
+    }
+
+    /** Writes into a buffer from a pool, moving to a buffer twice the size when it runs out of room. */
+    private static class BufferOutputStream extends OutputStream {
+        private final ByteBufferPool pool;
+        ByteBuffer buffer;
+
+        BufferOutputStream(ByteBufferPool pool, int capacity) {
+            this.pool = pool;
+            this.buffer = pool.acquire(capacity);
+        }
+
+        private void ensureRoom(int length) {
+            if (buffer.remaining() >= length)
+                return;
+            long needed = (long) buffer.position() + length;
+            ByteBuffer bigger = pool.acquire((int) Math.min(Math.max(needed, 2L * buffer.capacity()), Integer.MAX_VALUE));
+            buffer.flip();
+            bigger.put(buffer);
+            pool.release(buffer);
+            buffer = bigger;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRoom(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRoom(len);
+            buffer.put(b, off, len);
+        }
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -166,15 +304,25 @@ public class BitcoinSerializer {
 
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
-     * {@link BitcoinSerializer#deserializeHeader}.
+     * {@link BitcoinSerializer#deserializeHeader}. If the buffer is backed by an array that holds exactly the payload,
+     * like the one {@link PeerSocketHandler} puts together for messages larger than its read buffer, the message is
+     * parsed straight from that array, which it may keep. Otherwise the payload is copied out of the buffer once.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        byte[] payloadBytes;
+        if (in.hasArray() && in.arrayOffset() + in.position() == 0 && in.array().length == header.size) {
+            payloadBytes = in.array();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        hash = Sha256.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -188,61 +336,73 @@ public class BitcoinSerializer {
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.commandIndex, header.command, header.size, payloadBytes, hash, header.checksum);
         } catch (Exception e) {
             throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
+    private Message makeMessage(int commandIndex, String command, int length, byte[] payloadBytes, byte[] hash,
+                                byte[] checksum) throws ProtocolException {
+        // We switch on the command index rather than use reflection because reflection is very slow on Android.
         Message message;
-        if (command.equals("version")) {
-            return new VersionMessage(params, payloadBytes);
-        } else if (command.equals("inv")) {
-            message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("block")) {
-            message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("merkleblock")) {
-            message = new FilteredBlock(params, payloadBytes);
-        } else if (command.equals("getdata")) {
-            message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("getblocks")) {
-            message = new GetBlocksMessage(params, payloadBytes);
-        } else if (command.equals("getheaders")) {
-            message = new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
-            if (hash != null)
-                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
-            message = tx;
-        } else if (command.equals("addr")) {
-            message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("ping")) {
-            message = new Ping(params, payloadBytes);
-        } else if (command.equals("pong")) {
-            message = new Pong(params, payloadBytes);
-        } else if (command.equals("verack")) {
-            return new VersionAck(params, payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(params, payloadBytes);
-        } else if (command.equals("alert")) {
-            return new AlertMessage(params, payloadBytes);
-        } else if (command.equals("filterload")) {
-            return new BloomFilter(params, payloadBytes);
-        } else if (command.equals("notfound")) {
-            return new NotFoundMessage(params, payloadBytes);
-        } else if (command.equals("mempool")) {
-            return new MemoryPoolMessage();
-        } else if (command.equals("reject")) {
-            return new RejectMessage(params, payloadBytes);
-        } else if (command.equals("utxos")) {
-            return new UTXOsMessage(params, payloadBytes);
-        } else if (command.equals("getutxos")) {
-            return new GetUTXOsMessage(params, payloadBytes);
-        } else {
-            log.warn("No support for deserializing message with name {}", command);
-            return new UnknownMessage(params, command, payloadBytes);
+        switch (commandIndex) {
+            case VERSION:
+                return new VersionMessage(params, payloadBytes);
+            case INV:
+                message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
+                break;
+            case BLOCK:
+                message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
+                break;
+            case MERKLEBLOCK:
+                message = new FilteredBlock(params, payloadBytes);
+                break;
+            case GETDATA:
+                message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
+                break;
+            case GETBLOCKS:
+                message = new GetBlocksMessage(params, payloadBytes);
+                break;
+            case GETHEADERS:
+                message = new GetHeadersMessage(params, payloadBytes);
+                break;
+            case TX:
+                Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
+                if (hash != null)
+                    tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+                message = tx;
+                break;
+            case ADDR:
+                message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
+                break;
+            case PING:
+                message = new Ping(params, payloadBytes);
+                break;
+            case PONG:
+                message = new Pong(params, payloadBytes);
+                break;
+            case VERACK:
+                return new VersionAck(params, payloadBytes);
+            case HEADERS:
+                return new HeadersMessage(params, payloadBytes);
+            case ALERT:
+                return new AlertMessage(params, payloadBytes);
+            case FILTERLOAD:
+                return new BloomFilter(params, payloadBytes);
+            case NOTFOUND:
+                return new NotFoundMessage(params, payloadBytes);
+            case MEMPOOL:
+                return new MemoryPoolMessage();
+            case REJECT:
+                return new RejectMessage(params, payloadBytes);
+            case UTXOS:
+                return new UTXOsMessage(params, payloadBytes);
+            case GETUTXOS:
+                return new GetUTXOsMessage(params, payloadBytes);
+            default:
+                log.warn("No support for deserializing message with name {}", command);
+                return new UnknownMessage(params, command, payloadBytes);
         }
         if (checksum != null)
             message.setChecksum(checksum);
@@ -250,22 +410,29 @@ public class BitcoinSerializer {
     }
 
     public void seekPastMagicBytes(ByteBuffer in) throws BufferUnderflowException {
-        int magicCursor = 3;  // Which byte of the magic we're looking for currently.
+        // Almost always the magic is right where the last message ended, so check for that before scanning.
+        int position = in.position();
+        if (in.remaining() >= 4 && in.get(position) == packetMagic[0] && in.get(position + 1) == packetMagic[1] &&
+                in.get(position + 2) == packetMagic[2] && in.get(position + 3) == packetMagic[3]) {
+            in.position(position + 4);
+            return;
+        }
+        int magicCursor = 0;  // Which byte of the magic we're looking for currently.
         while (true) {
             byte b = in.get();
             // We're looking for a run of bytes that is the same as the packet magic but we want to ignore partial
             // magics that aren't complete. So we keep track of where we're up to with magicCursor.
-            byte expectedByte = (byte)(0xFF & params.getPacketMagic() >>> (magicCursor * 8));
-            if (b == expectedByte) {
-                magicCursor--;
-                if (magicCursor < 0) {
+            if (b == packetMagic[magicCursor]) {
+                magicCursor++;
+                if (magicCursor == 4) {
                     // We found the magic sequence.
                     return;
                 } else {
                     // We still have further to go to find the next message.
                 }
             } else {
-                magicCursor = 3;
+                // The byte that broke a partial magic may start the next one.
+                magicCursor = b == packetMagic[0] ? 1 : 0;
             }
         }
     }
@@ -293,6 +460,8 @@ public class BitcoinSerializer {
         public final String command;
         public final int size;
         public final byte[] checksum;
+        // The index of the command in COMMANDS, or UNKNOWN_COMMAND.
+        final int commandIndex;
 
         public BitcoinPacketHeader(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
             header = new byte[HEADER_LENGTH];
@@ -300,16 +469,25 @@ public class BitcoinSerializer {
 
             int cursor = 0;
 
-            // The command is a NULL terminated string, unless the command fills all twelve bytes
-            // in which case the termination is implicit.
-            for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-            try {
-                command = new String(commandBytes, "US-ASCII");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);  // Cannot happen.
+            int index = lookupCommand(header, 0);
+            if (index != UNKNOWN_COMMAND) {
+                command = COMMANDS[index];
+            } else {
+                // The command is a NULL terminated string, unless the command fills all twelve bytes
+                // in which case the termination is implicit.
+                for (; cursor < COMMAND_LEN && header[cursor] != 0; cursor++) ;
+                byte[] commandBytes = new byte[cursor];
+                System.arraycopy(header, 0, commandBytes, 0, cursor);
+                try {
+                    command = new String(commandBytes, "US-ASCII");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);  // Cannot happen.
+                }
+                // Junk after the terminator doesn't change the command.
+                Integer known = commandIndices.get(command);
+                index = known != null ? known : UNKNOWN_COMMAND;
             }
+            commandIndex = index;
             cursor = COMMAND_LEN;
 
             size = (int) readUint32(header, cursor);
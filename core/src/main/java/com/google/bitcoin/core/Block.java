@@ -36,8 +36,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import static com.google.bitcoin.core.Coin.FIFTY_COINS;
-import static com.google.bitcoin.core.Utils.doubleDigest;
-import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -190,7 +188,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(payload, offset, cursor)));
+        hash = new Sha256Hash(Utils.reverseBytes(Sha256.hashTwice(payload, offset, cursor - offset)));
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -507,10 +505,17 @@ public class Block extends Message {
      * resulting bytes.
      */
     private Sha256Hash calculateHash() {
+        // Hash the cached header where it is rather than writing it out again.
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE)
+            return new Sha256Hash(Utils.reverseBytes(Sha256.hashTwice(payload, offset, HEADER_SIZE)));
+        return new Sha256Hash(Utils.reverseBytes(Sha256.hashTwice(serializeHeader())));
+    }
+
+    private byte[] serializeHeader() {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            return bos.toByteArray();
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -570,6 +575,42 @@ public class Block extends Message {
         return block;
     }
 
+    /** Returns the header in the wire format, without the transactions or the 00 byte that says there are none. */
+    byte[] getHeaderBytes() {
+        UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+        try {
+            writeHeader(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Decodes a header from the first {@link #HEADER_SIZE} bytes of the given array, as returned by
+     * {@link #getHeaderBytes()}. The hash is taken from the caller rather than computed again.
+     */
+    static Block headerFromBytes(NetworkParameters params, byte[] bytes, Sha256Hash hash) {
+        Block block = new Block(params);
+        block.version = Utils.readUint32(bytes, 0);
+        block.prevBlockHash = readHeaderHash(bytes, 4);
+        block.merkleRoot = readHeaderHash(bytes, 36);
+        block.time = Utils.readUint32(bytes, 68);
+        block.difficultyTarget = Utils.readUint32(bytes, 72);
+        block.nonce = Utils.readUint32(bytes, 76);
+        block.transactions = null;
+        block.hash = hash;
+        return block;
+    }
+
+    /** Reads a hash at the given offset of a header in the wire format. */
+    static Sha256Hash readHeaderHash(byte[] bytes, int offset) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = bytes[offset + 31 - i];
+        return new Sha256Hash(hash);
+    }
+
     /**
      * Returns a multi-line string containing a description of the contents of
      * the block. Use for debugging purposes only.
@@ -614,16 +655,28 @@ public class Block extends Message {
      */
     public void solve() {
         maybeParseHeader();
+        BigInteger target;
+        try {
+            target = getDifficultyTargetAsInteger();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        // Only the nonce at the end of the header changes, so the bytes in front of it are hashed once and each try
+        // carries on from there.
+        byte[] header = serializeHeader();
+        Sha256.State prefix = Sha256.newState().update(header, 0, HEADER_SIZE - 4);
+        long nonce = getNonce();
         while (true) {
-            try {
-                // Is our proof of work valid yet?
-                if (checkProofOfWork(false))
-                    return;
-                // No, so increment the nonce and try again.
-                setNonce(getNonce() + 1);
-            } catch (VerificationException e) {
-                throw new RuntimeException(e); // Cannot happen.
+            Utils.uint32ToByteArrayLE(nonce, header, HEADER_SIZE - 4);
+            byte[] hash = Utils.reverseBytes(prefix.hashTwice(header, HEADER_SIZE - 4, 4));
+            // Is our proof of work valid yet?
+            if (new BigInteger(1, hash).compareTo(target) <= 0) {
+                setNonce(nonce);
+                this.hash = new Sha256Hash(hash);
+                return;
             }
+            // No, so increment the nonce and try again.
+            nonce++;
         }
     }
 
@@ -692,11 +745,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -705,9 +753,6 @@ public class Block extends Message {
         //  / \    / \
         // t1 t2 t3 t4
         //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
         // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
         // The interior nodes are hashes of the concenation of the two child hashes.
         //
@@ -727,28 +772,14 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // MerkleRootCalculator hashes each level over the one below it in a single array, and spreads large blocks
+        // over several threads.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
+        for (Transaction t : transactions)
+            hashes.add(t.getHash());
+        return MerkleRootCalculator.getDefault().calculate(hashes);
     }
 
     private void checkTransactions() throws VerificationException {
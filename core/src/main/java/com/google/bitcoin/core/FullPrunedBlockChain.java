@@ -18,16 +18,19 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.SignatureCache;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -48,6 +51,34 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
+    // The block below which scripts are assumed to be valid, see setAssumeValid. Both guarded by lock.
+    @Nullable private Sha256Hash assumeValidHash;
+    private int assumeValidHeight;
+    @Nullable private HeightIndexedBlockStore assumeValidHeaders;
+    private volatile ScriptVerifier scriptVerifier = new ScriptVerifier(Runtime.getRuntime().availableProcessors());
+
+    // The block addAll is connecting, and the one after it, which it is preparing on another thread meanwhile.
+    // Both are guarded by lock.
+    @Nullable private PreparedBlock connecting;
+    @Nullable private PreparedBlock preparing;
+
+    // The hash of the unspent outputs as of the chain head, once somebody asked for it, and a copy of it with the
+    // changes of the open batch applied. Both guarded by lock.
+    @Nullable private UTXOSetHash utxoSetHash;
+    @Nullable private UTXOSetHash pendingUTXOSetHash;
+
+    /** A block that addAll has checked, and looked up the outputs of, ahead of connecting it. */
+    private static class PreparedBlock {
+        @Nullable Block block;
+        boolean verified;
+        // The outpoints the block spends or creates that were looked up, and the unspent outputs the store had for
+        // them at the time.
+        final Set<TransactionOutPoint> fetched = new HashSet<TransactionOutPoint>();
+        final Map<TransactionOutPoint, StoredTransactionOutput> outputs =
+                new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        // Outputs that were added or removed since fetching started, whose entries above can't be trusted.
+        final Set<TransactionOutPoint> touched = new HashSet<TransactionOutPoint>();
+    }
 
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -78,11 +109,42 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.chainHead = blockStore.getVerifiedChainHead();
     }
 
+    /**
+     * Returns the hash of the set of unspent outputs as of the chain head, see {@link UTXOSetHash}. The first call
+     * computes it by reading every unspent output in the store, which takes a while for a big store. From then on it
+     * is kept up to date as blocks are connected and disconnected.
+     */
+    public Sha256Hash getUTXOSetHash() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (utxoSetHash == null)
+                utxoSetHash = UTXOSetHash.of(blockStore);
+            return utxoSetHash.getHash();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts keeping the hash of the set of unspent outputs from the given one, rather than computing it from the
+     * store. It must be the hash of the outputs in the store as of the chain head, like the one
+     * {@link UTXOSnapshot#importInto(FullPrunedBlockStore, java.io.InputStream, Sha256Hash)} returns.
+     */
+    public void setUTXOSetHash(UTXOSetHash hash) {
+        lock.lock();
+        try {
+            utxoSetHash = new UTXOSetHash(hash);
+            pendingUTXOSetHash = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block header, TransactionOutputChanges txOutChanges)
             throws BlockStoreException, VerificationException {
         StoredBlock newBlock = storedPrev.build(header);
-        blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), txOutChanges));
+        blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHash(), txOutChanges));
         return newBlock;
     }
     
@@ -90,7 +152,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block block)
             throws BlockStoreException, VerificationException {
         StoredBlock newBlock = storedPrev.build(block);
-        blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), block.transactions));
+        blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHash(), block.transactions));
         return newBlock;
     }
 
@@ -114,37 +176,351 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public void setRunScripts(boolean value) {
         this.runScripts = value;
     }
+
+    /**
+     * <p>Skips running scripts for the given trusted block and its ancestors, which is where most of the time replaying
+     * a long chain goes. Everything else is still checked, from proof of work and merkle roots to which outputs are
+     * spent and the amounts. Blocks above the trusted one, and blocks that turn out not to be its ancestors, are
+     * verified in full, so the switch back to full verification happens by itself. Pass null to verify all scripts
+     * again.</p>
+     *
+     * <p>The blocks of a chain arrive in order, so the ancestors of the trusted block arrive before it does. Without
+     * headers, there is no telling which chain a block below the trusted one is on until the trusted block is stored,
+     * so until then their scripts run as usual. Only the trusted block itself, and its ancestors connected after it was
+     * stored, such as in a re-org, skip them. To skip the scripts of the blocks leading up to it as well, use
+     * {@link #setAssumeValid(Sha256Hash, int, HeightIndexedBlockStore)} with the headers of the chain, downloaded
+     * first. Unlike a checkpoint, other blocks at the given height are not rejected: they are on competing forks, so
+     * they are verified in full.</p>
+     *
+     * @param hash the hash of a block that is known to be valid, for instance because it is deep in the best chain.
+     * @param height the height of that block.
+     */
+    public void setAssumeValid(@Nullable Sha256Hash hash, int height) {
+        setAssumeValid(hash, height, null);
+    }
+
+    /**
+     * <p>Like {@link #setAssumeValid(Sha256Hash, int)}, but also skips the scripts of blocks that arrive before the
+     * trusted block, if the given header chain shows they are its ancestors: the trusted block has to be in the best
+     * chain of the header store, and the block being connected at its height in that chain. Blocks on any other fork
+     * are verified in full. The header store is typically a {@link com.google.bitcoin.store.FullHeaderBlockStore} that
+     * a {@link BlockChain} synced before the full chain started.</p>
+     *
+     * @param headers the headers of the chain, or null to wait for the trusted block itself.
+     */
+    public void setAssumeValid(@Nullable Sha256Hash hash, int height, @Nullable HeightIndexedBlockStore headers) {
+        lock.lock();
+        try {
+            assumeValidHash = hash;
+            assumeValidHeight = height;
+            assumeValidHeaders = headers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if the scripts of the block with the given hash and height don't have to run, see setAssumeValid. */
+    private boolean isAssumedValid(int height, Sha256Hash hash) throws BlockStoreException {
+        Sha256Hash trustedHash = assumeValidHash;
+        if (trustedHash == null || height > assumeValidHeight)
+            return false;
+        if (height == assumeValidHeight) {
+            if (!hash.equals(trustedHash))
+                return false;
+            log.info("Reached the assumed valid block {}, verifying all scripts from now on", hash);
+            return true;
+        }
+        StoredBlock trusted = blockStore.get(trustedHash);
+        if (trusted != null) {
+            StoredBlock ancestor = getAncestor(trusted, height);
+            return ancestor != null && ancestor.getHash().equals(hash);
+        }
+        // Not connected yet, so only the header chain can tell whether the block is on the way to it.
+        HeightIndexedBlockStore headers = assumeValidHeaders;
+        if (headers == null)
+            return false;
+        StoredBlock trustedHeader = headers.getByHeight(assumeValidHeight);
+        if (trustedHeader == null || !trustedHeader.getHash().equals(trustedHash))
+            return false;
+        StoredBlock header = headers.getByHeight(height);
+        return header != null && header.getHash().equals(hash);
+    }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    /**
+     * Sets the number of threads that verify scripts, besides the one adding blocks. The default is one per processor.
+     * With zero, scripts run on the thread adding blocks, after the rest of each block was checked.
+     */
+    public void setScriptVerificationThreads(int threads) {
+        ScriptVerifier verifier = new ScriptVerifier(threads);
+        lock.lock();
+        try {
+            scriptVerifier.shutdown();
+            scriptVerifier = verifier;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
+    /** Returns the number of threads that verify scripts, besides the one adding blocks. */
+    public int getScriptVerificationThreads() {
+        return scriptVerifier.getThreads();
+    }
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+    /**
+     * Checks that the given unconfirmed transaction could go into the next block: that it spends unspent and mature
+     * outputs of the best chain, doesn't create money and has valid scripts. The signatures that check out are
+     * remembered by the {@link SignatureCache}, if there is one, so connecting a block that contains the transaction
+     * later doesn't verify them again. A {@link PeerGroup} calls this on the transactions its peers receive, see
+     * {@link MemoryPool#setVerifyingChain(FullPrunedBlockChain)}.
+     *
+     * <p>Only the chain is looked at, so this doesn't notice conflicts with other unconfirmed transactions.</p>
+     */
+    public void verifyTransaction(Transaction tx) throws VerificationException, BlockStoreException {
+        tx.verify();
+        if (tx.isCoinBase())
+            throw new VerificationException("Coinbase transactions can't be unconfirmed");
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (TransactionInput in : tx.getInputs())
+            outPoints.add(in.getOutpoint());
+        int height;
+        Map<TransactionOutPoint, StoredTransactionOutput> outputs;
+        lock.lock();
+        try {
+            height = chainHead.getHeight() + 1;
+            outputs = blockStore.getTransactionOutputs(outPoints);
+        } finally {
+            lock.unlock();
+        }
+        Coin valueIn = Coin.ZERO;
+        List<Script> prevOutScripts = new ArrayList<Script>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutput prevOut = outputs.get(outPoint);
+            if (prevOut == null)
+                throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+            if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
+                throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
+            valueIn = valueIn.add(prevOut.getValue());
+            prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+        }
+        Coin valueOut = Coin.ZERO;
+        for (TransactionOutput out : tx.getOutputs())
+            valueOut = valueOut.add(out.getValue());
+        if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(NetworkParameters.MAX_MONEY) > 0)
+            throw new VerificationException("Transaction input value out of range");
+        if (runScripts) {
+            ScriptVerifier.Batch scripts = scriptVerifier.newBatch();
+            addInputs(scripts, tx, prevOutScripts, Utils.currentTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME);
+            scripts.await();
+        }
+    }
+
+    /**
+     * Adds the given blocks in order, with the same results as calling {@link #add(Block)} for each of them, but
+     * overlapping the work on consecutive blocks. While one block's scripts are verified and its changes to the set
+     * of unspent outputs are committed, the next block is read, its context free checks (merkle root, sigops and
+     * {@link Transaction#verify()}) are run and the outputs it spends are looked up in the store on another thread.
+     * This is meant for replaying blocks from disk, for instance with a {@link com.google.bitcoin.utils.BlockFileLoader}.
+     *
+     * <p>Stops with the exception of the first block that fails to verify. The blocks before it stay connected, and
+     * the failed block is rolled back exactly as it would be by {@link #add(Block)}.</p>
+     */
+    public void addAll(Iterable<Block> blocks) throws VerificationException, PrunedException {
+        Iterator<Block> iterator = blocks.iterator();
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("FullPrunedBlockChain block preparation thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        ExecutorService executor = Executors.newSingleThreadExecutor(builder.build());
+        try {
+            Future<PreparedBlock> next = prepareNext(executor, iterator);
+            while (true) {
+                PreparedBlock current;
+                try {
+                    current = Uninterruptibles.getUninterruptibly(next);
+                } catch (ExecutionException e) {
+                    // Whatever reading the next block threw, like the loop calling add() would have.
+                    throw Throwables.propagate(e.getCause());
+                }
+                if (current.block == null)
+                    break;
+                lock.lock();
+                try {
+                    connecting = current;
+                } finally {
+                    lock.unlock();
+                }
+                next = prepareNext(executor, iterator);
+                add(current.block);
+            }
+        } finally {
+            lock.lock();
+            try {
+                connecting = null;
+                preparing = null;
+            } finally {
+                lock.unlock();
+            }
+            // Don't return while the store is still being read from, the caller may want to close it.
+            executor.shutdown();
+            boolean interrupted = false;
+            while (!executor.isTerminated()) {
+                try {
+                    executor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+    private Future<PreparedBlock> prepareNext(ExecutorService executor, final Iterator<Block> iterator) {
+        final PreparedBlock prepared = new PreparedBlock();
+        // Changes to unspent outputs are recorded from here on, so fetched outputs that change before they are used
+        // will be ignored.
+        lock.lock();
+        try {
+            preparing = prepared;
+        } finally {
+            lock.unlock();
+        }
+        return executor.submit(new Callable<PreparedBlock>() {
+            @Override
+            public PreparedBlock call() {
+                if (!iterator.hasNext())
+                    return prepared;
+                Block block = iterator.next();
+                prepared.block = block;
+                if (block.transactions == null)
+                    return prepared;
+                try {
+                    block.verifyHeader();
+                    block.verifyTransactions();
+                    prepared.verified = true;
+                } catch (VerificationException e) {
+                    // Adding the block repeats the checks and reports the failure.
+                    return prepared;
                 }
-            } catch (VerificationException e) {
-                return e;
+                try {
+                    List<TransactionOutPoint> outPoints = getOutPointsToLookUp(block.transactions, true);
+                    prepared.outputs.putAll(blockStore.getTransactionOutputs(outPoints));
+                    prepared.fetched.addAll(outPoints);
+                } catch (BlockStoreException e) {
+                    // Connecting the block will look them up again, and fail there if the store is broken.
+                    log.warn("Failed to fetch spent outputs ahead of connecting block", e);
+                }
+                return prepared;
+            }
+        });
+    }
+
+    @Override
+    protected boolean isVerifiedAhead(Block block) {
+        checkState(lock.isHeldByCurrentThread());
+        return connecting != null && connecting.block == block && connecting.verified;
+    }
+
+    /**
+     * Returns the outpoints that have to be looked up to connect the given transactions: those they spend and, when
+     * checking BIP30, all those they create.
+     */
+    private List<TransactionOutPoint> getOutPointsToLookUp(List<Transaction> transactions, boolean checkBip30) {
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase())
+                for (TransactionInput in : tx.getInputs())
+                    outPoints.add(in.getOutpoint());
+            if (checkBip30) {
+                Sha256Hash hash = tx.getHash();
+                for (int index = 0; index < tx.getOutputs().size(); index++)
+                    outPoints.add(new TransactionOutPoint(params, index, hash));
+            }
+        }
+        return outPoints;
+    }
+
+    /**
+     * Looks up the unspent outputs among the given outpoints with a single call to the store. Outpoints that addAll
+     * already looked up, and that haven't been added or removed since, are taken from the prepared block instead.
+     */
+    private Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(@Nullable PreparedBlock prepared,
+            List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        if (prepared == null)
+            return new HashMap<TransactionOutPoint, StoredTransactionOutput>(blockStore.getTransactionOutputs(outPoints));
+        Map<TransactionOutPoint, StoredTransactionOutput> outputs = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            if (prepared.fetched.contains(outPoint) && !prepared.touched.contains(outPoint)) {
+                StoredTransactionOutput out = prepared.outputs.get(outPoint);
+                if (out != null)
+                    outputs.put(outPoint, out);
+            } else {
+                missing.add(outPoint);
             }
-            return null;
         }
+        if (!missing.isEmpty())
+            outputs.putAll(blockStore.getTransactionOutputs(missing));
+        return outputs;
+    }
+
+    /** Returns the hashes of the transactions the given outpoints belong to. */
+    private static Set<Sha256Hash> getHashes(Collection<TransactionOutPoint> outPoints) {
+        Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+        for (TransactionOutPoint outPoint : outPoints)
+            hashes.add(outPoint.getHash());
+        return hashes;
+    }
+
+    private void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        touch(out);
+        blockStore.addUnspentTransactionOutput(out);
+        UTXOSetHash pending = getPendingUTXOSetHash();
+        if (pending != null)
+            pending.add(out);
+    }
+
+    private void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        touch(out);
+        blockStore.removeUnspentTransactionOutput(out);
+        UTXOSetHash pending = getPendingUTXOSetHash();
+        if (pending != null)
+            pending.remove(out);
     }
+
+    @Nullable
+    private UTXOSetHash getPendingUTXOSetHash() {
+        if (pendingUTXOSetHash == null && utxoSetHash != null)
+            pendingUTXOSetHash = new UTXOSetHash(utxoSetHash);
+        return pendingUTXOSetHash;
+    }
+
+    private void abortDatabaseBatchWrite() throws BlockStoreException {
+        pendingUTXOSetHash = null;
+        blockStore.abortDatabaseBatchWrite();
+    }
+
+    private void touch(StoredTransactionOutput out) {
+        if (connecting == null && preparing == null)
+            return;
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, out.getIndex(), out.getHash());
+        if (connecting != null)
+            connecting.touched.add(outPoint);
+        if (preparing != null)
+            preparing.touched.add(outPoint);
+    }
+
+    //TODO: Remove lots of duplicated code in the two connectTransactions
     
+    /** Queues the scripts of all inputs of the given transaction for verification. */
+    private static void addInputs(ScriptVerifier.Batch scripts, Transaction tx, List<Script> prevOutScripts,
+                                  boolean enforcePayToScriptHash) {
+        for (int index = 0; index < prevOutScripts.size(); index++)
+            scripts.add(tx, index, prevOutScripts.get(index), enforcePayToScriptHash);
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -160,21 +536,24 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();  
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-        
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerifier.Batch scripts = scriptVerifier.newBatch();
+        PreparedBlock prepared = connecting != null && connecting.block == block ? connecting : null;
         try {
-            if (!params.isCheckpoint(height)) {
+            boolean runScripts = this.runScripts && !isAssumedValid(height, block.getHash());
+            boolean checkBip30 = !params.isCheckpoint(height);
+            // The unspent outputs among all those the block spends, and for BIP30 creates, looked up in one go. Below
+            // they are kept up to date with the changes of each transaction, for the ones after it to see.
+            Map<TransactionOutPoint, StoredTransactionOutput> outputs =
+                    getTransactionOutputs(prepared, getOutPointsToLookUp(block.transactions, checkBip30));
+            if (checkBip30) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
                 // BIP30 document for more details on this: https://github.com/bitcoin/bips/blob/master/bip-0030.mediawiki
+                Set<Sha256Hash> hashesWithUnspentOutputs = getHashes(outputs.keySet());
                 for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
                     // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
                     // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
+                    if (hashesWithUnspentOutputs.contains(tx.getHash()))
                         throw new VerificationException("Block failed BIP30 test!");
                     if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
                         sigOps += tx.getSigOpCount();
@@ -186,14 +565,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
                 Coin valueOut = Coin.ZERO;
-                final List<Script> prevOutScripts = new LinkedList<Script>();
+                final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                 if (!isCoinBase) {
                     // For each input of the transaction remove the corresponding output from the set of unspent
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        TransactionOutPoint outPoint = in.getOutpoint();
+                        StoredTransactionOutput prevOut = outputs.get(outPoint);
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -214,7 +593,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
-                        blockStore.removeUnspentTransactionOutput(prevOut);
+                        removeUnspentTransactionOutput(prevOut);
+                        outputs.remove(outPoint);
                         txOutsSpent.add(prevOut);
                     }
                 }
@@ -224,7 +604,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
                     StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                             height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    addUnspentTransactionOutput(newOut);
+                    outputs.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -241,33 +622,19 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    addInputs(scripts, tx, prevOutScripts, enforcePayToScriptHash);
                 }
             }
             if (totalFees.compareTo(NetworkParameters.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scripts.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scripts.cancel();
+            abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scripts.cancel();
+            abortDatabaseBatchWrite();
             throw e;
         }
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
@@ -280,47 +647,49 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected synchronized TransactionOutputChanges connectTransactions(StoredBlock newBlock)
             throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
+        if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
         
         blockStore.beginDatabaseBatchWrite();
-        StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
+        StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHash());
         if (block == null) {
             // We're trying to re-org too deep and the data needed has been deleted.
-            blockStore.abortDatabaseBatchWrite();
-            throw new PrunedException(newBlock.getHeader().getHash());
+            abortDatabaseBatchWrite();
+            throw new PrunedException(newBlock.getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerifier.Batch scripts = scriptVerifier.newBatch();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
+                boolean runScripts = !isAssumedValid(newBlock.getHeight(), newBlock.getHash());
                 LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
                 LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
                 long sigOps = 0;
-                final boolean enforcePayToScriptHash = newBlock.getHeader().getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-                if (!params.isCheckpoint(newBlock.getHeight())) {
+                final boolean enforcePayToScriptHash = newBlock.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
+                boolean checkBip30 = !params.isCheckpoint(newBlock.getHeight());
+                Map<TransactionOutPoint, StoredTransactionOutput> outputs =
+                        getTransactionOutputs(null, getOutPointsToLookUp(transactions, checkBip30));
+                if (checkBip30) {
+                    Set<Sha256Hash> hashesWithUnspentOutputs = getHashes(outputs.keySet());
                     for(Transaction tx : transactions) {
-                        Sha256Hash hash = tx.getHash();
-                        if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
+                        if (hashesWithUnspentOutputs.contains(tx.getHash()))
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
                     Coin valueOut = Coin.ZERO;
-                    final List<Script> prevOutScripts = new LinkedList<Script>();
+                    final List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
+                            final TransactionOutPoint outPoint = in.getOutpoint();
+                            final StoredTransactionOutput prevOut = outputs.get(outPoint);
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -336,7 +705,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             
                             prevOutScripts.add(new Script(prevOut.getScriptBytes()));
                             
-                            blockStore.removeUnspentTransactionOutput(prevOut);
+                            removeUnspentTransactionOutput(prevOut);
+                            outputs.remove(outPoint);
                             txOutsSpent.add(prevOut);
                         }
                     }
@@ -346,7 +716,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                                                                                      newBlock.getHeight(), isCoinBase,
                                                                                      out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
+                        addUnspentTransactionOutput(newOut);
+                        outputs.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -361,50 +732,37 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
                     
-                    if (!isCoinBase) {
+                    if (!isCoinBase && runScripts) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        addInputs(scripts, tx, prevOutScripts, enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(NetworkParameters.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scripts.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
-                if (!params.isCheckpoint(newBlock.getHeight()))
-                    for(StoredTransactionOutput out : txOutChanges.txOutsCreated) {
-                        Sha256Hash hash = out.getHash();
-                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
+                if (!params.isCheckpoint(newBlock.getHeight())) {
+                    List<TransactionOutPoint> created = new ArrayList<TransactionOutPoint>();
+                    for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
+                        created.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+                    if (!blockStore.getTransactionOutputs(created).isEmpty())
+                        throw new VerificationException("Block failed BIP30 test!");
+                }
                 for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
+                    addUnspentTransactionOutput(out);
                 for (StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                    removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scripts.cancel();
+            abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
-            blockStore.abortDatabaseBatchWrite();
+            scripts.cancel();
+            abortDatabaseBatchWrite();
             throw e;
         }
         return txOutChanges;
@@ -419,18 +777,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         blockStore.beginDatabaseBatchWrite();
         try {
-            StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
-            if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
+            StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHash());
+            if (undoBlock == null) throw new PrunedException(oldBlock.getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
             for(StoredTransactionOutput out : txOutChanges.txOutsSpent)
-                blockStore.addUnspentTransactionOutput(out);
+                addUnspentTransactionOutput(out);
             for(StoredTransactionOutput out : txOutChanges.txOutsCreated)
-                blockStore.removeUnspentTransactionOutput(out);
+                removeUnspentTransactionOutput(out);
         } catch (PrunedException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            blockStore.abortDatabaseBatchWrite();
+            abortDatabaseBatchWrite();
             throw e;
         }
     }
@@ -438,13 +796,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        UTXOSetHash pending = pendingUTXOSetHash;
+        pendingUTXOSetHash = null;
         blockStore.setVerifiedChainHead(chainHead);
         blockStore.commitDatabaseBatchWrite();
+        if (pending != null)
+            utxoSetHash = pending;
     }
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
-        blockStore.abortDatabaseBatchWrite();
+        abortDatabaseBatchWrite();
     }
 
     @Override
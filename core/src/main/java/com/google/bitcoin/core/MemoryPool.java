@@ -16,7 +16,10 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.script.SignatureCache;
+import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +31,9 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -43,6 +49,9 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Given a {@link FullPrunedBlockChain} with {@link #setVerifyingChain(FullPrunedBlockChain)}, the pool checks the
+ * transactions it receives against the chain in the background, which fills the {@link SignatureCache}.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
@@ -84,6 +93,10 @@ public class MemoryPool {
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    // Verifies received transactions against the chain, if there is one. Guarded by lock.
+    @Nullable private FullPrunedBlockChain verifyingChain;
+    @Nullable private ThreadPoolExecutor verifier;
+
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
      * usage).
@@ -109,6 +122,61 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
+    /**
+     * <p>Makes the pool check each transaction it receives in full against the given chain, with
+     * {@link FullPrunedBlockChain#verifyTransaction(Transaction)} on a background thread. The signatures that check
+     * out are then in the {@link SignatureCache} by the time a block containing the transaction is connected, and
+     * needn't be verified again. Nothing is checked while there is no {@link SignatureCache#getDefault() default
+     * cache}. Pass null to stop checking.</p>
+     *
+     * <p>Transactions that fail the check are only logged, not dropped, as the chain alone can't tell whether a
+     * transaction spending the outputs of other unconfirmed ones is valid. If the checks fall behind by more than
+     * {@link #MAX_SIZE} transactions, the ones that don't fit in the backlog are skipped.</p>
+     */
+    public void setVerifyingChain(@Nullable FullPrunedBlockChain chain) {
+        lock.lock();
+        try {
+            verifyingChain = chain;
+            if (chain != null && verifier == null) {
+                ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Memory pool verification thread");
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    builder.setUncaughtExceptionHandler(handler);
+                verifier = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(MAX_SIZE), builder.build(),
+                        new ThreadPoolExecutor.DiscardPolicy());
+            } else if (chain == null && verifier != null) {
+                verifier.shutdown();
+                verifier = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Checks a transaction that was just received in full in the background, if the pool has a chain to do so. */
+    private void maybeVerify(final Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        final FullPrunedBlockChain chain = verifyingChain;
+        if (chain == null || SignatureCache.getDefault() == null)
+            return;
+        verifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    chain.verifyTransaction(tx);
+                } catch (VerificationException e) {
+                    log.debug("Received transaction {} does not verify against the chain: {}", tx.getHashAsString(),
+                            e.getMessage());
+                } catch (BlockStoreException e) {
+                    log.warn("Failed to verify received transaction " + tx.getHashAsString(), e);
+                }
+            }
+        });
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
@@ -198,6 +266,7 @@ public class MemoryPool {
                     for (PeerAddress a : addrs) {
                         markBroadcast(a, tx);
                     }
+                    maybeVerify(tx);
                     return tx;
                 }
             } else {
@@ -207,6 +276,7 @@ public class MemoryPool {
                 entry = new Entry();
                 entry.tx = new WeakTransactionReference(tx, referenceQueue);
                 memoryPool.put(tx.getHash(), entry);
+                maybeVerify(tx);
                 return tx;
             }
         } finally {
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the root of the merkle tree of a block's transactions. The leaves are laid out one after another in a
+ * single array, and each level of the tree is hashed over the one below it in place, so no node needs an array of its
+ * own and nothing is reversed or copied between levels.</p>
+ *
+ * <p>Above a configurable number of leaves, the tree is split into subtrees of equal, power of two, width. These are
+ * reduced to their roots on a pool of threads and the calling thread at once, each in its own part of the array, and
+ * the few levels above them are then hashed by the calling thread. Blocks use the {@link #getDefault() default}
+ * calculator.</p>
+ */
+public class MerkleRootCalculator {
+    /** The number of leaves from which the default calculator spreads the work over several threads. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 2048;
+
+    private static volatile MerkleRootCalculator defaultCalculator = new MerkleRootCalculator(
+            Runtime.getRuntime().availableProcessors() - 1, DEFAULT_PARALLEL_THRESHOLD);
+
+    private final int threads;
+    private final int parallelThreshold;
+    @Nullable private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a calculator that spreads trees with at least the given number of leaves over the given number of
+     * threads besides the calling one. With zero threads, every tree is hashed by the calling thread.
+     */
+    public MerkleRootCalculator(int threads, int parallelThreshold) {
+        checkArgument(parallelThreshold >= 2, "parallelThreshold must be at least two");
+        this.threads = Math.max(threads, 0);
+        this.parallelThreshold = parallelThreshold;
+        if (this.threads == 0) {
+            executor = null;
+        } else {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Merkle tree thread %d");
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                builder.setUncaughtExceptionHandler(handler);
+            executor = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), builder.build());
+        }
+    }
+
+    /** Returns the calculator that blocks use to check their merkle roots. */
+    public static MerkleRootCalculator getDefault() {
+        return defaultCalculator;
+    }
+
+    /** Sets the calculator that blocks use to check their merkle roots from now on. */
+    public static void setDefault(MerkleRootCalculator calculator) {
+        defaultCalculator = calculator;
+    }
+
+    /** Returns the number of threads this calculator uses besides the calling one. */
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Returns the number of leaves from which trees are spread over several threads. */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /** Stops the threads once they finish what they are running. Trees are hashed by the calling thread afterwards. */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /** Calculates the merkle root of the given transaction hashes, as they are shown in block explorers. */
+    public Sha256Hash calculate(List<Sha256Hash> hashes) {
+        checkArgument(!hashes.isEmpty(), "A merkle tree needs at least one leaf");
+        int count = hashes.size();
+        byte[] nodes = new byte[count * Sha256.HASH_LENGTH];
+        for (int i = 0; i < count; i++)
+            reverseInto(hashes.get(i).getBytes(), nodes, i * Sha256.HASH_LENGTH);
+        calculate(nodes, count);
+        byte[] root = new byte[Sha256.HASH_LENGTH];
+        reverseFrom(nodes, 0, root);
+        return new Sha256Hash(root);
+    }
+
+    /**
+     * Calculates the merkle root of the given number of leaves, which are laid out one after another at the start of
+     * the array in the byte order the hashes come out of SHA-256. The array is overwritten by the levels of the tree,
+     * and ends up with the root in its first 32 bytes.
+     */
+    public void calculate(byte[] nodes, int count) {
+        checkArgument(count > 0 && nodes.length >= count * Sha256.HASH_LENGTH);
+        if (executor == null || count < parallelThreshold || executor.isShutdown()) {
+            reduce(nodes, 0, count, 0);
+            return;
+        }
+        // Subtrees of a power of two width, at least two of them and about one per thread. The last one may be
+        // narrower, in which case its last node is paired with itself on the way up, just as it would be in the
+        // whole tree.
+        int width = Integer.highestOneBit((count + threads) / (threads + 1) * 2 - 1);
+        int levels = Integer.numberOfTrailingZeros(width);
+        int subtrees = (count + width - 1) / width;
+        List<Future<?>> futures = new ArrayList<Future<?>>(subtrees - 1);
+        try {
+            for (int i = 1; i < subtrees; i++)
+                futures.add(executor.submit(reducer(nodes, i * width, Math.min(width, count - i * width), levels)));
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime, so the subtrees that weren't queued are done here.
+            for (int i = futures.size() + 1; i < subtrees; i++)
+                reduce(nodes, i * width, Math.min(width, count - i * width), levels);
+        }
+        reduce(nodes, 0, width, levels);
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());  // Cannot happen.
+            }
+        }
+        // Gather the roots of the subtrees at the start of the array, and hash the rest of the tree from there.
+        for (int i = 1; i < subtrees; i++)
+            System.arraycopy(nodes, i * width * Sha256.HASH_LENGTH, nodes, i * Sha256.HASH_LENGTH, Sha256.HASH_LENGTH);
+        reduce(nodes, 0, subtrees, 0);
+    }
+
+    private static Runnable reducer(final byte[] nodes, final int first, final int count, final int levels) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                reduce(nodes, first, count, levels);
+            }
+        };
+    }
+
+    /**
+     * Hashes the given number of levels above the leaves starting at the given index, or until one node is left,
+     * whichever takes longer, so that a narrow last subtree still ends up at the height of the others. Each level is
+     * written over the start of the one below it.
+     */
+    private static void reduce(byte[] nodes, int first, int count, int levels) {
+        int base = first * Sha256.HASH_LENGTH;
+        for (int level = 0; count > 1 || level < levels; level++) {
+            for (int left = 0; left < count; left += 2) {
+                // The right hand node is the left hand one again when a level has an odd number of nodes.
+                int right = Math.min(left + 1, count - 1);
+                Sha256.hashTwice(nodes, base + left * Sha256.HASH_LENGTH, Sha256.HASH_LENGTH,
+                        nodes, base + right * Sha256.HASH_LENGTH, Sha256.HASH_LENGTH,
+                        nodes, base + (left / 2) * Sha256.HASH_LENGTH);
+            }
+            count = (count + 1) / 2;
+        }
+    }
+
+    /** Calculates the parent of two nodes, both in the byte order the hashes come out of SHA-256. */
+    static byte[] combine(byte[] left, byte[] right) {
+        byte[] parent = new byte[Sha256.HASH_LENGTH];
+        Sha256.hashTwice(left, 0, Sha256.HASH_LENGTH, right, 0, Sha256.HASH_LENGTH, parent, 0);
+        return parent;
+    }
+
+    private static void reverseInto(byte[] hash, byte[] out, int offset) {
+        for (int i = 0; i < Sha256.HASH_LENGTH; i++)
+            out[offset + i] = hash[Sha256.HASH_LENGTH - 1 - i];
+    }
+
+    private static void reverseFrom(byte[] nodes, int offset, byte[] out) {
+        for (int i = 0; i < Sha256.HASH_LENGTH; i++)
+            out[i] = nodes[offset + Sha256.HASH_LENGTH - 1 - i];
+    }
+}
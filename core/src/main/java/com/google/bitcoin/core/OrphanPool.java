@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.AbstractBlockChain.OrphanBlock;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The blocks that {@link AbstractBlockChain} received but couldn't connect yet, because their parent is missing.
+ * Besides by their own hash, the blocks are indexed by the hash of their parent, so once a block connects, the orphans
+ * that build on it are found directly rather than by trying all of them.</p>
+ *
+ * <p>The pool holds at most a given number of blocks and of bytes. When a new block takes it over either limit, the
+ * oldest blocks are evicted. They are fetched again like any other missing block once their descendants show up.</p>
+ *
+ * <p>This class is not thread safe, the block chain uses it under its lock.</p>
+ */
+class OrphanPool {
+    private final int maxBlocks;
+    private final long maxBytes;
+    // In the order the blocks were added, so the eldest comes first.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> blocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final ListMultimap<Sha256Hash, OrphanBlock> byParent = ArrayListMultimap.create();
+    private long bytes;
+    private long evicted;
+
+    /** Creates a pool that holds up to the given number of blocks, which take up to about the given number of bytes. */
+    OrphanPool(int maxBlocks, long maxBytes) {
+        checkArgument(maxBlocks > 0, "maxBlocks must be positive");
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds the given block, unless a block with its hash is already there, and then evicts the oldest blocks until
+     * the pool is within its limits again. A block that is bigger than the byte limit on its own is evicted right away.
+     * @return true if the block was added.
+     */
+    boolean add(OrphanBlock orphan) {
+        Sha256Hash hash = orphan.block.getHash();
+        if (blocks.containsKey(hash))
+            return false;
+        blocks.put(hash, orphan);
+        byParent.put(orphan.block.getPrevBlockHash(), orphan);
+        bytes += orphan.size;
+        Iterator<OrphanBlock> eldest = blocks.values().iterator();
+        while (blocks.size() > maxBlocks || bytes > maxBytes) {
+            OrphanBlock victim = eldest.next();
+            eldest.remove();
+            byParent.remove(victim.block.getPrevBlockHash(), victim);
+            bytes -= victim.size;
+            evicted++;
+        }
+        return true;
+    }
+
+    /** Returns the block with the given hash, or null if it isn't in the pool. */
+    @Nullable
+    OrphanBlock get(Sha256Hash hash) {
+        return blocks.get(hash);
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    /** Removes the block with the given hash, and returns it or null if it wasn't in the pool. */
+    @Nullable
+    OrphanBlock remove(Sha256Hash hash) {
+        OrphanBlock orphan = blocks.remove(hash);
+        if (orphan != null) {
+            byParent.remove(orphan.block.getPrevBlockHash(), orphan);
+            bytes -= orphan.size;
+        }
+        return orphan;
+    }
+
+    /** Returns the blocks whose parent has the given hash, oldest first. They stay in the pool. */
+    List<OrphanBlock> getChildren(Sha256Hash parentHash) {
+        return new ArrayList<OrphanBlock>(byParent.get(parentHash));
+    }
+
+    /** Returns the number of blocks in the pool. */
+    int size() {
+        return blocks.size();
+    }
+
+    /** Returns roughly how many bytes the blocks in the pool take up. */
+    long getBytes() {
+        return bytes;
+    }
+
+    /** Returns how many blocks were evicted to keep the pool within its limits. */
+    long getEvicted() {
+        return evicted;
+    }
+}
@@ -104,8 +104,9 @@ public class PartialMerkleTree extends Message {
     }
     
     // recursive function that traverses tree nodes, consuming the bits and hashes produced by TraverseAndBuild.
-    // it returns the hash of the respective node.
-    private Sha256Hash recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
+    // it returns the hash of the respective node, in the byte order it comes out of SHA-256 so that it can be combined
+    // with its sibling without reversing it back and forth.
+    private byte[] recursiveExtractHashes(int height, int pos, ValuesUsed used, List<Sha256Hash> matchedHashes) throws VerificationException {
         if (used.bitsUsed >= matchedChildBits.length*8) {
             // overflowed the bits array - failure
             throw new VerificationException("CPartialMerkleTree overflowed its bits array");
@@ -119,18 +120,16 @@ public class PartialMerkleTree extends Message {
             }
             if (height == 0 && parentOfMatch) // in case of height 0, we have a matched txid
                 matchedHashes.add(hashes.get(used.hashesUsed));
-            return hashes.get(used.hashesUsed++);
+            return Utils.reverseBytes(hashes.get(used.hashesUsed++).getBytes());
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes).getBytes(), right;
+            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes), right;
             if (pos*2+1 < getTreeWidth(height-1))
-                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes).getBytes();
+                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes);
             else
                 right = left;
             // and combine them before returning
-            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
-                    Utils.reverseBytes(left), 0, 32,
-                    Utils.reverseBytes(right), 0, 32)));
+            return MerkleRootCalculator.combine(left, right);
         }
     }
     
@@ -167,7 +166,7 @@ public class PartialMerkleTree extends Message {
             height++;
         // traverse the partial tree
         ValuesUsed used = new ValuesUsed();
-        Sha256Hash merkleRoot = recursiveExtractHashes(height, 0, used, matchedHashes);
+        Sha256Hash merkleRoot = new Sha256Hash(Utils.reverseBytes(recursiveExtractHashes(height, 0, used, matchedHashes)));
         // verify that all bits were consumed (except for the padding caused by serializing it as a byte sequence)
         if ((used.bitsUsed+7)/8 != matchedChildBits.length ||
                 // verify that all hashes were consumed
@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Objects;
@@ -1177,7 +1178,7 @@ public class Peer extends PeerSocketHandler {
                 fastCatchupTimeSecs = secondsSinceEpoch;
                 // If the given time is before the current chains head block time, then this has no effect (we already
                 // downloaded everything we need).
-                if (fastCatchupTimeSecs > blockChain.getChainHead().getHeader().getTimeSeconds()) {
+                if (fastCatchupTimeSecs > blockChain.getChainHead().getTimeSeconds()) {
                     downloadBlockBodies = false;
                 }
             }
@@ -1250,30 +1251,63 @@ public class Peer extends PeerSocketHandler {
         //
         // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
         // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
+        // must always put the genesis block as the first entry. Stores that index the chain by height are the
+        // exception, they let us build a proper locator without any scanning, and so does the in memory ancestor
+        // index of the chain for as far back as it reaches.
         BlockStore store = checkNotNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
-        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        Sha256Hash chainHeadHash = chainHead.getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
             log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
             return;
         }
         log.debug("{}: blockChainDownloadLocked({}) current head = {}",
-                toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
+                toString(), toHash.toString(), chainHead.getHash().toString());
+        try {
+            if (store instanceof HeightIndexedBlockStore &&
+                    chainHead.equals(((HeightIndexedBlockStore) store).getByHeight(chainHead.getHeight()))) {
+                // The ten most recent blocks, then exponentially thinning out towards the genesis block.
+                HeightIndexedBlockStore indexedStore = (HeightIndexedBlockStore) store;
+                int step = 1;
+                for (int height = chainHead.getHeight(); height > 0; height -= step) {
+                    // The store's chain head can move back past this height while we walk, in a re-org.
+                    StoredBlock block = indexedStore.getByHeight(height);
+                    if (block == null)
+                        break;
+                    blockLocator.add(block.getHash());
+                    if (blockLocator.size() >= 10)
+                        step *= 2;
+                }
+                blockLocator.add(params.getGenesisBlock().getHash());
+            } else if (chainHead.getHeight() > 0 &&
+                    blockChain.getIndexedAncestorHash(chainHead, Math.max(0, chainHead.getHeight() - 100)) != null) {
+                // The chain keeps skip pointers for recently seen blocks in memory, which reach at least as far back
+                // as the top 100 blocks would, so thin the locator out for as far as they go.
+                int step = 1;
+                for (int height = chainHead.getHeight(); height > 0; height -= step) {
+                    Sha256Hash hash = blockChain.getIndexedAncestorHash(chainHead, height);
+                    if (hash == null)
+                        break;
+                    blockLocator.add(hash);
+                    if (blockLocator.size() >= 10)
+                        step *= 2;
+                }
+                blockLocator.add(params.getGenesisBlock().getHash());
+            } else {
+                StoredBlock cursor = chainHead;
+                for (int i = 100; cursor != null && i > 0; i--) {
+                    blockLocator.add(cursor.getHash());
+                    cursor = cursor.getPrev(store);
+                }
+                // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
+                if (cursor != null) {
+                    blockLocator.add(params.getGenesisBlock().getHash());
+                }
             }
-        }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null) {
-            blockLocator.add(params.getGenesisBlock().getHash());
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
         }
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
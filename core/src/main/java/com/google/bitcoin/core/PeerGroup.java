@@ -341,6 +341,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         downloadTxDependencies = true;
 
         memoryPool = new MemoryPool();
+        // A full chain can check the transactions peers send us, which saves verifying their signatures again later.
+        if (chain instanceof FullPrunedBlockChain)
+            memoryPool.setVerifyingChain((FullPrunedBlockChain) chain);
 
         inactives = new PriorityQueue<PeerAddress>(1, new Comparator<PeerAddress>() {
             @Override
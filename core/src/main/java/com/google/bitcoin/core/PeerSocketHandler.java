@@ -17,7 +17,10 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.AbstractTimeoutHandler;
+import com.google.bitcoin.net.ByteBufferPool;
 import com.google.bitcoin.net.MessageWriteTarget;
+import com.google.bitcoin.net.SharedBufferWriteTarget;
+import com.google.bitcoin.net.SharedByteBuffer;
 import com.google.bitcoin.net.StreamParser;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
@@ -51,7 +54,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It holds just
+    // the payload, so the message is parsed straight out of it rather than copied again.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
@@ -81,11 +85,36 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            if (writeTarget instanceof SharedBufferWriteTarget) {
+                serializer.serialize(message, ByteBufferPool.getDefault()).writeTo(writeTarget);
+            } else {
+                // The target wants an array anyway, so a pooled buffer would only add a copy.
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.serialize(message, out);
+                writeTarget.writeBytes(out.toByteArray());
+            }
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    /**
+     * Sends a message that was already serialized, for instance with
+     * {@link BitcoinSerializer#serialize(Message, ByteBufferPool)}, so that a message going to many peers is only
+     * serialized once. The caller keeps its reference to the bytes. Throws NotYetConnectedException if we are not yet
+     * connected to the remote peer.
+     */
+    public void sendMessage(SharedByteBuffer serialized) throws NotYetConnectedException {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            serialized.retain().writeTo(writeTarget);
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Runs the scripts of transaction inputs on a long lived pool of threads. The unit of work is a single input rather
+ * than a transaction, so a block with a few huge transactions is spread over all the threads as evenly as one with many
+ * small ones.</p>
+ *
+ * <p>The inputs of a block go into a {@link Batch}. Idle threads take the next input from the batch's queue as soon as
+ * it is added, and the thread waiting for the batch in {@link Batch#await()} works through the queue too, so with zero
+ * threads all the scripts run on that thread. Once an input fails, or the batch is cancelled, the inputs that didn't
+ * run yet are skipped. The pool keeps running for the next batch either way.</p>
+ */
+public class ScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerifier.class);
+
+    private final int threads;
+    @Nullable private final ThreadPoolExecutor executor;
+
+    /** Creates a verifier with the given number of threads, which may be zero to run all scripts in {@link Batch#await()}. */
+    public ScriptVerifier(int threads) {
+        checkArgument(threads >= 0, "threads must not be negative");
+        this.threads = threads;
+        if (threads == 0) {
+            executor = null;
+        } else {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Script verification thread %d");
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                builder.setUncaughtExceptionHandler(handler);
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), builder.build());
+        }
+    }
+
+    /** Returns the number of threads this verifier runs scripts on, besides the ones waiting for batches. */
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Starts a new batch of inputs to verify. */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Stops the threads once they finish what they are running. Batches still work afterwards, but all their scripts
+     * then run in {@link Batch#await()}.
+     */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private static class Input {
+        final Transaction tx;
+        final int index;
+        final Script scriptSig;
+        final Script scriptPubKey;
+        final boolean enforcePayToScriptHash;
+
+        Input(Transaction tx, int index, Script scriptSig, Script scriptPubKey, boolean enforcePayToScriptHash) {
+            this.tx = tx;
+            this.index = index;
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+        }
+    }
+
+    /**
+     * The inputs of one block, or any other set of inputs that are verified together. A batch is filled and awaited by
+     * a single thread.
+     */
+    public class Batch {
+        private final ConcurrentLinkedQueue<Input> queue = new ConcurrentLinkedQueue<Input>();
+        // Inputs that were added and are not done yet, guarded by this.
+        private int unfinished;
+        // Pool threads currently taking inputs from the queue.
+        private final AtomicInteger workers = new AtomicInteger();
+        @Nullable private volatile VerificationException failure;
+        private volatile boolean cancelled;
+
+        private Batch() {
+        }
+
+        /**
+         * Queues the given input of the given transaction for verification against the output it spends. The
+         * transaction must not be changed until the batch is done, but scripts of its inputs may run at the same time.
+         */
+        public void add(Transaction tx, int index, Script scriptPubKey, boolean enforcePayToScriptHash) {
+            // Parse the scriptSig here, so the threads don't race to do it.
+            Script scriptSig = tx.getInputs().get(index).getScriptSig();
+            synchronized (this) {
+                unfinished++;
+            }
+            queue.add(new Input(tx, index, scriptSig, scriptPubKey, enforcePayToScriptHash));
+            if (executor != null && workers.get() < threads) {
+                workers.incrementAndGet();
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                runQueued();
+                            } finally {
+                                workers.decrementAndGet();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Shut down, the input is left for await().
+                    workers.decrementAndGet();
+                }
+            }
+        }
+
+        /** Skips all inputs that didn't run yet. {@link #await()} then returns without throwing, unless one failed. */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Helps to run the queued inputs, and waits for those that are running on other threads.
+         * @throws VerificationException of an input whose script failed, or that hit a bug in the script engine
+         */
+        public void await() throws VerificationException {
+            runQueued();
+            boolean interrupted = false;
+            synchronized (this) {
+                while (unfinished > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            VerificationException e = failure;
+            if (e != null)
+                throw e;
+        }
+
+        private void runQueued() {
+            Input input;
+            while ((input = queue.poll()) != null) {
+                try {
+                    if (failure == null && !cancelled)
+                        verify(input);
+                } finally {
+                    synchronized (this) {
+                        if (--unfinished == 0)
+                            notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void verify(Input input) {
+            try {
+                input.scriptSig.correctlySpends(input.tx, input.index, input.scriptPubKey,
+                                                input.enforcePayToScriptHash);
+            } catch (ScriptException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            }
+        }
+
+        private synchronized void fail(VerificationException e) {
+            if (failure == null)
+                failure = e;
+        }
+    }
+}
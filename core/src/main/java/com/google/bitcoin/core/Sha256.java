@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>SHA-256 hashing as Bitcoin uses it. Every thread gets its own digest, which is reused from one call to the next,
+ * so hashing neither looks up the provider nor takes a lock. Input is hashed straight from the given byte range or
+ * buffer, without copying it first.</p>
+ *
+ * <p>When many messages start with the same bytes, hash the common part once with {@link #newState()} and continue
+ * from a {@link State#copy()} of it for each of them. For instance, the 76 bytes of a block header in front of the
+ * nonce only need hashing once while solving the block.</p>
+ */
+public class Sha256 {
+    /** How many bytes a SHA-256 hash has. */
+    public static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    private Sha256() {
+    }
+
+    /** Returns a new SHA-256 digest, for callers that need one of their own. */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    private static MessageDigest threadDigest() {
+        MessageDigest d = digest.get();
+        // A digest left half way by an exception must not leak into the next hash.
+        d.reset();
+        return d;
+    }
+
+    /** Calculates the SHA-256 hash of the given bytes. */
+    public static byte[] hash(byte[] input) {
+        return hash(input, 0, input.length);
+    }
+
+    /** Calculates the SHA-256 hash of the given byte range. */
+    public static byte[] hash(byte[] input, int offset, int length) {
+        MessageDigest d = threadDigest();
+        d.update(input, offset, length);
+        return d.digest();
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the bytes between the position and the limit of the given buffer. The position
+     * of the buffer is moved to its limit.
+     */
+    public static byte[] hash(ByteBuffer input) {
+        MessageDigest d = threadDigest();
+        d.update(input);
+        return d.digest();
+    }
+
+    /** Calculates the SHA-256 hash of the SHA-256 hash of the given bytes. */
+    public static byte[] hashTwice(byte[] input) {
+        return hashTwice(input, 0, input.length);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again. This is the
+     * standard procedure in Bitcoin. The resulting hash is in big endian form.
+     */
+    public static byte[] hashTwice(byte[] input, int offset, int length) {
+        MessageDigest d = threadDigest();
+        d.update(input, offset, length);
+        return d.digest(d.digest());
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the SHA-256 hash of the bytes between the position and the limit of the given
+     * buffer. The position of the buffer is moved to its limit.
+     */
+    public static byte[] hashTwice(ByteBuffer input) {
+        MessageDigest d = threadDigest();
+        d.update(input);
+        return d.digest(d.digest());
+    }
+
+    /** Calculates SHA256(SHA256(byte range 1 + byte range 2)). */
+    public static byte[] hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2) {
+        MessageDigest d = threadDigest();
+        d.update(input1, offset1, length1);
+        d.update(input2, offset2, length2);
+        return d.digest(d.digest());
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range 1 + byte range 2)) and writes it to the output array at the given offset,
+     * without allocating anything. The output may overlap the input.
+     */
+    public static void hashTwice(byte[] input1, int offset1, int length1, byte[] input2, int offset2, int length2,
+                                 byte[] output, int outputOffset) {
+        MessageDigest d = threadDigest();
+        d.update(input1, offset1, length1);
+        d.update(input2, offset2, length2);
+        try {
+            d.digest(output, outputOffset, HASH_LENGTH);
+            d.update(output, outputOffset, HASH_LENGTH);
+            d.digest(output, outputOffset, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, there is always room for the hash.
+        }
+    }
+
+    /** Returns the state of a new hash, to which bytes can be added bit by bit. */
+    public static State newState() {
+        return new State(newDigest());
+    }
+
+    /**
+     * <p>A SHA-256 hash being calculated. Bytes are added with the update methods, or by writing to it as a stream,
+     * for instance when serializing a message straight into it. The hash is then finished with {@link #hash()} or
+     * {@link #hashTwice()}, after which the state starts from scratch again.</p>
+     *
+     * <p>A copy of the state, also known as the midstate, carries on from the bytes added so far without hashing them
+     * again. The hash methods that take a suffix do so without changing this state, so the same prefix can be finished
+     * with any number of suffixes. Instances are not thread safe.</p>
+     */
+    public static class State extends OutputStream {
+        private final MessageDigest digest;
+
+        private State(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        public State update(byte[] input, int offset, int length) {
+            digest.update(input, offset, length);
+            return this;
+        }
+
+        /** Adds the bytes between the position and the limit of the buffer, and moves the position to its limit. */
+        public State update(ByteBuffer input) {
+            digest.update(input);
+            return this;
+        }
+
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+
+        /** Returns a separate state that carries on from the bytes added to this one so far. */
+        public State copy() {
+            try {
+                return new State((MessageDigest) digest.clone());
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);  // Can't happen with the SHA-256 digests of the standard providers.
+            }
+        }
+
+        /** Finishes the SHA-256 hash of the bytes added so far, and starts from scratch again. */
+        public byte[] hash() {
+            return digest.digest();
+        }
+
+        /** Finishes the SHA-256 hash of the SHA-256 hash of the bytes added so far, and starts from scratch again. */
+        public byte[] hashTwice() {
+            MessageDigest d = Sha256.digest.get();
+            d.reset();
+            return d.digest(digest.digest());
+        }
+
+        /**
+         * Returns the SHA-256 hash of the SHA-256 hash of the bytes added so far followed by the given byte range,
+         * leaving this state as it was.
+         */
+        public byte[] hashTwice(byte[] suffix, int offset, int length) {
+            return copy().update(suffix, offset, length).hashTwice();
+        }
+    }
+}
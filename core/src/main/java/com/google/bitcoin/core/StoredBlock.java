@@ -19,10 +19,14 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 
+import com.google.common.primitives.UnsignedLongs;
+
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -32,10 +36,14 @@ import static com.google.common.base.Preconditions.checkState;
  * block in the chain back to the genesis block, which involves lots of seeking/loading etc. So we just keep a
  * running total: it's a disk space vs cpu/io tradeoff.<p>
  *
- * StoredBlocks are put inside a {@link BlockStore} which saves them to memory or disk.
+ * StoredBlocks are put inside a {@link BlockStore} which saves them to memory or disk.<p>
+ *
+ * As stores and the block chain keep a lot of these around, the header is kept as its 80 raw bytes and the chain work
+ * as a fixed width number in two longs. {@link #getHeader()} decodes a new {@link Block} on each call, so code that
+ * only needs a field or two should use {@link #getHash()}, {@link #getPrevBlockHash()} and friends instead.
  */
 public class StoredBlock implements Serializable {
-    private static final long serialVersionUID = -6097565241243701771L;
+    private static final long serialVersionUID = 2398123742863208311L;
 
     // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
     // bytes to represent this field, so 12 bytes should be plenty for now.
@@ -43,21 +51,65 @@ public class StoredBlock implements Serializable {
     public static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
     public static final int COMPACT_SERIALIZED_SIZE = Block.HEADER_SIZE + CHAIN_WORK_BYTES + 4;  // for height
 
-    private Block header;
-    private BigInteger chainWork;
-    private int height;
+    private final NetworkParameters params;
+    // The header in the wire format, without the transaction count.
+    private final byte[] header;
+    // Calculated when first asked for, as blocks read from a store often aren't.
+    @Nullable private transient volatile Sha256Hash hash;
+    // The chain work as an unsigned 128 bit number.
+    private final long chainWorkHigh, chainWorkLow;
+    private final int height;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
+        checkArgument(chainWork.signum() >= 0 && chainWork.bitLength() <= 128, "Chain work out of range: %s",
+                chainWork);
+        this.params = header.getParams();
+        this.header = header.getHeaderBytes();
+        this.hash = header.getHash();
+        this.chainWorkHigh = chainWork.shiftRight(64).longValue();
+        this.chainWorkLow = chainWork.longValue();
+        this.height = height;
+    }
+
+    private StoredBlock(NetworkParameters params, byte[] header, @Nullable Sha256Hash hash, long chainWorkHigh,
+                        long chainWorkLow, int height) {
+        this.params = params;
         this.header = header;
-        this.chainWork = chainWork;
+        this.hash = hash;
+        this.chainWorkHigh = chainWorkHigh;
+        this.chainWorkLow = chainWorkLow;
         this.height = height;
     }
 
     /**
-     * The block header this object wraps. The referenced block object must not have any transactions in it.
+     * The block header this object wraps, decoded from the stored bytes. Each call returns a new object without any
+     * transactions in it.
      */
     public Block getHeader() {
-        return header;
+        return Block.headerFromBytes(params, header, getHash());
+    }
+
+    /** Returns the hash of the block, like {@code getHeader().getHash()} but without decoding the header. */
+    public Sha256Hash getHash() {
+        Sha256Hash hash = this.hash;
+        if (hash == null)
+            this.hash = hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(header)));
+        return hash;
+    }
+
+    /** Returns the hash of the previous block, like {@code getHeader().getPrevBlockHash()}. */
+    public Sha256Hash getPrevBlockHash() {
+        return Block.readHeaderHash(header, 4);
+    }
+
+    /** Returns the time the block was mined at in seconds, like {@code getHeader().getTimeSeconds()}. */
+    public long getTimeSeconds() {
+        return Utils.readUint32(header, 68);
+    }
+
+    /** Returns the difficulty target in compact form, like {@code getHeader().getDifficultyTarget()}. */
+    public long getDifficultyTarget() {
+        return Utils.readUint32(header, 72);
     }
 
     /**
@@ -66,7 +118,9 @@ public class StoredBlock implements Serializable {
      * then the work represented by a block is 10.
      */
     public BigInteger getChainWork() {
-        return chainWork;
+        byte[] bytes = new byte[16];
+        ByteBuffer.wrap(bytes).putLong(chainWorkHigh).putLong(chainWorkLow);
+        return new BigInteger(1, bytes);
     }
 
     /**
@@ -78,7 +132,9 @@ public class StoredBlock implements Serializable {
 
     /** Returns true if this objects chainWork is higher than the others. */
     public boolean moreWorkThan(StoredBlock other) {
-        return chainWork.compareTo(other.chainWork) > 0;
+        if (chainWorkHigh != other.chainWorkHigh)
+            return UnsignedLongs.compare(chainWorkHigh, other.chainWorkHigh) > 0;
+        return UnsignedLongs.compare(chainWorkLow, other.chainWorkLow) > 0;
     }
 
     @Override
@@ -86,68 +142,89 @@ public class StoredBlock implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         StoredBlock other = (StoredBlock) o;
-        return header.equals(other.header) &&
-               chainWork.equals(other.chainWork) &&
+        return getHash().equals(other.getHash()) &&
+               chainWorkHigh == other.chainWorkHigh && chainWorkLow == other.chainWorkLow &&
                height == other.height;
     }
 
     @Override
     public int hashCode() {
         // A better hashCode is possible, but this works for now.
-        return header.hashCode() ^ chainWork.hashCode() ^ height;
+        return getHash().hashCode() ^ (int) chainWorkLow ^ height;
     }
 
+    // The work of the last difficulty target build() saw. All blocks between two difficulty transitions share it, so
+    // this saves the BigInteger division for nearly every block.
+    private static final class Work {
+        final NetworkParameters params;
+        final long difficultyTarget;
+        final long high, low;
+
+        Work(NetworkParameters params, long difficultyTarget, long high, long low) {
+            this.params = params;
+            this.difficultyTarget = difficultyTarget;
+            this.high = high;
+            this.low = low;
+        }
+    }
+    private static volatile Work lastWork;
+
     /**
      * Creates a new StoredBlock, calculating the additional fields by adding to the values in this block.
      */
     public StoredBlock build(Block block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
-        int height = this.height + 1;
-        return new StoredBlock(block, chainWork, height);
+        Work work = lastWork;
+        if (work == null || work.params != block.getParams() || work.difficultyTarget != block.getDifficultyTarget()) {
+            BigInteger blockWork = block.getWork();
+            if (blockWork.bitLength() > 128)
+                throw new VerificationException("Block work out of range: " + blockWork);
+            work = new Work(block.getParams(), block.getDifficultyTarget(), blockWork.shiftRight(64).longValue(),
+                            blockWork.longValue());
+            lastWork = work;
+        }
+        long low = chainWorkLow + work.low;
+        long carry = UnsignedLongs.compare(low, chainWorkLow) < 0 ? 1 : 0;
+        long addHigh = work.high + carry;
+        long high = chainWorkHigh + addHigh;
+        if ((carry == 1 && addHigh == 0) || UnsignedLongs.compare(high, chainWorkHigh) < 0)
+            throw new VerificationException("Chain work out of range");
+        return new StoredBlock(block.getParams(), block.getHeaderBytes(), block.getHash(), high, low, height + 1);
     }
 
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
-     * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
+     * <tt>store.get(this.getPrevBlockHash())</tt>.
      *
      * @return the previous block in the chain or null if it was not found in the store.
      */
     public StoredBlock getPrev(BlockStore store) throws BlockStoreException {
-        return store.get(getHeader().getPrevBlockHash());
+        return store.get(getPrevBlockHash());
     }
 
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
-        byte[] chainWorkBytes = getChainWork().toByteArray();
-        checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
-        if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-            // Pad to the right size.
-            buffer.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-        }
-        buffer.put(chainWorkBytes);
+        checkState(chainWorkHigh >>> 32 == 0, "Ran out of space to store chain work!");
+        buffer.putInt((int) chainWorkHigh);
+        buffer.putLong(chainWorkLow);
         buffer.putInt(getHeight());
-        // Using unsafeBitcoinSerialize here can give us direct access to the same bytes we read off the wire,
-        // avoiding serialization round-trips.
-        byte[] bytes = getHeader().unsafeBitcoinSerialize();
-        buffer.put(bytes, 0, Block.HEADER_SIZE);  // Trim the trailing 00 byte (zero transactions).
+        buffer.put(header, 0, Block.HEADER_SIZE);
     }
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
-        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
-        buffer.get(chainWorkBytes);
-        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
+        long chainWorkHigh = buffer.getInt() & 0xFFFFFFFFL;
+        long chainWorkLow = buffer.getLong();
         int height = buffer.getInt();  // +4 bytes
-        byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
-        buffer.get(header, 0, Block.HEADER_SIZE);
-        return new StoredBlock(new Block(params, header), chainWork, height);
+        byte[] header = new byte[Block.HEADER_SIZE];
+        buffer.get(header);
+        return new StoredBlock(params, header, null, chainWorkHigh, chainWorkLow, height);
     }
 
     @Override
     public String toString() {
         return String.format("Block %s at height %d: %s",
-                getHeader().getHashAsString(), getHeight(), getHeader().toString());
+                getHash(), getHeight(), getHeader().toString());
     }
 }
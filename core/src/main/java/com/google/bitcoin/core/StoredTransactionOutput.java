@@ -16,9 +16,13 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.script.ScriptCompressor;
+
 import java.io.*;
 import java.math.BigInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A StoredTransactionOutput message contains the information necessary to check a spending transaction.
  * It avoids having to store the entire parentTransaction just to get the hash and index.
@@ -174,4 +178,68 @@ public class StoredTransactionOutput implements Serializable {
         bos.write(0xFF & (height >> 16));
         bos.write(0xFF & (height >> 24));
     }
+
+    /**
+     * Writes this output in a compact form without the hash and index, which the caller has to store some other way.
+     * The height and whether the output is from a coinbase are packed into one varint, the value is a varint of the
+     * value with trailing zeros folded into the low digit like the reference client does it, and the script is
+     * compressed with {@link ScriptCompressor}. Read it back with {@link #deserializeCompact(Sha256Hash, long,
+     * InputStream)}.
+     */
+    public void serializeCompact(OutputStream bos) throws IOException {
+        long code = height == NONCOINBASE_HEIGHT ? 0 : ((long) height << 1) | 1;
+        bos.write(new VarInt(code).encode());
+        bos.write(new VarInt(compressAmount(value.value)).encode());
+        // Compact outputs are read back far more often than written, so uncompressed keys are kept as they are.
+        ScriptCompressor.compress(scriptBytes, bos);
+    }
+
+    /** Reads an output written by {@link #serializeCompact(OutputStream)}. */
+    public static StoredTransactionOutput deserializeCompact(Sha256Hash hash, long index, InputStream in)
+            throws IOException {
+        long code = new VarInt(in).value;
+        Coin value = Coin.valueOf(decompressAmount(new VarInt(in).value));
+        byte[] scriptBytes = ScriptCompressor.decompress(in);
+        return new StoredTransactionOutput(hash, index, value, (int) (code >>> 1), (code & 1) != 0, scriptBytes);
+    }
+
+    // Most values are round numbers, so the trailing decimal zeros are stored as an exponent in the low digit.
+    static long compressAmount(long n) {
+        checkArgument(n >= 0, "Negative value");
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while (n % 10 == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
 }
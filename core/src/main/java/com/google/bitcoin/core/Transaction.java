@@ -226,8 +226,13 @@ public class Transaction extends ChildMessage implements Serializable {
     @Override
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            // Hash the cached bytes where they are, if there are any, rather than copying them out.
+            byte[] digest;
+            if (payload != null && length != UNKNOWN_LENGTH)
+                digest = Sha256.hashTwice(payload, offset, length);
+            else
+                digest = Sha256.hashTwice(unsafeBitcoinSerialize());
+            hash = new Sha256Hash(reverseBytes(digest));
         }
         return hash;
     }
@@ -325,12 +330,12 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param relativityOffset A number that disambiguates the order of transactions within a block.
      */
     public void setBlockAppearance(StoredBlock block, boolean bestChain, int relativityOffset) {
-        long blockTime = block.getHeader().getTimeSeconds() * 1000;
+        long blockTime = block.getTimeSeconds() * 1000;
         if (bestChain && (updatedAt == null || updatedAt.getTime() == 0 || updatedAt.getTime() > blockTime)) {
             updatedAt = new Date(blockTime);
         }
 
-        addBlockAppearance(block.getHeader().getHash(), relativityOffset);
+        addBlockAppearance(block.getHash(), relativityOffset);
 
         if (bestChain) {
             TransactionConfidence transactionConfidence = getConfidence();
@@ -1008,14 +1013,14 @@ public class Transaction extends ChildMessage implements Serializable {
                 this.inputs.add(input);
             }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
+            // Serialize straight into the hash rather than into an array that is then hashed.
+            Sha256.State state = Sha256.newState();
+            bitcoinSerialize(state);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+            uint32ToByteStreamLE(0x000000ff & sigHashType, state);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
-            bos.close();
+            Sha256Hash hash = new Sha256Hash(state.hashTwice());
 
             // Put the transaction back to how we found it.
             this.inputs = inputs;
@@ -16,6 +16,8 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.SharedByteBuffer;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
@@ -24,6 +26,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -104,14 +107,25 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
-            for (Peer peer : peers) {
-                try {
-                    peer.sendMessage(pinnedTx);
-                    // We don't record the peer as having seen the tx in the memory pool because we want to track only
-                    // how many peers announced to us.
-                } catch (Exception e) {
-                    log.error("Caught exception sending to {}", peer, e);
+            // Serialize the tx once and write the same bytes to every peer.
+            SharedByteBuffer serialized;
+            try {
+                serialized = new BitcoinSerializer(pinnedTx.getParams()).serialize(pinnedTx, ByteBufferPool.getDefault());
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen, we are serializing to memory.
+            }
+            try {
+                for (Peer peer : peers) {
+                    try {
+                        peer.sendMessage(serialized);
+                        // We don't record the peer as having seen the tx in the memory pool because we want to track
+                        // only how many peers announced to us.
+                    } catch (Exception e) {
+                        log.error("Caught exception sending to {}", peer, e);
+                    }
                 }
+            } finally {
+                serialized.release();
             }
             // If we've been limited to talk to only one peer, we can't wait to hear back because the
             // remote peer won't tell us about transactions we just announced to it for obvious reasons.
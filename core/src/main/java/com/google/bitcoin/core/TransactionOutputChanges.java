@@ -16,6 +16,8 @@
 
 package com.google.bitcoin.core;
 
+import com.google.common.io.ByteStreams;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -29,6 +31,10 @@ import java.util.List;
  * BIP30 (no duplicate txid creation if the previous one was not fully spent prior to this block) verification.</p>
  */
 public class TransactionOutputChanges {
+    // The older format started with the number of outputs created, which can't be this large.
+    private static final int COMPACT_MARKER = 0xFFFFFFFF;
+    private static final int COMPACT_VERSION = 1;
+
     public final List<StoredTransactionOutput> txOutsCreated;
     public final List<StoredTransactionOutput> txOutsSpent;
     
@@ -37,41 +43,86 @@ public class TransactionOutputChanges {
         this.txOutsSpent = txOutsSpent;
     }
     
+    /**
+     * Reads changes written by {@link #serializeToStream(OutputStream)}, or in the older format that stored every
+     * output in full.
+     */
     public TransactionOutputChanges(InputStream in) throws IOException {
-        int numOutsCreated = ((in.read() & 0xFF) << 0) |
-                             ((in.read() & 0xFF) << 8) |
-                             ((in.read() & 0xFF) << 16) |
-                             ((in.read() & 0xFF) << 24);
+        int numOutsCreated = readInt(in);
+        if (numOutsCreated == COMPACT_MARKER) {
+            long version = new VarInt(in).value;
+            if (version != COMPACT_VERSION)
+                throw new IOException("Unknown undo data version " + version);
+            txOutsCreated = readCompact(in);
+            txOutsSpent = readCompact(in);
+            return;
+        }
         txOutsCreated = new LinkedList<StoredTransactionOutput>();
         for (int i = 0; i < numOutsCreated; i++)
             txOutsCreated.add(new StoredTransactionOutput(in));
         
-        int numOutsSpent = ((in.read() & 0xFF) << 0) |
-                           ((in.read() & 0xFF) << 8) |
-                           ((in.read() & 0xFF) << 16) |
-                           ((in.read() & 0xFF) << 24);
+        int numOutsSpent = readInt(in);
         txOutsSpent = new LinkedList<StoredTransactionOutput>();
         for (int i = 0; i < numOutsSpent; i++)
             txOutsSpent.add(new StoredTransactionOutput(in));
     }
 
+    /**
+     * Writes the changes in the compact format: a marker that the older format can't start with and a version, then
+     * both lists of outputs. Every output starts with a varint of its index shifted left by one, with the low bit set
+     * when its hash differs from the previous output's and follows, and then the rest of the output as written by
+     * {@link StoredTransactionOutput#serializeCompact(OutputStream)}.
+     */
     public void serializeToStream(OutputStream bos) throws IOException {
-        int numOutsCreated = txOutsCreated.size();
-        bos.write(0xFF & (numOutsCreated >> 0));
-        bos.write(0xFF & (numOutsCreated >> 8));
-        bos.write(0xFF & (numOutsCreated >> 16));
-        bos.write(0xFF & (numOutsCreated >> 24));
-        for (StoredTransactionOutput output : txOutsCreated) {
-            output.serializeToStream(bos);
+        writeInt(bos, COMPACT_MARKER);
+        bos.write(new VarInt(COMPACT_VERSION).encode());
+        writeCompact(bos, txOutsCreated);
+        writeCompact(bos, txOutsSpent);
+    }
+
+    private static List<StoredTransactionOutput> readCompact(InputStream in) throws IOException {
+        long count = new VarInt(in).value;
+        List<StoredTransactionOutput> outputs = new LinkedList<StoredTransactionOutput>();
+        Sha256Hash hash = null;
+        for (long i = 0; i < count; i++) {
+            long code = new VarInt(in).value;
+            if ((code & 1) != 0) {
+                byte[] hashBytes = new byte[32];
+                ByteStreams.readFully(in, hashBytes);
+                hash = new Sha256Hash(hashBytes);
+            } else if (hash == null) {
+                throw new IOException("Undo data starts without a hash");
+            }
+            outputs.add(StoredTransactionOutput.deserializeCompact(hash, code >>> 1, in));
         }
-        
-        int numOutsSpent = txOutsSpent.size();
-        bos.write(0xFF & (numOutsSpent >> 0));
-        bos.write(0xFF & (numOutsSpent >> 8));
-        bos.write(0xFF & (numOutsSpent >> 16));
-        bos.write(0xFF & (numOutsSpent >> 24));
-        for (StoredTransactionOutput output : txOutsSpent) {
-            output.serializeToStream(bos);
+        return outputs;
+    }
+
+    private static void writeCompact(OutputStream bos, List<StoredTransactionOutput> outputs) throws IOException {
+        bos.write(new VarInt(outputs.size()).encode());
+        Sha256Hash hash = null;
+        for (StoredTransactionOutput output : outputs) {
+            boolean newHash = !output.getHash().equals(hash);
+            bos.write(new VarInt((output.getIndex() << 1) | (newHash ? 1 : 0)).encode());
+            if (newHash) {
+                hash = output.getHash();
+                bos.write(hash.getBytes());
+            }
+            output.serializeCompact(bos);
         }
     }
+
+    private static int readInt(InputStream in) throws IOException {
+        return ((in.read() & 0xFF) << 0) |
+               ((in.read() & 0xFF) << 8) |
+               ((in.read() & 0xFF) << 16) |
+               ((in.read() & 0xFF) << 24);
+    }
+
+    private static void writeInt(OutputStream bos, int value) throws IOException {
+        bos.write(0xFF & (value >> 0));
+        bos.write(0xFF & (value >> 8));
+        bos.write(0xFF & (value >> 16));
+        bos.write(0xFF & (value >> 24));
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>A hash of a set of unspent transaction outputs that is cheap to keep up to date as outputs are added and removed,
+ * without going over the whole set again. It is a multiplicative set hash (MuHash): every output is hashed to a number
+ * modulo the prime 2<sup>3072</sup> - 1103717, and the hash of the set is the product of those numbers. The product
+ * does not depend on the order in which outputs were added, so two sets with the same outputs have the same hash no
+ * matter how they were built, and removing an output is a division. Divisions are collected in a separate
+ * denominator so that only {@link #getHash()} has to compute an inverse.</p>
+ *
+ * <p>An output is hashed from its transaction hash, index, height, value and script. As the JDBC stores don't remember
+ * which outputs are coinbases, the flag is left out, but the height already tells them apart: outputs that are not
+ * coinbases have the same placeholder height in every store.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ */
+public class UTXOSetHash {
+    private static final BigInteger PRIME = BigInteger.ONE.shiftLeft(3072).subtract(BigInteger.valueOf(1103717));
+    private static final int ELEMENT_BYTES = 3072 / 8;
+
+    private BigInteger numerator = BigInteger.ONE;
+    private BigInteger denominator = BigInteger.ONE;
+    private long size;
+    private final MessageDigest digest;
+
+    /** Creates the hash of the empty set. */
+    public UTXOSetHash() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Creates a copy of the given hash, which can then be changed independently. */
+    public UTXOSetHash(UTXOSetHash other) {
+        this();
+        numerator = other.numerator;
+        denominator = other.denominator;
+        size = other.size;
+    }
+
+    /** Computes the hash of all unspent outputs in the given store, which must not have a batch open. */
+    public static UTXOSetHash of(FullPrunedBlockStore store) throws BlockStoreException {
+        final UTXOSetHash hash = new UTXOSetHash();
+        store.visitUnspentTransactionOutputs(new FullPrunedBlockStore.UnspentOutputVisitor() {
+            @Override
+            public void visit(StoredTransactionOutput out) {
+                hash.add(out);
+            }
+        });
+        return hash;
+    }
+
+    /** Adds the given output to the set. */
+    public void add(StoredTransactionOutput out) {
+        numerator = numerator.multiply(toElement(out)).mod(PRIME);
+        size++;
+    }
+
+    /** Removes the given output, which must be in the set, from the set. */
+    public void remove(StoredTransactionOutput out) {
+        denominator = denominator.multiply(toElement(out)).mod(PRIME);
+        size--;
+    }
+
+    /** Adds all outputs of the other set to this one. The sets must not have any outputs in common. */
+    public void addAll(UTXOSetHash other) {
+        numerator = numerator.multiply(other.numerator).mod(PRIME);
+        denominator = denominator.multiply(other.denominator).mod(PRIME);
+        size += other.size;
+    }
+
+    /** Returns how many outputs are in the set. */
+    public long size() {
+        return size;
+    }
+
+    /** Returns the SHA-256 hash of the product, in little endian order, which is what snapshots are checked against. */
+    public Sha256Hash getHash() {
+        if (!denominator.equals(BigInteger.ONE)) {
+            numerator = numerator.multiply(denominator.modInverse(PRIME)).mod(PRIME);
+            denominator = BigInteger.ONE;
+        }
+        byte[] bytes = Utils.reverseBytes(Utils.bigIntegerToBytes(numerator, ELEMENT_BYTES));
+        return Sha256Hash.create(bytes);
+    }
+
+    /** Hashes the output to a number in the group, by expanding the SHA-256 hash of its serialization. */
+    private BigInteger toElement(StoredTransactionOutput out) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + out.getScriptBytes().length);
+        try {
+            bos.write(out.getHash().getBytes());
+            Utils.uint32ToByteStreamLE(out.getIndex(), bos);
+            Utils.uint32ToByteStreamLE(out.getHeight(), bos);
+            Utils.int64ToByteStreamLE(out.getValue().value, bos);
+            bos.write(new VarInt(out.getScriptBytes().length).encode());
+            bos.write(out.getScriptBytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        byte[] seed = digest.digest(bos.toByteArray());
+        byte[] element = new byte[ELEMENT_BYTES];
+        for (int i = 0; i < ELEMENT_BYTES / 32; i++) {
+            digest.update(seed);
+            digest.update((byte) i);
+            System.arraycopy(digest.digest(), 0, element, i * 32, 32);
+        }
+        return new BigInteger(1, element).mod(PRIME);
+    }
+}
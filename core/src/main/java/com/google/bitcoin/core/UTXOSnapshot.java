@@ -0,0 +1,278 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Writes the set of unspent outputs of a {@link FullPrunedBlockStore} to a snapshot, and reads it back into a new
+ * store, so that a new full node can start verifying from the snapshot's chain head rather than replaying the whole
+ * chain.</p>
+ *
+ * <p>A snapshot starts with the network id and the last few headers up to the verified chain head, enough for the
+ * difficulty and timestamp checks of the blocks that follow. Then come the outputs, in chunks of
+ * {@link #OUTPUTS_PER_CHUNK}, each with a checksum. Every output is written as its transaction hash, its index and
+ * the compact form of {@link StoredTransactionOutput#serializeCompact(OutputStream)}. The snapshot ends with the
+ * number of outputs and their {@link UTXOSetHash}.</p>
+ *
+ * <p>The importer checks the chunks, the headers and the set hash, which it recomputes as it goes. The set hash
+ * commits to the outputs only: importers that don't trust where a snapshot came from should pass a trusted set hash,
+ * and check the chain head against a block hash they know as well.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    private static final int MAGIC = 0x5554584f;  // "UTXO"
+    private static final int VERSION = 1;
+
+    /** The number of outputs in a chunk, which is also how many are written to the store in one batch. */
+    public static final int OUTPUTS_PER_CHUNK = 4096;
+
+    // The most an output can take up in a chunk on average: its hash, the varints of its index, height, value and
+    // script length, and a script of the largest size that can be spent.
+    private static final int MAX_OUTPUT_SIZE = 32 + 4 * 9 + 10000;
+
+    private final NetworkParameters params;
+
+    public UTXOSnapshot(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Writes the unspent outputs of the given store, as of its verified chain head, to the stream. The store must not
+     * be changed meanwhile. Returns the hash of the outputs, which is also written to the snapshot.
+     */
+    public UTXOSetHash export(FullPrunedBlockStore store, OutputStream stream) throws BlockStoreException, IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.write(new VarInt(VERSION).encode());
+        byte[] id = params.getId().getBytes("UTF-8");
+        out.write(new VarInt(id.length).encode());
+        out.write(id);
+
+        // The blocks after the head look at no more than the last interval headers for their difficulty, and the last
+        // 11 for their timestamps.
+        int headerCount = Math.max(params.getInterval(), 11) + 1;
+        List<StoredBlock> headers = new ArrayList<StoredBlock>(headerCount);
+        StoredBlock cursor = store.getVerifiedChainHead();
+        while (cursor != null && headers.size() < headerCount) {
+            headers.add(cursor);
+            cursor = cursor.getPrev(store);
+        }
+        Collections.reverse(headers);
+        out.write(new VarInt(headers.size()).encode());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock header : headers) {
+            buffer.clear();
+            header.serializeCompact(buffer);
+            out.write(buffer.array());
+        }
+
+        final UTXOSetHash hash = new UTXOSetHash();
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        final int[] chunkOutputs = new int[1];
+        try {
+            store.visitUnspentTransactionOutputs(new FullPrunedBlockStore.UnspentOutputVisitor() {
+                @Override
+                public void visit(StoredTransactionOutput output) throws BlockStoreException {
+                    hash.add(output);
+                    try {
+                        chunk.write(output.getHash().getBytes());
+                        chunk.write(new VarInt(output.getIndex()).encode());
+                        output.serializeCompact(chunk);
+                        if (++chunkOutputs[0] == OUTPUTS_PER_CHUNK) {
+                            writeChunk(out, chunkOutputs[0], chunk);
+                            chunkOutputs[0] = 0;
+                        }
+                    } catch (IOException e) {
+                        throw new BlockStoreException(e);
+                    }
+                }
+            });
+        } catch (BlockStoreException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        if (chunkOutputs[0] > 0)
+            writeChunk(out, chunkOutputs[0], chunk);
+        out.write(new VarInt(0).encode());
+        Utils.int64ToByteStreamLE(hash.size(), out);
+        out.write(hash.getHash().getBytes());
+        out.flush();
+        log.info("Wrote {} unspent outputs as of block {}, set hash {}", hash.size(),
+                headers.get(headers.size() - 1).getHeight(), hash.getHash());
+        return hash;
+    }
+
+    private static void writeChunk(DataOutputStream out, int outputs, ByteArrayOutputStream chunk) throws IOException {
+        byte[] body = chunk.toByteArray();
+        chunk.reset();
+        out.write(new VarInt(outputs).encode());
+        Utils.uint32ToByteStreamLE(body.length, out);
+        out.write(body);
+        out.write(Sha256Hash.createDouble(body).getBytes(), 0, 4);
+    }
+
+    /**
+     * <p>Reads a snapshot into the given store, which must be new, so its verified chain head must be the genesis
+     * block. The outputs are written in a batch per chunk, and once all of them are in and their hash checks out,
+     * the headers are added and the chain head is moved to that of the snapshot. A {@link FullPrunedBlockChain} on the
+     * store then carries on from there. Blocks before the snapshot's head can't be disconnected, just as if their
+     * undo data had been pruned.</p>
+     *
+     * <p>If the snapshot turns out to be bad, the chain head is left at the genesis block, but the store may have
+     * some of the outputs already and must be thrown away.</p>
+     *
+     * @param trustedHash the set hash the snapshot must have, or null to only check it against the one it contains
+     * @return the hash of the imported outputs, which can be given to {@link FullPrunedBlockChain#setUTXOSetHash}
+     */
+    public UTXOSetHash importInto(FullPrunedBlockStore store, InputStream stream, @Nullable Sha256Hash trustedHash)
+            throws BlockStoreException, IOException, VerificationException {
+        if (store.getVerifiedChainHead().getHeight() != 0)
+            throw new BlockStoreException("Can only import a snapshot into a new store");
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a UTXO snapshot");
+        long version = new VarInt(in).value;
+        if (version != VERSION)
+            throw new IOException("Unknown UTXO snapshot version " + version);
+        byte[] id = new byte[readLength(in, 1024)];
+        in.readFully(id);
+        if (!params.getId().equals(new String(id, "UTF-8")))
+            throw new VerificationException("Snapshot is for another network: " + new String(id, "UTF-8"));
+
+        List<StoredBlock> headers = readHeaders(in);
+        StoredBlock head = headers.get(headers.size() - 1);
+
+        UTXOSetHash hash = new UTXOSetHash();
+        int outputs;
+        byte[] checksum = new byte[4];
+        while ((outputs = readLength(in, OUTPUTS_PER_CHUNK)) > 0) {
+            // Checked before allocating the chunk, which would otherwise be as large as the snapshot claims.
+            long length = readUint32(in);
+            if (length > (long) outputs * MAX_OUTPUT_SIZE)
+                throw new VerificationException("Snapshot chunk of " + outputs + " outputs is " + length + " bytes long");
+            byte[] body = new byte[(int) length];
+            in.readFully(body);
+            in.readFully(checksum);
+            if (!Arrays.equals(checksum, Arrays.copyOf(Sha256Hash.createDouble(body).getBytes(), 4)))
+                throw new VerificationException("Snapshot chunk has a bad checksum");
+            ByteArrayInputStream chunk = new ByteArrayInputStream(body);
+            byte[] txHash = new byte[32];
+            store.beginDatabaseBatchWrite();
+            try {
+                for (int i = 0; i < outputs; i++) {
+                    if (chunk.read(txHash, 0, 32) != 32)
+                        throw new EOFException();
+                    long index = new VarInt(chunk).value;
+                    StoredTransactionOutput output =
+                            StoredTransactionOutput.deserializeCompact(new Sha256Hash(txHash.clone()), index, chunk);
+                    store.addUnspentTransactionOutput(output);
+                    hash.add(output);
+                }
+                if (chunk.available() != 0)
+                    throw new VerificationException("Snapshot chunk has trailing bytes");
+                store.commitDatabaseBatchWrite();
+            } catch (IOException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            } catch (VerificationException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            } catch (BlockStoreException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+        }
+        byte[] countBytes = new byte[8];
+        in.readFully(countBytes);
+        byte[] hashBytes = new byte[32];
+        in.readFully(hashBytes);
+        if (Utils.readInt64(countBytes, 0) != hash.size())
+            throw new VerificationException("Snapshot has " + hash.size() + " outputs, but claims " +
+                    Utils.readInt64(countBytes, 0));
+        Sha256Hash setHash = hash.getHash();
+        if (!setHash.equals(new Sha256Hash(hashBytes)))
+            throw new VerificationException("Snapshot outputs don't match its set hash");
+        if (trustedHash != null && !setHash.equals(trustedHash))
+            throw new VerificationException("Snapshot set hash " + setHash + " is not the trusted " + trustedHash);
+
+        store.beginDatabaseBatchWrite();
+        try {
+            for (StoredBlock header : headers)
+                store.put(header, null);
+            store.setChainHead(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Imported {} unspent outputs as of block {}, set hash {}", hash.size(), head.getHeight(), setHash);
+        return hash;
+    }
+
+    private List<StoredBlock> readHeaders(DataInputStream in) throws IOException, VerificationException {
+        int count = readLength(in, Math.max(params.getInterval(), 11) + 1);
+        if (count == 0)
+            throw new VerificationException("Snapshot has no chain head");
+        List<StoredBlock> headers = new ArrayList<StoredBlock>(count);
+        byte[] bytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        for (int i = 0; i < count; i++) {
+            in.readFully(bytes);
+            StoredBlock header = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(bytes.clone()));
+            // Checks that the header's hash meets its target, which must be no easier than the network allows.
+            header.getHeader().verifyHeader();
+            if (i > 0) {
+                StoredBlock prev = headers.get(i - 1);
+                if (!header.getHeader().getPrevBlockHash().equals(prev.getHash()) ||
+                        header.getHeight() != prev.getHeight() + 1)
+                    throw new VerificationException("Snapshot headers don't connect at " + header);
+                // The chain work of the first header can't be checked, but every later one must add exactly its own.
+                if (!header.getChainWork().equals(prev.getChainWork().add(header.getHeader().getWork())))
+                    throw new VerificationException("Snapshot header has the wrong chain work: " + header);
+            }
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    private static int readLength(InputStream in, int max) throws IOException {
+        long length = new VarInt(in).value;
+        if (length < 0 || length > max)
+            throw new IOException("Bad length in UTXO snapshot: " + length);
+        return (int) length;
+    }
+
+    private static long readUint32(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[4];
+        in.readFully(bytes);
+        return Utils.readUint32(bytes, 0);
+    }
+}
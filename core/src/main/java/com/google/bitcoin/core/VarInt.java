@@ -16,6 +16,10 @@
 
 package com.google.bitcoin.core;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
 import static com.google.bitcoin.core.Utils.isLessThanUnsigned;
 import static com.google.bitcoin.core.Utils.isLessThanOrEqualToUnsigned;
 
@@ -54,6 +58,28 @@ public class VarInt {
         }
         this.value = val;
     }
+
+    /** Reads a varint from the stream, throwing {@link EOFException} if it ends first. */
+    public VarInt(InputStream in) throws IOException {
+        int first = readByte(in);
+        if (first < 253) {
+            value = first;
+            originallyEncodedSize = 1;
+        } else {
+            originallyEncodedSize = first == 253 ? 3 : first == 254 ? 5 : 9;
+            long val = 0;
+            for (int i = 0; i < originallyEncodedSize - 1; i++)
+                val |= (long) readByte(in) << (8 * i);
+            value = val;
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
     
     /**
      * Gets the number of bytes used to encode this originally if deserialized from a byte array.
@@ -1654,7 +1654,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
         log.info("Received tx{} for {}: {} [{}] in block {}", sideChain ? " on a side chain" : "",
                 valueDifference.toFriendlyString(), tx.getHashAsString(), relativityOffset,
-                block != null ? block.getHeader().getHash() : "(unit test)");
+                block != null ? block.getHash() : "(unit test)");
 
         // Inform the key chains that the issued keys were observed in a transaction, so they know to
         // calculate more keys for the next Bloom filters.
@@ -1778,7 +1778,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @Override
     public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
         // Check to see if this block has been seen before.
-        Sha256Hash newBlockHash = block.getHeader().getHash();
+        Sha256Hash newBlockHash = block.getHash();
         if (newBlockHash.equals(getLastBlockSeenHash()))
             return;
         lock.lock();
@@ -1786,7 +1786,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
-            setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+            setLastBlockSeenTimeSecs(block.getTimeSeconds());
             // TODO: Clarify the code below.
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
@@ -3653,12 +3653,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             List<Sha256Hash> oldBlockHashes = new ArrayList<Sha256Hash>(oldBlocks.size());
             log.info("Old part of chain (top to bottom):");
             for (StoredBlock b : oldBlocks) {
-                log.info("  {}", b.getHeader().getHashAsString());
-                oldBlockHashes.add(b.getHeader().getHash());
+                log.info("  {}", b.getHash().toString());
+                oldBlockHashes.add(b.getHash());
             }
             log.info("New part of chain (top to bottom):");
             for (StoredBlock b : newBlocks) {
-                log.info("  {}", b.getHeader().getHashAsString());
+                log.info("  {}", b.getHash().toString());
             }
 
             Collections.reverse(newBlocks);  // Need bottom-to-top but we get top-to-bottom.
@@ -3723,15 +3723,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             subtractDepth(depthToSubtract, dead.values());
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
-            setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHash(splitPoint.getHash());
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
             // does appear in the new chain, will treat it as such and possibly kill pending transactions that
             // conflict.
             for (StoredBlock block : newBlocks) {
-                log.info("Replaying block {}", block.getHeader().getHashAsString());
-                for (TxOffsetPair pair : mapBlockTx.get(block.getHeader().getHash())) {
+                log.info("Replaying block {}", block.getHash().toString());
+                for (TxOffsetPair pair : mapBlockTx.get(block.getHash())) {
                     log.info("  tx {}", pair.tx.getHash());
                     try {
                         receive(pair.tx, block, BlockChain.NewBlockType.BEST_CHAIN, pair.offset);
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Hands out direct {@link ByteBuffer}s for outbound messages, and takes them back once they have been written, so
+ * that sending a message doesn't allocate a new buffer every time. Buffers come in power of two sizes from
+ * {@link #MIN_BUFFER_SIZE} up to the largest size the pool keeps. Larger ones are allocated as needed and left to the
+ * garbage collector. Once the pool holds its limit of free bytes, returned buffers are dropped as well.</p>
+ *
+ * <p>Buffers are usually handed out and returned through {@link SharedByteBuffer}. This class is thread safe.</p>
+ */
+public class ByteBufferPool {
+    /** The smallest buffer the pool hands out. */
+    public static final int MIN_BUFFER_SIZE = 256;
+    /** The largest buffer the default pool keeps. */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+    /** How many bytes of free buffers the default pool keeps at most. */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 8 * 1024 * 1024;
+
+    private static volatile ByteBufferPool defaultPool =
+            new ByteBufferPool(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES);
+
+    private final int maxBufferSize;
+    private final long maxPooledBytes;
+    // The free buffers of each size, indexed by the log of their size over MIN_BUFFER_SIZE.
+    @GuardedBy("this") private final ArrayDeque<ByteBuffer>[] free;
+    @GuardedBy("this") private long pooledBytes;
+    @GuardedBy("this") private long allocations;
+
+    /**
+     * Creates a pool that keeps buffers of up to the given size, which is rounded up to a power of two, and up to the
+     * given number of bytes of free buffers in total.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ByteBufferPool(int maxBufferSize, long maxPooledBytes) {
+        checkArgument(maxBufferSize >= MIN_BUFFER_SIZE && maxBufferSize <= 1 << 30);
+        checkArgument(maxPooledBytes >= 0);
+        this.maxBufferSize = roundUp(maxBufferSize);
+        this.maxPooledBytes = maxPooledBytes;
+        free = new ArrayDeque[sizeClass(this.maxBufferSize) + 1];
+        for (int i = 0; i < free.length; i++)
+            free[i] = new ArrayDeque<ByteBuffer>();
+    }
+
+    /** Returns the pool that peers serialize their outbound messages into. */
+    public static ByteBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /** Sets the pool that peers serialize their outbound messages into from now on. */
+    public static void setDefault(ByteBufferPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * Returns a cleared buffer with room for at least the given number of bytes, which is either a free one from the
+     * pool or a new one. Give it back with {@link #release(ByteBuffer)} once done with it.
+     */
+    public ByteBuffer acquire(int capacity) {
+        checkArgument(capacity >= 0);
+        if (capacity > maxBufferSize)
+            return ByteBuffer.allocateDirect(capacity);
+        int size = roundUp(Math.max(capacity, MIN_BUFFER_SIZE));
+        synchronized (this) {
+            ByteBuffer buffer = free[sizeClass(size)].pollLast();
+            if (buffer != null) {
+                pooledBytes -= size;
+                buffer.clear();
+                return buffer;
+            }
+            allocations++;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns the given buffer, which must have come from {@link #acquire(int)} and must no longer be used, to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        if (size > maxBufferSize || size < MIN_BUFFER_SIZE || Integer.bitCount(size) != 1)
+            return;
+        synchronized (this) {
+            if (pooledBytes + size > maxPooledBytes)
+                return;
+            free[sizeClass(size)].addLast(buffer);
+            pooledBytes += size;
+        }
+    }
+
+    /** Returns how many bytes of free buffers the pool holds. */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /** Returns how many buffers of a size the pool keeps have been allocated because there wasn't a free one. */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    private static int roundUp(int size) {
+        return Integer.bitCount(size) == 1 ? size : Integer.highestOneBit(size) << 1;
+    }
+
+    private static int sizeClass(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+}
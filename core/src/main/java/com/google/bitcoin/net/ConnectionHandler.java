@@ -41,7 +41,7 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements SharedBufferWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -59,7 +59,18 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final LinkedList<PendingWrite> bytesToWrite = new LinkedList<PendingWrite>();
+
+    // Shared bytes waiting to be written, read through a view of our own, and released once written.
+    private static class PendingWrite {
+        final SharedByteBuffer shared;
+        final ByteBuffer bytes;
+
+        PendingWrite(SharedByteBuffer shared) {
+            this.shared = shared;
+            this.bytes = shared.duplicate();
+        }
+    }
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -113,13 +124,14 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.lock();
         try {
             // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
+            Iterator<PendingWrite> bytesIterator = bytesToWrite.iterator();
             while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
+                PendingWrite write = bytesIterator.next();
+                bytesToWriteRemaining -= channel.write(write.bytes);
+                if (!write.bytes.hasRemaining()) {
                     bytesIterator.remove();
-                else {
+                    write.shared.release();
+                } else {
                     setWriteOps();
                     break;
                 }
@@ -135,6 +147,13 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller may reuse the array once we return.
+        writeBytes(SharedByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public void writeBytes(SharedByteBuffer message) throws IOException {
+        boolean queued = false;
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
@@ -142,19 +161,28 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            if (bytesToWriteRemaining + message.size() > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            if (closeCalled) {
+                // The queue was already emptied by connectionClosed() and won't be written.
+                message.release();
+            } else {
+                bytesToWrite.offer(new PendingWrite(message));
+                bytesToWriteRemaining += message.size();
+            }
+            queued = true;
             setWriteOps();
         } catch (IOException e) {
+            if (!queued)
+                message.release();
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
         } catch (CancelledKeyException e) {
+            if (!queued)
+                message.release();
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
@@ -180,6 +208,11 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so give the buffers back.
+            for (PendingWrite write : bytesToWrite)
+                write.shared.release();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -92,32 +92,37 @@ public class NioServer extends AbstractExecutionThreadService {
             }
         } catch (Exception e) {
             log.error("Error trying to open/read from connection: {}", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
+        }
+    }
+
+    // Runs once run() returns, and also in place of it if the server was stopped before run() got going, which would
+    // otherwise leave the server socket bound.
+    @Override
+    protected void shutDown() throws Exception {
+        // Go through and close everything, without letting IOExceptions get in our way
+        for (SelectionKey key : selector.keys()) {
             try {
-                selector.close();
+                key.channel().close();
             } catch (IOException e) {
-                log.error("Error closing server selector", e);
+                log.error("Error closing channel", e);
             }
             try {
-                sc.close();
+                key.cancel();
+                handleKey(selector, key);
             } catch (IOException e) {
-                log.error("Error closing server channel", e);
+                log.error("Error closing selection key", e);
             }
         }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing server selector", e);
+        }
+        try {
+            sc.close();
+        } catch (IOException e) {
+            log.error("Error closing server channel", e);
+        }
     }
 
     /**
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.io.IOException;
+
+/**
+ * A {@link MessageWriteTarget} that can also write {@link SharedByteBuffer}s without copying them. Use
+ * {@link SharedByteBuffer#writeTo(MessageWriteTarget)} to write shared bytes to any target.
+ */
+public interface SharedBufferWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the given shared bytes to the remote server, without copying them where possible. This takes over one
+     * reference to the bytes, and releases it once they have been written or the write failed.
+     */
+    void writeBytes(SharedByteBuffer message) throws IOException;
+}
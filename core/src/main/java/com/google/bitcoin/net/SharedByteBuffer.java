@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Bytes that don't change any more, such as a serialized message, which can be written to several connections at
+ * once. Each holder of a reference reads the bytes through its own {@link #duplicate()}, and calls {@link #release()}
+ * once done with them. When the last reference is released, the buffer goes back to the {@link ByteBufferPool} it
+ * came from, if any.</p>
+ *
+ * <p>A new instance holds one reference. Call {@link #retain()} before handing it to each additional holder, for
+ * instance before passing it to {@link #writeTo(MessageWriteTarget)}, which takes one over.</p>
+ */
+public class SharedByteBuffer {
+    // The whole buffer as it came from the pool, and the shared bytes in it.
+    private final ByteBuffer original;
+    private final ByteBuffer buffer;
+    @Nullable private final ByteBufferPool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Shares the bytes between the position and the limit of the given buffer, which must not be changed afterwards.
+     * The buffer is given back to the pool, if not null, once the last reference is released.
+     */
+    public SharedByteBuffer(ByteBuffer buffer, @Nullable ByteBufferPool pool) {
+        this.original = buffer;
+        this.buffer = buffer.slice();
+        this.pool = pool;
+    }
+
+    /** Shares the given array, which must not be changed afterwards. */
+    public static SharedByteBuffer wrap(byte[] bytes) {
+        return new SharedByteBuffer(ByteBuffer.wrap(bytes), null);
+    }
+
+    /** Returns a new read only view of the bytes with its own position. Must not be called once fully released. */
+    public ByteBuffer duplicate() {
+        checkState(references.get() > 0, "Buffer was already released");
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /** Returns how many bytes are shared. */
+    public int size() {
+        return buffer.capacity();
+    }
+
+    /** Adds a reference, which must be released separately. */
+    public SharedByteBuffer retain() {
+        int old;
+        do {
+            old = references.get();
+            checkState(old > 0, "Buffer was already released");
+        } while (!references.compareAndSet(old, old + 1));
+        return this;
+    }
+
+    /**
+     * Writes the bytes to the given target, handing one reference over to it. A target that is not a
+     * {@link SharedBufferWriteTarget} is given a copy of the bytes in an array instead, and the reference is released
+     * once the copy was written.
+     */
+    public void writeTo(MessageWriteTarget target) throws IOException {
+        if (target instanceof SharedBufferWriteTarget) {
+            ((SharedBufferWriteTarget) target).writeBytes(this);
+            return;
+        }
+        try {
+            ByteBuffer bytes = duplicate();
+            byte[] copy = new byte[bytes.remaining()];
+            bytes.get(copy);
+            target.writeBytes(copy);
+        } finally {
+            release();
+        }
+    }
+
+    /** Releases a reference, and gives the buffer back to its pool if it was the last one. */
+    public void release() {
+        int left = references.decrementAndGet();
+        checkState(left >= 0, "Buffer was released too often");
+        if (left == 0 && pool != null)
+            pool.release(original);
+    }
+}
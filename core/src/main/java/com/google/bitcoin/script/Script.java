@@ -1249,7 +1249,7 @@ public class Script {
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, sig, sigBytes, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1317,7 +1317,7 @@ public class Script {
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash, sig, sigs.getFirst(), pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1342,10 +1342,27 @@ public class Script {
         return opCount;
     }
 
+    /**
+     * Verifies the signature, unless the {@link SignatureCache} already knows it to be valid, and if it is valid adds it
+     * to the cache. Signatures aren't cached while {@link ECKey#FAKE_SIGNATURES} is on.
+     */
+    private static boolean verifySignature(Sha256Hash hash, TransactionSignature sig, byte[] sigBytes, byte[] pubKey) {
+        SignatureCache cache = SignatureCache.getDefault();
+        if (cache == null || ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(hash.getBytes(), sig, pubKey);
+        if (cache.contains(hash, pubKey, sigBytes))
+            return true;
+        boolean valid = ECKey.verify(hash.getBytes(), sig, pubKey);
+        if (valid)
+            cache.add(hash, pubKey, sigBytes);
+        return valid;
+    }
+
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey.
-     * @param txContainingThis The transaction in which this input scriptSig resides.
-     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param txContainingThis The transaction in which this input scriptSig resides. Changing txContainingThis from
+     *                         another thread while this method runs results in undefined behavior, but the scripts of
+     *                         several of its inputs may be verified at the same time.
      * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
      * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
      * @param enforceP2SH Whether "pay to script hash" rules should be enforced. If in doubt, set to true.
@@ -1353,9 +1370,14 @@ public class Script {
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
         // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
+        // the tx half broken (also it's not so thread safe to work on it directly. Serializing it holds the same lock as
+        // Transaction.hashForSignature(), which changes the transaction while it runs.
         try {
-            txContainingThis = new Transaction(txContainingThis.getParams(), txContainingThis.bitcoinSerialize());
+            byte[] txBytes;
+            synchronized (txContainingThis) {
+                txBytes = txContainingThis.bitcoinSerialize();
+            }
+            txContainingThis = new Transaction(txContainingThis.getParams(), txBytes);
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
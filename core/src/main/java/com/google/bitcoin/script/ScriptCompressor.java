@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.VarInt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static com.google.bitcoin.script.ScriptOpCodes.*;
+
+/**
+ * <p>Compresses output scripts for storage, using the same encoding as the reference client's undo and chainstate
+ * data. Scripts that match one of the standard templates are stored as a one byte type followed by the part that
+ * varies:</p>
+ *
+ * <ul>
+ *     <li>0: pay to address ({@link Script#isSentToAddress()}), followed by the 20 byte hash.</li>
+ *     <li>1: pay to script hash ({@link Script#isPayToScriptHash()}), followed by the 20 byte hash.</li>
+ *     <li>2, 3: pay to a compressed public key ({@link Script#isSentToRawPubKey()}), followed by its 32 byte X
+ *     coordinate. The type is the first byte of the key.</li>
+ * </ul>
+ *
+ * <p>Any other script is stored as a varint of its length plus 6, followed by the script itself. The templates are
+ * matched against the exact bytes rather than the parsed chunks, so that decompressing always gives back the
+ * original script.</p>
+ *
+ * <p>The reference client also stores pay to uncompressed public key scripts as types 4 and 5, with only the X
+ * coordinate of the key. That saves 34 bytes per script, but checking the key when compressing and recomputing Y when
+ * decompressing are elliptic curve operations that take far longer than everything else here, on every write and
+ * every read of such an output. Those scripts are stored whole instead, and types 4 and 5 are never written or
+ * read.</p>
+ */
+public class ScriptCompressor {
+    private static final int SPECIAL_SCRIPTS = 6;
+
+    private static final int TYPE_ADDRESS = 0;
+    private static final int TYPE_P2SH = 1;
+
+    private ScriptCompressor() {
+    }
+
+    /** Writes the compressed form of the given script to the stream. */
+    public static void compress(byte[] script, OutputStream out) throws IOException {
+        int length = script.length;
+        if (length == 25 && (script[0] & 0xff) == OP_DUP && (script[1] & 0xff) == OP_HASH160 && script[2] == 20 &&
+                (script[23] & 0xff) == OP_EQUALVERIFY && (script[24] & 0xff) == OP_CHECKSIG) {
+            out.write(TYPE_ADDRESS);
+            out.write(script, 3, 20);
+        } else if (length == 23 && (script[0] & 0xff) == OP_HASH160 && script[1] == 20 &&
+                (script[22] & 0xff) == OP_EQUAL) {
+            out.write(TYPE_P2SH);
+            out.write(script, 2, 20);
+        } else if (length == 35 && script[0] == 33 && (script[1] == 2 || script[1] == 3) &&
+                (script[34] & 0xff) == OP_CHECKSIG) {
+            out.write(script[1]);
+            out.write(script, 2, 32);
+        } else {
+            out.write(new VarInt(length + SPECIAL_SCRIPTS).encode());
+            out.write(script);
+        }
+    }
+
+    /** Returns the compressed form of the given script. */
+    public static byte[] compress(byte[] script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(script.length + 1);
+        try {
+            compress(script, out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+        return out.toByteArray();
+    }
+
+    /** Reads a script written by {@link #compress(byte[], OutputStream)}. */
+    public static byte[] decompress(InputStream in) throws IOException {
+        long type = new VarInt(in).value;
+        byte[] script;
+        switch ((int) Math.min(type, SPECIAL_SCRIPTS)) {
+            case TYPE_ADDRESS:
+                script = new byte[25];
+                script[0] = (byte) OP_DUP;
+                script[1] = (byte) OP_HASH160;
+                script[2] = 20;
+                readFully(in, script, 3, 20);
+                script[23] = (byte) OP_EQUALVERIFY;
+                script[24] = (byte) OP_CHECKSIG;
+                return script;
+            case TYPE_P2SH:
+                script = new byte[23];
+                script[0] = (byte) OP_HASH160;
+                script[1] = 20;
+                readFully(in, script, 2, 20);
+                script[22] = (byte) OP_EQUAL;
+                return script;
+            case 2:
+            case 3:
+                script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                readFully(in, script, 2, 32);
+                script[34] = (byte) OP_CHECKSIG;
+                return script;
+            case 4:
+            case 5:
+                throw new IOException("Compressed uncompressed public key scripts are not supported");
+            default:
+                long length = type - SPECIAL_SCRIPTS;
+                if (length < 0 || length > Block.MAX_BLOCK_SIZE)
+                    throw new IOException("Compressed script too long: " + length);
+                script = new byte[(int) length];
+                readFully(in, script, 0, script.length);
+                return script;
+        }
+    }
+
+    /** Decompresses a script returned by {@link #compress(byte[])}. */
+    public static byte[] decompress(byte[] compressed) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(compressed);
+        byte[] script = decompress(in);
+        if (in.available() != 0)
+            throw new IOException("Trailing bytes after compressed script");
+        return script;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(bytes, offset, length);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+}
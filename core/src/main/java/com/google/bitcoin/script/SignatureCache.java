@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers signatures that were found to be valid, so that a transaction that is checked when it is received and
+ * again when a block containing it is connected only has its signatures verified once. {@link Script} consults the
+ * cache returned by {@link #getDefault()} for every OP_CHECKSIG and OP_CHECKMULTISIG, which means that anything
+ * running scripts, from {@link com.google.bitcoin.core.FullPrunedBlockChain} to the wallet, shares it.</p>
+ *
+ * <p>There is no default cache unless the app asks for one, so SPV apps don't set aside memory for it. Apps running a
+ * {@link com.google.bitcoin.core.FullPrunedBlockChain} should call {@link #initDefault()} at startup, or set a cache
+ * of their own size. With a {@link com.google.bitcoin.core.PeerGroup}, the chain then also checks the transactions
+ * that peers relay as they arrive, see {@link com.google.bitcoin.core.MemoryPool#setVerifyingChain}.</p>
+ *
+ * <p>An entry is a salted SHA-256 digest of the signature hash, the public key and the signature. The salt is picked at
+ * random for each cache, so that nobody can craft signatures which end up on top of each other. Only valid signatures
+ * are cached, as invalid ones don't make it into blocks. Once the cache uses up its memory limit, each new entry
+ * evicts a random old one.</p>
+ *
+ * <p>This class is thread safe and doesn't block.</p>
+ */
+public class SignatureCache {
+    /** The memory limit of the cache that {@link #initDefault()} creates, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    // Roughly what an entry costs: the key below, and the skip list node and index nodes pointing at it.
+    static final int BYTES_PER_ENTRY = 100;
+
+    @Nullable private static volatile SignatureCache defaultCache = null;
+    // Whether setDefault() was called, in which case initDefault() leaves the choice alone.
+    private static boolean defaultChosen = false;
+
+    private static class Key implements Comparable<Key> {
+        final long a, b, c, d;
+
+        Key(long a, long b, long c, long d) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (a != other.a) return a < other.a ? -1 : 1;
+            if (b != other.b) return b < other.b ? -1 : 1;
+            if (c != other.c) return c < other.c ? -1 : 1;
+            if (d != other.d) return d < other.d ? -1 : 1;
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            return compareTo((Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) d;
+        }
+    }
+
+    private final ConcurrentSkipListSet<Key> entries = new ConcurrentSkipListSet<Key>();
+    // Kept separately, as counting the entries of the set takes a walk over all of them.
+    private final AtomicInteger size = new AtomicInteger();
+    private final int maxEntries;
+    private final byte[] salt = new byte[32];
+    private final Random random = new Random();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache that uses about the given number of bytes of memory when full. */
+    public SignatureCache(long maxBytes) {
+        checkArgument(maxBytes >= BYTES_PER_ENTRY, "maxBytes too small for a single entry");
+        maxEntries = (int) Math.min(Integer.MAX_VALUE, maxBytes / BYTES_PER_ENTRY);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Returns the cache that scripts use, or null if signatures aren't cached. */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Sets the cache that scripts use from now on. Pass null to verify every signature every time. */
+    public static synchronized void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+        defaultChosen = true;
+    }
+
+    /**
+     * Creates a default cache of {@link #DEFAULT_MAX_BYTES} if there is none yet and {@link #setDefault(SignatureCache)}
+     * was never called, and returns the default cache, if any.
+     */
+    @Nullable
+    public static synchronized SignatureCache initDefault() {
+        if (!defaultChosen) {
+            defaultCache = new SignatureCache(DEFAULT_MAX_BYTES);
+            defaultChosen = true;
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Returns true if the given signature of the given signature hash was added as valid for the given public key, and
+     * hasn't been evicted since. Counts as a hit or a miss.
+     */
+    public boolean contains(Sha256Hash sigHash, byte[] pubKey, byte[] signature) {
+        boolean found = entries.contains(keyOf(sigHash, pubKey, signature));
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /** Records that the given signature of the given signature hash is valid for the given public key. */
+    public void add(Sha256Hash sigHash, byte[] pubKey, byte[] signature) {
+        if (!entries.add(keyOf(sigHash, pubKey, signature)))
+            return;
+        if (size.incrementAndGet() > maxEntries) {
+            // The salted keys are spread evenly, so the first one at or after a random point is a random entry.
+            Key victim = entries.ceiling(new Key(random.nextLong(), random.nextLong(), random.nextLong(),
+                                                 random.nextLong()));
+            boolean evicted = victim != null ? entries.remove(victim) : entries.pollFirst() != null;
+            if (evicted)
+                size.decrementAndGet();
+        }
+    }
+
+    /** Removes all entries. The hit and miss counters are kept. */
+    public void clear() {
+        while (entries.pollFirst() != null)
+            size.decrementAndGet();
+    }
+
+    /** Returns the number of signatures in the cache. */
+    public int size() {
+        return size.get();
+    }
+
+    /** Returns the most signatures the cache holds before it starts to evict them. */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** Returns how many lookups found their signature. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many lookups didn't find their signature. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of lookups that found their signature, or zero if there were none. */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private Key keyOf(Sha256Hash sigHash, byte[] pubKey, byte[] signature) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        digest.update(salt);
+        digest.update(sigHash.getBytes());
+        // The length keeps the boundary between the public key and the signature from moving.
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(signature);
+        ByteBuffer bytes = ByteBuffer.wrap(digest.digest());
+        return new Key(bytes.getLong(), bytes.getLong(), bytes.getLong(), bytes.getLong());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d signatures, %d hits, %d misses", size(), maxEntries, getHits(), getMisses());
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Wraps another {@link FullPrunedBlockStore} and keeps recently used and changed unspent transaction outputs in
+ * memory, so that connecting a block doesn't cost a round trip to the underlying database for every input and output.
+ * This works much like the database cache of the reference client.</p>
+ *
+ * <p>Creations and spends of outputs are collected in the cache and only written to the underlying store when the
+ * cache grows past its memory budget, or on {@link #flush()} and {@link #close()}. An output that is created and
+ * spent again before that never reaches the underlying store at all. All changes are written in a single database
+ * batch together with the verified chain head they belong to, so the underlying store is always consistent, it just
+ * lags a few blocks behind. Everything that isn't an unspent output, like headers and undoable blocks, is passed
+ * straight through. After a flush the whole cache is dropped.</p>
+ *
+ * <p>The underlying store must not be used directly while it is wrapped. Only one thread can have a batch open at a
+ * time.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_CACHE_SIZE = 100 * 1024 * 1024;
+
+    // A rough estimate of the heap used by a cache entry on top of its script: the map entry, the key, the
+    // StoredTransactionOutput with its hash and value, and the CachedOutput itself.
+    private static final int ENTRY_OVERHEAD = 250;
+
+    private static class CachedOutput {
+        /** The output, or null if it was spent. */
+        @Nullable final StoredTransactionOutput output;
+        /** Whether the underlying store has a copy of this output that it will need to forget. */
+        final boolean inStore;
+        /** Whether the underlying store needs to be told about this entry. */
+        final boolean dirty;
+
+        CachedOutput(@Nullable StoredTransactionOutput output, boolean inStore, boolean dirty) {
+            this.output = output;
+            this.inStore = inStore;
+            this.dirty = dirty;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD + (output == null ? 0 : output.getScriptBytes().length);
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+
+    private final HashMap<StoredTransactionOutPoint, CachedOutput> cache = new HashMap<StoredTransactionOutPoint, CachedOutput>();
+    private long cacheBytes;
+    // Chain heads that were committed, but not written to the underlying store yet.
+    @Nullable private StoredBlock unflushedChainHead;
+    @Nullable private StoredBlock unflushedVerifiedChainHead;
+
+    // The state of the open batch, if any.
+    @Nullable private Thread batchOwner;
+    @Nullable private HashMap<StoredTransactionOutPoint, CachedOutput> pendingOutputs;
+    @Nullable private StoredBlock pendingChainHead;
+    @Nullable private StoredBlock pendingVerifiedChainHead;
+
+    private long hits, misses, cancelled, flushes, flushedOutputs;
+
+    /**
+     * Wraps the given store with a cache of the default size.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param store The store to cache unspent transaction outputs for
+     * @param maxCacheBytes Roughly how many bytes of heap the cache may use before it is written out and emptied
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes) {
+        checkArgument(maxCacheBytes >= 0);
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /** Returns the store this cache writes through to. */
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    private boolean inBatch() {
+        return batchOwner == Thread.currentThread();
+    }
+
+    @Nullable
+    private CachedOutput lookup(StoredTransactionOutPoint outPoint) {
+        if (inBatch()) {
+            CachedOutput pending = pendingOutputs.get(outPoint);
+            if (pending != null)
+                return pending;
+        }
+        return cache.get(outPoint);
+    }
+
+    private void update(StoredTransactionOutPoint outPoint, CachedOutput entry) {
+        if (inBatch()) {
+            pendingOutputs.put(outPoint, entry);
+        } else {
+            commit(outPoint, entry);
+        }
+    }
+
+    private void commit(StoredTransactionOutPoint outPoint, CachedOutput entry) {
+        CachedOutput old;
+        if (entry.output == null && !entry.inStore) {
+            // Created and spent again before the underlying store ever saw it.
+            old = cache.remove(outPoint);
+            cancelled++;
+        } else {
+            old = cache.put(outPoint, entry);
+            cacheBytes += entry.size();
+        }
+        if (old != null)
+            cacheBytes -= old.size();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        store.put(storedBlock);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        if (inBatch() && pendingChainHead != null)
+            return pendingChainHead;
+        if (unflushedChainHead != null)
+            return unflushedChainHead;
+        return store.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        if (inBatch())
+            pendingChainHead = chainHead;
+        else
+            unflushedChainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        if (inBatch() && pendingVerifiedChainHead != null)
+            return pendingVerifiedChainHead;
+        if (unflushedVerifiedChainHead != null)
+            return unflushedVerifiedChainHead;
+        return store.getVerifiedChainHead();
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        if (getChainHead().getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        if (inBatch())
+            pendingVerifiedChainHead = chainHead;
+        else
+            unflushedVerifiedChainHead = chainHead;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        CachedOutput entry = lookup(outPoint);
+        if (entry != null) {
+            hits++;
+            return entry.output;
+        }
+        misses++;
+        StoredTransactionOutput out = store.getTransactionOutput(hash, index);
+        // Whatever the batch does to the output later, this is what the underlying store has.
+        if (out != null)
+            commit(outPoint, new CachedOutput(out, true, false));
+        return out;
+    }
+
+    @Override
+    public synchronized Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Map<TransactionOutPoint, StoredTransactionOutput> result = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            CachedOutput entry = lookup(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex()));
+            if (entry != null) {
+                hits++;
+                if (entry.output != null)
+                    result.put(outPoint, entry.output);
+            } else {
+                misses++;
+                missing.add(outPoint);
+            }
+        }
+        // Ask the underlying store for all the misses at once, which it can often answer in a single query.
+        if (!missing.isEmpty()) {
+            for (Map.Entry<TransactionOutPoint, StoredTransactionOutput> found : store.getTransactionOutputs(missing).entrySet()) {
+                StoredTransactionOutput out = found.getValue();
+                commit(new StoredTransactionOutPoint(out), new CachedOutput(out, true, false));
+                result.put(found.getKey(), out);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        CachedOutput entry = lookup(outPoint);
+        update(outPoint, new CachedOutput(out, entry != null && entry.inStore, true));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        update(outPoint, new CachedOutput(null, lookup(outPoint).inStore, true));
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean allCached = true;
+        for (int i = 0; i < numOutputs; i++) {
+            CachedOutput entry = lookup(new StoredTransactionOutPoint(hash, i));
+            if (entry == null)
+                allCached = false;
+            else if (entry.output != null)
+                return true;
+        }
+        // Usually the underlying store can answer the question for all the outputs that aren't cached in one go.
+        if (allCached || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    /** Flushes the cache first, so that the underlying store has all outputs. */
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        flush();
+        store.visitUnspentTransactionOutputs(visitor);
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (inBatch())
+            return;
+        checkState(batchOwner == null, "Another thread already has a batch open");
+        store.beginDatabaseBatchWrite();
+        batchOwner = Thread.currentThread();
+        pendingOutputs = new HashMap<StoredTransactionOutPoint, CachedOutput>();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch())
+            return;
+        // The cache only takes the batch in once the underlying store committed its part of it, so that a failure
+        // leaves neither with changes the other doesn't have.
+        try {
+            boolean flush = cacheBytes + sizeChange(pendingOutputs) > maxCacheBytes;
+            int written = 0;
+            if (flush) {
+                // Piggyback on the batch of the underlying store, which only has headers and undoable blocks so far.
+                try {
+                    written = writeToStore(pendingOutputs, pendingChainHead, pendingVerifiedChainHead);
+                } catch (BlockStoreException e) {
+                    store.abortDatabaseBatchWrite();
+                    throw e;
+                }
+            }
+            store.commitDatabaseBatchWrite();
+            for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : pendingOutputs.entrySet())
+                commit(entry.getKey(), entry.getValue());
+            if (pendingChainHead != null)
+                unflushedChainHead = pendingChainHead;
+            if (pendingVerifiedChainHead != null)
+                unflushedVerifiedChainHead = pendingVerifiedChainHead;
+            if (flush)
+                flushed(written);
+        } finally {
+            endBatch();
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch())
+            return;
+        endBatch();
+        store.abortDatabaseBatchWrite();
+    }
+
+    private void endBatch() {
+        batchOwner = null;
+        pendingOutputs = null;
+        pendingChainHead = null;
+        pendingVerifiedChainHead = null;
+    }
+
+    /** Returns by how many bytes the cache would grow if the given changes were committed to it. */
+    private long sizeChange(Map<StoredTransactionOutPoint, CachedOutput> changes) {
+        long change = 0;
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : changes.entrySet()) {
+            CachedOutput old = cache.get(entry.getKey());
+            if (old != null)
+                change -= old.size();
+            CachedOutput cached = entry.getValue();
+            if (cached.output != null || cached.inStore)
+                change += cached.size();
+        }
+        return change;
+    }
+
+    /**
+     * Writes all changes in the cache, with the given ones on top, to the underlying store, which must have a batch
+     * open. The cache itself is left as it is. Returns the number of outputs written.
+     */
+    private int writeToStore(Map<StoredTransactionOutPoint, CachedOutput> changes, @Nullable StoredBlock chainHead,
+                              @Nullable StoredBlock verifiedChainHead) throws BlockStoreException {
+        long startTime = System.currentTimeMillis();
+        int written = 0;
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : cache.entrySet()) {
+            if (!changes.containsKey(entry.getKey()) && write(entry.getKey(), entry.getValue()))
+                written++;
+        }
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> entry : changes.entrySet()) {
+            if (write(entry.getKey(), entry.getValue()))
+                written++;
+        }
+        if (chainHead == null)
+            chainHead = unflushedChainHead;
+        if (chainHead != null)
+            store.setChainHead(chainHead);
+        if (verifiedChainHead == null)
+            verifiedChainHead = unflushedVerifiedChainHead;
+        if (verifiedChainHead != null)
+            store.setVerifiedChainHead(verifiedChainHead);
+        log.info("Flushing {} changed outputs out of {} cached ({} KB) took {}ms", written, cache.size(),
+                cacheBytes / 1024, System.currentTimeMillis() - startTime);
+        return written;
+    }
+
+    /** Writes a single cache entry to the underlying store, and returns whether there was anything to write. */
+    private boolean write(StoredTransactionOutPoint outPoint, CachedOutput cached) throws BlockStoreException {
+        if (!cached.dirty || (cached.output == null && !cached.inStore))
+            return false;
+        if (cached.inStore) {
+            // Spent outputs aren't kept in the cache, but stores only look at the hash and index of the output to
+            // remove, so a stand-in will do.
+            store.removeUnspentTransactionOutput(new StoredTransactionOutput(outPoint.getHash(),
+                    outPoint.getIndex(), Coin.ZERO, 0, false, new byte[0]));
+        }
+        if (cached.output != null)
+            store.addUnspentTransactionOutput(cached.output);
+        return true;
+    }
+
+    /** Empties the cache once everything in it is safely in the underlying store. */
+    private void flushed(int written) {
+        cache.clear();
+        cacheBytes = 0;
+        unflushedChainHead = null;
+        unflushedVerifiedChainHead = null;
+        flushes++;
+        flushedOutputs += written;
+    }
+
+    /**
+     * Writes all committed changes to the underlying store and empties the cache. Must not be called while a batch
+     * is open.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(batchOwner == null, "Cannot flush while a batch is open");
+        store.beginDatabaseBatchWrite();
+        int written;
+        try {
+            written = writeToStore(Collections.<StoredTransactionOutPoint, CachedOutput>emptyMap(), null, null);
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        store.commitDatabaseBatchWrite();
+        flushed(written);
+    }
+
+    /** Returns how many output lookups were answered from the cache. */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /** Returns how many output lookups had to go to the underlying store. */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** Returns how many outputs were spent before they were ever written to the underlying store. */
+    public synchronized long getCancelledCount() {
+        return cancelled;
+    }
+
+    /** Returns how many times the cache was written out to the underlying store. */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    /** Returns how many output creations and spends were written to the underlying store in total. */
+    public synchronized long getFlushedOutputCount() {
+        return flushedOutputs;
+    }
+
+    /** Returns the number of outputs in the cache, including spent ones not written out yet. */
+    public synchronized int getCacheSize() {
+        return cache.size();
+    }
+
+    /** Returns an estimate of the number of bytes of heap used by the cache. */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Output cache: %d entries, %d KB, %d hits, %d misses, %d cancelled, %d flushes",
+                cache.size(), cacheBytes / 1024, hits, misses, cancelled, flushes);
+    }
+
+    /** Writes the cache out and then closes the underlying store. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        try {
+            if (batchOwner == null)
+                flush();
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A block store that keeps every header it is given, in an append-only memory mapped file of fixed size records,
+ * the same records that {@link SPVBlockStore} keeps in its ring. Nothing is ever overwritten, so unlike with the ring
+ * there is no limit to how deep a re-org can be or how far back the chain can be inspected. The headers of the whole
+ * main net chain take a few tens of megabytes.</p>
+ *
+ * <p>Two indexes are kept on the heap: a hash table from block hash to record, and an array from height to the record
+ * of the block at that height in the best chain, which follows {@link #setChainHead(StoredBlock)}. Looking a block up
+ * by hash or by height therefore takes constant time, see {@link #getByHeight(int)}. Both indexes are rebuilt when the
+ * file is opened, which takes a fraction of a second for the main net chain.</p>
+ */
+public class FullHeaderBlockStore implements HeightIndexedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(FullHeaderBlockStore.class);
+
+    private static final int MAGIC = 0x48445253; // "HDRS"
+    private static final int VERSION = 1;
+
+    // File format:
+    //   4 bytes magic, 4 bytes version
+    //   4 bytes number of records
+    //   4 bytes record number of the chain head
+    //   padding up to HEADER_SIZE, followed by the records.
+    //
+    // Each record (RECORD_SIZE bytes):
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    //
+    // The file grows one segment at a time, and every segment is mapped separately.
+    private static final int COUNT_OFFSET = 8;
+    private static final int HEAD_OFFSET = 12;
+    private static final int HEADER_SIZE = 1024;
+    static final int RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int RECORD_HEIGHT = 32 + StoredBlock.CHAIN_WORK_BYTES;
+    private static final int RECORD_PREV_HASH = RECORD_HEIGHT + 4 + 4;
+    private static final int RECORDS_PER_SEGMENT_BITS = 17;
+    static final int RECORDS_PER_SEGMENT = 1 << RECORDS_PER_SEGMENT_BITS;
+
+    private final NetworkParameters params;
+    private final ReentrantLock lock = Threading.lock("FullHeaderBlockStore");
+    private RandomAccessFile randomAccessFile;
+    private FileLock fileLock;
+    private MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private int recordCount;
+
+    // Open addressing table from block hash to record number plus one, keyed by the last four bytes of the hash.
+    private int[] hashKeys;
+    private int[] hashRecords;
+    private int hashMask;
+    // The record of the block at each height in the best chain, up to and including the chain head.
+    private int[] heightRecords = new int[1024];
+    private int bestHeight = -1;
+    private StoredBlock chainHead;
+
+    /**
+     * Opens the given file, creating it, with the genesis block as the chain head, if it doesn't exist yet. This
+     * operation will block on disk.
+     */
+    public FullHeaderBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        checkNotNull(file);
+        lock.lock();
+        try {
+            boolean exists = file.exists();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            fileLock = randomAccessFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            if (!exists)
+                randomAccessFile.setLength(HEADER_SIZE);
+            header = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            resizeHashIndex(1024);
+            if (!exists) {
+                log.info("Creating new header chain file " + file);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                Block genesis = params.getGenesisBlock().cloneAsHeader();
+                StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+            } else {
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                    throw new BlockStoreException("Not a header chain file: " + file);
+                load(header.getInt(COUNT_OFFSET), header.getInt(HEAD_OFFSET));
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            closeQuietly();
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Rebuilds both indexes from the records in the file. */
+    private void load(int count, int headRecord) throws IOException, BlockStoreException {
+        long start = System.currentTimeMillis();
+        if (count < 1 || headRecord < 0 || headRecord >= count)
+            throw new BlockStoreException("Corrupted header chain file");
+        while ((long) segments.size() * RECORDS_PER_SEGMENT < count)
+            addSegment();
+        resizeHashIndex(Math.max(1024, count * 2));
+        byte[] hash = new byte[32];
+        for (recordCount = 0; recordCount < count; recordCount++) {
+            readHash(recordCount, hash);
+            indexHash(hash, recordCount);
+        }
+        // Walk back from the chain head to fill in the heights of the best chain.
+        chainHead = readBlock(headRecord);
+        bestHeight = chainHead.getHeight();
+        heightRecords = new int[Math.max(1024, bestHeight + 1)];
+        for (int record = headRecord, height = bestHeight; height >= 0; height--) {
+            heightRecords[height] = record;
+            if (height == 0)
+                break;
+            record = findRecord(readPrevHash(record));
+            if (record < 0)
+                throw new BlockStoreException("Corrupted header chain file: missing block at height " + (height - 1));
+        }
+        log.info("Loaded {} headers, chain head at height {}, in {}ms", count, bestHeight,
+                System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] hash = block.getHash().getBytes();
+            if (findRecord(hash) >= 0)
+                return;  // Blocks never change, so there is nothing to update.
+            if ((long) segments.size() * RECORDS_PER_SEGMENT == recordCount)
+                addSegment();
+            ByteBuffer segment = segments.get(recordCount >>> RECORDS_PER_SEGMENT_BITS);
+            segment.position(offsetOf(recordCount));
+            segment.put(hash);
+            block.serializeCompact(segment);
+            indexHash(hash, recordCount);
+            recordCount++;
+            header.putInt(COUNT_OFFSET, recordCount);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (chainHead != null && chainHead.getHash().equals(hash))
+                return chainHead;
+            int record = findRecord(hash.getBytes());
+            return record < 0 ? null : readBlock(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < 0 || height > bestHeight)
+                return null;
+            if (height == bestHeight)
+                return chainHead;
+            return readBlock(heightRecords[height]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the chain head, which must have been {@link #put(StoredBlock)} already. The height index is updated by
+     * walking back from the new head until it meets the old best chain, so this takes time proportional to the depth
+     * of a re-org.
+     */
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = findRecord(chainHead.getHash().getBytes());
+            if (record < 0)
+                throw new BlockStoreException("Chain head was not put into the store: " + chainHead);
+            int height = chainHead.getHeight();
+            if (height >= heightRecords.length)
+                heightRecords = Arrays.copyOf(heightRecords, Math.max(height + 1, heightRecords.length * 2));
+            for (int h = height; h >= 0 && (h > bestHeight || heightRecords[h] != record); h--) {
+                heightRecords[h] = record;
+                if (h == 0)
+                    break;
+                record = findRecord(readPrevHash(record));
+                if (record < 0)
+                    throw new BlockStoreException("Chain head does not connect to the genesis block: " + chainHead);
+            }
+            this.chainHead = chainHead;
+            bestHeight = height;
+            header.putInt(HEAD_OFFSET, heightRecords[height]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (header == null)
+                return;
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+            header.force();
+            header = null;  // Allow the mappings to be GCd.
+            segments.clear();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of headers in the store, including those of side chains. */
+    public int getHeaderCount() {
+        lock.lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (header == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private void closeQuietly() {
+        try {
+            if (randomAccessFile != null)
+                randomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close header chain file", e);
+        }
+        header = null;
+    }
+
+    private void addSegment() throws IOException {
+        long position = HEADER_SIZE + (long) segments.size() * RECORDS_PER_SEGMENT * RECORD_SIZE;
+        long size = (long) RECORDS_PER_SEGMENT * RECORD_SIZE;
+        if (randomAccessFile.length() < position + size)
+            randomAccessFile.setLength(position + size);
+        segments.add(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, position, size));
+    }
+
+    private static int offsetOf(int record) {
+        return (record & (RECORDS_PER_SEGMENT - 1)) * RECORD_SIZE;
+    }
+
+    private StoredBlock readBlock(int record) throws BlockStoreException {
+        ByteBuffer segment = segments.get(record >>> RECORDS_PER_SEGMENT_BITS);
+        segment.position(offsetOf(record) + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, segment);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void readHash(int record, byte[] hash) {
+        ByteBuffer segment = segments.get(record >>> RECORDS_PER_SEGMENT_BITS);
+        segment.position(offsetOf(record));
+        segment.get(hash);
+    }
+
+    /** Reads the previous block hash out of the header in the given record, in the byte order of Sha256Hash. */
+    private byte[] readPrevHash(int record) {
+        ByteBuffer segment = segments.get(record >>> RECORDS_PER_SEGMENT_BITS);
+        int offset = offsetOf(record) + RECORD_PREV_HASH;
+        byte[] hash = new byte[32];
+        // Headers hold hashes in reversed byte order.
+        for (int i = 0; i < 32; i++)
+            hash[31 - i] = segment.get(offset + i);
+        return hash;
+    }
+
+    private boolean hashEquals(int record, byte[] hash) {
+        ByteBuffer segment = segments.get(record >>> RECORDS_PER_SEGMENT_BITS);
+        int offset = offsetOf(record);
+        for (int i = 0; i < 32; i++)
+            if (segment.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    private static int keyOf(byte[] hash) {
+        // The last four bytes, as the first ones of a block hash are mostly zeros.
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
+    private int findRecord(byte[] hash) {
+        int key = keyOf(hash);
+        for (int pos = key & hashMask; hashRecords[pos] != 0; pos = (pos + 1) & hashMask) {
+            if (hashKeys[pos] == key && hashEquals(hashRecords[pos] - 1, hash))
+                return hashRecords[pos] - 1;
+        }
+        return -1;
+    }
+
+    private void indexHash(byte[] hash, int record) {
+        // Keep the load factor at or below one half.
+        if (record * 2 >= hashRecords.length)
+            resizeHashIndex(hashRecords.length * 2);
+        insert(keyOf(hash), record + 1);
+    }
+
+    private void insert(int key, int recordPlusOne) {
+        int pos = key & hashMask;
+        while (hashRecords[pos] != 0)
+            pos = (pos + 1) & hashMask;
+        hashKeys[pos] = key;
+        hashRecords[pos] = recordPlusOne;
+    }
+
+    private void resizeHashIndex(int minCapacity) {
+        int capacity = 16;
+        while (capacity < minCapacity)
+            capacity <<= 1;
+        int[] oldKeys = hashKeys, oldRecords = hashRecords;
+        hashKeys = new int[capacity];
+        hashRecords = new int[capacity];
+        hashMask = capacity - 1;
+        if (oldRecords != null)
+            for (int i = 0; i < oldRecords.length; i++)
+                if (oldRecords[i] != 0)
+                    insert(oldKeys[i], oldRecords[i]);
+    }
+}
@@ -20,6 +20,11 @@ import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutPoint;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -49,16 +54,25 @@ import com.google.bitcoin.core.StoredUndoableBlock;
  * <p>FullPrunedBlockStores are thread safe.</p>
  */
 public interface FullPrunedBlockStore extends BlockStore {
+    /** Receives the unspent outputs of a store, see {@link #visitUnspentTransactionOutputs(UnspentOutputVisitor)}. */
+    interface UnspentOutputVisitor {
+        void visit(StoredTransactionOutput out) throws BlockStoreException;
+    }
+
     /**
      * <p>Saves the given {@link StoredUndoableBlock} and {@link StoredBlock}. Calculates keys from the {@link StoredBlock}</p>
      * 
      * <p>Though not required for proper function of a FullPrunedBlockStore, any user of a FullPrunedBlockStore should ensure
      * that a StoredUndoableBlock for each block up to the fully verified chain head has been added to this block store using
      * this function (not put(StoredBlock)), so that the ability to perform reorgs is maintained.</p>
+     *
+     * <p>The undoable block may be null for a block that was verified elsewhere, such as those of an imported
+     * {@link com.google.bitcoin.core.UTXOSnapshot}. The block then counts as once undoable, just as if its undo data had
+     * already been pruned.</p>
      * 
      * @throws BlockStoreException if there is a problem with the underlying storage layer, such as running out of disk space.
      */
-    void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException;
+    void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException;
     
     /**
      * Returns the StoredBlock that was added as a StoredUndoableBlock given a hash. The returned values block.getHash()
@@ -77,6 +91,15 @@ public interface FullPrunedBlockStore extends BlockStore {
      * Gets a {@link StoredTransactionOutput} with the given hash and index, or null if none is found
      */
     StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link StoredTransactionOutput}s of all the given outpoints in one go, keyed by the outpoints that were
+     * passed in. Outpoints without an unspent output are left out of the map. The result is the same as that of
+     * calling {@link #getTransactionOutput(Sha256Hash, long)} for each outpoint, but stores can answer it with far
+     * fewer trips to their underlying storage.
+     */
+    Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException;
     
     /**
      * Adds a {@link StoredTransactionOutput} to the list of unspent TransactionOutputs
@@ -95,6 +118,13 @@ public interface FullPrunedBlockStore extends BlockStore {
      * @param numOutputs the number of outputs the given transaction has
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
+
+    /**
+     * Calls the visitor with every unspent output in the store, in no particular order. Must not be called while the
+     * calling thread has a batch open, and other threads should not change the outputs in the meantime. Stores may
+     * return outputs that are not coinbases as coinbases, as with {@link #getTransactionOutput(Sha256Hash, long)}.
+     */
+    void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException;
     
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
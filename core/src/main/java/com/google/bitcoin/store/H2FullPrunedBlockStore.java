@@ -17,6 +17,7 @@
 package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.script.ScriptCompressor;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +28,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -38,6 +38,10 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ *
+ * Within a database batch, creations and spends of transaction outputs are
+ * collected in memory and only sent to the database, as JDBC batches, on
+ * commit.
  */
 public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
@@ -51,6 +55,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
+    private final UndoableBlockPruner pruner;
+    // Databases created before version 4 store output scripts as they are rather than compressed.
+    private boolean compressScripts;
+    // Output changes made in the open batch of each connection, which are sent to the database in one go on commit.
+    private ThreadLocal<PendingOutputChanges> pendingOutputChanges;
+
+    // How many transaction hashes getTransactionOutputs puts in the IN list of a single query.
+    private static final int MAX_HASHES_PER_QUERY = 500;
 
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
@@ -60,6 +72,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     static final String VERSION_SETTING = "version";
+    static final int VERSION = 4;
+    static final int COMPRESSED_SCRIPTS_VERSION = 4;
 
     static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
         + "hash BINARY(28) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
@@ -86,6 +100,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "PRIMARY KEY (hash, index),"
         + ")";
 
+    /** Output creations and spends that have not been sent to the database yet. */
+    private static class PendingOutputChanges {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> inserts =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Spent outputs, mapped to whether the database must have them. It may not when the output was created in
+        // the same batch, but an output with the same outpoint can already be there (see BIP30), so it is deleted
+        // anyway.
+        final Map<StoredTransactionOutPoint, Boolean> deletes = new LinkedHashMap<StoredTransactionOutPoint, Boolean>();
+    }
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -101,7 +125,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000";
         
         conn = new ThreadLocal<Connection>();
+        pendingOutputChanges = new ThreadLocal<PendingOutputChanges>();
         allConnections = new LinkedList<Connection>();
+        pruner = new UndoableBlockPruner(new PrunerTable(), "H2");
 
         try {
             Class.forName(driver);
@@ -146,31 +172,38 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private synchronized void maybeConnect() throws BlockStoreException {
         try {
-            if (conn.get() != null)
+            // Connections are closed by close(), after which the store connects again when it is next used.
+            if (conn.get() != null && !conn.get().isClosed())
                 return;
             
             conn.set(DriverManager.getConnection(connectionURL));
             allConnections.add(conn.get());
             log.info("Made a new connection to database " + connectionURL);
+            pruner.start();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
     
     @Override
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
-            try {
-                conn.rollback();
-                conn.close();
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
+    public void close() {
+        // Outside the lock, the pruner thread may need it to finish its batch.
+        pruner.stop();
+        synchronized (this) {
+            for (Connection conn : allConnections) {
+                try {
+                    conn.rollback();
+                    conn.close();
+                } catch (SQLException ex) {
+                    throw new RuntimeException(ex);
+                }
             }
+            allConnections.clear();
         }
-        allConnections.clear();
     }
 
     public void resetStore() throws BlockStoreException {
+        pruner.reset();
         maybeConnect();
         try {
             Statement s = conn.get().createStatement();
@@ -205,7 +238,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '0" + VERSION + "')");
         s.close();
         createNewStore(params);
     }
@@ -236,7 +269,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
         hash = new Sha256Hash(rs.getBytes(1));
         rs.close();
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        byte[] version = rs.next() ? rs.getBytes(1) : null;
+        rs.close();
         s.close();
+        compressScripts = version != null && version.length == 1 && version[0] >= COMPRESSED_SCRIPTS_VERSION;
         this.verifiedChainHeadBlock = get(hash);
         this.verifiedChainHeadHash = hash;
         if (this.verifiedChainHeadBlock == null)
@@ -354,7 +391,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             s.setBytes(2, storedBlock.getChainWork().toByteArray());
             s.setInt(3, storedBlock.getHeight());
@@ -372,7 +409,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
             s.close();
@@ -390,11 +427,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
     
     @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
+        if (undoableBlock == null) {
+            try {
+                putUpdateStoredBlock(storedBlock, true);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+            return;
+        }
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+        System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
         int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
@@ -419,45 +464,28 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
         
         try {
-            try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
-                s.setBytes(1, hashBytes);
-                s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BLOB);
-                } else {
-                    s.setNull(3, Types.BLOB);
-                    s.setBytes(4, transactions);
-                }
-                s.executeUpdate();
-                s.close();
-                try {
-                    putUpdateStoredBlock(storedBlock, true);
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
-                    throw new BlockStoreException(e);
-                
-                // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BLOB);
-                } else {
-                    s.setNull(1, Types.BLOB);
-                    s.setBytes(2, transactions);
-                }
-                s.executeUpdate();
-                s.close();
+            PreparedStatement s =
+                    conn.get().prepareStatement("MERGE INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                            + " KEY(hash) VALUES(?, ?, ?, ?)");
+            s.setBytes(1, hashBytes);
+            s.setInt(2, height);
+            if (transactions == null) {
+                s.setBytes(3, txOutChanges);
+                s.setNull(4, Types.BLOB);
+            } else {
+                s.setNull(3, Types.BLOB);
+                s.setBytes(4, transactions);
             }
+            s.executeUpdate();
+            s.close();
+            s = conn.get().prepareStatement("MERGE INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    + " KEY(hash) VALUES(?, ?, ?, ?, TRUE)");
+            s.setBytes(1, hashBytes);
+            s.setBytes(2, storedBlock.getChainWork().toByteArray());
+            s.setInt(3, storedBlock.getHeight());
+            s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
+            s.executeUpdate();
+            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -590,7 +618,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        Sha256Hash hash = chainHead.getHeader().getHash();
+        Sha256Hash hash = chainHead.getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
         maybeConnect();
@@ -613,7 +641,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
-        Sha256Hash hash = chainHead.getHeader().getHash();
+        Sha256Hash hash = chainHead.getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
@@ -629,24 +657,61 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        pruner.pruneTo(chainHead.getHeight() - fullStoreDepth);
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
-        try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+    /**
+     * Returns the pruner that deletes the undoable blocks that have fallen more than fullStoreDepth blocks behind the
+     * verified chain head, in the background. It can be used to tune the batches or to watch its progress.
+     */
+    public UndoableBlockPruner getUndoableBlockPruner() {
+        return pruner;
+    }
+
+    /** Runs the pruner's queries on the pruner thread's own connection. */
+    private class PrunerTable implements UndoableBlockPruner.Table {
+        @Override
+        public int getLowestHeight() throws BlockStoreException {
+            maybeConnect();
+            try {
+                Statement s = conn.get().createStatement();
+                ResultSet results = s.executeQuery("SELECT MIN(height) FROM undoableBlocks");
+                int height = results.next() && results.getObject(1) != null ? results.getInt(1) : -1;
+                s.close();
+                return height;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            }
+        }
+
+        @Override
+        public int deleteUpTo(int height) throws BlockStoreException {
+            maybeConnect();
+            try {
+                PreparedStatement s = conn.get()
+                    .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+                s.setInt(1, height);
+                int deleted = s.executeUpdate();
+                s.close();
+                return deleted;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            }
         }
     }
 
     @Override
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput inserted = changes.inserts.get(outPoint);
+            if (inserted != null)
+                return inserted;
+            if (changes.deletes.containsKey(outPoint))
+                return null;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -664,7 +729,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             int height = results.getInt(1);
             Coin value = Coin.valueOf(new BigInteger(results.getBytes(2)).longValue());
             // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            return new StoredTransactionOutput(hash, index, value, height, true, readScript(results.getBytes(3)));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -676,47 +741,170 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+    public Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<TransactionOutPoint, StoredTransactionOutput> result = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        // The outpoints left to look up in the database, by transaction hash.
+        Map<Sha256Hash, List<TransactionOutPoint>> byHash = new LinkedHashMap<Sha256Hash, List<TransactionOutPoint>>();
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        for (TransactionOutPoint outPoint : outPoints) {
+            if (changes != null) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+                StoredTransactionOutput inserted = changes.inserts.get(key);
+                if (inserted != null) {
+                    result.put(outPoint, inserted);
+                    continue;
+                }
+                if (changes.deletes.containsKey(key))
+                    continue;
+            }
+            List<TransactionOutPoint> sameHash = byHash.get(outPoint.getHash());
+            if (sameHash == null) {
+                sameHash = new ArrayList<TransactionOutPoint>(1);
+                byHash.put(outPoint.getHash(), sameHash);
+            }
+            sameHash.add(outPoint);
+        }
+        if (byHash.isEmpty())
+            return result;
         maybeConnect();
         PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(byHash.keySet());
+            for (int start = 0; start < hashes.size(); start += MAX_HASHES_PER_QUERY) {
+                List<Sha256Hash> chunk = hashes.subList(start, Math.min(hashes.size(), start + MAX_HASHES_PER_QUERY));
+                StringBuilder sql = new StringBuilder("SELECT hash, index, height, value, scriptBytes FROM openOutputs " +
+                        "WHERE hash IN (");
+                for (int i = 0; i < chunk.size(); i++)
+                    sql.append(i == 0 ? "?" : ", ?");
+                sql.append(")");
+                s = conn.get().prepareStatement(sql.toString());
+                for (int i = 0; i < chunk.size(); i++)
+                    s.setBytes(i + 1, chunk.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    List<TransactionOutPoint> sameHash = byHash.get(new Sha256Hash(results.getBytes(1)));
+                    // index is actually an unsigned int
+                    int index = results.getInt(2);
+                    for (TransactionOutPoint outPoint : sameHash) {
+                        if ((int) outPoint.getIndex() != index)
+                            continue;
+                        int height = results.getInt(3);
+                        Coin value = Coin.valueOf(new BigInteger(results.getBytes(4)).longValue());
+                        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                        result.put(outPoint, new StoredTransactionOutput(outPoint.getHash(), outPoint.getIndex(), value,
+                                height, true, readScript(results.getBytes(5))));
+                    }
+                }
+                s.close();
+                s = null;
+            }
+            return result;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
         } finally {
             if (s != null)
                 try {
                     s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+        }
+    }
+
+    private byte[] writeScript(byte[] scriptBytes) {
+        return compressScripts ? ScriptCompressor.compress(scriptBytes) : scriptBytes;
+    }
+
+    private byte[] readScript(byte[] stored) throws BlockStoreException {
+        if (!compressScripts)
+            return stored;
+        try {
+            return ScriptCompressor.decompress(stored);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes == null) {
+            changes = new PendingOutputChanges();
+            changes.inserts.put(new StoredTransactionOutPoint(out), out);
+            writeOutputChanges(changes);
+        } else {
+            changes.inserts.put(new StoredTransactionOutPoint(out), out);
         }
     }
 
     @Override
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes == null) {
+            changes = new PendingOutputChanges();
+            changes.deletes.put(outPoint, true);
+            writeOutputChanges(changes);
+        } else if (changes.inserts.remove(outPoint) != null) {
+            // Deletes are executed before inserts, so the output must not be inserted any more, but whatever was
+            // stored under the same outpoint before the batch must still go.
+            if (!changes.deletes.containsKey(outPoint))
+                changes.deletes.put(outPoint, false);
+        } else {
+            // Whether the database really has the output is checked when the deletes are executed.
+            if (changes.deletes.containsKey(outPoint))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            changes.deletes.put(outPoint, true);
+        }
+    }
+
+    /**
+     * Sends the given output changes to the database as two JDBC batches, which saves a round trip through the
+     * driver for every single output.
+     */
+    private void writeOutputChanges(PendingOutputChanges changes) throws BlockStoreException {
         maybeConnect();
+        PreparedStatement s = null;
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
-            if (updateCount == 0)
-                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            if (!changes.deletes.isEmpty()) {
+                s = conn.get().prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+                List<Boolean> mustExist = new ArrayList<Boolean>(changes.deletes.size());
+                for (Map.Entry<StoredTransactionOutPoint, Boolean> entry : changes.deletes.entrySet()) {
+                    s.setBytes(1, entry.getKey().getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) entry.getKey().getIndex());
+                    s.addBatch();
+                    mustExist.add(entry.getValue());
+                }
+                int[] updateCounts = s.executeBatch();
+                for (int i = 0; i < updateCounts.length; i++)
+                    if (updateCounts[i] == 0 && mustExist.get(i))
+                        throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+                s.close();
+            }
+            if (!changes.inserts.isEmpty()) {
+                // MERGE rather than INSERT, so that a transaction duplicating an earlier one (see BIP30) replaces its
+                // outputs instead of failing the whole batch.
+                s = conn.get().prepareStatement("MERGE INTO openOutputs (hash, index, height, value, scriptBytes) " +
+                        "KEY(hash, index) VALUES (?, ?, ?, ?, ?)");
+                for (StoredTransactionOutput out : changes.inserts.values()) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.setInt(3, out.getHeight());
+                    s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
+                    s.setBytes(5, writeScript(out.getScriptBytes()));
+                    s.addBatch();
+                }
+                s.executeBatch();
+                s.close();
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
@@ -728,12 +916,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputChanges.get() == null)
+            pendingOutputChanges.set(new PendingOutputChanges());
     }
 
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        pendingOutputChanges.remove();
         try {
+            if (changes != null)
+                writeOutputChanges(changes);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
@@ -744,6 +938,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        pendingOutputChanges.remove();
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -754,18 +949,27 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes != null) {
+            for (int i = 0; i < numOutputs; i++)
+                if (changes.inserts.containsKey(new StoredTransactionOutPoint(hash, i)))
+                    return true;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+                .prepareStatement("SELECT index FROM openOutputs WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            // Any stored output that isn't about to be deleted counts.
+            while (results.next()) {
+                // index is actually an unsigned int
+                long index = results.getInt(1) & 0xFFFFFFFFL;
+                if (changes == null || !changes.deletes.containsKey(new StoredTransactionOutPoint(hash, index)))
+                    return true;
             }
-            int count = results.getInt(1);
-            return count != 0;
+            return false;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -775,4 +979,31 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
+
+    @Override
+    public void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        Statement s = null;
+        try {
+            s = conn.get().createStatement();
+            s.setFetchSize(10000);
+            ResultSet results = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+            while (results.next()) {
+                Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                // index is actually an unsigned int
+                long index = results.getInt(2) & 0xFFFFFFFFL;
+                Coin value = Coin.valueOf(new BigInteger(results.getBytes(4)).longValue());
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                visitor.visit(new StoredTransactionOutput(hash, index, value, results.getInt(3), true,
+                        readScript(results.getBytes(5))));
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close Statement"); }
+        }
+    }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BlockStore} that can look up the blocks of the best chain by height in constant time. This lets the block
+ * chain find fork points and peers build block locators without following previous block pointers one at a time.
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block at the given height in the chain that ends at the current chain head, as last set by
+     * {@link #setChainHead(StoredBlock)}, or null if the height is negative or above the chain head.
+     */
+    @Nullable
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+}
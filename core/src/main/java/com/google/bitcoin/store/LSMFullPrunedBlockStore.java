@@ -0,0 +1,553 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * <p>A full pruned block store built on a pure Java, embedded log-structured merge tree, so that a fully verifying
+ * node can run without an external database.</p>
+ *
+ * <p>All writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are kept
+ * in memory and then handed to the tree as a single atomic batch, which is appended to the write-ahead log and
+ * applied to the memtable. The memtable is written out to a new sorted table on commit once it has grown past its
+ * size limit, and tables are merged by a background thread. Each table has a bloom filter, so checking for a
+ * transaction output that does not exist usually costs no disk access at all.</p>
+ *
+ * <p>The store lives in its own directory, which must not be shared with anything else.</p>
+ */
+public class LSMFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LSMFullPrunedBlockStore.class);
+
+    /** The default number of bytes the memtable may hold before it is written to disk. */
+    public static final long DEFAULT_MEMTABLE_SIZE = 64 * 1024 * 1024;
+    /** The default number of tables at which a background compaction is started. */
+    public static final int DEFAULT_COMPACTION_TRIGGER = 4;
+
+    // Every key starts with one of these bytes, which keeps the different kinds of record apart.
+    private static final byte KEY_HEADER = 'H';        // + block hash -> compact StoredBlock + wasUndoable
+    private static final byte KEY_UNDOABLE = 'U';      // + block hash -> undoable block
+    private static final byte KEY_UNDOABLE_HEIGHT = 'h'; // + height -> hashes of the undoable blocks at that height
+    private static final byte KEY_OUTPUT = 'O';        // + tx hash + index -> height, value, script
+    private static final byte KEY_SETTING = 'S';       // + name -> setting value
+
+    private static final String CHAIN_HEAD_SETTING = "chainhead";
+    private static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
+    private static final String PRUNED_HEIGHT_SETTING = "prunedheight";
+
+    private static final byte UNDOABLE_TX_OUT_CHANGES = 0;
+    private static final byte UNDOABLE_TRANSACTIONS = 1;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private LSMTree tree;
+
+    // Writes between beginDatabaseBatchWrite and commit/abort, only visible to the thread that made them.
+    private final ThreadLocal<TreeMap<byte[], byte[]>> batch = new ThreadLocal<TreeMap<byte[], byte[]>>();
+
+    private volatile StoredBlock chainHeadBlock;
+    private volatile StoredBlock verifiedChainHeadBlock;
+
+    /**
+     * Creates a new LSMFullPrunedBlockStore, or opens an existing one.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory to keep the store in, created if it does not exist
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public LSMFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_MEMTABLE_SIZE, false);
+    }
+
+    /**
+     * Creates a new LSMFullPrunedBlockStore, or opens an existing one.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory to keep the store in, created if it does not exist
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param memTableSize The number of bytes of recent writes to hold in memory before writing them to a table. Larger
+     *                     values mean fewer, larger tables and less compaction work.
+     * @param syncWrites Whether to force the write-ahead log to disk on every commit. Without this a power failure can
+     *                   lose the last few blocks, but the store always reopens in a consistent state.
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public LSMFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, long memTableSize,
+                                   boolean syncWrites) throws BlockStoreException {
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        try {
+            tree = new LSMTree(directory, memTableSize, DEFAULT_COMPACTION_TRIGGER, syncWrites);
+            byte[] chainHeadHash = getRaw(settingKey(CHAIN_HEAD_SETTING));
+            if (chainHeadHash == null) {
+                log.info("Creating new block store in {}", directory);
+                createNewStore();
+            } else {
+                chainHeadBlock = get(new Sha256Hash(chainHeadHash));
+                if (chainHeadBlock == null)
+                    throw new BlockStoreException("corrupt block store - head block not found");
+                byte[] verifiedHash = getRaw(settingKey(VERIFIED_CHAIN_HEAD_SETTING));
+                if (verifiedHash == null)
+                    throw new BlockStoreException("corrupt block store - no verified chain head pointer");
+                verifiedChainHeadBlock = get(new Sha256Hash(verifiedHash));
+                if (verifiedChainHeadBlock == null)
+                    throw new BlockStoreException("corrupt block store - verified head block not found");
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable. This is because of how the reference client inits
+            // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private LSMTree tree() throws BlockStoreException {
+        LSMTree tree = this.tree;
+        if (tree == null)
+            throw new BlockStoreException("LSMFullPrunedBlockStore is closed");
+        return tree;
+    }
+
+    @Nullable
+    private byte[] getRaw(byte[] key) throws BlockStoreException {
+        TreeMap<byte[], byte[]> pending = batch.get();
+        if (pending != null) {
+            byte[] value = pending.get(key);
+            if (value != null)
+                return value == LSMTree.TOMBSTONE ? null : value;
+        }
+        try {
+            return tree().get(key);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void putRaw(byte[] key, byte[] value) throws BlockStoreException {
+        TreeMap<byte[], byte[]> pending = batch.get();
+        if (pending != null) {
+            pending.put(key, value);
+        } else {
+            SortedMap<byte[], byte[]> single = new TreeMap<byte[], byte[]>(LSMTree.KEY_ORDER);
+            single.put(key, value);
+            try {
+                tree().write(single);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    private void deleteRaw(byte[] key) throws BlockStoreException {
+        putRaw(key, LSMTree.TOMBSTONE);
+    }
+
+    private static byte[] blockKey(byte type, Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = type;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] heightKey(int height) {
+        return ByteBuffer.allocate(5).put(KEY_UNDOABLE_HEIGHT).putInt(height).array();
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        return ByteBuffer.allocate(37).put(KEY_OUTPUT).put(hash.getBytes()).putInt((int) index).array();
+    }
+
+    private static byte[] settingKey(String name) {
+        byte[] nameBytes = name.getBytes();
+        byte[] key = new byte[nameBytes.length + 1];
+        key[0] = KEY_SETTING;
+        System.arraycopy(nameBytes, 0, key, 1, nameBytes.length);
+        return key;
+    }
+
+    private void putStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        storedBlock.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        putRaw(blockKey(KEY_HEADER, storedBlock.getHash()), buffer.array());
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        // Don't forget that we once had the undoable version of this block.
+        byte[] existing = getRaw(blockKey(KEY_HEADER, storedBlock.getHash()));
+        boolean wasUndoable = existing != null && existing[StoredBlock.COMPACT_SERIALIZED_SIZE] != 0;
+        putStoredBlock(storedBlock, wasUndoable);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        if (undoableBlock == null) {
+            putStoredBlock(storedBlock, true);
+            return;
+        }
+        Sha256Hash hash = storedBlock.getHash();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(UNDOABLE_TX_OUT_CHANGES);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(UNDOABLE_TRANSACTIONS);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write(0xFF & (numTxn >> 0));
+                bos.write(0xFF & (numTxn >> 8));
+                bos.write(0xFF & (numTxn >> 16));
+                bos.write(0xFF & (numTxn >> 24));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+            byte[] undoKey = blockKey(KEY_UNDOABLE, hash);
+            boolean isNew = getRaw(undoKey) == null;
+            putRaw(undoKey, bos.toByteArray());
+            if (isNew) {
+                // Remember which blocks live at this height so they can be pruned later.
+                byte[] heightKey = heightKey(storedBlock.getHeight());
+                byte[] hashes = getRaw(heightKey);
+                byte[] newHashes = new byte[(hashes == null ? 0 : hashes.length) + 32];
+                if (hashes != null)
+                    System.arraycopy(hashes, 0, newHashes, 0, hashes.length);
+                System.arraycopy(hash.getBytes(), 0, newHashes, newHashes.length - 32, 32);
+                putRaw(heightKey, newHashes);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        putStoredBlock(storedBlock, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        StoredBlock chainHead = chainHeadBlock, verifiedChainHead = verifiedChainHeadBlock;
+        if (chainHead != null && chainHead.getHash().equals(hash) && !wasUndoableOnly)
+            return chainHead;
+        if (verifiedChainHead != null && verifiedChainHead.getHash().equals(hash))
+            return verifiedChainHead;
+        byte[] bytes = getRaw(blockKey(KEY_HEADER, hash));
+        if (bytes == null)
+            return null;
+        if (wasUndoableOnly && bytes[StoredBlock.COMPACT_SERIALIZED_SIZE] == 0)
+            return null;
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(bytes));
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] bytes = getRaw(blockKey(KEY_UNDOABLE, hash));
+        if (bytes == null)
+            return null;
+        try {
+            if (bytes[0] == UNDOABLE_TX_OUT_CHANGES) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            } else {
+                int offset = 1;
+                int numTxn = ((bytes[offset++] & 0xFF) << 0) |
+                             ((bytes[offset++] & 0xFF) << 8) |
+                             ((bytes[offset++] & 0xFF) << 16) |
+                             ((bytes[offset++] & 0xFF) << 24);
+                List<Transaction> transactionList = new LinkedList<Transaction>();
+                for (int i = 0; i < numTxn; i++) {
+                    Transaction tx = new Transaction(params, bytes, offset);
+                    transactionList.add(tx);
+                    offset += tx.getMessageSize();
+                }
+                return new StoredUndoableBlock(hash, transactionList);
+            }
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return chainHeadBlock;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        putRaw(settingKey(CHAIN_HEAD_SETTING), chainHead.getHash().getBytes());
+        this.chainHeadBlock = chainHead;
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHeadBlock;
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        putRaw(settingKey(VERIFIED_CHAIN_HEAD_SETTING), chainHead.getHash().getBytes());
+        this.verifiedChainHeadBlock = chainHead;
+        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        pruneUndoableBlocks(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    /** Deletes the undoable blocks at all heights up to and including the given one that are still around. */
+    private void pruneUndoableBlocks(int height) throws BlockStoreException {
+        byte[] prunedKey = settingKey(PRUNED_HEIGHT_SETTING);
+        byte[] prunedBytes = getRaw(prunedKey);
+        int prunedHeight = prunedBytes == null ? -1 : ByteBuffer.wrap(prunedBytes).getInt();
+        if (height <= prunedHeight)
+            return;
+        for (int h = prunedHeight + 1; h <= height; h++) {
+            byte[] heightKey = heightKey(h);
+            byte[] hashes = getRaw(heightKey);
+            if (hashes == null)
+                continue;
+            for (int offset = 0; offset < hashes.length; offset += 32) {
+                byte[] undoKey = new byte[33];
+                undoKey[0] = KEY_UNDOABLE;
+                System.arraycopy(hashes, offset, undoKey, 1, 32);
+                deleteRaw(undoKey);
+            }
+            deleteRaw(heightKey);
+        }
+        putRaw(prunedKey, ByteBuffer.allocate(4).putInt(height).array());
+    }
+
+    @Override
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] bytes = getRaw(outputKey(hash, index));
+        return bytes == null ? null : decodeOutput(hash, index, bytes);
+    }
+
+    private static StoredTransactionOutput decodeOutput(Sha256Hash hash, long index, byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int height = buffer.getInt();
+        Coin value = Coin.valueOf(buffer.getLong());
+        byte[] scriptBytes = new byte[buffer.remaining()];
+        buffer.get(scriptBytes);
+        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+        return new StoredTransactionOutput(hash, index, value, height, true, scriptBytes);
+    }
+
+    /**
+     * Answers what it can from the open batch, and looks the rest up in the tree in key order, so that lookups that
+     * land in the same block of a table follow each other, split over the threads of {@link ParallelLookup}. Lookups
+     * only take the read lock of the tree, so they don't hold each other up.
+     */
+    @Override
+    public Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Map<TransactionOutPoint, StoredTransactionOutput> result = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        final TreeMap<byte[], TransactionOutPoint> missing =
+                new TreeMap<byte[], TransactionOutPoint>(LSMTree.KEY_ORDER);
+        // The open batch belongs to this thread, so it has to be read here.
+        TreeMap<byte[], byte[]> pending = batch.get();
+        for (TransactionOutPoint outPoint : outPoints) {
+            byte[] key = outputKey(outPoint.getHash(), outPoint.getIndex());
+            byte[] value = pending != null ? pending.get(key) : null;
+            if (value == null)
+                missing.put(key, outPoint);
+            else if (value != LSMTree.TOMBSTONE)
+                result.put(outPoint, decodeOutput(outPoint.getHash(), outPoint.getIndex(), value));
+        }
+        if (missing.isEmpty())
+            return result;
+        final LSMTree tree = tree();
+        Map<byte[], StoredTransactionOutput> found = ParallelLookup.getDefault().getAll(
+                new ArrayList<byte[]>(missing.keySet()), new ParallelLookup.Lookup<byte[], StoredTransactionOutput>() {
+                    @Nullable
+                    @Override
+                    public StoredTransactionOutput get(byte[] key) throws BlockStoreException {
+                        byte[] bytes;
+                        try {
+                            bytes = tree.get(key);
+                        } catch (IOException e) {
+                            throw new BlockStoreException(e);
+                        }
+                        if (bytes == null)
+                            return null;
+                        TransactionOutPoint outPoint = missing.get(key);
+                        return decodeOutput(outPoint.getHash(), outPoint.getIndex(), bytes);
+                    }
+                });
+        for (Map.Entry<byte[], StoredTransactionOutput> entry : found.entrySet())
+            result.put(missing.get(entry.getKey()), entry.getValue());
+        return result;
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] scriptBytes = out.getScriptBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + scriptBytes.length);
+        buffer.putInt(out.getHeight());
+        buffer.putLong(out.getValue().value);
+        buffer.put(scriptBytes);
+        putRaw(outputKey(out.getHash(), out.getIndex()), buffer.array());
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] key = outputKey(out.getHash(), out.getIndex());
+        if (getRaw(key) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LSMFullPrunedBlockStore that it didn't have!");
+        deleteRaw(key);
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        // Cheap even for transactions we never saw, as the bloom filters answer nearly all of these lookups.
+        for (int i = 0; i < numOutputs; i++)
+            if (getRaw(outputKey(hash, i)) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public void visitUnspentTransactionOutputs(final UnspentOutputVisitor visitor) throws BlockStoreException {
+        try {
+            tree().scan(new byte[] { KEY_OUTPUT }, new LSMTree.Visitor() {
+                @Override
+                public void visit(byte[] key, byte[] value) throws BlockStoreException {
+                    ByteBuffer keyBuffer = ByteBuffer.wrap(key, 1, 36);
+                    byte[] hash = new byte[32];
+                    keyBuffer.get(hash);
+                    long index = keyBuffer.getInt() & 0xFFFFFFFFL;
+                    ByteBuffer buffer = ByteBuffer.wrap(value);
+                    int height = buffer.getInt();
+                    Coin amount = Coin.valueOf(buffer.getLong());
+                    byte[] scriptBytes = new byte[buffer.remaining()];
+                    buffer.get(scriptBytes);
+                    // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                    visitor.visit(new StoredTransactionOutput(new Sha256Hash(hash), index, amount, height, true,
+                            scriptBytes));
+                }
+            });
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new TreeMap<byte[], byte[]>(LSMTree.KEY_ORDER));
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        TreeMap<byte[], byte[]> pending = batch.get();
+        batch.remove();
+        if (pending == null)
+            return;
+        try {
+            tree().write(pending);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            return;
+        batch.remove();
+        // The cached heads may have been updated as part of the aborted batch, so reload them from the tree.
+        try {
+            byte[] chainHeadHash = tree().get(settingKey(CHAIN_HEAD_SETTING));
+            byte[] verifiedHash = tree().get(settingKey(VERIFIED_CHAIN_HEAD_SETTING));
+            if (chainHeadHash != null)
+                chainHeadBlock = get(new Sha256Hash(chainHeadHash));
+            if (verifiedHash != null)
+                verifiedChainHeadBlock = get(new Sha256Hash(verifiedHash));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns how many on disk table lookups for missing keys were avoided thanks to the bloom filters. */
+    public long getBloomFilterRejections() {
+        LSMTree tree = this.tree;
+        return tree == null ? 0 : tree.getBloomRejections();
+    }
+
+    /** Returns the number of sorted tables currently making up the store. */
+    public int getTableCount() {
+        LSMTree tree = this.tree;
+        return tree == null ? 0 : tree.getTableCount();
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        LSMTree tree = this.tree;
+        if (tree == null)
+            return;
+        this.tree = null;
+        try {
+            tree.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
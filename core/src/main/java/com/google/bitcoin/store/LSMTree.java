@@ -0,0 +1,588 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A small embedded log-structured merge tree mapping byte array keys to byte array values. It is the storage
+ * engine behind {@link LSMFullPrunedBlockStore}.</p>
+ *
+ * <p>Writes are applied in atomic batches. Each batch is first appended to a write-ahead log and then applied to an
+ * in-memory sorted memtable. Once the memtable has grown past its size limit it is written out to an immutable
+ * {@link SSTable} and the log is started afresh. Lookups consult the memtable and then every table, newest first.
+ * Each table carries a bloom filter so that looking up a key which doesn't exist almost never touches the disk.
+ * Whenever too many tables have accumulated a background thread merges them into one, dropping deleted and
+ * overwritten entries as it goes.</p>
+ *
+ * <p>The set of live tables is recorded in a small manifest file which is replaced atomically, so the directory is
+ * always consistent: after a crash the tables in the manifest plus a replay of the log reproduce every batch that
+ * was completely written to the log.</p>
+ */
+class LSMTree {
+    private static final Logger log = LoggerFactory.getLogger(LSMTree.class);
+
+    /** Keys are ordered by unsigned lexicographical comparison. */
+    static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+    /** Marker value for deleted keys. Compared by identity, so never hand this array out as a real value. */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final String LOG_FILE = "LOG";
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final int MANIFEST_MAGIC = 0x4c534d4d;  // "LSMM"
+    // Rough per entry overhead of a TreeMap entry plus two array headers, used to estimate memtable size.
+    private static final int ENTRY_OVERHEAD = 80;
+
+    private final File directory;
+    private final long memTableLimit;
+    private final int compactionTrigger;
+    private final boolean syncWrites;
+
+    // Guards memTable and tables. Lookups take the read lock, writes, flushes and table list changes the write lock.
+    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private TreeMap<byte[], byte[]> memTable = new TreeMap<byte[], byte[]>(KEY_ORDER);
+    private long memTableBytes;
+    // Newest first.
+    private List<SSTable> tables = new ArrayList<SSTable>();
+    private long nextFileNumber = 1;
+
+    private FileOutputStream logStream;
+    private DataOutputStream logOut;
+
+    private final ThreadPoolExecutor compactionExecutor;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private volatile boolean closed;
+
+    // Statistics, only roughly accurate under concurrent access.
+    private volatile long tableProbes, bloomRejections;
+
+    /**
+     * Opens the tree stored in the given directory, creating it if necessary.
+     *
+     * @param memTableLimit approximate number of bytes the memtable may use before it is written to a table.
+     * @param compactionTrigger the number of tables at which they are merged in the background.
+     * @param syncWrites whether to force the write-ahead log to disk after every batch.
+     */
+    LSMTree(File directory, long memTableLimit, int compactionTrigger, boolean syncWrites) throws IOException {
+        checkState(compactionTrigger >= 2, "compactionTrigger must be at least 2");
+        this.directory = directory;
+        this.memTableLimit = memTableLimit;
+        this.compactionTrigger = compactionTrigger;
+        this.syncWrites = syncWrites;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+        readManifest();
+        replayLog();
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("LSMTree compaction thread")
+                .setPriority(Thread.MIN_PRIORITY);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        compactionExecutor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                builder.build());
+        compactionExecutor.allowCoreThreadTimeOut(true);
+        maybeScheduleCompaction();
+    }
+
+    private void readManifest() throws IOException {
+        File manifest = new File(directory, MANIFEST_FILE);
+        if (!manifest.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC)
+                throw new IOException("Not a manifest file: " + manifest);
+            nextFileNumber = in.readLong();
+            int count = in.readInt();
+            Set<String> live = new HashSet<String>();
+            for (int i = 0; i < count; i++) {
+                long number = in.readLong();
+                File file = tableFile(number);
+                tables.add(SSTable.open(file, number));
+                live.add(file.getName());
+            }
+            // Remove the remains of flushes or compactions that were interrupted before the manifest was updated.
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    if (file.getName().endsWith(".sst") && !live.contains(file.getName()) && !file.delete())
+                        log.warn("Could not delete stale table {}", file);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File temp = new File(directory, MANIFEST_FILE + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(nextFileNumber);
+            out.writeInt(tables.size());
+            for (SSTable table : tables)
+                out.writeLong(table.fileNumber);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        File manifest = new File(directory, MANIFEST_FILE);
+        if (Utils.isWindows() && manifest.exists() && !manifest.delete())
+            throw new IOException("Failed to delete " + manifest + " for replacement");
+        if (!temp.renameTo(manifest))
+            throw new IOException("Failed to rename " + temp + " to " + manifest);
+    }
+
+    private File tableFile(long number) {
+        return new File(directory, String.format("%06d.sst", number));
+    }
+
+    // Log format: a sequence of records, each being int payloadLength, long crc32(payload), payload. A payload holds
+    // int opCount followed by opCount times: int keyLength, key, int valueLength (-1 for a deletion), value.
+    private void replayLog() throws IOException {
+        File logFile = new File(directory, LOG_FILE);
+        long validLength = 0;
+        if (logFile.exists()) {
+            long fileLength = logFile.length();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            int batches = 0;
+            try {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    // A length that is negative or runs past the end of the file can only come from a torn write.
+                    if (length < 0 || length > fileLength - validLength - 4 - 8) {
+                        log.warn("Ignoring corrupt batch at the end of the write-ahead log");
+                        break;
+                    }
+                    long checksum = in.readLong();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum)
+                        break;
+                    applyToMemTable(decodeBatch(payload));
+                    validLength += 4 + 8 + length;
+                    batches++;
+                }
+            } catch (EOFException e) {
+                // A torn write at the end of the log, from a crash in the middle of appending a batch.
+                log.warn("Ignoring incomplete batch at the end of the write-ahead log");
+            } finally {
+                in.close();
+            }
+            if (batches > 0)
+                log.info("Replayed {} batches from the write-ahead log", batches);
+        }
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.setLength(validLength);
+        } finally {
+            raf.close();
+        }
+        openLog(true);
+    }
+
+    private void openLog(boolean append) throws IOException {
+        logStream = new FileOutputStream(new File(directory, LOG_FILE), append);
+        logOut = new DataOutputStream(new BufferedOutputStream(logStream, 64 * 1024));
+    }
+
+    private static byte[] encodeBatch(SortedMap<byte[], byte[]> batch) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(batch.size());
+        for (Map.Entry<byte[], byte[]> entry : batch.entrySet()) {
+            out.writeInt(entry.getKey().length);
+            out.write(entry.getKey());
+            if (entry.getValue() == TOMBSTONE) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static SortedMap<byte[], byte[]> decodeBatch(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        SortedMap<byte[], byte[]> batch = new TreeMap<byte[], byte[]>(KEY_ORDER);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            int valueLength = in.readInt();
+            byte[] value = TOMBSTONE;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                in.readFully(value);
+            }
+            batch.put(key, value);
+        }
+        return batch;
+    }
+
+    private void applyToMemTable(SortedMap<byte[], byte[]> batch) {
+        for (Map.Entry<byte[], byte[]> entry : batch.entrySet()) {
+            byte[] old = memTable.put(entry.getKey(), entry.getValue());
+            if (old != null)
+                memTableBytes -= old.length;
+            else
+                memTableBytes += entry.getKey().length + ENTRY_OVERHEAD;
+            memTableBytes += entry.getValue().length;
+        }
+    }
+
+    /**
+     * Looks up the given key, returning null if it does not exist. The returned array must not be modified.
+     */
+    @Nullable
+    byte[] get(byte[] key) throws IOException {
+        rwLock.readLock().lock();
+        try {
+            checkState(!closed, "LSMTree is closed");
+            byte[] value = memTable.get(key);
+            if (value == null) {
+                for (SSTable table : tables) {
+                    tableProbes++;
+                    if (!table.mightContain(key)) {
+                        bloomRejections++;
+                        continue;
+                    }
+                    value = table.get(key);
+                    if (value != null)
+                        break;
+                }
+            }
+            return value == TOMBSTONE ? null : value;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Atomically applies the given batch of changes, in which values identical to {@link #TOMBSTONE} delete their
+     * keys. The batch is logged before it becomes visible and the memtable is written out to a new table if it has
+     * grown past its limit.
+     */
+    void write(SortedMap<byte[], byte[]> batch) throws IOException {
+        if (batch.isEmpty())
+            return;
+        byte[] payload = encodeBatch(batch);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        rwLock.writeLock().lock();
+        try {
+            checkState(!closed, "LSMTree is closed");
+            logOut.writeInt(payload.length);
+            logOut.writeLong(crc.getValue());
+            logOut.write(payload);
+            logOut.flush();
+            if (syncWrites)
+                logStream.getFD().sync();
+            applyToMemTable(batch);
+            if (memTableBytes >= memTableLimit)
+                flushMemTable();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /** Receives the entries found by {@link #scan(byte[], Visitor)}. */
+    interface Visitor {
+        void visit(byte[] key, byte[] value) throws BlockStoreException;
+    }
+
+    /**
+     * Calls the visitor with every live entry whose key starts with the given prefix, in key order. Writes wait until
+     * the scan is done. The arrays passed to the visitor must not be modified.
+     */
+    void scan(byte[] prefix, Visitor visitor) throws IOException, BlockStoreException {
+        rwLock.readLock().lock();
+        try {
+            checkState(!closed, "LSMTree is closed");
+            List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>();
+            sources.add(memTable.tailMap(prefix).entrySet().iterator());
+            for (SSTable table : tables)
+                sources.add(table.iterator());
+            MergingIterator iterator = new MergingIterator(sources);
+            while (iterator.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                byte[] key = entry.getKey();
+                int cmp = KEY_ORDER.compare(key, prefix);
+                if (cmp < 0 || entry.getValue() == TOMBSTONE)
+                    continue;
+                if (key.length < prefix.length || !Arrays.equals(Arrays.copyOf(key, prefix.length), prefix))
+                    break;
+                visitor.visit(key, entry.getValue());
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /** Writes the memtable out to a new table, regardless of its size. */
+    void flush() throws IOException {
+        rwLock.writeLock().lock();
+        try {
+            checkState(!closed, "LSMTree is closed");
+            flushMemTable();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    private void flushMemTable() throws IOException {
+        checkState(rwLock.isWriteLockedByCurrentThread());
+        if (memTable.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        long number = nextFileNumber++;
+        // Deletions must be kept in flushed tables, as they may shadow entries in older tables.
+        SSTable table = SSTable.write(tableFile(number), number, memTable.entrySet().iterator(), memTable.size(), false);
+        tables.add(0, table);
+        writeManifest();
+        // Everything in the log is now in a table, so start it afresh.
+        logOut.close();
+        openLog(false);
+        memTable = new TreeMap<byte[], byte[]>(KEY_ORDER);
+        memTableBytes = 0;
+        log.info("Flushed memtable to {} in {}ms, {} tables", table, System.currentTimeMillis() - start, tables.size());
+        maybeScheduleCompaction();
+    }
+
+    private void maybeScheduleCompaction() {
+        if (tables.size() < compactionTrigger || compactionExecutor == null || compactionExecutor.isShutdown())
+            return;
+        if (!compactionPending.compareAndSet(false, true))
+            return;
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("Compaction failed, will retry after the next flush", e);
+                } finally {
+                    compactionPending.set(false);
+                }
+            }
+        });
+    }
+
+    /** Merges all current tables into one. Runs on the compaction thread, concurrently with reads and writes. */
+    private void compact() throws IOException {
+        List<SSTable> inputs;
+        long number;
+        rwLock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            inputs = new ArrayList<SSTable>(tables);
+            number = nextFileNumber++;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        if (inputs.size() < 2)
+            return;
+        long start = System.currentTimeMillis();
+        long expectedEntries = 0;
+        List<Iterator<Map.Entry<byte[], byte[]>>> iterators = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>();
+        for (SSTable table : inputs) {
+            expectedEntries += table.getEntryCount();
+            iterators.add(table.iterator());
+        }
+        // The inputs are the complete set of tables at the time we started: entries added since then land in newer
+        // tables. So there is nothing older left for a deletion to shadow and we can drop tombstones.
+        File file = tableFile(number);
+        SSTable merged;
+        try {
+            merged = SSTable.write(file, number, new MergingIterator(iterators), expectedEntries, true);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        rwLock.writeLock().lock();
+        try {
+            if (closed) {
+                merged.close();
+                file.delete();
+                return;
+            }
+            List<SSTable> newTables = new ArrayList<SSTable>();
+            for (SSTable table : tables)
+                if (!inputs.contains(table))
+                    newTables.add(table);
+            newTables.add(merged);
+            tables = newTables;
+            writeManifest();
+            for (SSTable table : inputs) {
+                table.close();
+                if (!table.file.delete())
+                    log.warn("Could not delete compacted table {}", table.file);
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+        log.info("Compacted {} tables into {} in {}ms", inputs.size(), merged, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Merges several sorted iterators, ordered newest first, into one. Where several inputs have the same key only
+     * the entry from the newest input is returned.
+     */
+    static class MergingIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+        private final PriorityQueue<Head> heap;
+
+        private static class Head {
+            final int source;
+            final Iterator<Map.Entry<byte[], byte[]>> iterator;
+            Map.Entry<byte[], byte[]> entry;
+
+            Head(int source, Iterator<Map.Entry<byte[], byte[]>> iterator) {
+                this.source = source;
+                this.iterator = iterator;
+                this.entry = iterator.next();
+            }
+        }
+
+        MergingIterator(List<Iterator<Map.Entry<byte[], byte[]>>> sources) {
+            heap = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+                @Override
+                public int compare(Head a, Head b) {
+                    int cmp = KEY_ORDER.compare(a.entry.getKey(), b.entry.getKey());
+                    return cmp != 0 ? cmp : a.source - b.source;
+                }
+            });
+            for (int i = 0; i < sources.size(); i++)
+                if (sources.get(i).hasNext())
+                    heap.add(new Head(i, sources.get(i)));
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            Head head = heap.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+            Map.Entry<byte[], byte[]> result = head.entry;
+            advance(head);
+            // Skip older versions of the same key.
+            while (!heap.isEmpty() && Arrays.equals(heap.peek().entry.getKey(), result.getKey()))
+                advance(heap.poll());
+            return result;
+        }
+
+        private void advance(Head head) {
+            if (head.iterator.hasNext()) {
+                head.entry = head.iterator.next();
+                heap.add(head);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** Returns the number of tables currently on disk. */
+    int getTableCount() {
+        rwLock.readLock().lock();
+        try {
+            return tables.size();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the approximate number of bytes held by the memtable. */
+    long getMemTableBytes() {
+        rwLock.readLock().lock();
+        try {
+            return memTableBytes;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /** Returns how many table lookups were answered by a bloom filter without reading from disk. */
+    long getBloomRejections() {
+        return bloomRejections;
+    }
+
+    /** Returns how many table lookups were made in total. */
+    long getTableProbes() {
+        return tableProbes;
+    }
+
+    /**
+     * Waits for any running compaction, writes the memtable to a table and closes all files. The tree cannot be
+     * used afterwards.
+     */
+    void close() throws IOException {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rwLock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            flushMemTable();
+            closed = true;
+            logOut.close();
+            for (SSTable table : tables)
+                table.close();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+}
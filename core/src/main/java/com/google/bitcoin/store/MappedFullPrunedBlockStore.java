@@ -0,0 +1,771 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A full pruned block store that keeps the unspent transaction outputs in a memory mapped hash table instead of on
+ * the Java heap, so that it can hold the UTXO set of a large chain without the garbage collector having to walk it.
+ * It is meant as a replacement for {@link MemoryFullPrunedBlockStore} when the chain is too big for that, and the
+ * state survives restarts.</p>
+ *
+ * <p>Block headers and undoable blocks are appended to a log file. Only the offsets of the records are kept on the
+ * heap, so {@link #getUndoBlock(Sha256Hash)} and lookups of headers other than the chain heads read from the log.
+ * Space used by pruned undoable blocks is reclaimed when the store is opened.</p>
+ *
+ * <p>Writes made in a database batch are kept on the heap until the batch is committed, which makes the batch
+ * atomic with respect to readers. Committing a batch also syncs the store: the block log is forced to disk, and then
+ * the hash table is checkpointed through its journal together with the chain heads and the length of the log. So the
+ * store survives a crash or power loss at any point, like the SQL stores do, and opens as of the last batch that was
+ * synced. Whatever was appended to the block log after that is cut off. To trade some safety for speed,
+ * {@link #setSyncInterval(int)} makes the store sync only every so many batches instead, in which case a crash loses
+ * the batches since the last sync. Changes made outside of a batch are synced with the next batch or on
+ * {@link #close()}. Only one thread can have a batch open at a time.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    /** The number of unspent outputs a new store has room for before its hash table is first grown. */
+    public static final long DEFAULT_EXPECTED_OUTPUTS = 1000000;
+
+    /** The number of committed batches after which the store is synced to disk, unless changed. */
+    public static final int DEFAULT_SYNC_INTERVAL = 1;
+
+    private static final String OUTPUTS_FILE_NAME = "utxo.dat";
+    private static final String SCRIPTS_FILE_NAME = "utxo-scripts.dat";
+    private static final String BLOCKS_FILE_NAME = "blocks.dat";
+
+    // Block log format, for each record:
+    //   1 byte record type
+    //   4 bytes payload length
+    //   payload: for headers, 32 bytes hash + compact StoredBlock + 1 byte wasUndoable flag,
+    //            for undoable blocks, 32 bytes hash + 4 bytes height + type byte + transactions or output changes
+    private static final byte RECORD_HEADER = 1;
+    private static final byte RECORD_UNDOABLE = 2;
+    private static final int RECORD_PREFIX_SIZE = 5;
+    private static final int HEADER_PAYLOAD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE + 1;
+
+    private static final byte UNDOABLE_TX_OUT_CHANGES = 0;
+    private static final byte UNDOABLE_TRANSACTIONS = 1;
+
+    // The block log is rewritten on open when at least this many bytes of it are garbage, and more of it is garbage
+    // than is live.
+    private static final long MIN_GARBAGE_TO_COMPACT = 1024 * 1024;
+
+    // Rough per entry costs for estimating heap usage: a HashMap entry, the hash and its bytes, and a boxed Long.
+    private static final int HEAP_BYTES_PER_BLOCK = 128;
+    private static final int HEAP_BYTES_PER_PENDING_OUTPUT = 256;
+    // A changed slot of the hash table waiting for the next checkpoint: the slot, a HashMap entry and a boxed Long.
+    private static final int HEAP_BYTES_PER_PENDING_SLOT = MappedUTXOTable.SLOT_SIZE + 80;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final File blocksFile;
+
+    private MappedUTXOTable outputs;
+    private RandomAccessFile blocksRandomAccessFile;
+    private FileChannel blocks;
+    private long blocksEnd;
+
+    private TransactionalHashMap<Sha256Hash, Long> headerRecords;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, Long> undoableRecords;
+
+    // The state of the open batch, if any. Records are given the offsets they will have once appended to the log.
+    @Nullable private Thread batchOwner;
+    @Nullable private RecordBuffer pendingRecords;
+    @Nullable private HashMap<StoredTransactionOutPoint, StoredTransactionOutput> pendingOutputs;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    private int syncInterval = DEFAULT_SYNC_INTERVAL;
+    // Batches committed since the store was last synced.
+    private int unsyncedBatches;
+
+    /** A ByteArrayOutputStream that gives access to its buffer without copying it. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        ByteBuffer wrap(int offset, int length) {
+            return ByteBuffer.wrap(buf, offset, length);
+        }
+    }
+
+    /**
+     * Creates a new MappedFullPrunedBlockStore, or opens an existing one.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory to keep the store in, created if it does not exist
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_EXPECTED_OUTPUTS);
+    }
+
+    /**
+     * Creates a new MappedFullPrunedBlockStore, or opens an existing one.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory to keep the store in, created if it does not exist
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param expectedOutputs The number of unspent outputs to size a new hash table for. The table grows when needed,
+     *                        but each time it does all outputs are copied. Ignored when opening an existing store.
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth,
+                                      long expectedOutputs) throws BlockStoreException {
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.blocksFile = new File(directory, BLOCKS_FILE_NAME);
+        if (!directory.exists() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        try {
+            outputs = new MappedUTXOTable(new File(directory, OUTPUTS_FILE_NAME),
+                    new File(directory, SCRIPTS_FILE_NAME), expectedOutputs);
+            ByteBuffer metadata = ByteBuffer.wrap(outputs.getMetadata());
+            byte[] chainHeadHash = new byte[32];
+            metadata.get(chainHeadHash);
+            // Records past the length of the log at the last sync belong to batches that were lost in a crash.
+            openBlocks(metadata.getLong(64));
+            if (Sha256Hash.ZERO_HASH.equals(new Sha256Hash(chainHeadHash))) {
+                log.info("Creating new block store in {}", directory);
+                createNewStore();
+            } else {
+                loadChainHeads();
+                pruneUndoableBlocksUpTo(verifiedChainHead.getHeight() - this.fullStoreDepth);
+                maybeCompactBlocks();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable. This is because of how the reference client inits
+            // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    /**
+     * Opens the block log and builds the index of its records, cutting the log off at the given length if it is longer
+     * and the length isn't zero.
+     */
+    private void openBlocks(long syncedLength) throws IOException, BlockStoreException {
+        headerRecords = new TransactionalHashMap<Sha256Hash, Long>();
+        undoableRecords = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, Long>();
+        blocksRandomAccessFile = new RandomAccessFile(blocksFile, "rw");
+        blocks = blocksRandomAccessFile.getChannel();
+        if (syncedLength > 0 && blocks.size() > syncedLength) {
+            log.warn("Block log {} has {} bytes that were not synced, truncating it", blocksFile,
+                    blocks.size() - syncedLength);
+            blocks.truncate(syncedLength);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(blocksFile), 65536));
+        long offset = 0;
+        try {
+            byte[] hash = new byte[32];
+            while (true) {
+                int type = in.read();
+                if (type < 0)
+                    break;
+                int length = in.readInt();
+                in.readFully(hash);
+                int consumed = 32;
+                if (type == RECORD_HEADER) {
+                    headerRecords.put(new Sha256Hash(hash.clone()), offset);
+                } else if (type == RECORD_UNDOABLE) {
+                    undoableRecords.put(new Sha256Hash(hash.clone()), in.readInt(), offset);
+                    consumed += 4;
+                } else {
+                    throw new BlockStoreException("Unknown record type " + type + " in " + blocksFile);
+                }
+                for (long toSkip = length - consumed; toSkip > 0; ) {
+                    long skipped = in.skip(toSkip);
+                    if (skipped <= 0)
+                        throw new EOFException();
+                    toSkip -= skipped;
+                }
+                offset += RECORD_PREFIX_SIZE + length;
+            }
+        } catch (EOFException e) {
+            // Can only happen if the store was not closed cleanly. Drop the partial record.
+            log.warn("Block log {} ends with a partial record, truncating it", blocksFile);
+            blocks.truncate(offset);
+        } finally {
+            in.close();
+        }
+        blocksEnd = offset;
+    }
+
+    private void loadChainHeads() throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(outputs.getMetadata());
+        byte[] chainHeadHash = new byte[32], verifiedChainHeadHash = new byte[32];
+        buffer.get(chainHeadHash);
+        buffer.get(verifiedChainHeadHash);
+        chainHead = getStoredBlock(new Sha256Hash(chainHeadHash), false);
+        if (chainHead == null)
+            throw new BlockStoreException("corrupt block store - head block not found");
+        verifiedChainHead = getStoredBlock(new Sha256Hash(verifiedChainHeadHash), false);
+        if (verifiedChainHead == null)
+            throw new BlockStoreException("corrupt block store - verified head block not found");
+    }
+
+    /** Stores the chain heads in the metadata of the hash table, along with the length of the block log. */
+    private void saveChainHeads() {
+        ByteBuffer buffer = ByteBuffer.allocate(72);
+        buffer.put(chainHead.getHash().getBytes());
+        buffer.put(verifiedChainHead.getHash().getBytes());
+        buffer.putLong(blocksEnd);
+        outputs.setMetadata(buffer.array());
+    }
+
+    /**
+     * Rewrites the block log without the records that are no longer referenced, if that would free enough space to
+     * be worth the trouble.
+     */
+    private void maybeCompactBlocks() throws IOException, BlockStoreException {
+        long liveBytes = headerRecords.committedSize() * (long) (RECORD_PREFIX_SIZE + HEADER_PAYLOAD_SIZE);
+        for (Long offset : undoableRecords.committedValues())
+            liveBytes += RECORD_PREFIX_SIZE + readRecord(offset).remaining();
+        long garbageBytes = blocksEnd - liveBytes;
+        if (garbageBytes < MIN_GARBAGE_TO_COMPACT || garbageBytes < liveBytes)
+            return;
+        long startTime = System.currentTimeMillis();
+        File tempFile = new File(blocksFile.getPath() + ".tmp");
+        FileOutputStream tempStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tempStream, 65536));
+            // Keep the records in log order, so that a block's header comes before its successors.
+            List<Long> offsets = new ArrayList<Long>(headerRecords.committedValues());
+            offsets.addAll(undoableRecords.committedValues());
+            Collections.sort(offsets);
+            for (Long offset : offsets) {
+                ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+                readFully(prefix, offset);
+                ByteBuffer payload = readRecord(offset);
+                out.write(prefix.array());
+                out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            }
+            out.flush();
+            tempStream.getFD().sync();
+        } finally {
+            tempStream.close();
+        }
+        blocksRandomAccessFile.close();
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = blocksFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!tempFile.renameTo(canonical))
+                throw new IOException("Failed to rename " + tempFile + " to " + canonical);
+        } else if (!tempFile.renameTo(blocksFile)) {
+            throw new IOException("Failed to rename " + tempFile + " to " + blocksFile);
+        }
+        long oldSize = blocksEnd;
+        openBlocks(0);
+        loadChainHeads();
+        saveChainHeads();
+        sync();
+        log.info("Compacted block log from {} to {} bytes in {}ms", oldSize, blocksEnd,
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** Returns the payload of the record at the given offset, which may be in the open batch. */
+    private ByteBuffer readRecord(long offset) throws BlockStoreException {
+        if (offset >= blocksEnd) {
+            checkState(pendingRecords != null && batchOwner == Thread.currentThread());
+            int bufferOffset = (int) (offset - blocksEnd);
+            int length = pendingRecords.wrap(bufferOffset + 1, 4).getInt();
+            return pendingRecords.wrap(bufferOffset + RECORD_PREFIX_SIZE, length).slice();
+        }
+        try {
+            ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+            readFully(prefix, offset);
+            prefix.flip();
+            prefix.get();
+            ByteBuffer payload = ByteBuffer.allocate(prefix.getInt());
+            readFully(payload, offset + RECORD_PREFIX_SIZE);
+            payload.flip();
+            return payload;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (blocks.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of " + blocksFile);
+    }
+
+    /** Appends a record to the open batch or, if there is none, to the log. Returns its offset. */
+    private long appendRecord(byte type, byte[] payload) throws BlockStoreException {
+        if (pendingRecords != null && batchOwner == Thread.currentThread()) {
+            long offset = blocksEnd + pendingRecords.size();
+            writeRecord(pendingRecords, type, payload);
+            return offset;
+        }
+        RecordBuffer record = new RecordBuffer();
+        writeRecord(record, type, payload);
+        long offset = blocksEnd;
+        appendToLog(record);
+        if (pendingRecords == null)
+            saveChainHeads();
+        return offset;
+    }
+
+    private static void writeRecord(OutputStream stream, byte type, byte[] payload) throws BlockStoreException {
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void appendToLog(RecordBuffer records) throws BlockStoreException {
+        try {
+            ByteBuffer buffer = records.wrap(0, records.size());
+            while (buffer.hasRemaining())
+                blocks.write(buffer, blocksEnd + buffer.position());
+            blocksEnd += records.size();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (outputs == null)
+            throw new BlockStoreException("MappedFullPrunedBlockStore is closed");
+    }
+
+    private void putHeader(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHash();
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_PAYLOAD_SIZE);
+        payload.put(hash.getBytes());
+        storedBlock.serializeCompact(payload);
+        payload.put((byte) (wasUndoable ? 1 : 0));
+        headerRecords.put(hash, appendRecord(RECORD_HEADER, payload.array()));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        checkOpen();
+        // Don't forget that we once had the undoable version of this block.
+        Long existing = headerRecords.get(storedBlock.getHash());
+        boolean wasUndoable = existing != null && readRecord(existing).get(HEADER_PAYLOAD_SIZE - 1) != 0;
+        putHeader(storedBlock, wasUndoable);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        checkOpen();
+        if (undoableBlock == null) {
+            putHeader(storedBlock, true);
+            return;
+        }
+        Sha256Hash hash = storedBlock.getHash();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(hash.getBytes());
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(storedBlock.getHeight());
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(UNDOABLE_TX_OUT_CHANGES);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(UNDOABLE_TRANSACTIONS);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write(0xFF & (numTxn >> 0));
+                bos.write(0xFF & (numTxn >> 8));
+                bos.write(0xFF & (numTxn >> 16));
+                bos.write(0xFF & (numTxn >> 24));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+            undoableRecords.put(hash, storedBlock.getHeight(), appendRecord(RECORD_UNDOABLE, bos.toByteArray()));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        putHeader(storedBlock, true);
+    }
+
+    @Nullable
+    private StoredBlock getStoredBlock(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHead != null && chainHead.getHash().equals(hash) && !wasUndoableOnly)
+            return chainHead;
+        if (verifiedChainHead != null && verifiedChainHead.getHash().equals(hash))
+            return verifiedChainHead;
+        Long offset = headerRecords.get(hash);
+        if (offset == null)
+            return null;
+        ByteBuffer payload = readRecord(offset);
+        if (wasUndoableOnly && payload.get(HEADER_PAYLOAD_SIZE - 1) == 0)
+            return null;
+        payload.position(payload.position() + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, payload);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return getStoredBlock(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return getStoredBlock(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Long offset = undoableRecords.get(hash);
+        if (offset == null)
+            return null;
+        ByteBuffer payload = readRecord(offset);
+        byte[] bytes = payload.array();
+        // Skip the hash and height.
+        int start = payload.arrayOffset() + payload.position() + 36;
+        int end = payload.arrayOffset() + payload.limit();
+        try {
+            if (bytes[start] == UNDOABLE_TX_OUT_CHANGES) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(bytes, start + 1, end - start - 1));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            } else {
+                int offsetInBytes = start + 1;
+                int numTxn = ((bytes[offsetInBytes++] & 0xFF) << 0) |
+                             ((bytes[offsetInBytes++] & 0xFF) << 8) |
+                             ((bytes[offsetInBytes++] & 0xFF) << 16) |
+                             ((bytes[offsetInBytes++] & 0xFF) << 24);
+                List<Transaction> transactionList = new LinkedList<Transaction>();
+                for (int i = 0; i < numTxn; i++) {
+                    Transaction tx = new Transaction(params, bytes, offsetInBytes);
+                    transactionList.add(tx);
+                    offsetInBytes += tx.getMessageSize();
+                }
+                return new StoredUndoableBlock(hash, transactionList);
+            }
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.chainHead = chainHead;
+        if (pendingRecords == null && verifiedChainHead != null)
+            saveChainHeads();
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            this.chainHead = chainHead;
+        if (pendingRecords == null)
+            saveChainHeads();
+        // Potential leak here if not all blocks get setChainHead'd, the leaked records are cleaned up on the next open.
+        undoableRecords.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    private void pruneUndoableBlocksUpTo(int height) {
+        for (int h = 0; h <= height; h++)
+            undoableRecords.removeByMultiKey(h);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        if (pendingOutputs != null && batchOwner == Thread.currentThread()) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            if (pendingOutputs.containsKey(outPoint))
+                return pendingOutputs.get(outPoint);
+        }
+        try {
+            return outputs.get(hash, index);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Answers what it can from the open batch, and looks the rest up in the hash table all at once, see
+     * {@link MappedUTXOTable#getAll(List)}.
+     */
+    @Override
+    public synchronized Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        checkOpen();
+        Map<TransactionOutPoint, StoredTransactionOutput> result = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        Map<StoredTransactionOutPoint, TransactionOutPoint> missing =
+                new HashMap<StoredTransactionOutPoint, TransactionOutPoint>();
+        boolean inBatch = pendingOutputs != null && batchOwner == Thread.currentThread();
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            if (inBatch && pendingOutputs.containsKey(key)) {
+                StoredTransactionOutput out = pendingOutputs.get(key);
+                if (out != null)
+                    result.put(outPoint, out);
+            } else {
+                missing.put(key, outPoint);
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<StoredTransactionOutPoint> keys = new ArrayList<StoredTransactionOutPoint>(missing.keySet());
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> found : outputs.getAll(keys).entrySet())
+                result.put(missing.get(found.getKey()), found.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        if (pendingOutputs != null && batchOwner == Thread.currentThread()) {
+            pendingOutputs.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
+        try {
+            outputs.put(out);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MappedFullPrunedBlockStore that it didn't have!");
+        if (pendingOutputs != null && batchOwner == Thread.currentThread())
+            pendingOutputs.put(new StoredTransactionOutPoint(out), null);
+        else
+            outputs.remove(out.getHash(), out.getIndex());
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        checkOpen();
+        try {
+            outputs.visit(visitor);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batchOwner == Thread.currentThread())
+            return;
+        checkState(batchOwner == null, "Another thread already has a batch open");
+        batchOwner = Thread.currentThread();
+        pendingRecords = new RecordBuffer();
+        pendingOutputs = new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        headerRecords.beginDatabaseBatchWrite();
+        undoableRecords.BeginTransaction();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batchOwner != Thread.currentThread())
+            return;
+        int additions = 0;
+        for (StoredTransactionOutput out : pendingOutputs.values())
+            if (out != null)
+                additions++;
+        if (!outputs.hasRoomFor(additions)) {
+            // Grow the table now, so that it happens between batches rather than halfway through this one.
+            sync();
+            try {
+                outputs.reserve(additions);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+        appendToLog(pendingRecords);
+        try {
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : pendingOutputs.entrySet()) {
+                if (entry.getValue() != null)
+                    outputs.put(entry.getValue());
+                else
+                    outputs.remove(entry.getKey().getHash(), entry.getKey().getIndex());
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        saveChainHeads();
+        headerRecords.commitDatabaseBatchWrite();
+        undoableRecords.CommitTransaction();
+        endBatch();
+        if (++unsyncedBatches >= syncInterval)
+            sync();
+    }
+
+    /**
+     * Sets the number of committed batches after which the store is synced to disk. A crash loses the batches that
+     * were committed since the last sync, and the store opens as it was then. The default of
+     * {@link #DEFAULT_SYNC_INTERVAL} syncs every batch.
+     */
+    public synchronized void setSyncInterval(int batches) {
+        checkArgument(batches > 0, "batches must be positive");
+        syncInterval = batches;
+    }
+
+    /** Forces the block log to disk and checkpoints the hash table, with the chain heads last saved in it. */
+    private void sync() throws BlockStoreException {
+        unsyncedBatches = 0;
+        if (!outputs.isDirty())
+            return;
+        try {
+            // The log goes first, so a checkpoint never refers to records that didn't make it to disk.
+            blocks.force(true);
+            outputs.checkpoint();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batchOwner != Thread.currentThread())
+            return;
+        headerRecords.abortDatabaseBatchWrite();
+        undoableRecords.AbortTransaction();
+        endBatch();
+        // The chain heads may have been moved as part of the aborted batch.
+        loadChainHeads();
+    }
+
+    private void endBatch() {
+        batchOwner = null;
+        pendingRecords = null;
+        pendingOutputs = null;
+    }
+
+    /** Returns the number of unspent transaction outputs in the store, not counting any open batch. */
+    public synchronized long getUnspentOutputCount() {
+        return outputs == null ? 0 : outputs.size();
+    }
+
+    /**
+     * Returns the number of bytes of file that are memory mapped. This memory is managed by the operating system and
+     * does not count against the Java heap.
+     */
+    public synchronized long getMappedBytes() {
+        return outputs == null ? 0 : outputs.getMappedBytes();
+    }
+
+    /**
+     * Returns a rough estimate of the number of bytes of Java heap used by the store: the index of the block log,
+     * the slots of the hash table changed since the last sync, and whatever the open batch holds.
+     */
+    public synchronized long getEstimatedHeapBytes() {
+        if (outputs == null)
+            return 0;
+        long bytes = (headerRecords.committedSize() + undoableRecords.committedSize()) * (long) HEAP_BYTES_PER_BLOCK;
+        bytes += outputs.getPendingSlotCount() * (long) HEAP_BYTES_PER_PENDING_SLOT;
+        if (pendingRecords != null)
+            bytes += pendingRecords.size() + pendingOutputs.size() * (long) HEAP_BYTES_PER_PENDING_OUTPUT;
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (outputs == null)
+            return;
+        try {
+            blocks.force(true);
+            blocksRandomAccessFile.close();
+            outputs.checkpoint();
+            outputs.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            outputs = null;
+            headerRecords = null;
+            undoableRecords = null;
+        }
+    }
+}
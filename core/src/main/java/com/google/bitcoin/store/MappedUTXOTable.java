@@ -0,0 +1,803 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Coin;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An open addressing hash table of unspent transaction outputs that lives in a memory mapped file rather than on
+ * the Java heap. Each output takes one fixed size slot holding the transaction hash, output index, height, value and
+ * the script. Scripts that don't fit in the slot are appended to a separate overflow file and the slot holds their
+ * offset instead. Collisions are resolved by linear probing and removals leave a tombstone behind, which is cleaned up
+ * the next time the table is rehashed.</p>
+ *
+ * <p>Changes don't go straight into the mapping, as the operating system may write pages of it back at any time and
+ * a crash would then leave half a change on disk. Instead, the slots that change are copied to the heap and changed
+ * there, and {@link #checkpoint()} moves them into the mapping in one go. It first writes the new contents of every
+ * changed slot and of the header to a journal next to the table, and syncs it. If the process dies while the slots are
+ * being copied, the journal is replayed the next time the table is opened. If it dies before the journal is synced,
+ * the table is opened as of the previous checkpoint. Either way the table on disk is always as it was after some
+ * checkpoint. Scripts are appended to the overflow file straight away, but only past the end that the last checkpoint
+ * knows about, so they don't matter until then.</p>
+ *
+ * <p>Growing the table also only happens at a checkpoint. The new table is built in a separate file and swapped in
+ * once it is synced, in an order that lets an interrupted swap be finished or undone when the table is next opened.</p>
+ *
+ * <p>This class is not thread safe, except that {@link #getAll(java.util.List)} looks outputs up on several threads
+ * at once.</p>
+ */
+class MappedUTXOTable {
+    private static final Logger log = LoggerFactory.getLogger(MappedUTXOTable.class);
+
+    private static final int MAGIC = 0x5554584f; // "UTXO"
+    private static final int VERSION = 2;
+
+    // File format:
+    //   4 bytes magic, 4 bytes version
+    //   8 bytes capacity (number of slots, always a power of two)
+    //   8 bytes number of outputs, 8 bytes number of tombstones
+    //   8 bytes end of the overflow file, 8 bytes of garbage in the overflow file
+    //   8 bytes number of the last checkpoint
+    //   METADATA_SIZE bytes of metadata that belongs to the user of the table, starting at METADATA_OFFSET
+    //   padding up to HEADER_SIZE, followed by the slots.
+    //
+    // Each slot (SLOT_SIZE bytes):
+    //    1 byte state (empty, full or deleted)
+    //   32 bytes transaction hash
+    //    4 bytes output index
+    //    4 bytes height
+    //    8 bytes value
+    //    4 bytes script length
+    //   43 bytes script, or an 8 byte offset into the overflow file if the script is longer than that
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int TOMBSTONES_OFFSET = 24;
+    private static final int OVERFLOW_END_OFFSET = 32;
+    private static final int OVERFLOW_GARBAGE_OFFSET = 40;
+    private static final int CHECKPOINT_OFFSET = 48;
+    private static final int METADATA_OFFSET = 64;
+    static final int METADATA_SIZE = 128;
+    private static final int HEADER_SIZE = 4096;
+
+    static final int SLOT_SIZE = 96;
+    private static final int SLOT_HASH = 1;
+    private static final int SLOT_INDEX = 33;
+    private static final int SLOT_HEIGHT = 37;
+    private static final int SLOT_VALUE = 41;
+    private static final int SLOT_SCRIPT_LENGTH = 49;
+    private static final int SLOT_SCRIPT = 53;
+    static final int INLINE_SCRIPT_SIZE = SLOT_SIZE - SLOT_SCRIPT;
+
+    private static final byte EMPTY = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    // Journal format, written from the start of the file at every checkpoint:
+    //   4 bytes magic, 8 bytes number of the checkpoint, 4 bytes number of slots
+    //   for each slot, 8 bytes slot number and SLOT_SIZE bytes of new contents
+    //   the new contents of the header from CAPACITY_OFFSET to the end of the metadata
+    //   8 bytes CRC32 of everything before it
+    private static final int JOURNAL_MAGIC = 0x4a524e4c; // "JRNL"
+    private static final int JOURNAL_PREFIX_SIZE = 16;
+    private static final int JOURNAL_HEADER_SIZE = METADATA_OFFSET + METADATA_SIZE - CAPACITY_OFFSET;
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String REHASH_SUFFIX = ".tmp";
+
+    // A single mapping can't be larger than 2GB, so the slots are split over several of them.
+    private static final int SLOTS_PER_SEGMENT_BITS = 23;
+    private static final long SLOTS_PER_SEGMENT = 1L << SLOTS_PER_SEGMENT_BITS;
+
+    /** The smallest number of slots a table can have. */
+    static final long MIN_CAPACITY = 1024;
+    /** The fraction of slots that may be used (including tombstones) before the table is rehashed. */
+    static final double MAX_LOAD_FACTOR = 0.7;
+
+    private final File file, overflowFile;
+    // Null for the table built by a rehash, which is synced as a whole instead.
+    @Nullable private final File journalFile;
+    private RandomAccessFile randomAccessFile, overflowRandomAccessFile;
+    private FileChannel overflowChannel;
+    private FileLock fileLock;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+
+    private long capacity, size, tombstones, overflowEnd, overflowGarbage, checkpoint;
+    private byte[] metadata;
+
+    // The new contents of the slots changed since the last checkpoint, by slot number.
+    private HashMap<Long, byte[]> pendingSlots;
+    private boolean headerChanged;
+
+    /**
+     * Opens the table in the given file, or creates it with room for the given number of outputs if the file does not
+     * exist yet. Overlong scripts go into the overflow file. A checkpoint or rehash that was interrupted by a crash is
+     * finished first.
+     */
+    MappedUTXOTable(File file, File overflowFile, long expectedOutputs) throws IOException, BlockStoreException {
+        this(file, overflowFile, new File(file.getPath() + JOURNAL_SUFFIX));
+        finishRehash();
+        open(file.exists() ? -1 : capacityFor(expectedOutputs));
+    }
+
+    private MappedUTXOTable(File file, File overflowFile, @Nullable File journalFile) {
+        this.file = file;
+        this.overflowFile = overflowFile;
+        this.journalFile = journalFile;
+    }
+
+    /** Returns the smallest capacity which can hold the given number of outputs without needing a rehash. */
+    static long capacityFor(long outputs) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD_FACTOR < outputs)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /** Maps the existing file, or if newCapacity is positive, initializes a new table with that many slots. */
+    private void open(long newCapacity) throws IOException, BlockStoreException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            fileLock = randomAccessFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            if (newCapacity > 0) {
+                // A journal left behind by an older table of the same name must not be replayed into this one.
+                if (journalFile != null && journalFile.exists() && !journalFile.delete())
+                    throw new IOException("Failed to delete " + journalFile);
+                randomAccessFile.setLength(HEADER_SIZE + newCapacity * SLOT_SIZE);
+                header = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putLong(CAPACITY_OFFSET, newCapacity);
+            } else {
+                if (randomAccessFile.length() < HEADER_SIZE)
+                    throw new BlockStoreException("UTXO table file " + file + " is truncated");
+                header = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                if (header.getInt(0) != MAGIC)
+                    throw new BlockStoreException("UTXO table file " + file + " has the wrong magic bytes");
+                if (header.getInt(4) != VERSION)
+                    throw new BlockStoreException("UTXO table file " + file + " has unknown version " + header.getInt(4));
+            }
+            capacity = header.getLong(CAPACITY_OFFSET);
+            if (Long.bitCount(capacity) != 1 || randomAccessFile.length() != HEADER_SIZE + capacity * SLOT_SIZE)
+                throw new BlockStoreException("UTXO table file " + file + " does not match its header");
+
+            int numSegments = (int) ((capacity + SLOTS_PER_SEGMENT - 1) >>> SLOTS_PER_SEGMENT_BITS);
+            segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long slots = Math.min(SLOTS_PER_SEGMENT, capacity - ((long) i << SLOTS_PER_SEGMENT_BITS));
+                long position = HEADER_SIZE + ((long) i << SLOTS_PER_SEGMENT_BITS) * SLOT_SIZE;
+                segments[i] = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, position, slots * SLOT_SIZE);
+            }
+            if (newCapacity > 0)
+                header.force();
+            else
+                replayJournal();
+
+            size = header.getLong(SIZE_OFFSET);
+            tombstones = header.getLong(TOMBSTONES_OFFSET);
+            overflowEnd = header.getLong(OVERFLOW_END_OFFSET);
+            overflowGarbage = header.getLong(OVERFLOW_GARBAGE_OFFSET);
+            checkpoint = header.getLong(CHECKPOINT_OFFSET);
+            metadata = new byte[METADATA_SIZE];
+            for (int i = 0; i < METADATA_SIZE; i++)
+                metadata[i] = header.get(METADATA_OFFSET + i);
+            pendingSlots = new HashMap<Long, byte[]>();
+            headerChanged = false;
+
+            overflowRandomAccessFile = new RandomAccessFile(overflowFile, "rw");
+            overflowChannel = overflowRandomAccessFile.getChannel();
+            if (overflowChannel.size() < overflowEnd)
+                throw new BlockStoreException("UTXO overflow file " + overflowFile + " is truncated");
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            randomAccessFile.close();
+            if (overflowRandomAccessFile != null)
+                overflowRandomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("Failed to close UTXO table", e);
+        }
+    }
+
+    /**
+     * Copies the slots and header in the journal into the mapping, if the journal belongs to the checkpoint after the
+     * one the header has, or to that one itself, as the header may have reached the disk before all of the slots did.
+     * Copying them again does no harm. A journal that is cut short or otherwise damaged was never synced, so the
+     * mapping wasn't touched for it and it is ignored.
+     */
+    private void replayJournal() throws IOException, BlockStoreException {
+        if (journalFile == null || !journalFile.exists())
+            return;
+        byte[] bytes;
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "r");
+        try {
+            if (journal.length() > Integer.MAX_VALUE)
+                throw new BlockStoreException("UTXO table journal " + journalFile + " is too large");
+            bytes = new byte[(int) journal.length()];
+            journal.readFully(bytes);
+        } finally {
+            journal.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < JOURNAL_PREFIX_SIZE || buffer.getInt() != JOURNAL_MAGIC)
+            return;
+        long number = buffer.getLong();
+        long headerCheckpoint = header.getLong(CHECKPOINT_OFFSET);
+        if (number != headerCheckpoint && number != headerCheckpoint + 1)
+            return;
+        int slots = buffer.getInt();
+        long length = JOURNAL_PREFIX_SIZE + slots * (8L + SLOT_SIZE) + JOURNAL_HEADER_SIZE + 8;
+        if (slots < 0 || length > bytes.length)
+            return;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, (int) length - 8);
+        if (ByteBuffer.wrap(bytes, (int) length - 8, 8).getLong() != crc.getValue())
+            return;
+        boolean[] touched = new boolean[segments.length];
+        for (int i = 0; i < slots; i++) {
+            long slot = buffer.getLong();
+            if (slot < 0 || slot >= capacity)
+                throw new BlockStoreException("UTXO table journal " + journalFile + " refers to slot " + slot);
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int j = 0; j < SLOT_SIZE; j++)
+                segment.put(offset + j, buffer.get());
+            touched[(int) (slot >>> SLOTS_PER_SEGMENT_BITS)] = true;
+        }
+        if (buffer.getLong(buffer.position()) != capacity)
+            throw new BlockStoreException("UTXO table journal " + journalFile + " is for a table of another size");
+        for (int i = 0; i < JOURNAL_HEADER_SIZE; i++)
+            header.put(CAPACITY_OFFSET + i, buffer.get());
+        force(touched);
+        log.info("Replayed {} slots from UTXO table journal {}", slots, journalFile);
+    }
+
+    /**
+     * Completes or undoes a rehash that was interrupted. The new overflow file replacing the old one is what commits a
+     * rehash, so if it is still there next to the old one, the new table may be incomplete and both are deleted.
+     */
+    private void finishRehash() throws IOException {
+        File newFile = new File(file.getPath() + REHASH_SUFFIX);
+        File newOverflowFile = new File(overflowFile.getPath() + REHASH_SUFFIX);
+        if (!newFile.exists()) {
+            if (newOverflowFile.exists() && !newOverflowFile.delete())
+                throw new IOException("Failed to delete " + newOverflowFile);
+            return;
+        }
+        if (newOverflowFile.exists() && overflowFile.exists()) {
+            log.warn("Discarding the unfinished rehash of UTXO table {}", file);
+            if (!newFile.delete() || !newOverflowFile.delete())
+                throw new IOException("Failed to delete " + newFile + " and " + newOverflowFile);
+            return;
+        }
+        log.info("Finishing the interrupted rehash of UTXO table {}", file);
+        // The overflow file may have been deleted but not yet replaced, on Windows.
+        if (newOverflowFile.exists())
+            replace(newOverflowFile, overflowFile);
+        replace(newFile, file);
+    }
+
+    /** Returns true if the table was changed since the last checkpoint. */
+    boolean isDirty() {
+        return headerChanged || !pendingSlots.isEmpty();
+    }
+
+    /** Returns the number of slots changed since the last checkpoint, each of which takes a copy on the heap. */
+    int getPendingSlotCount() {
+        return pendingSlots.size();
+    }
+
+    /**
+     * Moves all changes made since the last checkpoint into the mapping and forces them to disk, journalling them
+     * first so the move is all or nothing. The overflow file is synced first, and so is the journal, before the
+     * mapping is touched.
+     */
+    void checkpoint() throws IOException {
+        if (!isDirty())
+            return;
+        checkState(journalFile != null);
+        long number = checkpoint + 1;
+        ByteBuffer journal = ByteBuffer.allocate(JOURNAL_PREFIX_SIZE + pendingSlots.size() * (8 + SLOT_SIZE) +
+                JOURNAL_HEADER_SIZE + 8);
+        journal.putInt(JOURNAL_MAGIC);
+        journal.putLong(number);
+        journal.putInt(pendingSlots.size());
+        for (Map.Entry<Long, byte[]> entry : pendingSlots.entrySet()) {
+            journal.putLong(entry.getKey());
+            journal.put(entry.getValue());
+        }
+        int headerStart = journal.position();
+        journal.putLong(capacity);
+        journal.putLong(size);
+        journal.putLong(tombstones);
+        journal.putLong(overflowEnd);
+        journal.putLong(overflowGarbage);
+        journal.putLong(number);
+        journal.position(headerStart + METADATA_OFFSET - CAPACITY_OFFSET);
+        journal.put(metadata);
+        CRC32 crc = new CRC32();
+        crc.update(journal.array(), 0, journal.position());
+        journal.putLong(crc.getValue());
+        journal.flip();
+
+        overflowChannel.force(true);
+        RandomAccessFile journalRandomAccessFile = new RandomAccessFile(journalFile, "rw");
+        try {
+            FileChannel channel = journalRandomAccessFile.getChannel();
+            while (journal.hasRemaining())
+                channel.write(journal, journal.position());
+            channel.force(true);
+        } finally {
+            journalRandomAccessFile.close();
+        }
+
+        boolean[] touched = new boolean[segments.length];
+        for (Map.Entry<Long, byte[]> entry : pendingSlots.entrySet()) {
+            long slot = entry.getKey();
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            byte[] image = entry.getValue();
+            for (int i = 0; i < SLOT_SIZE; i++)
+                segment.put(offset + i, image[i]);
+            touched[(int) (slot >>> SLOTS_PER_SEGMENT_BITS)] = true;
+        }
+        for (int i = 0; i < JOURNAL_HEADER_SIZE; i++)
+            header.put(CAPACITY_OFFSET + i, journal.get(headerStart + i));
+        force(touched);
+        checkpoint = number;
+        pendingSlots.clear();
+        headerChanged = false;
+    }
+
+    private void force(boolean[] touchedSegments) {
+        for (int i = 0; i < segments.length; i++)
+            if (touchedSegments[i])
+                segments[i].force();
+        header.force();
+    }
+
+    /** Returns a copy of the metadata area of the header, which the table itself doesn't use. */
+    byte[] getMetadata() {
+        return metadata.clone();
+    }
+
+    /** Overwrites the start of the metadata area of the header. */
+    void setMetadata(byte[] metadata) {
+        checkArgument(metadata.length <= METADATA_SIZE);
+        System.arraycopy(metadata, 0, this.metadata, 0, metadata.length);
+        headerChanged = true;
+    }
+
+    /** Returns the number of outputs in the table. */
+    long size() {
+        return size;
+    }
+
+    /** Returns the number of slots in the table. */
+    long capacity() {
+        return capacity;
+    }
+
+    /** Returns the number of bytes of the table file, all of which is memory mapped. */
+    long getMappedBytes() {
+        return HEADER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    /** Returns the number of bytes used in the overflow file, which is read on demand rather than mapped. */
+    long getOverflowBytes() {
+        return overflowEnd;
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> SLOTS_PER_SEGMENT_BITS)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+    }
+
+    /** Returns the buffer to read the given slot from: its new contents if it was changed, otherwise the mapping. */
+    private ByteBuffer slotBuffer(long slot) {
+        if (!pendingSlots.isEmpty()) {
+            byte[] image = pendingSlots.get(slot);
+            if (image != null)
+                return ByteBuffer.wrap(image);
+        }
+        return segment(slot);
+    }
+
+    /** Returns where the given slot starts in the buffer that {@link #slotBuffer(long)} returned for it. */
+    private static int slotOffset(ByteBuffer buffer, long slot) {
+        return buffer.isDirect() ? offset(slot) : 0;
+    }
+
+    /** Returns a buffer holding just the given slot, to be changed until the next checkpoint. */
+    private ByteBuffer writableSlot(long slot) {
+        byte[] image = pendingSlots.get(slot);
+        if (image == null) {
+            image = new byte[SLOT_SIZE];
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < SLOT_SIZE; i++)
+                image[i] = segment.get(offset + i);
+            pendingSlots.put(slot, image);
+        }
+        return ByteBuffer.wrap(image);
+    }
+
+    private static long hash(long hashPrefix, int index) {
+        // The transaction hash is already uniformly distributed, this just stirs in the index (murmur3 finalizer).
+        long h = hashPrefix ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean keyEquals(ByteBuffer buffer, int offset, long[] key, int index) {
+        return buffer.getInt(offset + SLOT_INDEX) == index &&
+               buffer.getLong(offset + SLOT_HASH) == key[0] &&
+               buffer.getLong(offset + SLOT_HASH + 8) == key[1] &&
+               buffer.getLong(offset + SLOT_HASH + 16) == key[2] &&
+               buffer.getLong(offset + SLOT_HASH + 24) == key[3];
+    }
+
+    private static long[] key(Sha256Hash hash) {
+        ByteBuffer bytes = ByteBuffer.wrap(hash.getBytes());
+        return new long[] { bytes.getLong(), bytes.getLong(), bytes.getLong(), bytes.getLong() };
+    }
+
+    /**
+     * Returns the slot holding the given output, or if there is no such output, -1 minus the slot that a new output
+     * with that key should be written to.
+     */
+    private long find(long[] key, int index) {
+        long mask = capacity - 1;
+        long slot = hash(key[0], index) & mask;
+        long firstFree = -1;
+        while (true) {
+            ByteBuffer buffer = slotBuffer(slot);
+            int offset = slotOffset(buffer, slot);
+            byte state = buffer.get(offset);
+            if (state == EMPTY)
+                return -1 - (firstFree >= 0 ? firstFree : slot);
+            if (state == DELETED) {
+                if (firstFree < 0)
+                    firstFree = slot;
+            } else if (keyEquals(buffer, offset, key, index)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** Returns the output with the given key, or null if the table doesn't have it. */
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) throws IOException {
+        long slot = find(key(hash), (int) index);
+        if (slot < 0)
+            return null;
+        ByteBuffer buffer = slotBuffer(slot);
+        return read(buffer, slotOffset(buffer, slot), hash, index);
+    }
+
+    /** A pending lookup of {@link #getAll(java.util.List)}, with the slot its probe starts from. */
+    private static class Probe {
+        final StoredTransactionOutPoint outPoint;
+        final long[] key;
+        final long firstSlot;
+
+        Probe(StoredTransactionOutPoint outPoint, long mask) {
+            this.outPoint = outPoint;
+            this.key = key(outPoint.getHash());
+            this.firstSlot = hash(key[0], (int) outPoint.getIndex()) & mask;
+        }
+    }
+
+    private static final Comparator<Probe> BY_FIRST_SLOT = new Comparator<Probe>() {
+        @Override
+        public int compare(Probe a, Probe b) {
+            return a.firstSlot < b.firstSlot ? -1 : (a.firstSlot == b.firstSlot ? 0 : 1);
+        }
+    };
+
+    /**
+     * Returns the outputs with the given keys that the table has. The lookups are sorted by the slot they start from,
+     * so each part of the mapping is paged in once and in order, and then split over the threads of the shared
+     * {@link ParallelLookup} pool.
+     */
+    Map<StoredTransactionOutPoint, StoredTransactionOutput> getAll(List<StoredTransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        List<Probe> probes = new ArrayList<Probe>(outPoints.size());
+        for (StoredTransactionOutPoint outPoint : outPoints)
+            probes.add(new Probe(outPoint, capacity - 1));
+        Collections.sort(probes, BY_FIRST_SLOT);
+        Map<Probe, StoredTransactionOutput> found = ParallelLookup.getDefault().getAll(probes,
+                new ParallelLookup.Lookup<Probe, StoredTransactionOutput>() {
+                    @Nullable
+                    @Override
+                    public StoredTransactionOutput get(Probe probe) throws BlockStoreException {
+                        long slot = find(probe.key, (int) probe.outPoint.getIndex());
+                        if (slot < 0)
+                            return null;
+                        ByteBuffer buffer = slotBuffer(slot);
+                        try {
+                            return read(buffer, slotOffset(buffer, slot), probe.outPoint.getHash(),
+                                    probe.outPoint.getIndex());
+                        } catch (IOException e) {
+                            throw new BlockStoreException(e);
+                        }
+                    }
+                });
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> result =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        for (Map.Entry<Probe, StoredTransactionOutput> entry : found.entrySet())
+            result.put(entry.getKey().outPoint, entry.getValue());
+        return result;
+    }
+
+    /** Calls the visitor with every output in the table, in slot order. */
+    void visit(FullPrunedBlockStore.UnspentOutputVisitor visitor) throws IOException, BlockStoreException {
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer buffer = slotBuffer(slot);
+            int offset = slotOffset(buffer, slot);
+            if (buffer.get(offset) != FULL)
+                continue;
+            ByteBuffer hash = ByteBuffer.allocate(32);
+            for (int i = 0; i < 4; i++)
+                hash.putLong(buffer.getLong(offset + SLOT_HASH + i * 8));
+            long index = buffer.getInt(offset + SLOT_INDEX) & 0xFFFFFFFFL;
+            visitor.visit(read(buffer, offset, new Sha256Hash(hash.array()), index));
+        }
+    }
+
+    private StoredTransactionOutput read(ByteBuffer buffer, int offset, Sha256Hash hash, long index)
+            throws IOException {
+        int height = buffer.getInt(offset + SLOT_HEIGHT);
+        Coin value = Coin.valueOf(buffer.getLong(offset + SLOT_VALUE));
+        byte[] scriptBytes = new byte[buffer.getInt(offset + SLOT_SCRIPT_LENGTH)];
+        if (scriptBytes.length <= INLINE_SCRIPT_SIZE) {
+            for (int i = 0; i < scriptBytes.length; i++)
+                scriptBytes[i] = buffer.get(offset + SLOT_SCRIPT + i);
+        } else {
+            readOverflow(buffer.getLong(offset + SLOT_SCRIPT), scriptBytes);
+        }
+        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+        return new StoredTransactionOutput(hash, index, value, height, true, scriptBytes);
+    }
+
+    /** Returns true if the table has an output with the given key. */
+    boolean contains(Sha256Hash hash, long index) {
+        return find(key(hash), (int) index) >= 0;
+    }
+
+    /** Returns true if the given number of outputs can be added without the table having to grow first. */
+    boolean hasRoomFor(long outputs) {
+        return size + tombstones + outputs <= capacity * MAX_LOAD_FACTOR;
+    }
+
+    /**
+     * Makes sure the given number of outputs can be added without the table having to grow. If it does have to grow,
+     * the table is checkpointed first, so this is best called between batches of changes.
+     */
+    void reserve(long outputs) throws IOException, BlockStoreException {
+        if (hasRoomFor(outputs))
+            return;
+        checkpoint();
+        long needed = capacityFor(size + outputs);
+        rehash(needed > capacity ? Math.max(needed, capacity * 2) : capacity);
+    }
+
+    /** Adds the given output, replacing any output with the same hash and index. */
+    void put(StoredTransactionOutput out) throws IOException, BlockStoreException {
+        reserve(1);
+        long[] key = key(out.getHash());
+        int index = (int) out.getIndex();
+        long slot = find(key, index);
+        ByteBuffer buffer;
+        if (slot >= 0) {
+            buffer = writableSlot(slot);
+            freeScript(buffer);
+        } else {
+            buffer = writableSlot(-1 - slot);
+            if (buffer.get(0) == DELETED)
+                tombstones--;
+            size++;
+        }
+        byte[] scriptBytes = out.getScriptBytes();
+        buffer.put(0, FULL);
+        for (int i = 0; i < 4; i++)
+            buffer.putLong(SLOT_HASH + i * 8, key[i]);
+        buffer.putInt(SLOT_INDEX, index);
+        buffer.putInt(SLOT_HEIGHT, out.getHeight());
+        buffer.putLong(SLOT_VALUE, out.getValue().value);
+        buffer.putInt(SLOT_SCRIPT_LENGTH, scriptBytes.length);
+        if (scriptBytes.length <= INLINE_SCRIPT_SIZE) {
+            for (int i = 0; i < scriptBytes.length; i++)
+                buffer.put(SLOT_SCRIPT + i, scriptBytes[i]);
+        } else {
+            buffer.putLong(SLOT_SCRIPT, appendOverflow(scriptBytes));
+        }
+    }
+
+    /** Removes the output with the given key, returning false if the table didn't have it. */
+    boolean remove(Sha256Hash hash, long index) {
+        long slot = find(key(hash), (int) index);
+        if (slot < 0)
+            return false;
+        ByteBuffer buffer = writableSlot(slot);
+        freeScript(buffer);
+        buffer.put(0, DELETED);
+        size--;
+        tombstones++;
+        return true;
+    }
+
+    private void freeScript(ByteBuffer slot) {
+        int length = slot.getInt(SLOT_SCRIPT_LENGTH);
+        if (length > INLINE_SCRIPT_SIZE) {
+            // Space in the overflow file is reclaimed when the table is next rehashed.
+            overflowGarbage += length;
+        }
+    }
+
+    private long appendOverflow(byte[] scriptBytes) throws IOException {
+        long position = overflowEnd;
+        ByteBuffer buffer = ByteBuffer.wrap(scriptBytes);
+        while (buffer.hasRemaining())
+            overflowChannel.write(buffer, position + buffer.position());
+        overflowEnd += scriptBytes.length;
+        return position;
+    }
+
+    private void readOverflow(long position, byte[] scriptBytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(scriptBytes);
+        while (buffer.hasRemaining())
+            if (overflowChannel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of UTXO overflow file");
+    }
+
+    /**
+     * Copies all outputs into a fresh table with the given number of slots, which drops the tombstones and the unused
+     * parts of the overflow file, and then swaps the new files in. The table must have been checkpointed. The new
+     * table is synced before the swap, which starts with the overflow file, see {@link #finishRehash()}.
+     */
+    private void rehash(long newCapacity) throws IOException, BlockStoreException {
+        checkState(!isDirty(), "Table must be checkpointed before it is rehashed");
+        long startTime = System.currentTimeMillis();
+        File newFile = new File(file.getPath() + REHASH_SUFFIX);
+        File newOverflowFile = new File(overflowFile.getPath() + REHASH_SUFFIX);
+        if (newFile.exists() && !newFile.delete())
+            throw new IOException("Failed to delete " + newFile);
+        if (newOverflowFile.exists() && !newOverflowFile.delete())
+            throw new IOException("Failed to delete " + newOverflowFile);
+        // The new overflow file has to exist before the new table does, or a crash in between would look like a
+        // rehash that only has the table left to swap in.
+        if (!newOverflowFile.createNewFile())
+            throw new IOException("Failed to create " + newOverflowFile);
+        MappedUTXOTable newTable = new MappedUTXOTable(newFile, newOverflowFile, null);
+        newTable.open(newCapacity);
+        long mask = newCapacity - 1;
+        long[] key = new long[4];
+        boolean[] touched = new boolean[newTable.segments.length];
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            if (segment.get(offset) != FULL)
+                continue;
+            for (int i = 0; i < 4; i++)
+                key[i] = segment.getLong(offset + SLOT_HASH + i * 8);
+            long newSlot = hash(key[0], segment.getInt(offset + SLOT_INDEX)) & mask;
+            while (newTable.segment(newSlot).get(offset(newSlot)) != EMPTY)
+                newSlot = (newSlot + 1) & mask;
+            ByteBuffer newSegment = newTable.segment(newSlot);
+            int newOffset = offset(newSlot);
+            for (int i = 0; i < SLOT_SIZE; i += 8)
+                newSegment.putLong(newOffset + i, segment.getLong(offset + i));
+            int scriptLength = segment.getInt(offset + SLOT_SCRIPT_LENGTH);
+            if (scriptLength > INLINE_SCRIPT_SIZE) {
+                byte[] scriptBytes = new byte[scriptLength];
+                readOverflow(segment.getLong(offset + SLOT_SCRIPT), scriptBytes);
+                newSegment.putLong(newOffset + SLOT_SCRIPT, newTable.appendOverflow(scriptBytes));
+            }
+            touched[(int) (newSlot >>> SLOTS_PER_SEGMENT_BITS)] = true;
+        }
+        ByteBuffer newHeader = newTable.header;
+        newHeader.putLong(SIZE_OFFSET, size);
+        newHeader.putLong(OVERFLOW_END_OFFSET, newTable.overflowEnd);
+        // A new checkpoint number, so that the journal of the old table isn't mistaken for one of the new table.
+        newHeader.putLong(CHECKPOINT_OFFSET, checkpoint + 1);
+        for (int i = 0; i < METADATA_SIZE; i++)
+            newHeader.put(METADATA_OFFSET + i, metadata[i]);
+        newTable.overflowChannel.force(true);
+        newTable.force(touched);
+        newTable.close();
+
+        close();
+        replace(newOverflowFile, overflowFile);
+        replace(newFile, file);
+        open(-1);
+        log.info("Rehashed UTXO table to {} slots ({} outputs) in {}ms", capacity, size,
+                System.currentTimeMillis() - startTime);
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = to.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!from.renameTo(canonical))
+                throw new IOException("Failed to rename " + from + " to " + canonical);
+        } else if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+
+    /** Closes the files. Changes made since the last {@link #checkpoint()} are lost. */
+    void close() throws IOException {
+        header = null;  // Allow the mappings to be GCd and the underlying file mapping to go away.
+        segments = null;
+        try {
+            overflowRandomAccessFile.close();
+        } finally {
+            randomAccessFile.close();
+        }
+        // The last checkpoint was forced to disk in full, so its journal isn't needed any more.
+        if (journalFile != null && journalFile.exists() && !journalFile.delete())
+            log.warn("Failed to delete UTXO table journal {}", journalFile);
+    }
+
+    @Override
+    public String toString() {
+        return "UTXO table " + file + ": " + size + " outputs in " + capacity + " slots, " + tombstones +
+                " tombstones, " + overflowEnd + " overflow bytes";
+    }
+}
@@ -18,20 +18,22 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Keeps {@link com.google.bitcoin.core.StoredBlock}s in memory. Used primarily for unit testing.
+ * Keeps {@link com.google.bitcoin.core.StoredBlock}s in memory. Used primarily for unit testing. Reads don't block
+ * each other or wait for writers.
  */
 public class MemoryBlockStore implements BlockStore {
-    private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
-            return blockMap.size() > 5000;
-        }
-    };
-    private StoredBlock chainHead;
+    private static final int MAX_BLOCKS = 5000;
+
+    private volatile ConcurrentHashMap<Sha256Hash, StoredBlock> blockMap =
+            new ConcurrentHashMap<Sha256Hash, StoredBlock>();
+    // The hashes in blockMap in the order they were first put, so that the oldest block is the one dropped once there
+    // are too many. Guarded by the store's monitor, like all writes.
+    private final ArrayDeque<Sha256Hash> insertionOrder = new ArrayDeque<Sha256Hash>();
+    private volatile StoredBlock chainHead;
 
     public MemoryBlockStore(NetworkParameters params) {
         // Insert the genesis block.
@@ -49,13 +51,19 @@ public class MemoryBlockStore implements BlockStore {
 
     @Override
     public synchronized void put(StoredBlock block) throws BlockStoreException {
+        final ConcurrentHashMap<Sha256Hash, StoredBlock> blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
-        Sha256Hash hash = block.getHeader().getHash();
-        blockMap.put(hash, block);
+        Sha256Hash hash = block.getHash();
+        if (blockMap.put(hash, block) == null) {
+            insertionOrder.add(hash);
+            if (insertionOrder.size() > MAX_BLOCKS)
+                blockMap.remove(insertionOrder.poll());
+        }
     }
 
     @Override
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        final ConcurrentHashMap<Sha256Hash, StoredBlock> blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         return blockMap.get(hash);
     }
@@ -17,212 +17,15 @@
 package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import javax.annotation.Nullable;
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.*;
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint implements Serializable {
-    private static final long serialVersionUID = -4064230006297064377L;
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(StoredTransactionOutput out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-
-    @Override
-    public int hashCode() {
-        return this.hash.hashCode() + (int)index;
-    }
-    
-    @Override
-    public String toString() {
-        return "Stored transaction out point: " + hash.toString() + ":" + index;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        StoredTransactionOutPoint other = (StoredTransactionOutPoint) o;
-        return getIndex() == other.getIndex() &&
-               Objects.equal(getHash(), other.getHash());
-    }
-}
-
-/**
- * A HashMap<KeyType, ValueType> that is DB transaction-aware
- * This class is not thread-safe.
- */
-class TransactionalHashMap<KeyType, ValueType> {
-    ThreadLocal<HashMap<KeyType, ValueType>> tempMap;
-    ThreadLocal<HashSet<KeyType>> tempSetRemoved;
-    private ThreadLocal<Boolean> inTransaction;
-    
-    HashMap<KeyType, ValueType> map;
-    
-    public TransactionalHashMap() {
-        tempMap = new ThreadLocal<HashMap<KeyType, ValueType>>();
-        tempSetRemoved = new ThreadLocal<HashSet<KeyType>>();
-        inTransaction = new ThreadLocal<Boolean>();
-        map = new HashMap<KeyType, ValueType>();
-    }
-    
-    public void beginDatabaseBatchWrite() {
-        inTransaction.set(true);
-    }
-
-    public void commitDatabaseBatchWrite() {
-        if (tempSetRemoved.get() != null)
-            for(KeyType key : tempSetRemoved.get())
-                map.remove(key);
-        if (tempMap.get() != null)
-            for (Map.Entry<KeyType, ValueType> entry : tempMap.get().entrySet())
-                map.put(entry.getKey(), entry.getValue());
-        abortDatabaseBatchWrite();
-    }
-
-    public void abortDatabaseBatchWrite() {
-        inTransaction.set(false);
-        tempSetRemoved.remove();
-        tempMap.remove();
-    }
-
-    @Nullable
-    public ValueType get(KeyType key) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            if (tempMap.get() != null) {
-                ValueType value = tempMap.get().get(key);
-                if (value != null)
-                    return value;
-            }
-            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
-                return null;
-        }
-        return map.get(key);
-    }
-    
-    public void put(KeyType key, ValueType value) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            if (tempSetRemoved.get() != null)
-                tempSetRemoved.get().remove(key);
-            if (tempMap.get() == null)
-                tempMap.set(new HashMap<KeyType, ValueType>());
-            tempMap.get().put(key, value);
-        }else{
-            map.put(key, value);
-        }
-    }
-    
-    @Nullable
-    public ValueType remove(KeyType key) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            ValueType retVal = map.get(key);
-            if (retVal != null) {
-                if (tempSetRemoved.get() == null)
-                    tempSetRemoved.set(new HashSet<KeyType>());
-                tempSetRemoved.get().add(key);
-            }
-            if (tempMap.get() != null) {
-                ValueType tempVal = tempMap.get().remove(key);
-                if (tempVal != null)
-                    return tempVal;
-            }
-            return retVal;
-        }else{
-            return map.remove(key);
-        }
-    }
-}
-
-/**
- * A Map with multiple key types that is DB per-thread-transaction-aware.
- * However, this class is not thread-safe.
- * @param <UniqueKeyType> is a key that must be unique per object
- * @param <MultiKeyType> is a key that can have multiple values
- */
-class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
-    TransactionalHashMap<UniqueKeyType, ValueType> mapValues;
-    HashMap<MultiKeyType, Set<UniqueKeyType>> mapKeys;
-    
-    public TransactionalMultiKeyHashMap() {
-        mapValues = new TransactionalHashMap<UniqueKeyType, ValueType>();
-        mapKeys = new HashMap<MultiKeyType, Set<UniqueKeyType>>();
-    }
-    
-    public void BeginTransaction() {
-        mapValues.beginDatabaseBatchWrite();
-    }
-
-    public void CommitTransaction() {
-        mapValues.commitDatabaseBatchWrite();
-    }
-
-    public void AbortTransaction() {
-        mapValues.abortDatabaseBatchWrite();
-    }
-
-    @Nullable
-    public ValueType get(UniqueKeyType key) {
-        return mapValues.get(key);
-    }
-    
-    public void put(UniqueKeyType uniqueKey, MultiKeyType multiKey, ValueType value) {
-        mapValues.put(uniqueKey, value);
-        Set<UniqueKeyType> set = mapKeys.get(multiKey);
-        if (set == null) {
-            set = new HashSet<UniqueKeyType>();
-            set.add(uniqueKey);
-            mapKeys.put(multiKey, set);
-        }else{
-            set.add(uniqueKey);
-        }
-    }
-    
-    @Nullable
-    public ValueType removeByUniqueKey(UniqueKeyType key) {
-        return mapValues.remove(key);
-    }
-    
-    public void removeByMultiKey(MultiKeyType key) {
-        Set<UniqueKeyType> set = mapKeys.remove(key);
-        if (set != null)
-            for (UniqueKeyType uniqueKey : set)
-                removeByUniqueKey(uniqueKey);
-    }
-}
-
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
  * Used primarily for unit testing.
@@ -236,7 +39,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
     //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
+    // Outputs are kept as written by StoredTransactionOutput.serializeCompact, which takes a lot less memory.
+    private TransactionalHashMap<StoredTransactionOutPoint, byte[]> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -249,7 +53,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, byte[]>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -270,15 +74,17 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public synchronized void put(StoredBlock block) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
-        Sha256Hash hash = block.getHeader().getHash();
+        Sha256Hash hash = block.getHash();
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(block, false));
     }
     
     @Override
-    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public synchronized void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
-        Sha256Hash hash = storedBlock.getHeader().getHash();
-        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        Sha256Hash hash = storedBlock.getHash();
+        if (undoableBlock != null)
+            fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
     }
 
@@ -345,13 +151,52 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        byte[] bytes = transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        if (bytes == null)
+            return null;
+        try {
+            return StoredTransactionOutput.deserializeCompact(hash, index, new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    public synchronized Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(
+            Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        // The open batch belongs to this thread, so the bytes are fetched here and only decoded by ParallelLookup.
+        final Map<TransactionOutPoint, byte[]> found = new HashMap<TransactionOutPoint, byte[]>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            byte[] bytes = transactionOutputMap.get(key);
+            if (bytes != null)
+                found.put(outPoint, bytes);
+        }
+        return ParallelLookup.getDefault().getAll(new ArrayList<TransactionOutPoint>(found.keySet()),
+                new ParallelLookup.Lookup<TransactionOutPoint, StoredTransactionOutput>() {
+                    @Override
+                    public StoredTransactionOutput get(TransactionOutPoint outPoint) {
+                        try {
+                            return StoredTransactionOutput.deserializeCompact(outPoint.getHash(), outPoint.getIndex(),
+                                    new ByteArrayInputStream(found.get(outPoint)));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);  // Cannot happen.
+                        }
+                    }
+                });
     }
 
     @Override
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            out.serializeCompact(bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        transactionOutputMap.put(new StoredTransactionOutPoint(out), bos.toByteArray());
     }
 
     @Override
@@ -385,8 +230,22 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         for (int i = 0; i < numOutputs; i++)
-            if (getTransactionOutput(hash, i) != null)
+            if (transactionOutputMap.get(new StoredTransactionOutPoint(hash, i)) != null)
                 return true;
         return false;
     }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (Map.Entry<StoredTransactionOutPoint, byte[]> entry : transactionOutputMap.committedEntries()) {
+            StoredTransactionOutPoint outPoint = entry.getKey();
+            try {
+                visitor.visit(StoredTransactionOutput.deserializeCompact(outPoint.getHash(), outPoint.getIndex(),
+                        new ByteArrayInputStream(entry.getValue())));
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+    }
 }
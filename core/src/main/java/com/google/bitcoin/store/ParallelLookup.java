@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Runs many independent lookups at once, split into contiguous runs over a shared pool of threads and the calling
+ * thread. The stores that keep their outputs in memory or in memory mapped files use the {@link #getDefault()
+ * default} pool for {@link FullPrunedBlockStore#getTransactionOutputs(java.util.Collection)}, where a block's worth of
+ * lookups would otherwise be answered one at a time.</p>
+ *
+ * <p>The lookups run while the caller holds whatever lock protects the data, so they only have to be safe against
+ * each other, not against writers. Batches too small to be worth handing to other threads run on the calling thread
+ * alone.</p>
+ */
+class ParallelLookup {
+    /** Below this many lookups per thread, handing work to other threads costs more than it saves. */
+    static final int MIN_LOOKUPS_PER_THREAD = 256;
+
+    /** A lookup that can run on any thread, returning null for keys that have no value. */
+    interface Lookup<K, V> {
+        @Nullable V get(K key) throws BlockStoreException;
+    }
+
+    private static final ParallelLookup defaultLookup =
+            new ParallelLookup(Runtime.getRuntime().availableProcessors() - 1);
+
+    private final int threads;
+    @Nullable private final ThreadPoolExecutor executor;
+
+    /** Creates a pool with the given number of threads besides the calling one. With zero, lookups run in turn. */
+    ParallelLookup(int threads) {
+        this.threads = Math.max(threads, 0);
+        if (this.threads == 0) {
+            executor = null;
+        } else {
+            ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Output lookup thread %d");
+            Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+            if (handler != null)
+                builder.setUncaughtExceptionHandler(handler);
+            executor = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), builder.build());
+        }
+    }
+
+    /** Returns the pool the stores share, with one thread per processor besides the calling one. */
+    static ParallelLookup getDefault() {
+        return defaultLookup;
+    }
+
+    /** Stops the threads of a pool that isn't the default one. */
+    void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /** Looks up all the given keys and returns the values that were found. Each run keeps the order of the keys. */
+    <K, V> Map<K, V> getAll(List<K> keys, Lookup<K, V> lookup) throws BlockStoreException {
+        int runs = Math.min(threads + 1, keys.size() / MIN_LOOKUPS_PER_THREAD);
+        if (executor == null || runs < 2)
+            return run(keys, lookup);
+        int runLength = (keys.size() + runs - 1) / runs;
+        List<Future<Map<K, V>>> futures = new ArrayList<Future<Map<K, V>>>(runs - 1);
+        for (int start = runLength; start < keys.size(); start += runLength) {
+            List<K> run = keys.subList(start, Math.min(start + runLength, keys.size()));
+            futures.add(executor.submit(runner(run, lookup)));
+        }
+        Map<K, V> result = new HashMap<K, V>();
+        BlockStoreException failure = null;
+        try {
+            result.putAll(run(keys.subList(0, runLength), lookup));
+        } finally {
+            // Wait for every run even if one failed, as they read data that the caller may change once we return.
+            for (Future<Map<K, V>> future : futures) {
+                try {
+                    result.putAll(Uninterruptibles.getUninterruptibly(future));
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = e.getCause() instanceof BlockStoreException ?
+                                (BlockStoreException) e.getCause() : new BlockStoreException(e.getCause());
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return result;
+    }
+
+    private static <K, V> Map<K, V> run(List<K> keys, Lookup<K, V> lookup) throws BlockStoreException {
+        Map<K, V> result = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = lookup.get(key);
+            if (value != null)
+                result.put(key, value);
+        }
+        return result;
+    }
+
+    private static <K, V> Callable<Map<K, V>> runner(final List<K> keys, final Lookup<K, V> lookup) {
+        return new Callable<Map<K, V>>() {
+            @Override
+            public Map<K, V> call() throws BlockStoreException {
+                return run(keys, lookup);
+            }
+        };
+    }
+}
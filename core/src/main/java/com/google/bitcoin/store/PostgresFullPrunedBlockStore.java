@@ -19,6 +19,7 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptCompressor;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,16 +28,26 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Properties;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>A full pruned block store using the Postgres database engine. As an added bonus an address index is calculated,
  * so you can use {@link #calculateBalanceForAddress(com.google.bitcoin.core.Address)} to quickly look up
  * the quantity of bitcoins controlled by that address.</p>
+ *
+ * <p>For the initial sync of a new database, the store can be created in bulk load mode, see
+ * {@link #PostgresFullPrunedBlockStore(NetworkParameters, String, int, String, String, String, int)}. In that mode
+ * the indexes that are not needed to verify the chain are only built once the chain is nearly caught up, transaction
+ * outputs created in a batch are streamed into the database with a single COPY, and outputs spent in a batch are
+ * deleted with a few set-based statements.</p>
  */
 public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(PostgresFullPrunedBlockStore.class);
@@ -51,9 +62,20 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
+    private final UndoableBlockPruner pruner;
     private String username;
     private String password;
     private String schemaName;
+    // The distance to the tip (in blocks) at which bulk loading ends, or 0 if bulk loading was not asked for.
+    private int bulkLoadDistance;
+    private volatile boolean bulkLoading;
+    // Databases created before version 4 store output scripts as they are rather than compressed.
+    private boolean compressScripts;
+    // Output changes made in the open batch of each connection while bulk loading, written out on commit.
+    private ThreadLocal<PendingOutputChanges> pendingOutputChanges;
+
+    // How many transaction hashes getTransactionOutputs puts in the IN list of a single query.
+    private static final int MAX_HASHES_PER_QUERY = 500;
 
     private static final String driver = "org.postgresql.Driver";
     private static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings (\n" +
@@ -63,6 +85,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final String CHAIN_HEAD_SETTING = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     private static final String VERSION_SETTING = "version";
+    private static final int VERSION = 4;
+    private static final int COMPRESSED_SCRIPTS_VERSION = 4;
+    // Present only while the store is bulk loading and the deferred indexes still have to be built.
+    private static final String BULK_LOAD_SETTING = "bulkload";
 
     private static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers (" +
             "    hash bytea NOT NULL," +
@@ -98,6 +124,27 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final String CREATE_OUTPUTS_HASH_INDEX_INDEX = "CREATE INDEX openoutputshashindex ON openoutputs USING btree (hash, index);";
     private static final String CREATE_UNDOABLE_HASH_INDEX = "CREATE INDEX undoableblockshashindex ON undoableblocks USING btree (hash);";
 
+    // Indexes that are not used while verifying the chain, so can be left out until a bulk load is done. The index on
+    // the height of undoable blocks is not one of them, the pruner deletes by height all along.
+    private static final String[] DEFERRED_INDEXES = {
+            CREATE_OUTPUT_ADDRESS_TYPE_INDEX, CREATE_OUTPUTS_ADDRESS_INDEX, CREATE_OUTPUTS_HASH_INDEX
+    };
+
+    private static final String COPY_OPEN_OUTPUTS = "COPY openoutputs (hash, index, height, value, scriptbytes, " +
+            "toaddress, addresstargetable) FROM STDIN";
+    // The number of outputs deleted by a single statement while bulk loading.
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    /** Output creations and spends that have not been sent to the database yet. */
+    private static class PendingOutputChanges {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> inserts =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Spent outputs, mapped to whether the database must have them. It may not when the output was created in
+        // the same batch, but an output with the same outpoint can already be there (see BIP30), so it is deleted
+        // anyway.
+        final Map<StoredTransactionOutPoint, Boolean> deletes = new LinkedHashMap<StoredTransactionOutPoint, Boolean>();
+    }
+
 
     /**
      * Creates a new PostgresFullPrunedBlockStore.
@@ -161,16 +208,50 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
      */
     public PostgresFullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
                                         String username, String password, @Nullable String schemaName) throws BlockStoreException {
+        this(params, connectionURL, fullStoreDepth, username, password, schemaName, 0);
+    }
+
+    /**
+     * <p>Create a new PostgresFullPrunedBlockStore which, if the tables do not exist yet, starts out in bulk load
+     * mode. This is meant for the initial sync of a new database: the indexes that are only needed for address
+     * lookups and pruning are not built, the outputs created by each block are streamed into the database using the
+     * COPY protocol, spent outputs are deleted in chunks, and batches are committed without waiting for the
+     * write-ahead log to be flushed to disk. A crash can therefore lose the last few blocks, which are then simply
+     * downloaded again.</p>
+     *
+     * <p>Bulk load mode ends, and the missing indexes are built, once the verified chain head is estimated to be
+     * within {@code bulkLoadDistance} blocks of the tip of the network, judging by its timestamp. Use
+     * {@link #finishBulkLoad()} to end it earlier. A store left in bulk load mode finishes it as soon as it is opened
+     * with a bulk load distance of 0.</p>
+     *
+     * <p>COPY needs the PostgreSQL JDBC driver. With other drivers the outputs are written with batched INSERTs.</p>
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param connectionURL The jdbc url to connect to the database.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param username The database username.
+     * @param password The password to the database.
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @param bulkLoadDistance The distance to the tip, in blocks, at which bulk loading ends. 0 disables bulk loading.
+     * @throws BlockStoreException If the database fails to open for any reason.
+     */
+    public PostgresFullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
+                                        String username, String password, @Nullable String schemaName,
+                                        int bulkLoadDistance) throws BlockStoreException {
+        checkArgument(bulkLoadDistance >= 0, "bulkLoadDistance must not be negative");
         this.params = params;
         this.fullStoreDepth = fullStoreDepth;
         this.connectionURL = connectionURL;
         this.schemaName = schemaName;
+        this.bulkLoadDistance = bulkLoadDistance;
 
         this.username = username;
         this.password = password;
 
         conn = new ThreadLocal<Connection>();
+        pendingOutputChanges = new ThreadLocal<PendingOutputChanges>();
         allConnections = new LinkedList<Connection>();
+        pruner = new UndoableBlockPruner(new PrunerTable(), "Postgres");
 
         try {
             Class.forName(driver);
@@ -189,13 +270,15 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        maybeFinishBulkLoad();
     }
 
 
 
     private synchronized void maybeConnect() throws BlockStoreException {
         try {
-            if (conn.get() != null)
+            // Connections are closed by close(), after which the store connects again when it is next used.
+            if (conn.get() != null && !conn.get().isClosed())
                 return;
 
             Properties props = new Properties();
@@ -213,30 +296,36 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             }
             allConnections.add(conn.get());
             log.info("Made a new connection to database " + connectionURL);
+            pruner.start();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
     @Override
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
-            try {
-                if(!conn.getAutoCommit()) {
-                    conn.rollback();
-                }
-                conn.close();
-                if(conn == this.conn.get()) {
-                    this.conn.set(null);
+    public void close() {
+        // Outside the lock, the pruner thread may need it to finish its batch.
+        pruner.stop();
+        synchronized (this) {
+            for (Connection conn : allConnections) {
+                try {
+                    if(!conn.getAutoCommit()) {
+                        conn.rollback();
+                    }
+                    conn.close();
+                    if(conn == this.conn.get()) {
+                        this.conn.set(null);
+                    }
+                } catch (SQLException ex) {
+                    throw new RuntimeException(ex);
                 }
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
             }
+            allConnections.clear();
         }
-        allConnections.clear();
     }
 
     public void resetStore() throws BlockStoreException {
+        pruner.reset();
         maybeConnect();
         try {
             Statement s = conn.get().createStatement();
@@ -266,25 +355,26 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             log.debug("PostgresFullPrunedBlockStore : CREATE undoable block table");
         s.executeUpdate(CREATE_UNDOABLE_TABLE);
 
-        if (log.isDebugEnabled())
-            log.debug("PostgresFullPrunedBlockStore : CREATE undoable block index");
-        s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
         if (log.isDebugEnabled())
             log.debug("PostgresFullPrunedBlockStore : CREATE open output table");
         s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
 
         // Create indexes..
         s.executeUpdate(CREATE_HEADERS_HASH_INDEX);
-        s.executeUpdate(CREATE_OUTPUT_ADDRESS_TYPE_INDEX);
-        s.executeUpdate(CREATE_OUTPUTS_ADDRESS_INDEX);
-        s.executeUpdate(CREATE_OUTPUTS_HASH_INDEX);
         s.executeUpdate(CREATE_OUTPUTS_HASH_INDEX_INDEX);
         s.executeUpdate(CREATE_UNDOABLE_HASH_INDEX);
-
+        s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
+        if (bulkLoadDistance == 0) {
+            for (String index : DEFERRED_INDEXES)
+                s.executeUpdate(index);
+        } else {
+            log.info("PostgresFullPrunedBlockStore : bulk loading, deferring secondary indexes");
+            s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + BULK_LOAD_SETTING + "', NULL)");
+        }
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '0" + VERSION + "')");
         s.close();
         createNewStore(params);
     }
@@ -311,6 +401,21 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         hash = new Sha256Hash(rs.getBytes(1));
         rs.close();
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + BULK_LOAD_SETTING + "'");
+        bulkLoading = rs.next();
+        rs.close();
+        // The version is stored as the text of a two digit number.
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        byte[] version = rs.next() ? rs.getBytes(1) : null;
+        rs.close();
+        try {
+            compressScripts = version != null &&
+                    Integer.parseInt(new String(version, "US-ASCII")) >= COMPRESSED_SCRIPTS_VERSION;
+        } catch (NumberFormatException e) {
+            throw new BlockStoreException("corrupt Postgres block store - unreadable version");
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
         s.close();
         this.verifiedChainHeadBlock = get(hash);
         this.verifiedChainHeadHash = hash;
@@ -349,6 +454,45 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /** Returns true if the store is still in bulk load mode, with some of its indexes not built yet. */
+    public boolean isBulkLoading() {
+        return bulkLoading;
+    }
+
+    /**
+     * Ends bulk load mode by building the indexes that were left out. This can take a long time on a large database.
+     * Does nothing if the store is not bulk loading.
+     */
+    public synchronized void finishBulkLoad() throws BlockStoreException {
+        if (!bulkLoading)
+            return;
+        maybeConnect();
+        if (pendingOutputChanges.get() != null)
+            throw new BlockStoreException("Cannot finish a bulk load inside a database batch");
+        log.info("Finishing bulk load at height {}, building indexes", verifiedChainHeadBlock.getHeight());
+        try {
+            Statement s = conn.get().createStatement();
+            for (String index : DEFERRED_INDEXES)
+                s.executeUpdate(index);
+            s.executeUpdate("DELETE FROM settings WHERE name = '" + BULK_LOAD_SETTING + "'");
+            s.executeUpdate("ANALYZE");
+            s.close();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+        bulkLoading = false;
+    }
+
+    /** Finishes the bulk load if the verified chain head seems to be close enough to the tip of the network. */
+    private void maybeFinishBulkLoad() throws BlockStoreException {
+        if (!bulkLoading)
+            return;
+        long age = Utils.currentTimeSeconds() - verifiedChainHeadBlock.getTimeSeconds();
+        long targetSpacing = params.getTargetTimespan() / params.getInterval();
+        if (age / targetSpacing <= bulkLoadDistance)
+            finishBulkLoad();
+    }
+
     /**
      * Dumps information about the size of actual data in the database to standard output
      * The only truly useless data counted is printed in the form "N in id indexes"
@@ -428,7 +572,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             s.setBytes(2, storedBlock.getChainWork().toByteArray());
             s.setInt(3, storedBlock.getHeight());
@@ -446,7 +590,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
             s.close();
@@ -464,11 +608,19 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+    public void put(StoredBlock storedBlock, @Nullable StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
+        if (undoableBlock == null) {
+            try {
+                putUpdateStoredBlock(storedBlock, true);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+            return;
+        }
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+        System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
         int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
@@ -684,7 +836,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        Sha256Hash hash = chainHead.getHeader().getHash();
+        Sha256Hash hash = chainHead.getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
         maybeConnect();
@@ -707,7 +859,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
-        Sha256Hash hash = chainHead.getHeader().getHash();
+        Sha256Hash hash = chainHead.getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
@@ -723,28 +875,62 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        pruner.pruneTo(chainHead.getHeight() - fullStoreDepth);
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
-        try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-
-            if (log.isDebugEnabled())
-                log.debug("Deleting undoable undoable block with height <= " + height);
+    /**
+     * Returns the pruner that deletes the undoable blocks that have fallen more than fullStoreDepth blocks behind the
+     * verified chain head, in the background. It can be used to tune the batches or to watch its progress.
+     */
+    public UndoableBlockPruner getUndoableBlockPruner() {
+        return pruner;
+    }
 
+    /** Runs the pruner's queries on the pruner thread's own connection. */
+    private class PrunerTable implements UndoableBlockPruner.Table {
+        @Override
+        public int getLowestHeight() throws BlockStoreException {
+            maybeConnect();
+            try {
+                Statement s = conn.get().createStatement();
+                ResultSet results = s.executeQuery("SELECT MIN(height) FROM undoableBlocks");
+                int height = results.next() && results.getObject(1) != null ? results.getInt(1) : -1;
+                s.close();
+                return height;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            }
+        }
 
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+        @Override
+        public int deleteUpTo(int height) throws BlockStoreException {
+            maybeConnect();
+            try {
+                PreparedStatement s = conn.get()
+                        .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+                s.setInt(1, height);
+                if (log.isDebugEnabled())
+                    log.debug("Deleting undoable blocks with height <= " + height);
+                int deleted = s.executeUpdate();
+                s.close();
+                return deleted;
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            }
         }
     }
 
     @Override
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput inserted = changes.inserts.get(outPoint);
+            if (inserted != null)
+                return inserted;
+            if (changes.deletes.containsKey(outPoint))
+                return null;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
@@ -762,7 +948,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             int height = results.getInt(1);
             Coin value = Coin.valueOf(new BigInteger(results.getBytes(2)).longValue());
             // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true,
+                    readScript(results.getBytes(3)));
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -775,48 +962,85 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     @Override
-    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+    public Map<TransactionOutPoint, StoredTransactionOutput> getTransactionOutputs(Collection<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Map<TransactionOutPoint, StoredTransactionOutput> result = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        // The outpoints left to look up in the database, by transaction hash.
+        Map<Sha256Hash, List<TransactionOutPoint>> byHash = new LinkedHashMap<Sha256Hash, List<TransactionOutPoint>>();
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        for (TransactionOutPoint outPoint : outPoints) {
+            if (changes != null) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+                StoredTransactionOutput inserted = changes.inserts.get(key);
+                if (inserted != null) {
+                    result.put(outPoint, inserted);
+                    continue;
+                }
+                if (changes.deletes.containsKey(key))
+                    continue;
+            }
+            List<TransactionOutPoint> sameHash = byHash.get(outPoint.getHash());
+            if (sameHash == null) {
+                sameHash = new ArrayList<TransactionOutPoint>(1);
+                byHash.put(outPoint.getHash(), sameHash);
+            }
+            sameHash.add(outPoint);
+        }
+        if (byHash.isEmpty())
+            return result;
         maybeConnect();
         PreparedStatement s = null;
-
-        // Calculate the toAddress (if any)
-        String dbAddress = "";
-        int type = 0;
-        Script outputScript = null;
-        try
-        {
-            outputScript = new Script(out.getScriptBytes());
-        }
-        catch (ScriptException e)
-        {
-            // Unparseable, but this isn't an error - it's an output not containing an address
-            log.info("Could not parse script for output: " + out.getHash().toString());
-        }
-        if (outputScript != null && (outputScript.isSentToAddress()
-                || outputScript.isSentToRawPubKey()
-                || outputScript.isPayToScriptHash()))
-        {
-            if (outputScript.isSentToAddress())
-            {
-                Address targetAddr = new Address(params, outputScript.getPubKeyHash());
-                dbAddress = targetAddr.toString();
-                type = 1;
-            }
-            else if (outputScript.isSentToRawPubKey())
-            {
-                /*
-                 *   Note we use the deprecated getFromAddress here.  Coinbase outputs seem to have the target address
-                 *   in the pubkey of the script - perhaps we can rename this function?
-                 */
-
-                dbAddress = outputScript.getFromAddress(params).toString();
-                type = 2;
-            } else {
-                dbAddress = Address.fromP2SHHash(params, outputScript.getPubKeyHash()).toString();
-                type = 3;
+        try {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(byHash.keySet());
+            for (int start = 0; start < hashes.size(); start += MAX_HASHES_PER_QUERY) {
+                List<Sha256Hash> chunk = hashes.subList(start, Math.min(hashes.size(), start + MAX_HASHES_PER_QUERY));
+                StringBuilder sql = new StringBuilder("SELECT hash, index, height, value, scriptBytes FROM openOutputs " +
+                        "WHERE hash IN (");
+                for (int i = 0; i < chunk.size(); i++)
+                    sql.append(i == 0 ? "?" : ", ?");
+                sql.append(")");
+                s = conn.get().prepareStatement(sql.toString());
+                for (int i = 0; i < chunk.size(); i++)
+                    s.setBytes(i + 1, chunk.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    List<TransactionOutPoint> sameHash = byHash.get(new Sha256Hash(results.getBytes(1)));
+                    // index is actually an unsigned int
+                    int index = results.getInt(2);
+                    for (TransactionOutPoint outPoint : sameHash) {
+                        if ((int) outPoint.getIndex() != index)
+                            continue;
+                        int height = results.getInt(3);
+                        Coin value = Coin.valueOf(new BigInteger(results.getBytes(4)).longValue());
+                        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                        result.put(outPoint, new StoredTransactionOutput(outPoint.getHash(), outPoint.getIndex(), value,
+                                height, true, readScript(results.getBytes(5))));
+                    }
+                }
+                s.close();
+                s = null;
             }
+            return result;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null)
+                try {
+                    s.close();
+                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
+    }
 
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes != null) {
+            changes.inserts.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
+        maybeConnect();
+        PreparedStatement s = null;
+        OutputAddress address = new OutputAddress(out);
         try {
             s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
                     "VALUES (?, ?, ?, ?, ?, ?, ?)");
@@ -825,9 +1049,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.setInt(2, (int)out.getIndex());
             s.setInt(3, out.getHeight());
             s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
+            s.setBytes(5, writeScript(out.getScriptBytes()));
+            s.setString(6, address.dbAddress);
+            s.setInt(7, address.type);
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -841,8 +1065,81 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private byte[] writeScript(byte[] scriptBytes) {
+        return compressScripts ? ScriptCompressor.compress(scriptBytes) : scriptBytes;
+    }
+
+    private byte[] readScript(byte[] stored) throws BlockStoreException {
+        if (!compressScripts)
+            return stored;
+        try {
+            return ScriptCompressor.decompress(stored);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** The values of the toAddress and addressTargetable columns of an output. */
+    private class OutputAddress {
+        String dbAddress = "";
+        int type = 0;
+
+        OutputAddress(StoredTransactionOutput out) {
+            Script outputScript = null;
+            try
+            {
+                outputScript = new Script(out.getScriptBytes());
+            }
+            catch (ScriptException e)
+            {
+                // Unparseable, but this isn't an error - it's an output not containing an address
+                log.info("Could not parse script for output: " + out.getHash().toString());
+            }
+            if (outputScript != null && (outputScript.isSentToAddress()
+                    || outputScript.isSentToRawPubKey()
+                    || outputScript.isPayToScriptHash()))
+            {
+                if (outputScript.isSentToAddress())
+                {
+                    Address targetAddr = new Address(params, outputScript.getPubKeyHash());
+                    dbAddress = targetAddr.toString();
+                    type = 1;
+                }
+                else if (outputScript.isSentToRawPubKey())
+                {
+                    /*
+                     *   Note we use the deprecated getFromAddress here.  Coinbase outputs seem to have the target address
+                     *   in the pubkey of the script - perhaps we can rename this function?
+                     */
+
+                    dbAddress = outputScript.getFromAddress(params).toString();
+                    type = 2;
+                } else {
+                    dbAddress = Address.fromP2SHHash(params, outputScript.getPubKeyHash()).toString();
+                    type = 3;
+                }
+            }
+        }
+    }
+
     @Override
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            if (changes.inserts.remove(outPoint) != null) {
+                // Deletes are executed before inserts, so the output must not be inserted any more, but whatever was
+                // stored under the same outpoint before the batch must still go.
+                if (!changes.deletes.containsKey(outPoint))
+                    changes.deletes.put(outPoint, false);
+            } else {
+                // Whether the database really has the output is checked when the deletes are executed.
+                if (changes.deletes.containsKey(outPoint))
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+                changes.deletes.put(outPoint, true);
+            }
+            return;
+        }
         maybeConnect();
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
@@ -860,6 +1157,115 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Writes the output changes collected in a batch while bulk loading: spent outputs are deleted in chunks of
+     * {@link #DELETE_CHUNK_SIZE} with one statement each, and the new outputs are streamed in with a single COPY.
+     */
+    private void writeOutputChanges(PendingOutputChanges changes) throws BlockStoreException {
+        maybeConnect();
+        try {
+            List<Map.Entry<StoredTransactionOutPoint, Boolean>> deletes =
+                    new ArrayList<Map.Entry<StoredTransactionOutPoint, Boolean>>(changes.deletes.entrySet());
+            for (int start = 0; start < deletes.size(); start += DELETE_CHUNK_SIZE)
+                deleteOutputs(deletes.subList(start, Math.min(start + DELETE_CHUNK_SIZE, deletes.size())));
+            if (!changes.inserts.isEmpty())
+                copyOutputs(changes.inserts.values());
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void deleteOutputs(List<Map.Entry<StoredTransactionOutPoint, Boolean>> outPoints)
+            throws SQLException, BlockStoreException {
+        StringBuilder sql = new StringBuilder("DELETE FROM openOutputs WHERE (hash, index) IN (");
+        for (int i = 0; i < outPoints.size(); i++)
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        sql.append(")");
+        PreparedStatement s = conn.get().prepareStatement(sql.toString());
+        try {
+            int parameter = 1;
+            int mustExist = 0;
+            for (Map.Entry<StoredTransactionOutPoint, Boolean> outPoint : outPoints) {
+                s.setBytes(parameter++, outPoint.getKey().getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(parameter++, (int) outPoint.getKey().getIndex());
+                if (outPoint.getValue())
+                    mustExist++;
+            }
+            // There is no unique index on the outputs, so duplicated transactions (see BIP30) can delete more rows.
+            if (s.executeUpdate() < mustExist)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+        } finally {
+            s.close();
+        }
+    }
+
+    private void copyOutputs(Collection<StoredTransactionOutput> outputs) throws SQLException, BlockStoreException {
+        Method copyIn = null;
+        Object copyManager = null;
+        try {
+            // The driver is an optional dependency, so its copy API is looked up reflectively.
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            copyManager = pgConnectionClass.getMethod("getCopyAPI").invoke(conn.get().unwrap(pgConnectionClass));
+            copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+        } catch (ClassNotFoundException e) {
+            // Fall through to plain INSERTs.
+        } catch (NoSuchMethodException e) {
+            // Fall through to plain INSERTs.
+        } catch (IllegalAccessException e) {
+            throw new BlockStoreException(e);
+        } catch (InvocationTargetException e) {
+            throw new BlockStoreException(e.getCause());
+        }
+        if (copyIn == null) {
+            insertOutputs(outputs);
+            return;
+        }
+        StringBuilder rows = new StringBuilder();
+        for (StoredTransactionOutput out : outputs) {
+            OutputAddress address = new OutputAddress(out);
+            // The COPY text format, with bytea columns in escaped hex form.
+            rows.append("\\\\x").append(Utils.HEX.encode(out.getHash().getBytes())).append('\t')
+                .append((int) out.getIndex()).append('\t')
+                .append(out.getHeight()).append('\t')
+                .append("\\\\x").append(Utils.HEX.encode(BigInteger.valueOf(out.getValue().value).toByteArray())).append('\t')
+                .append("\\\\x").append(Utils.HEX.encode(writeScript(out.getScriptBytes()))).append('\t')
+                .append(address.dbAddress).append('\t')
+                .append(address.type).append('\n');
+        }
+        try {
+            copyIn.invoke(copyManager, COPY_OPEN_OUTPUTS, new StringReader(rows.toString()));
+        } catch (IllegalAccessException e) {
+            throw new BlockStoreException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException)
+                throw (SQLException) e.getCause();
+            throw new BlockStoreException(e.getCause());
+        }
+    }
+
+    private void insertOutputs(Collection<StoredTransactionOutput> outputs) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, " +
+                "scriptBytes, toAddress, addressTargetable) VALUES (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            for (StoredTransactionOutput out : outputs) {
+                OutputAddress address = new OutputAddress(out);
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.setInt(3, out.getHeight());
+                s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
+                s.setBytes(5, writeScript(out.getScriptBytes()));
+                s.setString(6, address.dbAddress);
+                s.setInt(7, address.type);
+                s.addBatch();
+            }
+            s.executeBatch();
+        } finally {
+            s.close();
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
 
@@ -870,6 +1276,14 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             conn.get().setAutoCommit(false);
+            if (bulkLoading) {
+                // Losing the last few blocks in a crash is fine while bulk loading, as they can be downloaded again.
+                Statement s = conn.get().createStatement();
+                s.execute("SET LOCAL synchronous_commit TO OFF");
+                s.close();
+                if (pendingOutputChanges.get() == null)
+                    pendingOutputChanges.set(new PendingOutputChanges());
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -883,18 +1297,24 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             log.debug("Committing database batch write with connection: " + conn.get().toString());
 
 
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        pendingOutputChanges.remove();
         try {
+            if (changes != null)
+                writeOutputChanges(changes);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        maybeFinishBulkLoad();
     }
 
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
 
         maybeConnect();
+        pendingOutputChanges.remove();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
 
@@ -912,18 +1332,27 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputChanges changes = pendingOutputChanges.get();
+        if (changes != null) {
+            for (int i = 0; i < numOutputs; i++)
+                if (changes.inserts.containsKey(new StoredTransactionOutPoint(hash, i)))
+                    return true;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get()
-                    .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+                    .prepareStatement("SELECT index FROM openOutputs WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            // Any stored output that isn't about to be deleted counts.
+            while (results.next()) {
+                // index is actually an unsigned int
+                long index = results.getInt(1) & 0xFFFFFFFFL;
+                if (changes == null || !changes.deletes.containsKey(new StoredTransactionOutPoint(hash, index)))
+                    return true;
             }
-            int count = results.getInt(1);
-            return count != 0;
+            return false;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -970,4 +1399,41 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
 
+
+    @Override
+    public void visitUnspentTransactionOutputs(UnspentOutputVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        Statement s = null;
+        try {
+            // Postgres only streams the results through a cursor, which needs a transaction.
+            conn.get().setAutoCommit(false);
+            s = conn.get().createStatement();
+            s.setFetchSize(10000);
+            ResultSet results = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+            while (results.next()) {
+                Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                // index is actually an unsigned int
+                long index = results.getInt(2) & 0xFFFFFFFFL;
+                Coin value = Coin.valueOf(new BigInteger(results.getBytes(4)).longValue());
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                visitor.visit(new StoredTransactionOutput(hash, index, value, results.getInt(3), true,
+                        readScript(results.getBytes(5))));
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            try {
+                if (s != null)
+                    s.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close Statement");
+            } finally {
+                // Even when the statement couldn't be created, the connection must go back to autocommit, which also
+                // ends the read only transaction.
+                try {
+                    conn.get().setAutoCommit(true);
+                } catch (SQLException e) { throw new BlockStoreException("Failed to restore autocommit"); }
+            }
+        }
+    }
 }
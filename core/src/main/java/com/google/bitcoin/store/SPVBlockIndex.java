@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A memory mapped hash index over the ring buffer of an {@link SPVBlockStore}, which maps block hashes to the ring
+ * slots holding them. Each entry is only the last four bytes of the hash and the slot number, so a lookup confirms a
+ * match by comparing the full hash stored in the ring. Collisions are resolved by linear probing, and entries are
+ * removed by shifting the rest of their probe sequence back, so the table never fills up with tombstones as the ring
+ * wraps around.</p>
+ *
+ * <p>The index is only known to be in sync with the ring after {@link #markClean(int)}, which records the ring cursor
+ * it matches. A dirty flag is set and forced to disk before the first change after that, so an index that was not
+ * closed cleanly, or that belongs to a different ring, is noticed by {@link #isValid(int)} and can be rebuilt.</p>
+ *
+ * <p>This class is not thread safe. {@link #find(byte[], ByteBuffer, int, int)} may run at the same time as changes,
+ * but can then return a wrong slot or throw, so its result has to be validated by the caller.</p>
+ */
+class SPVBlockIndex {
+    private static final int MAGIC = 0x53505649; // "SPVI"
+    private static final int VERSION = 1;
+
+    // File format:
+    //   4 bytes magic, 4 bytes version
+    //   4 bytes number of entries (always a power of two)
+    //   4 bytes number of slots in the ring
+    //   4 bytes ring cursor the index was last in sync with
+    //   1 byte dirty flag
+    //   padding up to HEADER_SIZE, followed by the entries.
+    //
+    // Each entry (ENTRY_SIZE bytes):
+    //   4 bytes last four bytes of the block hash
+    //   4 bytes ring slot plus one, or zero if the entry is empty
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int RING_SLOTS_OFFSET = 12;
+    private static final int CURSOR_OFFSET = 16;
+    private static final int DIRTY_OFFSET = 20;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private boolean dirty;
+
+    /** Opens the index file, creating or resizing it if it doesn't fit a ring with the given number of slots. */
+    SPVBlockIndex(File file, int ringSlots) throws IOException {
+        int capacity = capacityFor(ringSlots);
+        long fileSize = HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            boolean fits = this.file.length() == fileSize;
+            if (!fits)
+                this.file.setLength(fileSize);
+            FileChannel channel = this.file.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            mask = capacity - 1;
+            if (!fits || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getInt(CAPACITY_OFFSET) != capacity || buffer.getInt(RING_SLOTS_OFFSET) != ringSlots) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putInt(RING_SLOTS_OFFSET, ringSlots);
+                buffer.putInt(CURSOR_OFFSET, -1);
+                buffer.put(DIRTY_OFFSET, (byte) 1);
+            }
+            dirty = buffer.get(DIRTY_OFFSET) != 0;
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /** Returns the number of entries for a ring of the given size, which keeps the load factor at or below one half. */
+    static int capacityFor(int ringSlots) {
+        int capacity = 16;
+        while (capacity < ringSlots * 2)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /** Returns true if the index was closed cleanly when the ring cursor was at the given position. */
+    boolean isValid(int ringCursor) {
+        return !dirty && buffer.getInt(CURSOR_OFFSET) == ringCursor;
+    }
+
+    /** Removes all entries. */
+    void clear() {
+        markDirty();
+        for (int pos = HEADER_SIZE; pos < buffer.capacity(); pos += 8)
+            buffer.putLong(pos, 0);
+    }
+
+    /**
+     * Returns the ring slot holding the given hash, or -1 if there is none. The ring records start at
+     * {@code recordsOffset} and are {@code recordSize} bytes each, starting with the hash.
+     */
+    int find(byte[] hash, ByteBuffer ring, int recordsOffset, int recordSize) {
+        int key = keyOf(hash);
+        for (int pos = key & mask; ; pos = (pos + 1) & mask) {
+            int slot = slotAt(pos);
+            if (slot < 0)
+                return -1;
+            if (keyAt(pos) == key && hashEquals(ring, recordsOffset + slot * recordSize, hash))
+                return slot;
+        }
+    }
+
+    /** Points the given hash at the given ring slot, replacing any older slot it pointed to. */
+    void put(byte[] hash, int slot, ByteBuffer ring, int recordsOffset, int recordSize) {
+        markDirty();
+        int key = keyOf(hash);
+        int pos = key & mask;
+        for (; slotAt(pos) >= 0; pos = (pos + 1) & mask) {
+            if (keyAt(pos) == key && hashEquals(ring, recordsOffset + slotAt(pos) * recordSize, hash))
+                break;
+        }
+        int offset = HEADER_SIZE + pos * ENTRY_SIZE;
+        buffer.putInt(offset, key);
+        buffer.putInt(offset + 4, slot + 1);
+    }
+
+    /**
+     * Removes the entry of the given hash if it points at the given ring slot. Call this before the slot is
+     * overwritten, as lookups of other hashes compare against what the ring holds.
+     */
+    void remove(byte[] hash, int slot) {
+        int key = keyOf(hash);
+        int pos = key & mask;
+        for (; ; pos = (pos + 1) & mask) {
+            int entrySlot = slotAt(pos);
+            if (entrySlot < 0)
+                return;
+            if (entrySlot == slot && keyAt(pos) == key)
+                break;
+        }
+        markDirty();
+        // Shift later entries of the probe sequence back, so that lookups don't stop early at the hole.
+        int hole = pos;
+        for (int next = (hole + 1) & mask; slotAt(next) >= 0; next = (next + 1) & mask) {
+            int home = keyAt(next) & mask;
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                buffer.putLong(HEADER_SIZE + hole * ENTRY_SIZE, buffer.getLong(HEADER_SIZE + next * ENTRY_SIZE));
+                hole = next;
+            }
+        }
+        buffer.putLong(HEADER_SIZE + hole * ENTRY_SIZE, 0);
+    }
+
+    /** Records that the index is in sync with the ring at the given cursor, and flushes it to disk. */
+    void markClean(int ringCursor) {
+        buffer.putInt(CURSOR_OFFSET, ringCursor);
+        buffer.force();
+        buffer.put(DIRTY_OFFSET, (byte) 0);
+        buffer.force();
+        dirty = false;
+    }
+
+    /**
+     * Records that the index is about to change, and flushes that to disk before returning, as the OS may write the
+     * pages of the change back before those of the flag. Call this before changing the ring too, so that a crash
+     * can't leave a ring that is out of step with an index that still looks clean.
+     */
+    void markDirty() {
+        if (dirty)
+            return;
+        buffer.put(DIRTY_OFFSET, (byte) 1);
+        buffer.force();
+        dirty = true;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private int keyAt(int pos) {
+        return buffer.getInt(HEADER_SIZE + pos * ENTRY_SIZE);
+    }
+
+    private int slotAt(int pos) {
+        return buffer.getInt(HEADER_SIZE + pos * ENTRY_SIZE + 4) - 1;
+    }
+
+    private static int keyOf(byte[] hash) {
+        // The last four bytes, as the first ones of a block hash are mostly zeros.
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
+    private static boolean hashEquals(ByteBuffer ring, int offset, byte[] hash) {
+        for (int i = 0; i < 32; i++)
+            if (ring.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+}
@@ -18,6 +18,8 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,8 +32,6 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -42,6 +42,14 @@ import static com.google.common.base.Preconditions.checkState;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Next to the ring buffer file the store keeps a memory mapped hash index (the same file name with ".index"
+ * appended), so looking up a block that isn't cached takes constant time however large the ring is. The index is
+ * rebuilt from the ring if it is missing or was not closed cleanly.</p>
+ *
+ * <p>Reads don't block each other or wait for writers: the chain head is published through a volatile field, the
+ * caches are concurrent, and records are read from the ring optimistically, falling back to the lock only when a
+ * {@link #put(StoredBlock)} got in the way.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -63,38 +71,46 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    // Maps block hashes to ring slots, so get() doesn't have to search the ring.
+    private SPVBlockIndex index = null;
+    // Incremented under the lock before and after each change to the ring or the index, so it is odd while a change is
+    // in progress. Lock-free readers use it to find out whether a put() ran while they were reading.
+    private volatile int writeSequence = 0;
 
     /**
      * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers, which allows for deeper
+     * re-orgs than {@link #DEFAULT_NUM_HEADERS}. Will create the given file if it's missing; an existing file must have
+     * been created with the same number of headers. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0, "numHeaders must be positive");
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -118,6 +134,7 @@ public class SPVBlockStore implements BlockStore {
             // always be correct. Once we establish the mmap the underlying file and channel can go away. Note that
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            index = new SPVBlockIndex(new File(file.getPath() + ".index"), numHeaders);
 
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             byte[] header;
@@ -126,11 +143,15 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (!index.isValid(getRingCursor(buffer)))
+                    rebuildIndex();
             } else {
+                index.clear();
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
+                if (index != null) index.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -156,6 +177,41 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /** Fills the index from the ring, from the oldest record to the newest so that the newest copy of a block wins. */
+    private void rebuildIndex() {
+        log.info("Rebuilding SPV block store index");
+        lock.lock();
+        try {
+            index.clear();
+            int cursor = getRingCursor(buffer);
+            if (cursor == getFileSize())
+                cursor = FILE_PROLOGUE_BYTES;
+            byte[] scratch = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                buffer.position(cursor);
+                buffer.get(scratch);
+                if (!isEmptyRecord(scratch))
+                    index.put(scratch, slotOf(cursor), buffer, FILE_PROLOGUE_BYTES, RECORD_SIZE);
+                cursor += RECORD_SIZE;
+                if (cursor == getFileSize())
+                    cursor = FILE_PROLOGUE_BYTES;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isEmptyRecord(byte[] hash) {
+        for (byte b : hash)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    private static int slotOf(int cursor) {
+        return (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -173,13 +229,26 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
+            writeSequence++;
+            try {
+                index.markDirty();
+                // Drop the block we're about to overwrite from the index.
+                byte[] scratch = new byte[32];
+                buffer.position(cursor);
+                buffer.get(scratch);
+                if (!isEmptyRecord(scratch))
+                    index.remove(scratch, slotOf(cursor));
+                buffer.position(cursor);
+                Sha256Hash hash = block.getHash();
+                notFoundCache.invalidate(hash);
+                buffer.put(hash.getBytes());
+                block.serializeCompact(buffer);
+                setRingCursor(buffer, buffer.position());
+                index.put(hash.getBytes(), slotOf(cursor), buffer, FILE_PROLOGUE_BYTES, RECORD_SIZE);
+                blockCache.put(hash, block);
+            } finally {
+                writeSequence++;
+            }
         } finally { lock.unlock(); }
     }
 
@@ -189,52 +258,90 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+        StoredBlock optimisticHit = getOptimistically(buffer, hash);
+        if (optimisticHit != null)
+            return optimisticHit;
+
         lock.lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
+            cacheHit = blockCache.getIfPresent(hash);
             if (cacheHit != null)
                 return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            if (notFoundCache.getIfPresent(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            int slot = index.find(hash.getBytes(), buffer, FILE_PROLOGUE_BYTES, RECORD_SIZE);
+            if (slot < 0) {
+                notFoundCache.put(hash, notFoundMarker);
+                return null;
+            }
+            buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    /**
+     * <p>Looks the block up without taking the lock, returning null if it isn't in the ring or if a concurrent put() may
+     * have changed the index or the record while we were reading them. In that case the caller has to retry under the
+     * lock.</p>
+     *
+     * <p>The volatile write sequence doesn't order the plain reads from the mapping, so it can't prove on its own that
+     * the record wasn't torn. The record is therefore read twice, with the sequence checked after each read, and both
+     * copies have to match and hash to the block we asked for. The header hash only covers the header, not the chain
+     * work and height, so the result is not cached: only records read under the lock go into the block cache.</p>
+     */
+    @Nullable
+    private StoredBlock getOptimistically(MappedByteBuffer buffer, Sha256Hash hash) {
+        int sequence = writeSequence;
+        if ((sequence & 1) != 0)
+            return null;
+        try {
+            int slot = index.find(hash.getBytes(), buffer, FILE_PROLOGUE_BYTES, RECORD_SIZE);
+            if (slot < 0)
+                return null;
+            // The shared buffer's position belongs to whoever holds the lock, so read through a duplicate.
+            ByteBuffer record = buffer.duplicate();
+            int offset = FILE_PROLOGUE_BYTES + slot * RECORD_SIZE + 32;
+            byte[] first = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            record.position(offset);
+            record.get(first);
+            if (writeSequence != sequence)
+                return null;
+            byte[] second = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            record.position(offset);
+            record.get(second);
+            if (writeSequence != sequence || !Arrays.equals(first, second))
+                return null;
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(first));
+            if (!storedBlock.getHash().equals(hash))
+                return null;
+            return storedBlock;
+        } catch (ProtocolException e) {
+            return null;  // Read a record while it was being overwritten.
+        } catch (RuntimeException e) {
+            return null;  // Likewise, for example an index entry that was being moved.
+        }
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
@@ -259,7 +366,7 @@ public class SPVBlockStore implements BlockStore {
         lock.lock();
         try {
             lastChainHead = chainHead;
-            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            byte[] headHash = chainHead.getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
         } finally { lock.unlock(); }
@@ -269,6 +376,8 @@ public class SPVBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            index.markClean(getRingCursor(buffer));
+            index.close();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
         } catch (IOException e) {
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * <p>An immutable, sorted table of key/value pairs stored in a single file, as used by {@link LSMTree}.</p>
+ *
+ * <p>File format:</p>
+ * <pre>
+ *   data:   for each entry, in key order: int keyLength, key, int valueLength (-1 for a deletion), value
+ *   index:  int count, then for every {@link #INDEX_INTERVAL}th entry: int keyLength, key, long dataOffset
+ *   bloom:  int hashFunctions, int words, long[words] bit set: a bloom filter of every key in the table
+ *   footer: long indexOffset, long bloomOffset, long entryCount, int magic
+ * </pre>
+ *
+ * <p>The sparse index and the bloom filter are loaded into memory when the table is opened, so a lookup costs one
+ * bloom filter probe and, only if that succeeds, a single positional read of one index block.</p>
+ */
+class SSTable {
+    private static final int MAGIC = 0x4c534d31;  // "LSM1"
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+    static final int INDEX_INTERVAL = 16;
+    static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    final long fileNumber;
+    final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final byte[][] indexKeys;
+    private final long[] indexOffsets;
+    private final long dataEnd;
+    private final long entryCount;
+    private final KeyFilter bloom;
+
+    private SSTable(long fileNumber, File file) throws IOException {
+        this.fileNumber = fileNumber;
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            this.channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length < FOOTER_SIZE)
+                throw new IOException("Table file is truncated: " + file);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(footer, length - FOOTER_SIZE);
+            footer.flip();
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            entryCount = footer.getLong();
+            if (footer.getInt() != MAGIC)
+                throw new IOException("Not a table file: " + file);
+            dataEnd = indexOffset;
+
+            // The index and the bloom filter sit next to each other just before the footer, so load them in one go.
+            ByteBuffer meta = ByteBuffer.allocate((int) (length - FOOTER_SIZE - indexOffset));
+            readFully(meta, indexOffset);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+            int count = in.readInt();
+            indexKeys = new byte[count][];
+            indexOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                indexKeys[i] = new byte[in.readInt()];
+                in.readFully(indexKeys[i]);
+                indexOffsets[i] = in.readLong();
+            }
+            in = new DataInputStream(new ByteArrayInputStream(meta.array(), (int) (bloomOffset - indexOffset),
+                    meta.capacity() - (int) (bloomOffset - indexOffset)));
+            bloom = KeyFilter.read(in);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            randomAccessFile.close();
+            throw new IOException("Corrupt table file " + file, e);
+        }
+    }
+
+    /** Opens an existing table file. */
+    static SSTable open(File file, long fileNumber) throws IOException {
+        return new SSTable(fileNumber, file);
+    }
+
+    /**
+     * Writes the given entries, which must be in {@link LSMTree#KEY_ORDER}, to a new table file and opens it.
+     * Values identical to {@link LSMTree#TOMBSTONE} are written as deletions unless dropTombstones is set, in which
+     * case they are left out entirely.
+     *
+     * @param expectedEntries an upper bound of the number of entries, used to size the bloom filter.
+     */
+    static SSTable write(File file, long fileNumber, Iterator<Map.Entry<byte[], byte[]>> entries,
+                         long expectedEntries, boolean dropTombstones) throws IOException {
+        KeyFilter bloom = new KeyFilter(expectedEntries, BLOOM_FALSE_POSITIVE_RATE);
+        List<byte[]> indexKeys = new ArrayList<byte[]>();
+        List<Long> indexOffsets = new ArrayList<Long>();
+        FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+            long offset = 0;
+            long count = 0;
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+                boolean deleted = value == LSMTree.TOMBSTONE;
+                if (deleted && dropTombstones)
+                    continue;
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(key);
+                    indexOffsets.add(offset);
+                }
+                out.writeInt(key.length);
+                out.write(key);
+                if (deleted) {
+                    out.writeInt(-1);
+                    offset += 4 + key.length + 4;
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                    offset += 4 + key.length + 4 + value.length;
+                }
+                bloom.put(key);
+                count++;
+            }
+            long indexOffset = offset;
+            out.writeInt(indexKeys.size());
+            offset += 4;
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] key = indexKeys.get(i);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(indexOffsets.get(i));
+                offset += 4 + key.length + 8;
+            }
+            long bloomOffset = offset;
+            bloom.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+        return open(file, fileNumber);
+    }
+
+    /** Returns the number of entries, including deletions, held by this table. */
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    /** Returns false if the key is definitely not in this table, without touching the disk. */
+    boolean mightContain(byte[] key) {
+        return bloom.mightContain(key);
+    }
+
+    /**
+     * Looks up the given key. Returns null if this table knows nothing about the key, {@link LSMTree#TOMBSTONE} if
+     * the key was deleted and the value otherwise.
+     */
+    @Nullable
+    byte[] get(byte[] key) throws IOException {
+        if (!bloom.mightContain(key))
+            return null;
+        // Find the last index entry whose key is less than or equal to the one we are looking for.
+        int low = 0, high = indexKeys.length - 1, block = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = LSMTree.KEY_ORDER.compare(indexKeys[mid], key);
+            if (cmp <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0)
+            return null;
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+        readFully(buf, start);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            int keyLength = buf.getInt();
+            int cmp = compare(buf, keyLength, key);
+            buf.position(buf.position() + keyLength);
+            int valueLength = buf.getInt();
+            if (cmp == 0) {
+                if (valueLength < 0)
+                    return LSMTree.TOMBSTONE;
+                byte[] value = new byte[valueLength];
+                buf.get(value);
+                return value;
+            } else if (cmp > 0) {
+                return null;  // Passed the place where the key would have been.
+            }
+            if (valueLength > 0)
+                buf.position(buf.position() + valueLength);
+        }
+        return null;
+    }
+
+    /** Compares the key of the given length at the buffers position with the given one. */
+    private static int compare(ByteBuffer buf, int length, byte[] key) {
+        int base = buf.position();
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = buf.get(base + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b)
+                return a - b;
+        }
+        return length - key.length;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of table file " + file);
+            position += read;
+        }
+    }
+
+    /**
+     * Returns an iterator over all entries of this table in key order, deletions included. It reads the file
+     * sequentially through its own stream so it can be used concurrently with lookups.
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        return new Iterator<Map.Entry<byte[], byte[]>>() {
+            long remaining = entryCount;
+
+            @Override
+            public boolean hasNext() {
+                if (remaining == 0) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Nothing useful to do here.
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    byte[] key = new byte[in.readInt()];
+                    in.readFully(key);
+                    int valueLength = in.readInt();
+                    byte[] value;
+                    if (valueLength < 0) {
+                        value = LSMTree.TOMBSTONE;
+                    } else {
+                        value = new byte[valueLength];
+                        in.readFully(value);
+                    }
+                    remaining--;
+                    return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, value);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * A plain bloom filter over byte array keys. Bit positions are derived from the two halves of a 128 bit murmur3
+     * hash of the key using double hashing, so only one hash is computed per probe.
+     */
+    static class KeyFilter {
+        private static final HashFunction HASH = Hashing.murmur3_128();
+        private final long[] bits;
+        private final int hashFunctions;
+
+        KeyFilter(long expectedEntries, double falsePositiveRate) {
+            long n = Math.max(1, expectedEntries);
+            // Optimal sizing: m = -n ln(p) / (ln 2)^2 bits, k = m/n ln 2 hash functions.
+            long numBits = (long) (-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            long words = Math.max(1, Math.min(Integer.MAX_VALUE - 8, (numBits + 63) / 64));
+            this.bits = new long[(int) words];
+            this.hashFunctions = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        }
+
+        private KeyFilter(long[] bits, int hashFunctions) {
+            this.bits = bits;
+            this.hashFunctions = hashFunctions;
+        }
+
+        void put(byte[] key) {
+            byte[] hash = HASH.hashBytes(key).asBytes();
+            long hash1 = readLong(hash, 0), hash2 = readLong(hash, 8);
+            long numBits = (long) bits.length * 64;
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(byte[] key) {
+            byte[] hash = HASH.hashBytes(key).asBytes();
+            long hash1 = readLong(hash, 0), hash2 = readLong(hash, 8);
+            long numBits = (long) bits.length * 64;
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private static long readLong(byte[] bytes, int offset) {
+            long result = 0;
+            for (int i = 7; i >= 0; i--)
+                result = (result << 8) | (bytes[offset + i] & 0xFF);
+            return result;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(hashFunctions);
+            out.writeInt(bits.length);
+            for (long word : bits)
+                out.writeLong(word);
+        }
+
+        static KeyFilter read(DataInputStream in) throws IOException {
+            int hashFunctions = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++)
+                bits[i] = in.readLong();
+            return new KeyFilter(bits, hashFunctions);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + " (" + entryCount + " entries)";
+    }
+}
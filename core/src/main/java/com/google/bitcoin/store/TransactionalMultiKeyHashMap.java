@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A Map with multiple key types that is DB per-thread-transaction-aware.
+ * However, this class is not thread-safe.
+ * @param <UniqueKeyType> is a key that must be unique per object
+ * @param <MultiKeyType> is a key that can have multiple values
+ */
+class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
+    TransactionalHashMap<UniqueKeyType, ValueType> mapValues;
+    HashMap<MultiKeyType, Set<UniqueKeyType>> mapKeys;
+    
+    public TransactionalMultiKeyHashMap() {
+        mapValues = new TransactionalHashMap<UniqueKeyType, ValueType>();
+        mapKeys = new HashMap<MultiKeyType, Set<UniqueKeyType>>();
+    }
+    
+    public void BeginTransaction() {
+        mapValues.beginDatabaseBatchWrite();
+    }
+
+    public void CommitTransaction() {
+        mapValues.commitDatabaseBatchWrite();
+    }
+
+    public void AbortTransaction() {
+        mapValues.abortDatabaseBatchWrite();
+    }
+
+    @Nullable
+    public ValueType get(UniqueKeyType key) {
+        return mapValues.get(key);
+    }
+    
+    public void put(UniqueKeyType uniqueKey, MultiKeyType multiKey, ValueType value) {
+        mapValues.put(uniqueKey, value);
+        Set<UniqueKeyType> set = mapKeys.get(multiKey);
+        if (set == null) {
+            set = new HashSet<UniqueKeyType>();
+            set.add(uniqueKey);
+            mapKeys.put(multiKey, set);
+        }else{
+            set.add(uniqueKey);
+        }
+    }
+    
+    @Nullable
+    public ValueType removeByUniqueKey(UniqueKeyType key) {
+        return mapValues.remove(key);
+    }
+    
+    public void removeByMultiKey(MultiKeyType key) {
+        Set<UniqueKeyType> set = mapKeys.remove(key);
+        if (set != null)
+            for (UniqueKeyType uniqueKey : set)
+                removeByUniqueKey(uniqueKey);
+    }
+
+    /** Returns the committed values, without the changes of a batch write in progress. Must not be modified. */
+    public Collection<ValueType> committedValues() {
+        return mapValues.committedValues();
+    }
+
+    /** Returns the number of committed values. */
+    public int committedSize() {
+        return mapValues.committedSize();
+    }
+}
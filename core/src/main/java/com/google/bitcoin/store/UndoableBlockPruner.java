@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Deletes the undoable blocks that a JDBC full pruned block store no longer has to keep, on a background thread
+ * instead of while the next block is being connected. The store tells it how far it may prune every time the verified
+ * chain head moves, and the rows are then deleted a range of heights at a time, using the index on the height column,
+ * oldest first.</p>
+ *
+ * <p>After every batch the pruner waits at least as long as the batch took, so that it never keeps the table busy for
+ * more than half the time while it catches up with a backlog, for instance after a long import.</p>
+ */
+public class UndoableBlockPruner {
+    private static final Logger log = LoggerFactory.getLogger(UndoableBlockPruner.class);
+
+    /** How many heights are deleted in one batch by default. */
+    public static final int DEFAULT_BATCH_HEIGHTS = 1000;
+    /** The shortest pause between two batches by default. */
+    public static final long DEFAULT_MIN_PAUSE_MILLIS = 10;
+
+    /** The queries the pruner needs, run on the pruner thread. */
+    interface Table {
+        /** Returns the lowest height of a stored undoable block, or -1 if there are none. */
+        int getLowestHeight() throws BlockStoreException;
+
+        /** Deletes the undoable blocks at or below the given height and returns how many there were. */
+        int deleteUpTo(int height) throws BlockStoreException;
+    }
+
+    private final Table table;
+    private final ThreadFactory threadFactory;
+    private ExecutorService executor;
+    // Held while a batch runs, so that reset() can't interleave with one. The fields below are guarded by this
+    // instead, so that the store never waits for a batch just to move the target height.
+    private final Object batchLock = new Object();
+    private boolean scheduled;
+
+    private volatile int batchHeights = DEFAULT_BATCH_HEIGHTS;
+    private volatile long minPauseMillis = DEFAULT_MIN_PAUSE_MILLIS;
+
+    private volatile int targetHeight = -1;
+    private volatile int prunedHeight = -1;
+    private volatile int backlog;
+    private volatile long rowsDeleted;
+    private volatile long batches;
+    private volatile long lastBatchMillis;
+
+    UndoableBlockPruner(Table table, String name) {
+        this.table = table;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(name + " undoable block pruner");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        threadFactory = builder.build();
+        executor = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    /** Sets how many heights are deleted in one batch. */
+    public void setBatchHeights(int batchHeights) {
+        checkArgument(batchHeights > 0);
+        this.batchHeights = batchHeights;
+    }
+
+    /** Sets the shortest pause between two batches, on top of waiting as long as the last batch took. */
+    public void setMinPauseMillis(long minPauseMillis) {
+        checkArgument(minPauseMillis >= 0);
+        this.minPauseMillis = minPauseMillis;
+    }
+
+    /** Returns the height at or below which undoable blocks are due to be deleted, or -1 if there is none yet. */
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    /** Returns the height up to which undoable blocks have been deleted, or -1 if no batch has run yet. */
+    public int getPrunedHeight() {
+        return prunedHeight;
+    }
+
+    /**
+     * Returns how many heights' worth of undoable blocks are due to be deleted but haven't been yet, as of the last
+     * batch and the last move of the chain head.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /** Returns how many undoable blocks have been deleted. */
+    public long getRowsDeleted() {
+        return rowsDeleted;
+    }
+
+    /** Returns how many batches have run. */
+    public long getBatches() {
+        return batches;
+    }
+
+    /** Returns how long the last batch took, in milliseconds. */
+    public long getLastBatchMillis() {
+        return lastBatchMillis;
+    }
+
+    /** Lets the pruner delete undoable blocks up to and including the given height. */
+    void pruneTo(int height) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (height <= targetHeight)
+                return;
+            backlog += height - Math.max(targetHeight, prunedHeight);
+            targetHeight = height;
+            executor = this.executor;
+            if (scheduled || executor.isShutdown())
+                return;
+            scheduled = true;
+        }
+        schedule(executor);
+    }
+
+    /**
+     * Starts a new pruner thread if the pruner was stopped, for when the store connects again after being closed.
+     * The new thread carries on with whatever was left to prune.
+     */
+    void start() {
+        ExecutorService executor;
+        synchronized (this) {
+            if (!this.executor.isShutdown())
+                return;
+            executor = this.executor = Executors.newSingleThreadExecutor(threadFactory);
+            if (scheduled || targetHeight <= prunedHeight)
+                return;
+            scheduled = true;
+        }
+        schedule(executor);
+    }
+
+    private void schedule(final ExecutorService executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prune(executor);
+            }
+        });
+    }
+
+    /** Forgets the target height, for when the store is emptied. Waits for a running batch to finish. */
+    void reset() {
+        synchronized (batchLock) {
+            synchronized (this) {
+                targetHeight = -1;
+                prunedHeight = -1;
+                backlog = 0;
+            }
+        }
+    }
+
+    /** Stops the pruner thread after the running batch, if any. Whatever is left is pruned after the next start. */
+    void stop() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void prune(ExecutorService executor) {
+        boolean more = true;
+        try {
+            while (more && !executor.isShutdown()) {
+                long start = System.currentTimeMillis();
+                more = runBatch();
+                long elapsed = System.currentTimeMillis() - start;
+                lastBatchMillis = elapsed;
+                if (more)
+                    Uninterruptibles.sleepUninterruptibly(Math.max(elapsed, minPauseMillis), TimeUnit.MILLISECONDS);
+            }
+        } catch (BlockStoreException e) {
+            // Nothing is lost, the rows are tried again the next time the chain head moves.
+            log.warn("Failed to prune undoable blocks", e);
+        } finally {
+            if (more) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes one batch and returns whether there is more to delete. When there isn't, the pruner is marked idle in
+     * the same step, so that a concurrent {@link #pruneTo(int)} schedules it again.
+     */
+    private boolean runBatch() throws BlockStoreException {
+        synchronized (batchLock) {
+            int target = targetHeight;
+            int lowest = target < 0 ? -1 : table.getLowestHeight();
+            int upTo = target;
+            int deleted = -1;
+            if (lowest >= 0 && lowest <= target) {
+                upTo = (int) Math.min((long) lowest + batchHeights - 1, target);
+                deleted = table.deleteUpTo(upTo);
+            }
+            synchronized (this) {
+                prunedHeight = upTo;
+                backlog = Math.max(targetHeight - upTo, 0);
+                if (deleted >= 0) {
+                    rowsDeleted += deleted;
+                    batches++;
+                    log.debug("Deleted {} undoable blocks up to height {}, {} heights left", deleted, upTo, backlog);
+                }
+                if (upTo < targetHeight)
+                    return true;
+                scheduled = false;
+                return false;
+            }
+        }
+    }
+}
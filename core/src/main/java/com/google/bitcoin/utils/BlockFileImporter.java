@@ -0,0 +1,318 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Imports block files stored in the reference client format into a chain, like {@link BlockFileLoader} but faster.
+ * The files are memory mapped and scanned for the magic/length framing first, which gives an index of where every
+ * block is along with its hash and the hash of its parent. That index is put in an order in which every block comes
+ * after its parent, since the reference client writes blocks in the order it downloaded them rather than by height,
+ * and blocks that are already in the block store are left out. The remaining blocks are then parsed on a pool of
+ * worker threads, a bounded number ahead of the chain, and handed to it one at a time in that order.</p>
+ *
+ * <p>A {@link FullPrunedBlockChain} is fed through {@link FullPrunedBlockChain#addAll(Iterable)}, so that the unspent
+ * outputs of the next block are fetched while the current one is connected.</p>
+ *
+ * <p>Blocks whose parent is in neither the files nor the store can never connect and are not fed to the chain at
+ * all, see {@link #getBlocksUnconnected()}.</p>
+ */
+public class BlockFileImporter {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileImporter.class);
+
+    /** How many parsed blocks may wait for the chain, per worker thread. */
+    private static final int BLOCKS_AHEAD_PER_THREAD = 16;
+
+    private static class Entry {
+        final int file;
+        final int offset;
+        final int length;
+        final Sha256Hash hash;
+        final Sha256Hash prevHash;
+
+        Entry(int file, int offset, int length, Sha256Hash hash, Sha256Hash prevHash) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+            this.prevHash = prevHash;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final List<File> files;
+    private final int threads;
+
+    private int blocksFound, blocksSkipped, blocksUnconnected, blocksImported;
+
+    /**
+     * @param threads how many threads scan and parse the files, usually the number of processors.
+     */
+    public BlockFileImporter(NetworkParameters params, List<File> files, int threads) {
+        checkArgument(threads > 0);
+        this.params = params;
+        this.files = new ArrayList<File>(files);
+        this.threads = threads;
+    }
+
+    /**
+     * Imports all blocks from the files that aren't in the chain's block store yet, and returns how many were handed
+     * to the chain. Stops with the exception of the first block the chain throws on.
+     */
+    public int importInto(AbstractBlockChain chain) throws IOException, BlockStoreException, VerificationException,
+            PrunedException {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Block file importer thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, builder.build());
+        try {
+            List<MappedByteBuffer> buffers = map();
+            List<Entry> entries = order(scan(executor, buffers), chain.getBlockStore());
+            blocksImported = 0;
+            Iterable<Block> blocks = parse(executor, buffers, entries);
+            if (chain instanceof FullPrunedBlockChain) {
+                ((FullPrunedBlockChain) chain).addAll(blocks);
+            } else {
+                for (Block block : blocks)
+                    chain.add(block);
+            }
+            log.info("Imported {} blocks, skipped {} already stored and {} that do not connect",
+                    blocksImported, blocksSkipped, blocksUnconnected);
+            return blocksImported;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Returns how many blocks the last import found in the files. */
+    public int getBlocksFound() {
+        return blocksFound;
+    }
+
+    /** Returns how many blocks the last import left out because they were already in the block store. */
+    public int getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    /** Returns how many blocks the last import left out because neither their parent nor the files connect them. */
+    public int getBlocksUnconnected() {
+        return blocksUnconnected;
+    }
+
+    /** Returns how many blocks the last import handed to the chain. */
+    public int getBlocksImported() {
+        return blocksImported;
+    }
+
+    private List<MappedByteBuffer> map() throws IOException {
+        List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>(files.size());
+        for (File file : files) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Block file too large to map: " + file);
+                // The mapping stays valid after the channel is closed.
+                buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                raf.close();
+            }
+        }
+        return buffers;
+    }
+
+    /** Scans every file on its own thread, returning the entries of all files in file order. */
+    private List<Entry> scan(ExecutorService executor, List<MappedByteBuffer> buffers) throws IOException {
+        List<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>(buffers.size());
+        for (int i = 0; i < buffers.size(); i++) {
+            final int file = i;
+            final ByteBuffer buffer = buffers.get(i).duplicate();
+            futures.add(executor.submit(new Callable<List<Entry>>() {
+                @Override
+                public List<Entry> call() {
+                    return scanFile(file, buffer);
+                }
+            }));
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Future<List<Entry>> future : futures)
+            entries.addAll(getResult(future));
+        blocksFound = entries.size();
+        return entries;
+    }
+
+    private List<Entry> scanFile(int file, ByteBuffer buffer) {
+        int magic = (int) params.getPacketMagic();
+        int limit = buffer.limit();
+        byte[] header = new byte[Block.HEADER_SIZE];
+        List<Entry> entries = new ArrayList<Entry>();
+        int pos = 0;
+        while (pos + 8 <= limit) {
+            // Anything between blocks, like the zeros at the end of a preallocated file, is skipped a byte at a time.
+            if (buffer.getInt(pos) != magic) {
+                pos++;
+                continue;
+            }
+            long size = Integer.reverseBytes(buffer.getInt(pos + 4)) & 0xffffffffL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE * 2 || size < Block.HEADER_SIZE || pos + 8 + size > limit) {
+                pos++;
+                continue;
+            }
+            int offset = pos + 8;
+            buffer.position(offset);
+            buffer.get(header);
+            Sha256Hash hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(header)));
+            byte[] prevHash = new byte[32];
+            System.arraycopy(header, 4, prevHash, 0, 32);
+            entries.add(new Entry(file, offset, (int) size, hash, new Sha256Hash(Utils.reverseBytes(prevHash))));
+            pos = offset + (int) size;
+        }
+        return entries;
+    }
+
+    /**
+     * The reorder buffer: returns the entries in file order, except that an entry whose parent has not come yet waits
+     * until it has. Entries that are already stored, such as the genesis block, are dropped but count as come, whether
+     * or not their parent is there.
+     */
+    private List<Entry> order(List<Entry> entries, BlockStore store) throws BlockStoreException {
+        Set<Sha256Hash> connected = new HashSet<Sha256Hash>();
+        ListMultimap<Sha256Hash, Entry> waiting = ArrayListMultimap.create();
+        List<Entry> ordered = new ArrayList<Entry>(entries.size());
+        blocksSkipped = 0;
+        for (Entry entry : entries) {
+            if (connected.contains(entry.hash))
+                continue;  // Duplicate.
+            if (!connected.contains(entry.prevHash) && store.get(entry.hash) == null &&
+                    store.get(entry.prevHash) == null) {
+                waiting.put(entry.prevHash, entry);
+                continue;
+            }
+            Deque<Entry> ready = new ArrayDeque<Entry>();
+            ready.add(entry);
+            while (!ready.isEmpty()) {
+                Entry next = ready.poll();
+                if (!connected.add(next.hash))
+                    continue;
+                if (store.get(next.hash) != null)
+                    blocksSkipped++;
+                else
+                    ordered.add(next);
+                ready.addAll(waiting.removeAll(next.hash));
+            }
+        }
+        blocksUnconnected = waiting.size();
+        if (blocksUnconnected > 0)
+            log.warn("{} blocks in the block files do not connect to the chain", blocksUnconnected);
+        return ordered;
+    }
+
+    /** Parses the entries on the executor, a bounded number ahead of the iterator. */
+    private Iterable<Block> parse(final ExecutorService executor, final List<MappedByteBuffer> buffers,
+                                  final List<Entry> entries) {
+        final int ahead = threads * BLOCKS_AHEAD_PER_THREAD;
+        return new Iterable<Block>() {
+            @Override
+            public Iterator<Block> iterator() {
+                return new Iterator<Block>() {
+                    private final Deque<Future<Block>> parsing = new ArrayDeque<Future<Block>>();
+                    private int submitted;
+                    private Block next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null) {
+                            while (parsing.size() < ahead && submitted < entries.size())
+                                parsing.add(executor.submit(parseTask(buffers, entries.get(submitted++))));
+                            if (parsing.isEmpty())
+                                return false;
+                            next = getResult(parsing.poll());
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Block next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Block block = next;
+                        next = null;
+                        blocksImported++;
+                        return block;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private Callable<Block> parseTask(List<MappedByteBuffer> buffers, final Entry entry) {
+        final ByteBuffer buffer = buffers.get(entry.file).duplicate();
+        return new Callable<Block>() {
+            @Override
+            public Block call() {
+                byte[] bytes = new byte[entry.length];
+                buffer.position(entry.offset);
+                buffer.get(bytes);
+                try {
+                    return new Block(params, bytes);
+                } catch (ProtocolException e) {
+                    // Its children will end up as orphans, same as with BlockFileLoader.
+                    log.warn("Could not parse block {}: {}", entry.hash, e.getMessage());
+                    return null;
+                }
+            }
+        };
+    }
+
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
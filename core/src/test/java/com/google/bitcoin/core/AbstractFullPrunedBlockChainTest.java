@@ -20,8 +20,11 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.SignatureCache;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullHeaderBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import org.junit.Before;
@@ -29,9 +32,14 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import static com.google.bitcoin.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -110,6 +118,42 @@ public abstract class AbstractFullPrunedBlockChainTest
         }
     }
 
+    @Test
+    public void testGeneratedChainWithAddAll() throws Exception {
+        // The same test cases, added in runs that each end with the next block that fails to verify.
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        RuleList blockList = generator.getBlocksToTest(false, false, null);
+
+        store = createStore(params, blockList.maximumReorgBlockCount);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+
+        List<Block> run = new ArrayList<Block>();
+        BlockAndValidity last = null;
+        for (Rule rule : blockList.list) {
+            if (!(rule instanceof BlockAndValidity))
+                continue;
+            last = (BlockAndValidity) rule;
+            run.add(last.block);
+            if (!last.throwsException)
+                continue;
+            try {
+                chain.addAll(run);
+                log.error("Block didn't match throws flag on block " + last.ruleName);
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+            assertEquals("Chain head after block " + last.ruleName, last.hashChainTipAfterBlock,
+                    chain.getChainHead().getHeader().getHash());
+            assertEquals(last.heightAfterBlock, chain.getChainHead().getHeight());
+            run.clear();
+        }
+        chain.addAll(run);
+        assertNotNull(last);
+        assertEquals(last.hashChainTipAfterBlock, chain.getChainHead().getHeader().getHash());
+    }
+
     @Test
     public void skipScripts() throws Exception {
         store = createStore(params, 10);
@@ -201,6 +245,355 @@ public abstract class AbstractFullPrunedBlockChainTest
         assertNull(out.get());
     }
     
+    @Test
+    public void testGetTransactionOutputs() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        List<TransactionOutPoint> coinbaseOutPoints = new ArrayList<TransactionOutPoint>();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int i = 0; i < 3; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+            coinbaseOutPoints.add(new TransactionOutPoint(params, 0, rollingBlock.getTransactions().get(0).getHash()));
+        }
+        TransactionOutPoint missingIndex = new TransactionOutPoint(params, 1, coinbaseOutPoints.get(0).getHash());
+        TransactionOutPoint missingHash = new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] { 1 }));
+        List<TransactionOutPoint> query = new ArrayList<TransactionOutPoint>(coinbaseOutPoints);
+        query.add(missingIndex);
+        query.add(missingHash);
+
+        Map<TransactionOutPoint, StoredTransactionOutput> outputs = store.getTransactionOutputs(query);
+        assertEquals(3, outputs.size());
+        for (TransactionOutPoint outPoint : coinbaseOutPoints) {
+            StoredTransactionOutput out = outputs.get(outPoint);
+            assertEquals(store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex()), out);
+            assertEquals(FIFTY_COINS, out.getValue());
+        }
+        assertTrue(store.getTransactionOutputs(new ArrayList<TransactionOutPoint>()).isEmpty());
+
+        // Changes in an open batch are seen by the lookup, like by getTransactionOutput.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(outputs.get(coinbaseOutPoints.get(0)));
+        StoredTransactionOutput added = new StoredTransactionOutput(missingHash.getHash(), 0, FIFTY_COINS, 3, false,
+                new byte[] { 1, 2, 3 });
+        store.addUnspentTransactionOutput(added);
+        Map<TransactionOutPoint, StoredTransactionOutput> changed = store.getTransactionOutputs(query);
+        assertFalse(changed.containsKey(coinbaseOutPoints.get(0)));
+        assertTrue(changed.containsKey(coinbaseOutPoints.get(1)));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, changed.get(missingHash).getScriptBytes());
+        assertEquals(3, changed.size());
+        store.abortDatabaseBatchWrite();
+        assertEquals(outputs.keySet(), store.getTransactionOutputs(query).keySet());
+    }
+
+    @Test
+    public void testSpendDuplicateOutputInBatch() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1 });
+        StoredTransactionOutput out = new StoredTransactionOutput(hash, 0, FIFTY_COINS, 1, false,
+                new byte[] { 1, 2, 3 });
+        store.addUnspentTransactionOutput(out);
+
+        // A transaction that duplicates a stored one (see BIP30), spent in the same batch, takes the stored output
+        // with it.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(new StoredTransactionOutput(hash, 0, FIFTY_COINS, 2, false,
+                new byte[] { 1, 2, 3 }));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertFalse(store.hasUnspentOutputs(hash, 1));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertFalse(store.hasUnspentOutputs(hash, 1));
+
+        // An output created and spent in the same batch never needs to be stored.
+        StoredTransactionOutput created = new StoredTransactionOutput(hash, 1, FIFTY_COINS, 2, false,
+                new byte[] { 4 });
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(created);
+        store.removeUnspentTransactionOutput(created);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 1));
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+    }
+
+    @Test
+    public void testVerifyTransaction() throws Exception {
+        SignatureCache originalCache = SignatureCache.getDefault();
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        SignatureCache.setDefault(cache);
+        try {
+            store = createStore(params, 10);
+            resetStore(store);
+            chain = new FullPrunedBlockChain(params, store);
+            ECKey outKey = new ECKey();
+            Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+            TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+            Transaction t = new Transaction(params);
+            t.addOutput(FIFTY_COINS, new ECKey().toAddress(params));
+            t.addSignedInput(spendableOutput, outKey);
+            try {
+                chain.verifyTransaction(t);
+                fail();
+            } catch (VerificationException e) {
+                // The coinbase isn't mature yet.
+            }
+            for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+                rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+                chain.add(rollingBlock);
+            }
+            chain.verifyTransaction(t);
+            assertEquals(1, cache.size());
+            assertEquals(0, cache.getHits());
+
+            // Connecting a block with the transaction finds its signature in the cache.
+            rollingBlock = rollingBlock.createNextBlock(null);
+            rollingBlock.addTransaction(t);
+            rollingBlock.solve();
+            assertTrue(chain.add(rollingBlock));
+            assertEquals(1, cache.getHits());
+            try {
+                chain.verifyTransaction(t);
+                fail();
+            } catch (VerificationException e) {
+                // Now spent.
+            }
+        } finally {
+            SignatureCache.setDefault(originalCache);
+        }
+    }
+
+    @Test
+    public void testAssumeValid() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        ECKey wrongKey = new ECKey();
+        List<TransactionOutput> coinbaseOutputs = new ArrayList<TransactionOutput>();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int height = 1; height <= params.getSpendableCoinbaseDepth() + 1; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+            coinbaseOutputs.add(rollingBlock.getTransactions().get(0).getOutput(0));
+        }
+
+        // The trusted block spends a coinbase with a signature that doesn't match.
+        int trustedHeight = chain.getBestChainHeight() + 1;
+        Block trusted = rollingBlock.createNextBlock(null);
+        Transaction badSignature = new Transaction(params);
+        badSignature.addOutput(FIFTY_COINS, new ECKey().toAddress(params));
+        badSignature.addSignedInput(coinbaseOutputs.get(0), wrongKey);
+        trusted.addTransaction(badSignature);
+        trusted.solve();
+        chain.setAssumeValid(trusted.getHash(), trustedHeight);
+
+        // Other blocks at the trusted height are on competing forks, so their scripts run.
+        Block badFork = rollingBlock.createNextBlock(null);
+        Transaction forkBadSignature = new Transaction(params);
+        forkBadSignature.addOutput(FIFTY_COINS, new ECKey().toAddress(params));
+        forkBadSignature.addSignedInput(coinbaseOutputs.get(0), wrongKey);
+        badFork.addTransaction(forkBadSignature);
+        badFork.solve();
+        try {
+            chain.add(badFork);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        Block fork = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+        assertTrue(chain.add(fork));
+        assertEquals(fork.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // The trusted block goes on a side chain, and is connected without its scripts once that chain is longer.
+        assertTrue(chain.add(trusted));
+        assertEquals(fork.getHash(), chain.getChainHead().getHeader().getHash());
+        Block afterTrusted = trusted.createNextBlock(null);
+        assertTrue(chain.add(afterTrusted));
+        assertEquals(afterTrusted.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // So is a fork at the trusted height that a re-org would switch to.
+        Block reorgFork = rollingBlock.createNextBlock(null);
+        Transaction reorgBadSignature = new Transaction(params);
+        reorgBadSignature.addOutput(FIFTY_COINS, new ECKey().toAddress(params));
+        reorgBadSignature.addSignedInput(coinbaseOutputs.get(1), wrongKey);
+        reorgFork.addTransaction(reorgBadSignature);
+        reorgFork.solve();
+        assertTrue(chain.add(reorgFork));
+        Block reorgForkNext = reorgFork.createNextBlock(null);
+        assertTrue(chain.add(reorgForkNext));
+        try {
+            chain.add(reorgForkNext.createNextBlock(null));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(afterTrusted.getHash(), chain.getChainHead().getHeader().getHash());
+
+        // Above the trusted block, scripts run again.
+        Block next = afterTrusted.createNextBlock(null);
+        Transaction alsoBad = new Transaction(params);
+        alsoBad.addOutput(FIFTY_COINS, new ECKey().toAddress(params));
+        alsoBad.addSignedInput(coinbaseOutputs.get(1), wrongKey);
+        next.addTransaction(alsoBad);
+        next.solve();
+        try {
+            chain.add(next);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(afterTrusted.getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void testAssumeValidWithHeaders() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+        Block rollingBlock = params.getGenesisBlock();
+        for (int height = 1; height <= params.getSpendableCoinbaseDepth() + 1; height++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            blocks.add(rollingBlock);
+        }
+        // A block below the trusted one spends a coinbase with a signature that doesn't match.
+        Block bad = rollingBlock.createNextBlock(null);
+        Transaction badSignature = new Transaction(params);
+        badSignature.addOutput(FIFTY_COINS, new ECKey().toAddress(params));
+        badSignature.addSignedInput(blocks.get(0).getTransactions().get(0).getOutput(0), new ECKey());
+        bad.addTransaction(badSignature);
+        bad.solve();
+        blocks.add(bad);
+        Block trusted = bad.createNextBlock(null);
+        blocks.add(trusted);
+
+        // Before the trusted block arrives, nothing shows that the bad block is on its chain, so its scripts run.
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setAssumeValid(trusted.getHash(), blocks.size());
+        try {
+            for (Block block : blocks)
+                chain.add(block);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(bad.getPrevBlockHash(), chain.getChainHead().getHeader().getHash());
+
+        // With the headers downloaded first, it is known to be an ancestor of the trusted block.
+        File headerFile = File.createTempFile("headers", null);
+        headerFile.delete();
+        FullHeaderBlockStore headers = new FullHeaderBlockStore(params, headerFile);
+        try {
+            BlockChain headerChain = new BlockChain(params, headers);
+            for (Block block : blocks)
+                assertTrue(headerChain.add(block.cloneAsHeader()));
+            chain.setAssumeValid(trusted.getHash(), blocks.size(), headers);
+            assertTrue(chain.add(bad));
+            assertTrue(chain.add(trusted));
+            assertEquals(trusted.getHash(), chain.getChainHead().getHeader().getHash());
+        } finally {
+            headers.close();
+            headerFile.delete();
+        }
+    }
+
+    @Test
+    public void testUTXOSnapshot() throws Exception {
+        List<byte[]> blocks = FullPrunedReplayBenchmark.generateBlocks(params, 60, 5);
+        MemoryFullPrunedBlockStore sourceStore = new MemoryFullPrunedBlockStore(params, 10);
+        FullPrunedBlockChain sourceChain = new FullPrunedBlockChain(params, sourceStore);
+        for (int i = 0; i < 30; i++)
+            sourceChain.add(new Block(params, blocks.get(i)));
+        // The hash is computed on first use and then kept up to date as blocks are connected.
+        Sha256Hash hash = sourceChain.getUTXOSetHash();
+        for (int i = 30; i < 50; i++)
+            sourceChain.add(new Block(params, blocks.get(i)));
+        assertFalse(hash.equals(sourceChain.getUTXOSetHash()));
+        assertEquals(UTXOSetHash.of(sourceStore).getHash(), sourceChain.getUTXOSetHash());
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        UTXOSetHash exported = new UTXOSnapshot(params).export(sourceStore, snapshot);
+        assertEquals(sourceChain.getUTXOSetHash(), exported.getHash());
+
+        store = createStore(params, 10);
+        resetStore(store);
+        UTXOSetHash imported = new UTXOSnapshot(params).importInto(store,
+                new ByteArrayInputStream(snapshot.toByteArray()), exported.getHash());
+        assertEquals(exported.getHash(), imported.getHash());
+        assertEquals(50, store.getVerifiedChainHead().getHeight());
+        assertEquals(sourceStore.getVerifiedChainHead().getHeader(), store.getVerifiedChainHead().getHeader());
+        assertEquals(exported.getHash(), UTXOSetHash.of(store).getHash());
+
+        // A chain on the imported store carries on from the snapshot.
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setUTXOSetHash(imported);
+        for (int i = 50; i < 60; i++) {
+            Block block = new Block(params, blocks.get(i));
+            sourceChain.add(block);
+            assertTrue(chain.add(block));
+        }
+        assertEquals(60, chain.getBestChainHeight());
+        assertEquals(sourceChain.getUTXOSetHash(), chain.getUTXOSetHash());
+        assertEquals(UTXOSetHash.of(store).getHash(), chain.getUTXOSetHash());
+    }
+
+    @Test
+    public void testUTXOSnapshotRejectsBadSnapshots() throws Exception {
+        MemoryFullPrunedBlockStore sourceStore = new MemoryFullPrunedBlockStore(params, 10);
+        FullPrunedBlockChain sourceChain = new FullPrunedBlockChain(params, sourceStore);
+        for (byte[] bytes : FullPrunedReplayBenchmark.generateBlocks(params, 20, 3))
+            sourceChain.add(new Block(params, bytes));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new UTXOSnapshot(params).export(sourceStore, bos);
+        byte[] snapshot = bos.toByteArray();
+
+        store = createStore(params, 10);
+        resetStore(store);
+        try {
+            new UTXOSnapshot(params).importInto(store, new ByteArrayInputStream(snapshot), Sha256Hash.ZERO_HASH);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+        assertEquals(0, store.getChainHead().getHeight());
+
+        // A chunk that claims to be far longer than its outputs can be is refused before it is read.
+        byte[] huge = snapshot.clone();
+        int chunkLength = 4 + 1 + 1 + params.getId().length() + 1 + 21 * StoredBlock.COMPACT_SERIALIZED_SIZE + 1;
+        Utils.uint32ToByteArrayLE(0xFFFFFFFFL, huge, chunkLength);
+        try {
+            new UTXOSnapshot(params).importInto(new MemoryFullPrunedBlockStore(params, 10),
+                    new ByteArrayInputStream(huge), null);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().contains("4294967295 bytes"));
+        }
+
+        // A flipped bit in the last chunk fails its checksum.
+        snapshot[snapshot.length - 50] ^= 1;
+        try {
+            new UTXOSnapshot(params).importInto(new MemoryFullPrunedBlockStore(params, 10),
+                    new ByteArrayInputStream(snapshot), null);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+
+        // Only new stores can be imported into.
+        try {
+            new UTXOSnapshot(params).importInto(sourceStore, new ByteArrayInputStream(snapshot), null);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testFirst100KBlocks() throws Exception {
         NetworkParameters params = MainNetParams.get();
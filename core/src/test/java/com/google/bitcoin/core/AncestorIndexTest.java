@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AncestorIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static List<StoredBlock> buildChain(StoredBlock from, int length) throws VerificationException {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock cursor = from;
+        for (int i = 0; i < length; i++) {
+            cursor = cursor.build(cursor.getHeader().createNextBlock(null).cloneAsHeader());
+            chain.add(cursor);
+        }
+        return chain;
+    }
+
+    @Test
+    public void skipHeights() {
+        assertEquals(0, AncestorIndex.skipHeight(0));
+        assertEquals(0, AncestorIndex.skipHeight(1));
+        for (int height = 2; height < 100000; height++) {
+            int skip = AncestorIndex.skipHeight(height);
+            assertTrue(skip >= 0 && skip < height);
+        }
+    }
+
+    @Test
+    public void findsAncestors() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(params);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(genesis);
+        chain.addAll(buildChain(genesis, 600));
+        // A fork off the main chain, which shares the ancestors below the fork point.
+        List<StoredBlock> fork = buildChain(chain.get(300), 50);
+
+        AncestorIndex index = new AncestorIndex(1000);
+        for (StoredBlock block : chain)
+            index.add(block);
+        for (StoredBlock block : fork)
+            index.add(block);
+        Sha256Hash head = chain.get(600).getHeader().getHash();
+        for (int height = 0; height <= 600; height++)
+            assertEquals(chain.get(height).getHeader().getHash(), index.getAncestorHash(head, height));
+        Sha256Hash forkHead = fork.get(49).getHeader().getHash();
+        assertEquals(chain.get(123).getHeader().getHash(), index.getAncestorHash(forkHead, 123));
+        assertEquals(fork.get(9).getHeader().getHash(), index.getAncestorHash(forkHead, 310));
+        assertNull(index.getAncestorHash(head, 601));
+        assertNull(index.getAncestorHash(genesis.getHeader().getPrevBlockHash(), 0));
+    }
+
+    @Test
+    public void onlyKeepsRecentBlocks() throws Exception {
+        StoredBlock genesis = new MemoryBlockStore(params).getChainHead();
+        List<StoredBlock> chain = buildChain(genesis, 300);
+        AncestorIndex index = new AncestorIndex(100);
+        for (StoredBlock block : chain)
+            index.add(block);
+        assertEquals(100, index.size());
+        Sha256Hash head = chain.get(299).getHeader().getHash();
+        // The block at height 201 is the oldest one kept, but we know its parent.
+        assertEquals(chain.get(200).getHeader().getHash(), index.getAncestorHash(head, 201));
+        assertEquals(chain.get(199).getHeader().getHash(), index.getAncestorHash(head, 200));
+        assertNull(index.getAncestorHash(head, 199));
+        assertNull(index.getAncestorHash(chain.get(0).getHeader().getHash(), 0));
+    }
+}
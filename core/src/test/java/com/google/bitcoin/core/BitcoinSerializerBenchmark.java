@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.SharedByteBuffer;
+import com.google.bitcoin.params.UnitTestParams;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures how fast {@link BitcoinSerializer} frames and parses received messages. It covers large blocks and floods
+ * of small inv messages. Large blocks are parsed the way {@link PeerSocketHandler} hands them over, from an array
+ * that holds just the payload, and also from a buffer they have to be copied out of, for comparison. It also measures
+ * sending a transaction to several peers, once serialized for each peer into arrays that are copied again when
+ * queued, and once into a pooled buffer that all of them share. Not a unit test, run it by hand:
+ * {@code BitcoinSerializerBenchmark [rounds]}.
+ */
+public class BitcoinSerializerBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+
+        byte[] block = frame(serializer, createBlock(params, 4000));
+        byte[] invs = createInvFlood(serializer, params, 20000);
+        Transaction tx = createBlock(params, 1).getTransactions().get(1);
+        System.out.printf("Block of %d bytes, %d bytes of inv messages%n", block.length, invs.length);
+        for (int round = 0; round < rounds; round++) {
+            measureBlock(serializer, block, 50);
+            measureInvs(serializer, invs, 5);
+            measureOutbound(serializer, tx, 8, 20000);
+        }
+    }
+
+    private static Block createBlock(NetworkParameters params, int transactions) throws Exception {
+        ECKey key = new ECKey();
+        Block block = params.getGenesisBlock().createNextBlock(key.toAddress(params));
+        Transaction prev = block.getTransactions().get(0);
+        for (int i = 0; i < transactions; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addInput(new TransactionInput(params, tx, new byte[72], new TransactionOutPoint(params, 0, prev)));
+            tx.addOutput(Coin.CENT, key.toAddress(params));
+            tx.addOutput(Coin.CENT, new ECKey().toAddress(params));
+            block.addTransaction(tx);
+            prev = tx;
+        }
+        return block;
+    }
+
+    private static byte[] createInvFlood(BitcoinSerializer serializer, NetworkParameters params, int count)
+            throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            InventoryMessage inv = new InventoryMessage(params);
+            byte[] seed = new byte[4];
+            Utils.uint32ToByteArrayLE(i, seed, 0);
+            inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, Sha256Hash.create(seed)));
+            serializer.serialize(inv, bos);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] frame(BitcoinSerializer serializer, Message message) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(message, bos);
+        return bos.toByteArray();
+    }
+
+    private static void measureBlock(BitcoinSerializer serializer, byte[] framed, int iterations) throws Exception {
+        ByteBuffer headerBuffer = ByteBuffer.wrap(framed);
+        serializer.seekPastMagicBytes(headerBuffer);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(headerBuffer);
+        byte[] payload = Arrays.copyOfRange(framed, framed.length - header.size, framed.length);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            serializer.deserializePayload(header, ByteBuffer.wrap(payload));
+        long inPlace = System.nanoTime() - start;
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(framed.length);
+        direct.put(framed);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            direct.position(framed.length - header.size);
+            serializer.deserializePayload(header, direct);
+        }
+        long copied = System.nanoTime() - start;
+        double megabytes = (double) iterations * header.size / (1024 * 1024);
+        System.out.printf("block    in place %8.1f MB/sec, copied %8.1f MB/sec%n", megabytes * 1e9 / inPlace,
+                megabytes * 1e9 / copied);
+    }
+
+    private static void measureOutbound(BitcoinSerializer serializer, Transaction tx, int peers, int iterations)
+            throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int peer = 0; peer < peers; peer++) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                serializer.serialize(tx, bos);
+                byte[] bytes = bos.toByteArray();
+                ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length));
+            }
+        }
+        long arrays = System.nanoTime() - start;
+
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_BUFFER_SIZE,
+                ByteBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            SharedByteBuffer serialized = serializer.serialize(tx, pool);
+            for (int peer = 0; peer < peers; peer++) {
+                serialized.retain().duplicate();
+                serialized.release();
+            }
+            serialized.release();
+        }
+        long pooled = System.nanoTime() - start;
+        System.out.printf("outbound arrays %8.0f tx/sec, pooled %8.0f tx/sec to %d peers, %d buffers allocated%n",
+                iterations * 1e9 / arrays, iterations * 1e9 / pooled, peers, pool.getAllocations());
+    }
+
+    private static void measureInvs(BitcoinSerializer serializer, byte[] invs, int iterations) throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(invs.length);
+        direct.put(invs);
+        long messages = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            direct.clear();
+            while (direct.hasRemaining()) {
+                serializer.deserialize(direct);
+                messages++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("inv      %8.0f messages/sec%n", messages * 1e9 / elapsed);
+    }
+}
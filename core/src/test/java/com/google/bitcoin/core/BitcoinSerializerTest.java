@@ -17,7 +17,10 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.ByteBufferPool;
+import com.google.bitcoin.net.SharedByteBuffer;
 import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
@@ -249,6 +252,98 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testSeekPastGarbageAndPartialMagic() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        // Garbage, including the start of a magic, before the real one.
+        byte[] garbage = HEX.decode("00f9beb4f9bef9beb4");
+        ByteBuffer buffer = ByteBuffer.allocate(garbage.length + addrMessage.length);
+        buffer.put(garbage).put(addrMessage).flip();
+        assertTrue(bs.deserialize(buffer) instanceof AddressMessage);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testCommandLookup() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize("verack", new byte[0], bos);
+        bs.serialize("getutxos2", new byte[0], bos);
+        byte[] junk = bos.toByteArray().clone();
+        junk[4 + 7] = 'x';  // After the terminator of "verack".
+        ByteBuffer buffer = ByteBuffer.wrap(junk);
+        assertTrue(bs.deserialize(buffer) instanceof VersionAck);
+        Message unknown = bs.deserialize(buffer);
+        assertTrue(unknown instanceof com.google.bitcoin.core.UnknownMessage);
+        assertTrue(unknown.toString().contains("getutxos2"));
+
+        // A header with all twelve bytes of the command used.
+        byte[] longCommand = HEX.decode("6162636465666768696a6b6c000000005df6e0e2");
+        assertEquals("abcdefghijkl", new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(longCommand)).command);
+    }
+
+    @Test
+    public void testDeserializePayloadFromWholeArray() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteBuffer framed = ByteBuffer.wrap(txMessage);
+        bs.seekPastMagicBytes(framed);
+        BitcoinSerializer.BitcoinPacketHeader header = bs.deserializeHeader(framed);
+        byte[] payload = Arrays.copyOfRange(txMessage, 24, txMessage.length);
+        assertEquals(header.size, payload.length);
+
+        // The array holds just the payload, so the message is parsed from it in place.
+        ByteBuffer whole = ByteBuffer.wrap(payload);
+        Transaction tx = (Transaction) bs.deserializePayload(header, whole);
+        assertFalse(whole.hasRemaining());
+        Transaction copied = (Transaction) bs.deserializePayload(header, framed);
+        assertEquals(copied.getHash(), tx.getHash());
+        assertArrayEquals(payload, tx.bitcoinSerialize());
+
+        try {
+            bs.deserializePayload(header, ByteBuffer.wrap(payload, 0, payload.length - 1));
+            fail();
+        } catch (BufferUnderflowException e) {
+            // expected
+        }
+        payload[payload.length - 1] ^= 1;
+        try {
+            bs.deserializePayload(header, ByteBuffer.wrap(payload));
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSerializeIntoPool() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteBufferPool pool = new ByteBufferPool(1024 * 1024, 4 * 1024 * 1024);
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        // A block built in memory doesn't know its length, so the buffer has to grow while it is written.
+        NetworkParameters params = UnitTestParams.get();
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        for (int i = 0; i < 20; i++) {
+            Transaction spend = new Transaction(params);
+            spend.addInput(new TransactionInput(params, spend, new byte[72], new TransactionOutPoint(params, i, tx)));
+            spend.addOutput(Coin.CENT, new ECKey().toAddress(params));
+            block.addTransaction(spend);
+        }
+        for (Message message : new Message[] { tx, block, new Ping(1234) }) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bs.serialize(message, bos);
+            SharedByteBuffer serialized = bs.serialize(message, pool);
+            ByteBuffer bytes = serialized.duplicate();
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get(array);
+            assertArrayEquals(bos.toByteArray(), array);
+            serialized.release();
+        }
+        assertTrue(pool.getPooledBytes() > 0);
+        long allocations = pool.getAllocations();
+        bs.serialize(tx, pool).release();
+        assertEquals(allocations, pool.getAllocations());
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
@@ -0,0 +1,40 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * A FullPrunedBlockStoreTest for the output cache on top of H2. The cache is kept small so that it gets written out
+ * every few blocks.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        return new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params, "cachingtest", blockCount), 16 * 1024);
+    }
+
+    private void deleteFiles() {
+        maybeDelete("cachingtest.h2.db");
+        maybeDelete("cachingtest.trace.db");
+    }
+
+    private void maybeDelete(String s) {
+        new File(s).delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((H2FullPrunedBlockStore) ((CachingFullPrunedBlockStore) store).getStore()).resetStore();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import com.google.bitcoin.utils.BlockFileLoader;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Replays blocks into a {@link FullPrunedBlockChain}, adding them one by one with {@link FullPrunedBlockChain#add(Block)}
+ * and all at once with {@link FullPrunedBlockChain#addAll(Iterable)}. The blocks are the first 100 kilobytes of the
+ * main net chain from the test resources, which have hardly any transactions besides coinbases, and a generated chain
+ * with fifty signed transactions per block. Not a unit test, run it by hand: {@code FullPrunedReplayBenchmark [rounds]}.
+ */
+public class FullPrunedReplayBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        NetworkParameters mainNet = MainNetParams.get();
+        File blockFile = new File(FullPrunedReplayBenchmark.class.getResource("first-100k-blocks.dat").getFile());
+        List<byte[]> mainNetBlocks = new ArrayList<byte[]>();
+        for (Block block : new BlockFileLoader(mainNet, Arrays.asList(blockFile)))
+            mainNetBlocks.add(block.bitcoinSerialize());
+        NetworkParameters unitTest = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        System.out.println("Building blocks ...");
+        List<byte[]> generatedBlocks = generateBlocks(unitTest, 200, 50);
+
+        for (int round = 0; round < rounds; round++) {
+            for (boolean pipelined : new boolean[] { false, true }) {
+                replay("main net", mainNet, mainNetBlocks, pipelined);
+                replay("generated", unitTest, generatedBlocks, pipelined);
+            }
+        }
+    }
+
+    /**
+     * Builds a chain in which each block after the first few has the given number of transactions, each spending an
+     * output of an earlier block with a signature.
+     */
+    static List<byte[]> generateBlocks(NetworkParameters params, int count, int transactionsPerBlock)
+            throws Exception {
+        ECKey key = new ECKey();
+        Address address = key.toAddress(params);
+        LinkedList<TransactionOutput> spendable = new LinkedList<TransactionOutput>();
+        LinkedList<Block> immature = new LinkedList<Block>();
+        List<byte[]> blocks = new ArrayList<byte[]>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            block = block.createNextBlockWithCoinbase(key.getPubKey(), block.getBlockInflation(i + 1));
+            List<TransactionOutput> created = new ArrayList<TransactionOutput>();
+            for (int j = 0; j < transactionsPerBlock && !spendable.isEmpty(); j++) {
+                TransactionOutput prevOut = spendable.removeFirst();
+                Transaction tx = new Transaction(params);
+                Coin half = Coin.valueOf(prevOut.getValue().value / 2);
+                tx.addOutput(half, address);
+                tx.addOutput(prevOut.getValue().subtract(half), address);
+                tx.addSignedInput(prevOut, key);
+                block.addTransaction(tx);
+                created.addAll(tx.getOutputs());
+            }
+            block.solve();
+            blocks.add(block.bitcoinSerialize());
+            spendable.addAll(created);
+            immature.add(block);
+            if (immature.size() > params.getSpendableCoinbaseDepth())
+                spendable.add(immature.removeFirst().getTransactions().get(0).getOutput(0));
+        }
+        return blocks;
+    }
+
+    private static void replay(String chainName, NetworkParameters params, List<byte[]> blocks, boolean pipelined)
+            throws Exception {
+        run(chainName, "MemoryFullPrunedBlockStore", params, new MemoryFullPrunedBlockStore(params, 10), blocks,
+                pipelined);
+        File directory = Files.createTempDir();
+        H2FullPrunedBlockStore h2Store =
+                new H2FullPrunedBlockStore(params, new File(directory, "replay").getPath(), 10);
+        run(chainName, "H2FullPrunedBlockStore", params, h2Store, blocks, pipelined);
+        h2Store.close();
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    private static void run(String chainName, String storeName, final NetworkParameters params,
+                            FullPrunedBlockStore store, final List<byte[]> blocks, boolean pipelined) throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        // Parse the blocks while adding them, like a real replay does.
+        Iterable<Block> parsed = new Iterable<Block>() {
+            @Override
+            public Iterator<Block> iterator() {
+                final Iterator<byte[]> iterator = blocks.iterator();
+                return new Iterator<Block>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Block next() {
+                        try {
+                            return new Block(params, iterator.next());
+                        } catch (ProtocolException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        long start = System.nanoTime();
+        if (pipelined) {
+            chain.addAll(parsed);
+        } else {
+            for (Block block : parsed)
+                chain.add(block);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-10s %-28s %-7s %5d blocks in %6d ms, %6.0f blocks/sec%n", chainName, storeName,
+                pipelined ? "addAll" : "add", blocks.size(), elapsed / 1000000, blocks.size() * 1e9 / elapsed);
+    }
+}
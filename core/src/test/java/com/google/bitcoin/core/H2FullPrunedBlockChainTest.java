@@ -1,11 +1,21 @@
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import com.google.bitcoin.store.UndoableBlockPruner;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -35,4 +45,95 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void compressesScriptsOfNewDatabases() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        StoredTransactionOutput out = new StoredTransactionOutput(Sha256Hash.create(new byte[] { 1 }), 0, Coin.COIN,
+                1, false, script);
+        FullPrunedBlockStore store = createStore(params, 10);
+        store.addUnspentTransactionOutput(out);
+        assertArrayEquals(script, store.getTransactionOutput(out.getHash(), 0).getScriptBytes());
+        store.close();
+        assertEquals(21, storedScript(out).length);
+
+        // A database from before scripts were compressed keeps storing them as they are.
+        Connection conn = DriverManager.getConnection("jdbc:h2:test");
+        conn.createStatement().executeUpdate("UPDATE settings SET value = '03' WHERE name = 'version'");
+        conn.createStatement().executeUpdate("DELETE FROM openOutputs");
+        conn.close();
+        store = new H2FullPrunedBlockStore(params, "test", 10);
+        store.addUnspentTransactionOutput(out);
+        assertArrayEquals(script, store.getTransactionOutput(out.getHash(), 0).getScriptBytes());
+        store.close();
+        assertArrayEquals(script, storedScript(out));
+    }
+
+    @Test
+    public void prunesUndoableBlocksInBackground() throws Exception {
+        NetworkParameters params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(params, 10);
+        UndoableBlockPruner pruner = store.getUndoableBlockPruner();
+        pruner.setBatchHeights(7);
+        pruner.setMinPauseMillis(0);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        byte[] pubKey = new ECKey().getPubKey();
+        Block block = params.getGenesisBlock();
+        Sha256Hash[] hashes = new Sha256Hash[41];
+        for (int height = 1; height <= 40; height++) {
+            block = block.createNextBlockWithCoinbase(pubKey);
+            assertTrue(chain.add(block));
+            hashes[height] = block.getHash();
+        }
+        assertEquals(30, pruner.getTargetHeight());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pruner.getPrunedHeight() < 30 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(30, pruner.getPrunedHeight());
+        assertEquals(0, pruner.getBacklog());
+        // Including the genesis block.
+        assertEquals(31, pruner.getRowsDeleted());
+        assertTrue(pruner.getBatches() >= 5);
+        for (int height = 1; height <= 30; height++)
+            assertNull(store.getUndoBlock(hashes[height]));
+        for (int height = 31; height <= 40; height++)
+            assertNotNull(store.getUndoBlock(hashes[height]));
+
+        // Closing stops the pruner, and it starts again when the store connects again.
+        store.close();
+        for (int height = 41; height <= 45; height++) {
+            block = block.createNextBlockWithCoinbase(pubKey);
+            assertTrue(chain.add(block));
+        }
+        assertEquals(35, pruner.getTargetHeight());
+        deadline = System.currentTimeMillis() + 10000;
+        while (pruner.getPrunedHeight() < 35 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(35, pruner.getPrunedHeight());
+        for (int height = 31; height <= 35; height++)
+            assertNull(store.getUndoBlock(hashes[height]));
+        for (int height = 36; height <= 40; height++)
+            assertNotNull(store.getUndoBlock(hashes[height]));
+
+        store.resetStore();
+        assertEquals(-1, pruner.getTargetHeight());
+        assertEquals(0, pruner.getBacklog());
+        store.close();
+    }
+
+    private static byte[] storedScript(StoredTransactionOutput out) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:h2:test");
+        try {
+            ResultSet rs = conn.createStatement().executeQuery("SELECT scriptBytes FROM openOutputs");
+            rs.next();
+            return rs.getBytes(1);
+        } finally {
+            conn.close();
+        }
+    }
 }
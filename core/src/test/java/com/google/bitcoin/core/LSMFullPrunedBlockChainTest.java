@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.LSMFullPrunedBlockStore;
+import com.google.common.io.Files;
+import org.junit.After;
+
+import java.io.File;
+
+/**
+ * An LSM tree implementation of the FullPrunedBlockStoreTest. Uses a tiny memtable so that the tests go through
+ * table flushes and compactions, not just the write-ahead log.
+ */
+public class LSMFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private LSMFullPrunedBlockStore store;
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        closeAndDelete();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        closeAndDelete();
+        directory = Files.createTempDir();
+        store = new LSMFullPrunedBlockStore(params, directory, blockCount, 64 * 1024, false);
+        return store;
+    }
+
+    private void closeAndDelete() throws BlockStoreException {
+        if (store != null)
+            store.close();
+        store = null;
+        if (directory != null) {
+            File[] files = directory.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            directory.delete();
+        }
+        directory = null;
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, every store is created in a fresh directory.
+    }
+}
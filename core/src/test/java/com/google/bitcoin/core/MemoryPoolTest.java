@@ -17,6 +17,8 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.SignatureCache;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.testing.FakeTxBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import org.junit.Before;
@@ -76,4 +78,43 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void verifiesReceivedTransactions() throws Exception {
+        SignatureCache originalCache = SignatureCache.getDefault();
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        SignatureCache.setDefault(cache);
+        try {
+            FullPrunedBlockChain chain = new FullPrunedBlockChain(params, new MemoryFullPrunedBlockStore(params, 10));
+            assertEquals(cache, SignatureCache.getDefault());
+            ECKey key = new ECKey();
+            Block block = params.getGenesisBlock().createNextBlockWithCoinbase(key.getPubKey());
+            TransactionOutput spendable = block.getTransactions().get(0).getOutput(0);
+            for (int i = 0; i < params.getSpendableCoinbaseDepth(); i++) {
+                assertTrue(chain.add(block));
+                block = block.createNextBlockWithCoinbase(key.getPubKey());
+            }
+            Transaction tx = new Transaction(params);
+            tx.addOutput(COIN, new ECKey().toAddress(params));
+            tx.addSignedInput(spendable, key);
+
+            MemoryPool pool = new MemoryPool();
+            pool.setVerifyingChain(chain);
+            // Only the transaction itself is checked, not its hash announced in an inv.
+            pool.seen(tx.getHash(), address1);
+            pool.seen(new Transaction(params, tx.bitcoinSerialize()), address2);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.size() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1, cache.size());
+
+            // Without a cache there is nothing to gain from checking.
+            SignatureCache.setDefault(null);
+            pool.seen(FakeTxBuilder.createFakeTx(params, COIN, key.toAddress(params)), address1);
+            pool.setVerifyingChain(null);
+            assertEquals(1, cache.size());
+        } finally {
+            SignatureCache.setDefault(originalCache);
+        }
+    }
 }
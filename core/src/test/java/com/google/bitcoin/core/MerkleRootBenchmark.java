@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast {@link MerkleRootCalculator} hashes the merkle trees of blocks with 1000 to 10000 transactions,
+ * on the calling thread alone and spread over the available processors, against a tree built as a list of arrays the
+ * way blocks used to. Not a unit test, run it by hand: {@code MerkleRootBenchmark [rounds]}.
+ */
+public class MerkleRootBenchmark {
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int processors = Runtime.getRuntime().availableProcessors();
+        MerkleRootCalculator serial = new MerkleRootCalculator(0, MerkleRootCalculator.DEFAULT_PARALLEL_THRESHOLD);
+        MerkleRootCalculator parallel = new MerkleRootCalculator(processors - 1, 2);
+        System.out.printf("%d processors%n", processors);
+        for (int round = 0; round < rounds; round++) {
+            for (int count = 1000; count <= 10000; count += 3000)
+                measure(serial, parallel, count, 200000 / count);
+        }
+        parallel.shutdown();
+    }
+
+    private static void measure(MerkleRootCalculator serial, MerkleRootCalculator parallel, int count, int iterations) {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] seed = new byte[4];
+            Utils.uint32ToByteArrayLE(i, seed, 0);
+            leaves.add(Sha256Hash.createDouble(seed));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            listRoot(leaves);
+        long lists = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            serial.calculate(leaves);
+        long flat = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            parallel.calculate(leaves);
+        long spread = System.nanoTime() - start;
+        System.out.printf("%5d txns   list %7.0f roots/sec, flat %7.0f roots/sec, parallel %7.0f roots/sec%n", count,
+                iterations * 1e9 / lists, iterations * 1e9 / flat, iterations * 1e9 / spread);
+    }
+
+    // The tree as Block used to build it, with every node in a list and reversed on the way in and out.
+    private static Sha256Hash listRoot(List<Sha256Hash> leaves) {
+        List<byte[]> tree = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            tree.add(leaf.getBytes());
+        int levelOffset = 0;
+        for (int levelSize = leaves.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
+                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
+                tree.add(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        return new Sha256Hash(tree.get(tree.size() - 1));
+    }
+}
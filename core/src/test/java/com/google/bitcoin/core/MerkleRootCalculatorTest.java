@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MerkleRootCalculatorTest {
+    @Test
+    public void matchesSimpleTree() {
+        MerkleRootCalculator serial = new MerkleRootCalculator(0, 2);
+        MerkleRootCalculator parallel = new MerkleRootCalculator(3, 2);
+        try {
+            for (int count = 1; count <= 70; count++) {
+                List<Sha256Hash> leaves = leaves(count);
+                Sha256Hash expected = simpleRoot(leaves);
+                assertEquals("count " + count, expected, serial.calculate(leaves));
+                assertEquals("count " + count, expected, parallel.calculate(leaves));
+            }
+            List<Sha256Hash> leaves = leaves(3001);
+            assertEquals(simpleRoot(leaves), parallel.calculate(leaves));
+            // Once shut down, the calling thread does all the work.
+            parallel.shutdown();
+            assertEquals(simpleRoot(leaves), parallel.calculate(leaves));
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void singleLeafAndKnownBlock() {
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        Sha256Hash coinbase = genesis.getTransactions().get(0).getHash();
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>();
+        leaves.add(coinbase);
+        assertEquals(genesis.getMerkleRoot(), MerkleRootCalculator.getDefault().calculate(leaves));
+    }
+
+    private static List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] seed = new byte[4];
+            Utils.uint32ToByteArrayLE(i, seed, 0);
+            leaves.add(Sha256Hash.createDouble(seed));
+        }
+        return leaves;
+    }
+
+    // The tree as the protocol describes it, one level at a time with the last node of odd levels repeated.
+    private static Sha256Hash simpleRoot(List<Sha256Hash> leaves) {
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            level.add(Utils.reverseBytes(leaf.getBytes()));
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] left = level.get(i);
+                byte[] right = level.get(Math.min(i + 1, level.size() - 1));
+                next.add(Utils.doubleDigestTwoBuffers(left, 0, 32, right, 0, 32));
+            }
+            level = next;
+        }
+        return new Sha256Hash(Utils.reverseBytes(level.get(0)));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.AbstractBlockChain.OrphanBlock;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OrphanPoolTest {
+    // No difficulty transitions in the way of the chains built here.
+    private static final NetworkParameters params = new UnitTestParams() {
+        @Override public int getInterval() {
+            return 10000;
+        }
+    };
+
+    private static List<Block> buildChain(Block from, int length) {
+        List<Block> chain = new ArrayList<Block>();
+        Block cursor = from;
+        for (int i = 0; i < length; i++) {
+            cursor = cursor.createNextBlock(null);
+            chain.add(cursor);
+        }
+        return chain;
+    }
+
+    private static List<OrphanBlock> buildOrphans(Block from, int length) {
+        List<OrphanBlock> orphans = new ArrayList<OrphanBlock>();
+        for (Block block : buildChain(from, length))
+            orphans.add(new OrphanBlock(block, false, null, null));
+        return orphans;
+    }
+
+    @Test
+    public void indexesByParent() {
+        OrphanPool pool = new OrphanPool(100, 100000);
+        Block genesis = params.getGenesisBlock();
+        List<OrphanBlock> chain = buildOrphans(genesis, 3);
+        List<OrphanBlock> fork = buildOrphans(chain.get(0).block, 2);
+        for (OrphanBlock orphan : chain)
+            assertTrue(pool.add(orphan));
+        for (OrphanBlock orphan : fork)
+            assertTrue(pool.add(orphan));
+        assertFalse(pool.add(chain.get(1)));
+        assertEquals(5, pool.size());
+        assertEquals(5 * Block.HEADER_SIZE, pool.getBytes());
+
+        assertEquals(Collections.singletonList(chain.get(0)), pool.getChildren(genesis.getHash()));
+        assertEquals(2, pool.getChildren(chain.get(0).block.getHash()).size());
+        assertEquals(chain.get(1), pool.getChildren(chain.get(0).block.getHash()).get(0));
+        assertEquals(fork.get(0), pool.getChildren(chain.get(0).block.getHash()).get(1));
+        assertTrue(pool.getChildren(chain.get(2).block.getHash()).isEmpty());
+
+        assertEquals(chain.get(1), pool.remove(chain.get(1).block.getHash()));
+        assertNull(pool.remove(chain.get(1).block.getHash()));
+        assertFalse(pool.contains(chain.get(1).block.getHash()));
+        assertEquals(Collections.singletonList(fork.get(0)), pool.getChildren(chain.get(0).block.getHash()));
+        assertEquals(4 * Block.HEADER_SIZE, pool.getBytes());
+    }
+
+    @Test
+    public void evictsOldestFirst() {
+        OrphanPool pool = new OrphanPool(3, 100000);
+        List<OrphanBlock> chain = buildOrphans(params.getGenesisBlock(), 5);
+        for (OrphanBlock orphan : chain)
+            pool.add(orphan);
+        assertEquals(3, pool.size());
+        assertEquals(2, pool.getEvicted());
+        assertFalse(pool.contains(chain.get(0).block.getHash()));
+        assertFalse(pool.contains(chain.get(1).block.getHash()));
+        assertTrue(pool.contains(chain.get(2).block.getHash()));
+        assertTrue(pool.getChildren(chain.get(0).block.getHash()).isEmpty());
+
+        // Limited by bytes, two headers fit.
+        pool = new OrphanPool(100, 2 * Block.HEADER_SIZE + 10);
+        for (OrphanBlock orphan : chain)
+            pool.add(orphan);
+        assertEquals(2, pool.size());
+        assertEquals(2 * Block.HEADER_SIZE, pool.getBytes());
+        assertTrue(pool.contains(chain.get(4).block.getHash()));
+        assertTrue(pool.contains(chain.get(3).block.getHash()));
+    }
+
+    @Test
+    public void connectsOutOfOrderBlocks() throws Exception {
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        List<Block> blocks = buildChain(params.getGenesisBlock(), 50);
+        List<Block> fork = buildChain(blocks.get(9), 3);
+        // Everything but the first block arrives, newest first.
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        for (Block block : fork)
+            assertFalse(chain.add(block));
+        assertEquals(52, chain.getOrphanCount());
+        assertTrue(chain.isOrphan(blocks.get(1).getHash()));
+        assertEquals(blocks.get(1).getHash(), chain.getOrphanRoot(blocks.get(30).getHash()).getHash());
+
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertEquals(52, chain.getOrphansConnected());
+        assertEquals(blocks.get(49).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void chainLimitsOrphans() throws Exception {
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        chain.setOrphanLimits(10, AbstractBlockChain.DEFAULT_MAX_ORPHAN_BYTES);
+        List<Block> blocks = buildChain(params.getGenesisBlock(), 20);
+        for (int i = 1; i < blocks.size(); i++)
+            chain.add(blocks.get(i));
+        assertEquals(10, chain.getOrphanCount());
+        assertEquals(9, chain.getOrphansEvicted());
+        // The blocks that are still there connect once the gap before them is filled.
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(10, chain.getOrphanCount());
+        for (int i = 1; i < 10; i++)
+            assertTrue(chain.add(blocks.get(i)));
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(blocks.get(19).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+}
@@ -21,11 +21,18 @@ public class PostgresFullPrunedBlockChainTest extends AbstractFullPrunedBlockCha
 
     // whether to run the test with a schema name
     private boolean useSchema = false;
+    // whether to create the store in bulk load mode
+    private boolean bulkLoad = false;
 
     @Override
     public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount)
             throws BlockStoreException {
-        if(useSchema) {
+        if(bulkLoad) {
+            // The test chains are far behind the current time, so the whole chain is bulk loaded.
+            return new PostgresFullPrunedBlockStore(params, "jdbc:postgresql://" + DB_HOSTNAME + "/" + DB_NAME,
+                    blockCount, DB_USERNAME, DB_PASSWORD, null, 10);
+        }
+        else if(useSchema) {
             return new PostgresFullPrunedBlockStore(params, blockCount, DB_HOSTNAME, DB_NAME, DB_USERNAME, DB_PASSWORD, DB_SCHEMA);
         }
         else {
@@ -48,4 +55,15 @@ public class PostgresFullPrunedBlockChainTest extends AbstractFullPrunedBlockCha
             useSchema = oldSchema;
         }
     }
+
+    @Test
+    public void testFirst100kBlocksWithBulkLoad() throws Exception {
+        boolean oldBulkLoad = bulkLoad;
+        bulkLoad = true;
+        try {
+            super.testFirst100KBlocks();
+        } finally {
+            bulkLoad = oldBulkLoad;
+        }
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.store.SPVBlockStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how fast a {@link BlockChain} syncs headers across several difficulty transition points, on a generated
+ * chain that uses the mainnet interval of 2016 blocks. Not a unit test, run it by hand:
+ * {@code RetargetSyncBenchmark [intervals] [rounds]}.
+ */
+public class RetargetSyncBenchmark {
+    private static class RetargetTestParams extends UnitTestParams {
+        private static final long serialVersionUID = 1L;
+
+        RetargetTestParams() {
+            interval = 2016;
+            // Blocks a second apart then keep the difficulty the same at every transition point.
+            targetTimespan = interval - 1;
+            maxTarget = Utils.decodeCompactBits(Block.EASIEST_DIFFICULTY_TARGET);
+            // Far enough back for the blocks, which are a second apart, not to end up in the future.
+            genesisBlock.setTime(Utils.currentTimeSeconds() - 30 * 24 * 60 * 60);
+            genesisBlock.solve();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int intervals = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        NetworkParameters params = new RetargetTestParams();
+        System.out.println("Building blocks ...");
+        List<Block> blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < intervals * params.getInterval(); i++) {
+            block = block.createNextBlock(null, block.getTimeSeconds() + 1).cloneAsHeader();
+            blocks.add(block);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            run("MemoryBlockStore", params, new MemoryBlockStore(params), blocks);
+            File file = File.createTempFile("retargetbenchmark", null);
+            file.delete();
+            SPVBlockStore spvStore = new SPVBlockStore(params, file);
+            run("SPVBlockStore", params, spvStore, blocks);
+            spvStore.close();
+            file.delete();
+            new File(file.getPath() + ".index").delete();
+        }
+    }
+
+    private static void run(String name, NetworkParameters params, BlockStore store, List<Block> blocks)
+            throws Exception {
+        BlockChain chain = new BlockChain(params, store);
+        long transitionNanos = 0;
+        long start = System.nanoTime();
+        for (Block block : blocks) {
+            boolean transition = (chain.getBestChainHeight() + 1) % params.getInterval() == 0;
+            long blockStart = transition ? System.nanoTime() : 0;
+            if (!chain.add(block))
+                throw new IllegalStateException("Block did not connect: " + block.getHashAsString());
+            if (transition)
+                transitionNanos += System.nanoTime() - blockStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        int transitions = blocks.size() / params.getInterval();
+        System.out.printf("%-16s %6d blocks in %5d ms, %6.0f blocks/sec, %4.2f ms per difficulty transition%n", name,
+                blocks.size(), elapsed / 1000000, blocks.size() * 1e9 / elapsed, transitionNanos / 1e6 / transitions);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.SignatureCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.bitcoin.core.Coin.COIN;
+
+/**
+ * Compares verifying the scripts of a block with a {@link ScriptVerifier}, one task per input, against one task per
+ * transaction on a fixed thread pool, as {@link FullPrunedBlockChain} used to. The blocks have either a few huge
+ * transactions or many small ones, with the same number of inputs in total. Not a unit test, run it by hand:
+ * {@code ScriptVerifierBenchmark [threads] [rounds]}.
+ */
+public class ScriptVerifierBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int INPUTS = 1200;
+
+    private static class SignedTransaction {
+        final Transaction tx;
+        final List<Script> prevOutScripts = new ArrayList<Script>();
+
+        SignedTransaction(ECKey key, int inputs) {
+            Transaction prevTx = new Transaction(params);
+            for (int i = 0; i < inputs; i++)
+                prevOutScripts.add(prevTx.addOutput(COIN, key.toAddress(params)).getScriptPubKey());
+            tx = new Transaction(params);
+            tx.addOutput(COIN.multiply(inputs), key.toAddress(params));
+            for (TransactionOutput prevOut : prevTx.getOutputs())
+                tx.addSignedInput(prevOut, key, Transaction.SigHash.ALL, true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        // Otherwise every round after the first only looks the signatures up.
+        SignatureCache.setDefault(null);
+        ECKey key = new ECKey();
+        System.out.println("Signing transactions ...");
+        List<SignedTransaction> huge = new ArrayList<SignedTransaction>();
+        for (int i = 0; i < 3; i++)
+            huge.add(new SignedTransaction(key, INPUTS / 3));
+        List<SignedTransaction> small = new ArrayList<SignedTransaction>();
+        for (int i = 0; i < INPUTS / 2; i++)
+            small.add(new SignedTransaction(key, 2));
+        List<List<SignedTransaction>> blocks = new ArrayList<List<SignedTransaction>>();
+        blocks.add(huge);
+        blocks.add(small);
+
+        ScriptVerifier verifier = new ScriptVerifier(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        for (int round = 0; round < rounds; round++) {
+            for (List<SignedTransaction> block : blocks) {
+                String name = block == huge ? "3 huge txns" : INPUTS / 2 + " small txns";
+                long start = System.nanoTime();
+                ScriptVerifier.Batch batch = verifier.newBatch();
+                for (SignedTransaction tx : block)
+                    for (int index = 0; index < tx.prevOutScripts.size(); index++)
+                        batch.add(tx.tx, index, tx.prevOutScripts.get(index), true);
+                batch.await();
+                report(name, "per input", threads, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final SignedTransaction tx : block) {
+                    futures.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            for (int index = 0; index < tx.prevOutScripts.size(); index++)
+                                tx.tx.getInput(index).getScriptSig().correctlySpends(tx.tx, index,
+                                        tx.prevOutScripts.get(index), true);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get();
+                report(name, "per transaction", Math.max(1, threads), System.nanoTime() - start);
+            }
+        }
+        pool.shutdown();
+        verifier.shutdown();
+    }
+
+    private static void report(String block, String scheduling, int threads, long nanos) {
+        System.out.printf("%-16s %-16s %2d threads: %5d ms, %6.0f inputs/sec%n", block, scheduling, threads,
+                nanos / 1000000, INPUTS * 1e9 / nanos);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.script.SignatureCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.bitcoin.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class ScriptVerifierTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private SignatureCache originalCache;
+    private ECKey key;
+    private Transaction tx;
+    private List<Script> prevOutScripts;
+
+    @Before
+    public void setUp() {
+        // Make every run check the signatures.
+        originalCache = SignatureCache.getDefault();
+        SignatureCache.setDefault(null);
+        key = new ECKey();
+        Transaction prevTx = new Transaction(params);
+        tx = new Transaction(params);
+        prevOutScripts = new ArrayList<Script>();
+        for (int i = 0; i < 20; i++) {
+            TransactionOutput prevOut = prevTx.addOutput(COIN, key.toAddress(params));
+            prevOutScripts.add(prevOut.getScriptPubKey());
+        }
+        tx.addOutput(COIN.multiply(20), new ECKey().toAddress(params));
+        for (TransactionOutput prevOut : prevTx.getOutputs())
+            tx.addSignedInput(prevOut, key, Transaction.SigHash.ALL, true);
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(originalCache);
+    }
+
+    private void verify(ScriptVerifier verifier, List<Script> scripts) throws VerificationException {
+        ScriptVerifier.Batch batch = verifier.newBatch();
+        for (int index = 0; index < scripts.size(); index++)
+            batch.add(tx, index, scripts.get(index), true);
+        batch.await();
+    }
+
+    private void checkVerifier(ScriptVerifier verifier) throws Exception {
+        verify(verifier, prevOutScripts);
+        // An input spending an output of another key fails the batch.
+        List<Script> wrong = new ArrayList<Script>(prevOutScripts);
+        wrong.set(13, ScriptBuilder.createOutputScript(new ECKey().toAddress(params)));
+        try {
+            verify(verifier, wrong);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        // The threads are still there for the next batch.
+        verify(verifier, prevOutScripts);
+    }
+
+    @Test
+    public void verifiesOnPool() throws Exception {
+        ScriptVerifier verifier = new ScriptVerifier(3);
+        assertEquals(3, verifier.getThreads());
+        checkVerifier(verifier);
+        verifier.shutdown();
+        // Once shut down, the waiting thread does all the work.
+        verify(verifier, prevOutScripts);
+    }
+
+    @Test
+    public void verifiesInThread() throws Exception {
+        checkVerifier(new ScriptVerifier(0));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        ScriptVerifier.Batch batch = new ScriptVerifier(0).newBatch();
+        batch.add(tx, 0, ScriptBuilder.createOutputScript(new ECKey().toAddress(params)), true);
+        batch.cancel();
+        batch.await();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.bitcoin.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class Sha256Test {
+    private static final byte[] ABC = "abc".getBytes(Charsets.US_ASCII);
+    private static final String ABC_HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    public void knownVectors() {
+        assertEquals(ABC_HASH, HEX.encode(Sha256.hash(ABC)));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                HEX.encode(Sha256.hash(new byte[0])));
+        assertEquals("4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358",
+                HEX.encode(Sha256.hashTwice(ABC)));
+        assertArrayEquals(Sha256.hash(Sha256.hash(ABC)), Sha256.hashTwice(ABC));
+    }
+
+    @Test
+    public void rangesAndBuffers() {
+        byte[] padded = new byte[] { 9, 9, 'a', 'b', 'c', 9 };
+        assertEquals(ABC_HASH, HEX.encode(Sha256.hash(padded, 2, 3)));
+        assertArrayEquals(Sha256.hashTwice(ABC), Sha256.hashTwice(padded, 2, 3));
+        assertArrayEquals(Sha256.hashTwice(ABC), Sha256.hashTwice(padded, 2, 1, padded, 3, 2));
+
+        // The hash can be written over its own input.
+        byte[] nodes = new byte[64];
+        nodes[63] = 1;
+        byte[] expected = Sha256.hashTwice(nodes);
+        Sha256.hashTwice(nodes, 0, 32, nodes, 32, 32, nodes, 0);
+        assertArrayEquals(expected, Arrays.copyOf(nodes, 32));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+        direct.put(padded).position(2).limit(5);
+        assertArrayEquals(Sha256.hashTwice(ABC), Sha256.hashTwice(direct));
+        assertEquals(5, direct.position());
+        direct.position(2);
+        assertEquals(ABC_HASH, HEX.encode(Sha256.hash(direct)));
+    }
+
+    @Test
+    public void midstate() throws Exception {
+        // Carrying on from the midstate of the genesis header without its nonce gives the genesis block hash.
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        byte[] header = Arrays.copyOf(genesis.bitcoinSerialize(), Block.HEADER_SIZE);
+        Sha256.State prefix = Sha256.newState().update(header, 0, Block.HEADER_SIZE - 4);
+        byte[] hash = prefix.hashTwice(header, Block.HEADER_SIZE - 4, 4);
+        assertEquals(genesis.getHash(), new Sha256Hash(Utils.reverseBytes(hash)));
+        // The prefix isn't changed by that, so it can be finished again with a different nonce.
+        header[Block.HEADER_SIZE - 1] ^= 1;
+        assertArrayEquals(Sha256.hashTwice(header), prefix.hashTwice(header, Block.HEADER_SIZE - 4, 4));
+
+        // Copies carry on independently, and a finished state starts from scratch.
+        Sha256.State state = Sha256.newState();
+        state.write('a');
+        Sha256.State copy = state.copy();
+        state.write(new byte[] { 'b', 'c' });
+        assertEquals(ABC_HASH, HEX.encode(state.hash()));
+        copy.update(ByteBuffer.wrap(new byte[] { 'b', 'c' }));
+        assertArrayEquals(Sha256.hashTwice(ABC), copy.hashTwice());
+        assertEquals(ABC_HASH, HEX.encode(state.update(ABC, 0, 3).hash()));
+    }
+
+    @Test
+    public void threads() throws Exception {
+        final byte[] input = new byte[10000];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) i;
+        final byte[] expected = Sha256.newState().update(input, 0, input.length).hashTwice();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Callable<Boolean> task = new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int i = 0; i < 200; i++) {
+                        if (!Arrays.equals(expected, Sha256.hashTwice(input)))
+                            return false;
+                    }
+                    return true;
+                }
+            };
+            Future<?>[] results = new Future<?>[8];
+            for (int i = 0; i < results.length; i++)
+                results[i] = executor.submit(task);
+            for (Future<?> result : results)
+                assertEquals(true, result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the heap taken up by a {@link StoredBlock} read from its compact form, the way {@link
+ * com.google.bitcoin.store.SPVBlockStore} reads them, how fast {@link StoredBlock#build(Block)} chains headers, and how
+ * fast a {@link BlockChain} on a {@link MemoryBlockStore} syncs them. Not a unit test, run it by hand with a fixed heap
+ * size for stable numbers: {@code StoredBlockBenchmark [headers] [rounds]}.
+ */
+public class StoredBlockBenchmark {
+    private static class BenchmarkParams extends UnitTestParams {
+        private static final long serialVersionUID = 1L;
+
+        BenchmarkParams(int count) {
+            // No difficulty transitions, and a genesis block far enough back for blocks a second apart to fit.
+            interval = Integer.MAX_VALUE;
+            genesisBlock.setTime(Utils.currentTimeSeconds() - count - 60);
+            genesisBlock.solve();
+        }
+    }
+
+    private static NetworkParameters params;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        params = new BenchmarkParams(count);
+        System.out.println("Building headers ...");
+        List<Block> headers = new ArrayList<Block>();
+        Block block = params.getGenesisBlock().cloneAsHeader();
+        for (int i = 0; i < count; i++) {
+            block = block.createNextBlock(null, block.getTimeSeconds() + 1).cloneAsHeader();
+            headers.add(block);
+        }
+        ByteBuffer records = ByteBuffer.allocate(count * StoredBlock.COMPACT_SERIALIZED_SIZE);
+        StoredBlock stored = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        for (Block header : headers) {
+            stored = stored.build(header);
+            stored.serializeCompact(records);
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            measureHeap(records, count);
+            measureBuild(headers);
+            measureSync(headers);
+        }
+    }
+
+    private static void measureHeap(ByteBuffer records, int count) throws Exception {
+        StoredBlock[] blocks = new StoredBlock[count];
+        long before = usedHeap();
+        records.rewind();
+        for (int i = 0; i < count; i++)
+            blocks[i] = StoredBlock.deserializeCompact(params, records);
+        long after = usedHeap();
+        System.out.printf("heap  %4d bytes per stored header%n", (after - before) / count);
+        if (blocks[count - 1].getHeight() != count)
+            throw new IllegalStateException();
+    }
+
+    private static void measureBuild(List<Block> headers) throws Exception {
+        long start = System.nanoTime();
+        StoredBlock stored = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        for (Block header : headers)
+            stored = stored.build(header);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("build %8.0f headers/sec%n", headers.size() * 1e9 / elapsed);
+    }
+
+    private static void measureSync(List<Block> headers) throws Exception {
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        long start = System.nanoTime();
+        for (Block header : headers) {
+            if (!chain.add(header))
+                throw new IllegalStateException("Block did not connect: " + header.getHashAsString());
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("sync  %8.0f headers/sec%n", headers.size() * 1e9 / elapsed);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class StoredBlockTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void headerFields() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        Block next = genesis.createNextBlock(new ECKey().toAddress(params));
+        StoredBlock stored = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0).build(next);
+        assertEquals(next.getHash(), stored.getHash());
+        assertEquals(genesis.getHash(), stored.getPrevBlockHash());
+        assertEquals(next.getTimeSeconds(), stored.getTimeSeconds());
+        assertEquals(next.getDifficultyTarget(), stored.getDifficultyTarget());
+        assertEquals(1, stored.getHeight());
+        // Only the header is kept.
+        Block header = stored.getHeader();
+        assertEquals(next.cloneAsHeader(), header);
+        assertNull(header.transactions);
+        assertEquals(next.getMerkleRoot(), header.getMerkleRoot());
+        assertEquals(next.getNonce(), header.getNonce());
+        assertArrayEquals(next.cloneAsHeader().bitcoinSerialize(), header.bitcoinSerialize());
+    }
+
+    @Test
+    public void chainWorkCarries() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        BigInteger work = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        StoredBlock stored = new StoredBlock(genesis.cloneAsHeader(), work, 0);
+        assertEquals(work, stored.getChainWork());
+        Block next = genesis.createNextBlock(null);
+        StoredBlock built = stored.build(next);
+        assertEquals(work.add(next.getWork()), built.getChainWork());
+        assertTrue(built.moreWorkThan(stored));
+        assertFalse(stored.moreWorkThan(built));
+        assertFalse(built.moreWorkThan(built));
+
+        BigInteger maxWork = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        StoredBlock max = new StoredBlock(genesis.cloneAsHeader(), maxWork, 0);
+        try {
+            max.build(next);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        BigInteger work = BigInteger.ONE.shiftLeft(90).add(BigInteger.valueOf(12345));
+        StoredBlock stored = new StoredBlock(genesis.cloneAsHeader(), work, 0).build(genesis.createNextBlock(null));
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        stored.serializeCompact(buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.rewind();
+        StoredBlock read = StoredBlock.deserializeCompact(params, buffer);
+        assertEquals(stored, read);
+        assertEquals(stored.getChainWork(), read.getChainWork());
+        assertEquals(stored.getHash(), read.getHash());
+
+        // The layout is unchanged: big endian chain work, height, then the header.
+        buffer.rewind();
+        byte[] chainWork = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        buffer.get(chainWork);
+        assertEquals(stored.getChainWork(), new BigInteger(1, chainWork));
+        assertEquals(1, buffer.getInt());
+
+        StoredBlock tooMuch = new StoredBlock(genesis.cloneAsHeader(), BigInteger.ONE.shiftLeft(96), 0);
+        try {
+            tooMuch.serializeCompact(ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionOutputChangesTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static TransactionOutputChanges createChanges() {
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        Sha256Hash coinbase = Sha256Hash.create(new byte[] { 1 });
+        created.add(new StoredTransactionOutput(coinbase, 0, Coin.valueOf(50, 0), 1000, true,
+                ScriptBuilder.createOutputScript(new ECKey().decompress()).getProgram()));
+        Sha256Hash tx = Sha256Hash.create(new byte[] { 2 });
+        for (int i = 0; i < 3; i++)
+            created.add(new StoredTransactionOutput(tx, i, Coin.valueOf(12345678 + i), 1000, false,
+                    ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram()));
+        spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] { 3 }), 7, Coin.ZERO, 900, false,
+                new byte[] { 1, 2, 3 }));
+        spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] { 4 }), 70000, Coin.CENT, 10, true,
+                ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram()));
+        return new TransactionOutputChanges(created, spent);
+    }
+
+    private static void assertOutputsEqual(List<StoredTransactionOutput> expected, List<StoredTransactionOutput> actual) {
+        assertEquals(expected.size(), actual.size());
+        Iterator<StoredTransactionOutput> it = actual.iterator();
+        for (StoredTransactionOutput out : expected) {
+            StoredTransactionOutput read = it.next();
+            assertEquals(out.getHash(), read.getHash());
+            assertEquals(out.getIndex(), read.getIndex());
+            assertEquals(out.getValue(), read.getValue());
+            assertEquals(out.getHeight(), read.getHeight());
+            assertArrayEquals(out.getScriptBytes(), read.getScriptBytes());
+        }
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeToStream(bos);
+        TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(bos.toByteArray()));
+        assertOutputsEqual(changes.txOutsCreated, read.txOutsCreated);
+        assertOutputsEqual(changes.txOutsSpent, read.txOutsSpent);
+        // The uncompressed key of the coinbase output is kept whole, the rest shrinks.
+        assertTrue(bos.size() < legacyBytes(changes).length * 3 / 4);
+    }
+
+    @Test
+    public void readsLegacyFormat() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(legacyBytes(changes)));
+        assertOutputsEqual(changes.txOutsCreated, read.txOutsCreated);
+        assertOutputsEqual(changes.txOutsSpent, read.txOutsSpent);
+    }
+
+    @Test
+    public void rejectsUnknownVersion() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        createChanges().serializeToStream(bos);
+        byte[] bytes = bos.toByteArray();
+        bytes[4] = 2;
+        try {
+            new TransactionOutputChanges(new ByteArrayInputStream(bytes));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void amountCompression() {
+        long[] values = { 0, 1, 9, 10, 50 * 100000000L, 12345678, 2099999997690000L, 21000000L * 100000000L,
+                1000000000L, 999999999L };
+        for (long value : values)
+            assertEquals(value, StoredTransactionOutput.decompressAmount(StoredTransactionOutput.compressAmount(value)));
+        assertEquals(0, StoredTransactionOutput.compressAmount(0));
+        assertEquals(50, StoredTransactionOutput.compressAmount(50 * 100000000L));
+        for (long value = 0; value < 100000; value++)
+            assertEquals(value, StoredTransactionOutput.decompressAmount(StoredTransactionOutput.compressAmount(value)));
+    }
+
+    private static byte[] legacyBytes(TransactionOutputChanges changes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeLegacy(bos, changes.txOutsCreated);
+        writeLegacy(bos, changes.txOutsSpent);
+        return bos.toByteArray();
+    }
+
+    private static void writeLegacy(ByteArrayOutputStream bos, List<StoredTransactionOutput> outputs) throws IOException {
+        Utils.uint32ToByteStreamLE(outputs.size(), bos);
+        for (StoredTransactionOutput output : outputs)
+            output.serializeToStream(bos);
+    }
+}
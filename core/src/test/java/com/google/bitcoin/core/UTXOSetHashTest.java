@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import static com.google.bitcoin.core.Coin.COIN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class UTXOSetHashTest {
+    private final StoredTransactionOutput a = output(1, 0, COIN);
+    private final StoredTransactionOutput b = output(1, 1, COIN);
+    private final StoredTransactionOutput c = output(2, 0, COIN.multiply(2));
+
+    private static StoredTransactionOutput output(int tx, int index, Coin value) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) tx;
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, value, 10, false, new byte[] { 0x51 });
+    }
+
+    private static UTXOSetHash hashOf(StoredTransactionOutput... outputs) {
+        UTXOSetHash hash = new UTXOSetHash();
+        for (StoredTransactionOutput output : outputs)
+            hash.add(output);
+        return hash;
+    }
+
+    @Test
+    public void orderDoesNotMatter() {
+        assertEquals(hashOf(a, b, c).getHash(), hashOf(c, a, b).getHash());
+        assertEquals(3, hashOf(c, a, b).size());
+        assertFalse(hashOf(a, b).getHash().equals(hashOf(a, c).getHash()));
+        assertFalse(hashOf().getHash().equals(hashOf(a).getHash()));
+    }
+
+    @Test
+    public void everyFieldCounts() {
+        Sha256Hash hash = hashOf(a).getHash();
+        assertFalse(hash.equals(hashOf(output(1, 0, COIN.add(Coin.SATOSHI))).getHash()));
+        // Only coinbases keep their height.
+        StoredTransactionOutput early = new StoredTransactionOutput(a.getHash(), 0, COIN, 10, true, a.getScriptBytes());
+        StoredTransactionOutput later = new StoredTransactionOutput(a.getHash(), 0, COIN, 11, true, a.getScriptBytes());
+        assertFalse(hashOf(early).getHash().equals(hashOf(later).getHash()));
+        assertFalse(hash.equals(hashOf(new StoredTransactionOutput(a.getHash(), 0, COIN, 10, false,
+                new byte[] { 0x52 })).getHash()));
+    }
+
+    @Test
+    public void removeUndoesAdd() {
+        UTXOSetHash hash = hashOf(a, b, c);
+        hash.remove(b);
+        assertEquals(hashOf(a, c).getHash(), hash.getHash());
+        assertEquals(2, hash.size());
+        hash.remove(a);
+        hash.remove(c);
+        assertEquals(new UTXOSetHash().getHash(), hash.getHash());
+        // Removals may come before the additions they cancel.
+        hash.remove(b);
+        hash.add(b);
+        assertEquals(new UTXOSetHash().getHash(), hash.getHash());
+        assertEquals(0, hash.size());
+    }
+
+    @Test
+    public void addAllAndCopies() {
+        UTXOSetHash hash = hashOf(a);
+        UTXOSetHash copy = new UTXOSetHash(hash);
+        UTXOSetHash other = hashOf(b, c);
+        other.remove(c);
+        hash.addAll(other);
+        assertEquals(hashOf(a, b).getHash(), hash.getHash());
+        assertEquals(2, hash.size());
+        // The copy didn't change along with the original.
+        assertEquals(hashOf(a).getHash(), copy.getHash());
+        assertEquals(1, copy.size());
+    }
+
+    @Test
+    public void hashesStore() throws Exception {
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(UnitTestParams.get(), 10);
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(c);
+        store.removeUnspentTransactionOutput(b);
+        UTXOSetHash hash = UTXOSetHash.of(store);
+        assertEquals(hashOf(c, a).getHash(), hash.getHash());
+        assertEquals(2, hash.size());
+    }
+}
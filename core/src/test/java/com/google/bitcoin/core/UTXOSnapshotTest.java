@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class UTXOSnapshotTest {
+    // Generated chains don't change difficulty.
+    private static final NetworkParameters params = new UnitTestParams() {
+        @Override public int getInterval() {
+            return 10000;
+        }
+    };
+
+    private MemoryFullPrunedBlockStore sourceStore;
+    private UTXOSetHash exported;
+    private byte[] snapshot;
+    private MemoryFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        sourceStore = new MemoryFullPrunedBlockStore(params, 10);
+        FullPrunedBlockChain sourceChain = new FullPrunedBlockChain(params, sourceStore);
+        for (byte[] bytes : FullPrunedReplayBenchmark.generateBlocks(params, 20, 3))
+            assertTrue(sourceChain.add(new Block(params, bytes)));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        exported = new UTXOSnapshot(params).export(sourceStore, bos);
+        snapshot = bos.toByteArray();
+        store = new MemoryFullPrunedBlockStore(params, 10);
+    }
+
+    private UTXOSetHash importSnapshot(byte[] bytes, Sha256Hash trustedHash) throws Exception {
+        return new UTXOSnapshot(params).importInto(store, new ByteArrayInputStream(bytes), trustedHash);
+    }
+
+    private void assertRejected(byte[] bytes, Sha256Hash trustedHash, String message) throws Exception {
+        try {
+            importSnapshot(bytes, trustedHash);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+        assertEquals(0, store.getChainHead().getHeight());
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+    }
+
+    // The snapshot starts with its magic, version, network id and the number of headers, each of which is one byte
+    // long or takes a one byte length here.
+    private int headersOffset() {
+        return 4 + 1 + 1 + params.getId().length() + 1;
+    }
+
+    private int headerCount() {
+        return snapshot[headersOffset() - 1];
+    }
+
+    private int chunksOffset() {
+        return headersOffset() + headerCount() * StoredBlock.COMPACT_SERIALIZED_SIZE;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        assertEquals(UTXOSetHash.of(sourceStore).getHash(), exported.getHash());
+        // The chain is shorter than a difficulty interval, so all of it is in the snapshot.
+        assertEquals(21, headerCount());
+        UTXOSetHash imported = importSnapshot(snapshot, exported.getHash());
+        assertEquals(exported.getHash(), imported.getHash());
+        assertEquals(exported.size(), imported.size());
+        assertEquals(UTXOSetHash.of(store).getHash(), imported.getHash());
+        assertEquals(sourceStore.getVerifiedChainHead(), store.getVerifiedChainHead());
+        assertEquals(sourceStore.getChainHead(), store.getChainHead());
+        // The headers before the head are there for the checks of the blocks that follow.
+        StoredBlock cursor = store.getChainHead();
+        for (int i = 1; i < headerCount(); i++)
+            cursor = cursor.getPrev(store);
+        assertEquals(params.getGenesisBlock().getHash(), cursor.getHeader().getHash());
+    }
+
+    @Test
+    public void rejectsHashMismatch() throws Exception {
+        // A set hash other than the trusted one.
+        assertRejected(snapshot, Sha256Hash.ZERO_HASH, "is not the trusted");
+        // A set hash that doesn't match the outputs.
+        byte[] bytes = snapshot.clone();
+        bytes[bytes.length - 1] ^= 1;
+        assertRejected(bytes, null, "don't match its set hash");
+    }
+
+    @Test
+    public void rejectsTamperedOutputs() throws Exception {
+        // Change the transaction hash of the first output and fix up the chunk checksum, so only the set hash can
+        // tell.
+        byte[] bytes = snapshot.clone();
+        int offset = chunksOffset();
+        offset += new VarInt(bytes, offset).getOriginalSizeInBytes();
+        int length = (int) Utils.readUint32(bytes, offset);
+        offset += 4;
+        bytes[offset] ^= 1;
+        byte[] body = new byte[length];
+        System.arraycopy(bytes, offset, body, 0, length);
+        System.arraycopy(Sha256Hash.createDouble(body).getBytes(), 0, bytes, offset + length, 4);
+        assertRejected(bytes, null, "don't match its set hash");
+        // Without fixing up the checksum.
+        bytes = snapshot.clone();
+        bytes[offset] ^= 1;
+        assertRejected(bytes, null, "bad checksum");
+    }
+
+    @Test
+    public void rejectsWrongChainWork() throws Exception {
+        // One more unit of work on the head than its header has, which still leaves it above its parent.
+        byte[] bytes = snapshot.clone();
+        int chainWork = chunksOffset() - StoredBlock.COMPACT_SERIALIZED_SIZE;
+        bytes[chainWork + StoredBlock.CHAIN_WORK_BYTES - 1] ^= 1;
+        assertRejected(bytes, null, "wrong chain work");
+    }
+
+    @Test
+    public void rejectsBadProofOfWork() throws Exception {
+        // Make the head claim a far harder target than its hash meets.
+        byte[] bytes = snapshot.clone();
+        int header = chunksOffset() - Block.HEADER_SIZE;
+        Utils.uint32ToByteArrayLE(0x1d00ffffL, bytes, header + 72);
+        assertRejected(bytes, null, "Hash is higher than target");
+    }
+}
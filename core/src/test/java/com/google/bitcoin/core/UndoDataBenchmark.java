@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import com.google.bitcoin.utils.BlockFileLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the size of the undo data written by {@link TransactionOutputChanges#serializeToStream(java.io.OutputStream)}
+ * with the older format that stored every output in full, and how fast each is written and read. The undo data comes
+ * from replaying the same blocks as {@link FullPrunedReplayBenchmark}. Not a unit test, run it by hand:
+ * {@code UndoDataBenchmark [rounds]}.
+ */
+public class UndoDataBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        NetworkParameters mainNet = MainNetParams.get();
+        File blockFile = new File(UndoDataBenchmark.class.getResource("first-100k-blocks.dat").getFile());
+        List<byte[]> mainNetBlocks = new ArrayList<byte[]>();
+        for (Block block : new BlockFileLoader(mainNet, Arrays.asList(blockFile)))
+            mainNetBlocks.add(block.bitcoinSerialize());
+        NetworkParameters unitTest = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        System.out.println("Building blocks ...");
+        List<byte[]> generatedBlocks = FullPrunedReplayBenchmark.generateBlocks(unitTest, 200, 50);
+        List<TransactionOutputChanges> mainNetChanges = replay(mainNet, mainNetBlocks);
+        List<TransactionOutputChanges> generatedChanges = replay(unitTest, generatedBlocks);
+
+        for (int round = 0; round < rounds; round++) {
+            measure("main net", mainNetChanges);
+            measure("generated", generatedChanges);
+        }
+    }
+
+    private static List<TransactionOutputChanges> replay(NetworkParameters params, List<byte[]> blocks)
+            throws Exception {
+        final List<TransactionOutputChanges> changes = new ArrayList<TransactionOutputChanges>();
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(params, blocks.size() + 1) {
+            @Override
+            public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+                    throws BlockStoreException {
+                if (undoableBlock.getTxOutChanges() != null)
+                    changes.add(undoableBlock.getTxOutChanges());
+                super.put(storedBlock, undoableBlock);
+            }
+        };
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        for (byte[] bytes : blocks)
+            chain.add(new Block(params, bytes));
+        return changes;
+    }
+
+    private static void measure(String name, List<TransactionOutputChanges> changes) throws IOException {
+        List<byte[]> legacy = new ArrayList<byte[]>(changes.size());
+        long start = System.nanoTime();
+        long legacyBytes = 0;
+        for (TransactionOutputChanges change : changes) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            writeLegacy(bos, change.txOutsCreated);
+            writeLegacy(bos, change.txOutsSpent);
+            legacy.add(bos.toByteArray());
+            legacyBytes += bos.size();
+        }
+        long legacyWrite = System.nanoTime() - start;
+
+        List<byte[]> compact = new ArrayList<byte[]>(changes.size());
+        start = System.nanoTime();
+        long compactBytes = 0;
+        for (TransactionOutputChanges change : changes) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            change.serializeToStream(bos);
+            compact.add(bos.toByteArray());
+            compactBytes += bos.size();
+        }
+        long compactWrite = System.nanoTime() - start;
+
+        long legacyRead = read(legacy);
+        long compactRead = read(compact);
+        System.out.printf("%-9s  legacy  %8d bytes, write %8.0f blocks/sec, read %8.0f blocks/sec%n", name,
+                legacyBytes, changes.size() * 1e9 / legacyWrite, changes.size() * 1e9 / legacyRead);
+        System.out.printf("%-9s  compact %8d bytes, write %8.0f blocks/sec, read %8.0f blocks/sec, %.0f%% of legacy%n",
+                name, compactBytes, changes.size() * 1e9 / compactWrite, changes.size() * 1e9 / compactRead,
+                compactBytes * 100.0 / legacyBytes);
+    }
+
+    private static long read(List<byte[]> serialized) throws IOException {
+        long start = System.nanoTime();
+        for (byte[] bytes : serialized)
+            new TransactionOutputChanges(new ByteArrayInputStream(bytes));
+        return System.nanoTime() - start;
+    }
+
+    private static void writeLegacy(ByteArrayOutputStream bos, List<StoredTransactionOutput> outputs)
+            throws IOException {
+        Utils.uint32ToByteStreamLE(outputs.size(), bos);
+        for (StoredTransactionOutput output : outputs)
+            output.serializeToStream(bos);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void recyclesBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(4096, 8192);
+        ByteBuffer small = pool.acquire(10);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, small.capacity());
+        assertTrue(small.isDirect());
+        ByteBuffer medium = pool.acquire(1000);
+        assertEquals(1024, medium.capacity());
+        assertEquals(2, pool.getAllocations());
+
+        small.put((byte) 1);
+        pool.release(small);
+        pool.release(medium);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE + 1024, pool.getPooledBytes());
+        ByteBuffer again = pool.acquire(200);
+        assertSame(small, again);
+        assertEquals(0, again.position());
+        assertSame(medium, pool.acquire(513));
+        assertEquals(2, pool.getAllocations());
+        assertEquals(0, pool.getPooledBytes());
+
+        // Buffers larger than the pool keeps aren't counted or taken back, and the pool stays within its limit.
+        ByteBuffer large = pool.acquire(5000);
+        assertEquals(5000, large.capacity());
+        pool.release(large);
+        assertEquals(0, pool.getPooledBytes());
+        ByteBuffer[] full = { pool.acquire(4096), pool.acquire(4096), pool.acquire(4096) };
+        for (ByteBuffer buffer : full)
+            pool.release(buffer);
+        assertEquals(8192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void sharedBufferGoesBackAfterLastRelease() {
+        ByteBufferPool pool = new ByteBufferPool(4096, 8192);
+        ByteBuffer buffer = pool.acquire(100);
+        buffer.put(new byte[] { 1, 2, 3 }).flip();
+        SharedByteBuffer shared = new SharedByteBuffer(buffer, pool);
+        assertEquals(3, shared.size());
+
+        ByteBuffer first = shared.retain().duplicate();
+        ByteBuffer second = shared.duplicate();
+        assertEquals(1, first.get());
+        assertEquals(1, second.get());
+        assertEquals(2, first.get());
+        assertTrue(first.isReadOnly());
+
+        shared.release();
+        assertEquals(0, pool.getPooledBytes());
+        shared.release();
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.getPooledBytes());
+        try {
+            shared.retain();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void writesToAnyTarget() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(4096, 8192);
+        ByteBuffer buffer = pool.acquire(100);
+        buffer.put(new byte[] { 1, 2, 3 }).flip();
+        SharedByteBuffer shared = new SharedByteBuffer(buffer, pool);
+
+        // A target that only takes arrays gets a copy, and the reference it was handed is released straight away.
+        final List<byte[]> written = new ArrayList<byte[]>();
+        MessageWriteTarget arrays = new MessageWriteTarget() {
+            @Override
+            public void writeBytes(byte[] message) {
+                written.add(message);
+            }
+
+            @Override
+            public void closeConnection() {
+            }
+        };
+        shared.retain().writeTo(arrays);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, written.get(0));
+        assertEquals(0, pool.getPooledBytes());
+
+        // A target that takes shared buffers gets the buffer itself, along with the reference.
+        final List<SharedByteBuffer> shares = new ArrayList<SharedByteBuffer>();
+        SharedBufferWriteTarget sharing = new SharedBufferWriteTarget() {
+            @Override
+            public void writeBytes(SharedByteBuffer message) {
+                shares.add(message);
+            }
+
+            @Override
+            public void writeBytes(byte[] message) {
+                fail();
+            }
+
+            @Override
+            public void closeConnection() {
+            }
+        };
+        shared.retain().writeTo(sharing);
+        assertSame(shared, shares.get(0));
+        shared.release();
+        assertEquals(0, pool.getPooledBytes());
+        shares.get(0).release();
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ScriptCompressorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static byte[] roundTrip(byte[] script, int expectedSize) throws Exception {
+        byte[] compressed = ScriptCompressor.compress(script);
+        assertEquals(expectedSize, compressed.length);
+        byte[] decompressed = ScriptCompressor.decompress(compressed);
+        assertArrayEquals(script, decompressed);
+        return compressed;
+    }
+
+    @Test
+    public void standardTemplates() throws Exception {
+        ECKey key = new ECKey();
+        assertEquals(0, roundTrip(ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram(), 21)[0]);
+        assertEquals(1, roundTrip(ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram(), 21)[0]);
+        byte[] compressedKey = key.getPubKey();
+        assertEquals(compressedKey[0], roundTrip(ScriptBuilder.createOutputScript(key).getProgram(), 33)[0]);
+    }
+
+    @Test
+    public void uncompressedKeysLeftWhole() throws Exception {
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().decompress()).getProgram();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ScriptCompressor.compress(script, bos);
+        assertEquals(68, bos.size());
+        assertArrayEquals(script, ScriptCompressor.decompress(bos.toByteArray()));
+        assertArrayEquals(bos.toByteArray(), ScriptCompressor.compress(script));
+    }
+
+    @Test(expected = IOException.class)
+    public void compressedUncompressedKeysNotSupported() throws Exception {
+        byte[] compressed = new byte[33];
+        compressed[0] = 4;
+        ScriptCompressor.decompress(compressed);
+    }
+
+    @Test
+    public void otherScripts() throws Exception {
+        roundTrip(new byte[0], 1);
+        roundTrip(new byte[] { (byte) ScriptOpCodes.OP_RETURN, 1, 2 }, 4);
+        byte[] large = new byte[300];
+        Arrays.fill(large, (byte) ScriptOpCodes.OP_NOP);
+        roundTrip(large, 303);
+        // A pay to address script with a non-minimal push can't be rebuilt from the hash alone.
+        byte[] address = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        byte[] pushData = new byte[26];
+        pushData[0] = address[0];
+        pushData[1] = address[1];
+        pushData[2] = (byte) ScriptOpCodes.OP_PUSHDATA1;
+        System.arraycopy(address, 2, pushData, 3, 23);
+        roundTrip(pushData, 27);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.google.bitcoin.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private SignatureCache originalDefault;
+
+    @Before
+    public void setUp() {
+        originalDefault = SignatureCache.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(originalDefault);
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) });
+    }
+
+    @Test
+    public void remembersAddedSignatures() {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        byte[] pubKey = new ECKey().getPubKey();
+        byte[] signature = new byte[] { 1, 2, 3 };
+        assertFalse(cache.contains(hash(1), pubKey, signature));
+        cache.add(hash(1), pubKey, signature);
+        cache.add(hash(1), pubKey, signature);
+        assertEquals(1, cache.size());
+        assertTrue(cache.contains(hash(1), pubKey, signature));
+        assertFalse(cache.contains(hash(2), pubKey, signature));
+        assertFalse(cache.contains(hash(1), new ECKey().getPubKey(), signature));
+        assertFalse(cache.contains(hash(1), pubKey, new byte[] { 1, 2, 4 }));
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(0.2, cache.getHitRate(), 1e-9);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertFalse(cache.contains(hash(1), pubKey, signature));
+    }
+
+    @Test
+    public void staysWithinItsLimit() {
+        SignatureCache cache = new SignatureCache(100 * SignatureCache.BYTES_PER_ENTRY);
+        assertEquals(100, cache.getMaxEntries());
+        byte[] pubKey = new ECKey().getPubKey();
+        byte[] signature = new byte[] { 1, 2, 3 };
+        for (int i = 0; i < 1000; i++)
+            cache.add(hash(i), pubKey, signature);
+        assertEquals(100, cache.size());
+        int found = 0;
+        for (int i = 0; i < 1000; i++)
+            if (cache.contains(hash(i), pubKey, signature))
+                found++;
+        assertEquals(100, found);
+        // Eviction is random, so the survivors are not just the most recent entries.
+        int recent = 0;
+        for (int i = 900; i < 1000; i++)
+            if (cache.contains(hash(i), pubKey, signature))
+                recent++;
+        assertTrue(recent < 100);
+    }
+
+    @Test
+    public void initDefaultKeepsAChosenDefault() {
+        // Apps create the default cache at startup, unless they have already chosen one or none.
+        SignatureCache.setDefault(null);
+        assertNull(SignatureCache.initDefault());
+        SignatureCache cache = new SignatureCache(100 * SignatureCache.BYTES_PER_ENTRY);
+        SignatureCache.setDefault(cache);
+        assertSame(cache, SignatureCache.initDefault());
+    }
+
+    @Test
+    public void scriptsUseTheDefaultCache() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        SignatureCache.setDefault(cache);
+        ECKey key = new ECKey();
+        Transaction prevTx = new Transaction(params);
+        TransactionOutput prevOut = prevTx.addOutput(COIN, key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addOutput(COIN, new ECKey().toAddress(params));
+        tx.addSignedInput(prevOut, key);
+        Script scriptSig = tx.getInput(0).getScriptSig();
+
+        scriptSig.correctlySpends(tx, 0, prevOut.getScriptPubKey(), true);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.size());
+        scriptSig.correctlySpends(tx, 0, prevOut.getScriptPubKey(), true);
+        assertEquals(1, cache.getHits());
+
+        // A cached signature doesn't make a different transaction valid.
+        Transaction changed = new Transaction(params, tx.bitcoinSerialize());
+        changed.getOutput(0).setValue(COIN.subtract(Coin.SATOSHI));
+        try {
+            scriptSig.correctlySpends(changed, 0, prevOut.getScriptPubKey(), true);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertEquals(1, cache.size());
+
+        SignatureCache.setDefault(null);
+        scriptSig.correctlySpends(tx, 0, prevOut.getScriptPubKey(), true);
+        assertEquals(1, cache.getHits());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.UnitTestParams;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how block store reads scale with the number of reader threads while a writer keeps adding blocks, the way
+ * wallet, peer and block chain threads share a store during a sync. Not a unit test, run it by hand:
+ * {@code BlockStoreReadBenchmark [seconds per run]}.
+ */
+public class BlockStoreReadBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Building blocks ...");
+        List<StoredBlock> blocks = buildBlocks(SPVBlockStore.DEFAULT_NUM_HEADERS + 2000);
+
+        File file = File.createTempFile("spvbenchmark", null);
+        file.delete();
+        SPVBlockStore spvStore = new SPVBlockStore(params, file);
+        run("SPVBlockStore", spvStore, blocks, cores, seconds);
+        spvStore.close();
+        file.delete();
+        new File(file.getPath() + ".index").delete();
+
+        run("MemoryBlockStore", new MemoryBlockStore(params), blocks, cores, seconds);
+    }
+
+    private static List<StoredBlock> buildBlocks(int count) throws Exception {
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        for (int i = 0; i < count; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private static void run(String name, final BlockStore store, final List<StoredBlock> blocks, int cores,
+                            int seconds) throws Exception {
+        // Fill the store, leaving some blocks for the writer to add while the readers run.
+        final int preloaded = SPVBlockStore.DEFAULT_NUM_HEADERS;
+        for (int i = 0; i < preloaded; i++)
+            store.put(blocks.get(i));
+        store.setChainHead(blocks.get(preloaded - 1));
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            final AtomicLong reads = new AtomicLong();
+            final AtomicLong writes = new AtomicLong();
+            final long deadline = System.nanoTime() + seconds * 1000000000L;
+            final CountDownLatch done = new CountDownLatch(threads + 1);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = preloaded; System.nanoTime() < deadline; i++) {
+                            StoredBlock block = blocks.get(preloaded + (i - preloaded) % (blocks.size() - preloaded));
+                            store.put(block);
+                            store.setChainHead(block);
+                            writes.incrementAndGet();
+                            // Roughly the pace of a fast header sync.
+                            Thread.sleep(0, 100000);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(t);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            long count = 0;
+                            while (System.nanoTime() < deadline) {
+                                // Recent blocks, most of which are cached, and the chain head.
+                                int index = preloaded - 1 - random.nextInt(preloaded / 2);
+                                store.get(blocks.get(index).getHeader().getHash());
+                                store.getChainHead();
+                                count += 2;
+                            }
+                            reads.addAndGet(count);
+                        } catch (BlockStoreException e) {
+                            throw new RuntimeException(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await();
+            System.out.printf("%s: %2d readers, %,12d reads/s, %,8d writes/s%n", name, threads,
+                    reads.get() / seconds, writes.get() / seconds);
+        }
+    }
+}
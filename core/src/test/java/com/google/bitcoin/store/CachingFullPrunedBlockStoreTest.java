@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private MemoryFullPrunedBlockStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        backing = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(backing, 1024 * 1024);
+    }
+
+    private static StoredTransactionOutput output(int i) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+        return new StoredTransactionOutput(hash, 0, Coin.valueOf(i), i, true, new byte[25]);
+    }
+
+    @Test
+    public void createdAndSpentOutputsNeverReachStore() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(backing.getTransactionOutput(a.getHash(), 0));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(1, store.getCancelledCount());
+
+        store.flush();
+        assertEquals(1, store.getFlushCount());
+        assertEquals(1, store.getFlushedOutputCount());
+        assertEquals(0, store.getCacheSize());
+        assertNull(backing.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, backing.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void spendsOfStoredOutputsAreWrittenOut() throws Exception {
+        StoredTransactionOutput a = output(1);
+        backing.addUnspentTransactionOutput(a);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(1, store.getMissCount());
+        assertEquals(0, store.getHitCount());
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 1));
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(1, store.getMissCount());
+        assertEquals(1, store.getHitCount());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+        assertNotNull(backing.getTransactionOutput(a.getHash(), 0));
+        store.flush();
+        assertNull(backing.getTransactionOutput(a.getHash(), 0));
+    }
+
+    @Test
+    public void abortedBatchesAreForgotten() throws Exception {
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock next = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        StoredTransactionOutput a = output(1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        assertEquals(next, store.getChainHead());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(genesis, store.getChainHead());
+        assertEquals(genesis, store.getVerifiedChainHead());
+
+        // The chain head only moves in the underlying store once the outputs that go with it are written out.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        assertEquals(next, store.getVerifiedChainHead());
+        assertEquals(genesis, backing.getVerifiedChainHead());
+        store.flush();
+        assertEquals(next, backing.getVerifiedChainHead());
+        assertEquals(next, backing.getChainHead());
+    }
+
+    @Test
+    public void flushesWhenOverBudget() throws Exception {
+        store = new CachingFullPrunedBlockStore(backing, 0);
+        StoredTransactionOutput a = output(1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getFlushCount());
+        assertEquals(a, backing.getTransactionOutput(a.getHash(), 0));
+    }
+
+    @Test
+    public void failedWritesLeaveTheCacheAlone() throws Exception {
+        final boolean[] failing = new boolean[1];
+        backing = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out)
+                    throws BlockStoreException {
+                if (failing[0])
+                    throw new BlockStoreException("Disk full");
+                super.addUnspentTransactionOutput(out);
+            }
+
+            @Override
+            public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+                if (failing[0]) {
+                    super.abortDatabaseBatchWrite();
+                    throw new BlockStoreException("Disk full");
+                }
+                super.commitDatabaseBatchWrite();
+            }
+        };
+        StoredBlock genesis = backing.getVerifiedChainHead();
+        Block nextHeader = genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader();
+        StoredBlock next = genesis.build(nextHeader);
+        StoredTransactionOutput a = output(1);
+        failing[0] = true;
+
+        // Failing to commit the underlying batch, with or without the outputs in it.
+        for (long budget : new long[] { 1024 * 1024, 0 }) {
+            store = new CachingFullPrunedBlockStore(backing, budget);
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(a);
+            store.setVerifiedChainHead(next);
+            try {
+                store.commitDatabaseBatchWrite();
+                fail();
+            } catch (BlockStoreException e) {
+                // Expected.
+            }
+            assertNull(store.getTransactionOutput(a.getHash(), 0));
+            assertEquals(genesis, store.getChainHead());
+            assertEquals(genesis, store.getVerifiedChainHead());
+            assertEquals(0, store.getFlushCount());
+            assertNull(backing.getTransactionOutput(a.getHash(), 0));
+        }
+
+        // Once the underlying store works again, so does the cache.
+        failing[0] = false;
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getFlushCount());
+        assertEquals(1, store.getFlushedOutputCount());
+        assertEquals(a, backing.getTransactionOutput(a.getHash(), 0));
+        assertEquals(next, backing.getVerifiedChainHead());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FullHeaderBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private File file;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("headers", null);
+        file.delete();
+        to = new ECKey().toAddress(params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+        file.delete();
+    }
+
+    private List<StoredBlock> extend(BlockStore store, StoredBlock from, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < count; i++) {
+            // A second apart, so that a long run of blocks only runs as far ahead of the clock as it has to.
+            Block next = from.getHeader().createNextBlock(to, from.getHeader().getTimeSeconds() + 1);
+            from = from.build(next.cloneAsHeader());
+            store.put(from);
+            blocks.add(from);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void heightIndexFollowsReorgsAndSurvivesRestart() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(genesis, store.getByHeight(0));
+        List<StoredBlock> main = extend(store, genesis, 30);
+        store.setChainHead(main.get(29));
+        // A fork at height 10 that overtakes the main chain.
+        List<StoredBlock> fork = extend(store, main.get(9), 25);
+        assertEquals(main.get(20), store.getByHeight(21));
+        store.setChainHead(fork.get(24));
+        assertEquals(35, store.getChainHead().getHeight());
+        assertEquals(main.get(9), store.getByHeight(10));
+        assertEquals(fork.get(0), store.getByHeight(11));
+        assertEquals(fork.get(24), store.getByHeight(35));
+        assertNull(store.getByHeight(36));
+        assertNull(store.getByHeight(-1));
+        // Blocks of the old chain are still there.
+        assertEquals(main.get(29), store.get(main.get(29).getHeader().getHash()));
+        assertEquals(56, store.getHeaderCount());
+        store.close();
+
+        store = new FullHeaderBlockStore(params, file);
+        assertEquals(fork.get(24), store.getChainHead());
+        assertEquals(56, store.getHeaderCount());
+        for (int i = 0; i < 10; i++)
+            assertEquals(main.get(i), store.getByHeight(i + 1));
+        for (int i = 0; i < 25; i++)
+            assertEquals(fork.get(i), store.getByHeight(i + 11));
+        assertEquals(main.get(15), store.get(main.get(15).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void crossesSegmentBoundary() throws Exception {
+        // The blocks are a second apart, which takes them far into the future.
+        Utils.setMockClock(Utils.currentTimeSeconds() + 2 * FullHeaderBlockStore.RECORDS_PER_SEGMENT);
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        // The genesis block takes the first record, so this fills the first segment and starts the second.
+        int height = FullHeaderBlockStore.RECORDS_PER_SEGMENT + 10;
+        List<StoredBlock> blocks = extend(store, store.getChainHead(), height);
+        store.setChainHead(blocks.get(height - 1));
+        assertEquals(height + 1, store.getHeaderCount());
+        store.close();
+
+        store = new FullHeaderBlockStore(params, file);
+        assertEquals(blocks.get(height - 1), store.getChainHead());
+        for (int h = FullHeaderBlockStore.RECORDS_PER_SEGMENT - 5; h <= height; h++) {
+            StoredBlock block = blocks.get(h - 1);
+            assertEquals(block, store.getByHeight(h));
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertEquals(blocks.get(0), store.getByHeight(1));
+        // A fork that starts in the first segment and is stored in the second one.
+        int forkHeight = FullHeaderBlockStore.RECORDS_PER_SEGMENT - 3;
+        List<StoredBlock> fork = extend(store, blocks.get(forkHeight - 1), 20);
+        store.setChainHead(fork.get(19));
+        assertEquals(blocks.get(forkHeight - 1), store.getByHeight(forkHeight));
+        for (int i = 0; i < 20; i++)
+            assertEquals(fork.get(i), store.getByHeight(forkHeight + 1 + i));
+        store.close();
+    }
+
+    @Test
+    public void blockChainReorganizes() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        BlockChain chain = new BlockChain(params, store);
+        Block b1 = params.getGenesisBlock().createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        Block b3 = b2.createNextBlock(to);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertTrue(chain.add(b3));
+        // genesis -> b1 -> b2 -> b3
+        //             \-> b4 -> b5 -> b6
+        Block b4 = b1.createNextBlock(to);
+        Block b5 = b4.createNextBlock(to);
+        assertTrue(chain.add(b4));
+        assertTrue(chain.add(b5));
+        assertEquals(b3, chain.getChainHead().getHeader());
+        Block b6 = b5.createNextBlock(to);
+        assertTrue(chain.add(b6));
+        assertEquals(b6, chain.getChainHead().getHeader());
+        assertEquals(b4, store.getByHeight(2).getHeader());
+        assertEquals(b1, store.getByHeight(1).getHeader());
+        store.close();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class LSMTreeTest {
+    private File directory;
+    private LSMTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tree != null)
+            tree.close();
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static byte[] key(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    private static byte[] value(int i) {
+        return ("value " + i).getBytes();
+    }
+
+    private void put(int i) throws Exception {
+        SortedMap<byte[], byte[]> batch = new TreeMap<byte[], byte[]>(LSMTree.KEY_ORDER);
+        batch.put(key(i), value(i));
+        tree.write(batch);
+    }
+
+    private void delete(int i) throws Exception {
+        SortedMap<byte[], byte[]> batch = new TreeMap<byte[], byte[]>(LSMTree.KEY_ORDER);
+        batch.put(key(i), LSMTree.TOMBSTONE);
+        tree.write(batch);
+    }
+
+    @Test
+    public void logReplay() throws Exception {
+        tree = new LSMTree(directory, Long.MAX_VALUE, 4, false);
+        for (int i = 0; i < 100; i++)
+            put(i);
+        delete(7);
+        assertEquals(0, tree.getTableCount());
+        // Simulate a crash by not closing the tree: everything has to come back from the log.
+        tree = new LSMTree(directory, Long.MAX_VALUE, 4, false);
+        assertArrayEquals(value(5), tree.get(key(5)));
+        assertNull(tree.get(key(7)));
+        assertNull(tree.get(key(100)));
+    }
+
+    @Test
+    public void tornLogWrite() throws Exception {
+        tree = new LSMTree(directory, Long.MAX_VALUE, 4, false);
+        put(1);
+        put(2);
+        // Chop the end off the last batch, as if we crashed half way through appending it.
+        RandomAccessFile log = new RandomAccessFile(new File(directory, "LOG"), "rw");
+        log.setLength(log.length() - 3);
+        log.close();
+        tree = new LSMTree(directory, Long.MAX_VALUE, 4, false);
+        assertArrayEquals(value(1), tree.get(key(1)));
+        assertNull(tree.get(key(2)));
+        // And the log can be appended to again.
+        put(3);
+        tree = new LSMTree(directory, Long.MAX_VALUE, 4, false);
+        assertArrayEquals(value(3), tree.get(key(3)));
+        // A garbage length at the end is dropped just the same, whether it is negative or too large.
+        for (int length : new int[] { -5, Integer.MAX_VALUE }) {
+            log = new RandomAccessFile(new File(directory, "LOG"), "rw");
+            log.seek(log.length());
+            log.writeInt(length);
+            log.writeLong(0);
+            log.close();
+            tree = new LSMTree(directory, Long.MAX_VALUE, 4, false);
+            assertArrayEquals(value(3), tree.get(key(3)));
+        }
+    }
+
+    @Test
+    public void flushAndCompact() throws Exception {
+        // Small enough that every few writes end up in a new table.
+        tree = new LSMTree(directory, 1000, 3, false);
+        for (int i = 0; i < 2000; i++)
+            put(i);
+        for (int i = 0; i < 2000; i += 2)
+            delete(i);
+        tree.flush();
+        tree.close();
+        tree = new LSMTree(directory, 1000, 3, false);
+        for (int i = 0; i < 2000; i++) {
+            if (i % 2 == 0)
+                assertNull(tree.get(key(i)));
+            else
+                assertArrayEquals(value(i), tree.get(key(i)));
+        }
+        // Compaction keeps the number of tables in check.
+        assertTrue(tree.getTableCount() < 10);
+        // Misses are answered by the bloom filters.
+        long rejections = tree.getBloomRejections();
+        for (int i = 5000; i < 6000; i++)
+            assertNull(tree.get(key(i)));
+        assertTrue(tree.getBloomRejections() - rejections > 900);
+    }
+
+    @Test
+    public void mergingIteratorPrefersNewest() throws Exception {
+        SortedMap<byte[], byte[]> newer = new TreeMap<byte[], byte[]>(LSMTree.KEY_ORDER);
+        SortedMap<byte[], byte[]> older = new TreeMap<byte[], byte[]>(LSMTree.KEY_ORDER);
+        newer.put(key(1), value(10));
+        newer.put(key(3), LSMTree.TOMBSTONE);
+        older.put(key(1), value(1));
+        older.put(key(2), value(2));
+        older.put(key(3), value(3));
+        File file = new File(directory, "merged.sst");
+        SSTable table = SSTable.write(file, 1, new LSMTree.MergingIterator(java.util.Arrays.asList(
+                newer.entrySet().iterator(), older.entrySet().iterator())), 3, true);
+        assertEquals(2, table.getEntryCount());
+        assertArrayEquals(value(10), table.get(key(1)));
+        assertArrayEquals(value(2), table.get(key(2)));
+        assertNull(table.get(key(3)));
+        table.close();
+    }
+}
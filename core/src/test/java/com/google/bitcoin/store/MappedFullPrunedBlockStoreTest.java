@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappedFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private static StoredTransactionOutput output(int i, int scriptLength) {
+        byte[] script = new byte[scriptLength];
+        script[0] = (byte) i;
+        Sha256Hash hash = Sha256Hash.create(ByteBuffer.allocate(4).putInt(i / 3).array());
+        return new StoredTransactionOutput(hash, i % 3, Coin.valueOf(i), i, true, script);
+    }
+
+    @Test
+    public void tableGrowsAndPersists() throws Exception {
+        File file = new File(directory, "table"), overflowFile = new File(directory, "overflow");
+        MappedUTXOTable table = new MappedUTXOTable(file, overflowFile, 10);
+        assertEquals(MappedUTXOTable.MIN_CAPACITY, table.capacity());
+        List<StoredTransactionOutput> outs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 5000; i++) {
+            // Every tenth script is too big to fit in its slot.
+            StoredTransactionOutput out = output(i, i % 10 == 0 ? 67 : 25);
+            outs.add(out);
+            table.put(out);
+        }
+        for (int i = 0; i < 5000; i += 2)
+            assertTrue(table.remove(outs.get(i).getHash(), outs.get(i).getIndex()));
+        assertFalse(table.remove(outs.get(0).getHash(), outs.get(0).getIndex()));
+        assertEquals(2500, table.size());
+        assertTrue(table.capacity() > MappedUTXOTable.MIN_CAPACITY);
+        table.setMetadata(new byte[] { 1, 2, 3 });
+        assertTrue(table.isDirty());
+        table.checkpoint();
+        assertFalse(table.isDirty());
+        table.close();
+
+        table = new MappedUTXOTable(file, overflowFile, 10);
+        assertFalse(table.isDirty());
+        assertEquals(2500, table.size());
+        assertEquals(3, table.getMetadata()[2]);
+        for (int i = 0; i < 5000; i++) {
+            StoredTransactionOutput out = outs.get(i);
+            StoredTransactionOutput stored = table.get(out.getHash(), out.getIndex());
+            if (i % 2 == 0) {
+                assertNull(stored);
+            } else {
+                assertEquals(out, stored);
+                assertEquals(out.getValue(), stored.getValue());
+                assertEquals(out.getHeight(), stored.getHeight());
+                assertArrayEquals(out.getScriptBytes(), stored.getScriptBytes());
+            }
+        }
+        table.close();
+    }
+
+    @Test
+    public void storeSurvivesRestart() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10, 100);
+        StoredBlock genesis = store.getChainHead();
+        Block nextHeader = genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader();
+        StoredBlock next = genesis.build(nextHeader);
+        StoredTransactionOutput out = output(1, 25);
+        store.beginDatabaseBatchWrite();
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new ArrayList<Transaction>()));
+        store.addUnspentTransactionOutput(out);
+        store.setVerifiedChainHead(next);
+        // Not visible outside of the batch until it is committed.
+        assertEquals(0, store.getUnspentOutputCount());
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getUnspentOutputCount());
+
+        StoredTransactionOutput aborted = output(2, 25);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(aborted);
+        store.removeUnspentTransactionOutput(out);
+        store.setVerifiedChainHead(genesis);
+        store.abortDatabaseBatchWrite();
+        assertEquals(next, store.getVerifiedChainHead());
+        assertTrue(store.getMappedBytes() > 0);
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10, 100);
+        assertEquals(next, store.getChainHead());
+        assertEquals(next, store.getVerifiedChainHead());
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertEquals(next, store.getOnceUndoableStoredBlock(next.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(next.getHeader().getHash()));
+        assertEquals(out, store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertNull(store.getTransactionOutput(aborted.getHash(), aborted.getIndex()));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 3));
+        store.close();
+    }
+
+    @Test
+    public void survivesCrashAfterCommit() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10, 100);
+        StoredBlock genesis = store.getChainHead();
+        Block nextHeader = genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader();
+        StoredBlock next = genesis.build(nextHeader);
+        StoredTransactionOutput out = output(1, 25);
+        store.beginDatabaseBatchWrite();
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new ArrayList<Transaction>()));
+        store.addUnspentTransactionOutput(out);
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        // Simulate a crash right after the commit by opening a copy of the files of the open store.
+        File copyDirectory = copyFiles();
+        try {
+            MappedFullPrunedBlockStore copy = new MappedFullPrunedBlockStore(params, copyDirectory, 10, 100);
+            assertEquals(next, copy.getVerifiedChainHead());
+            assertEquals(out, copy.getTransactionOutput(out.getHash(), out.getIndex()));
+            copy.close();
+        } finally {
+            delete(copyDirectory);
+            store.close();
+        }
+    }
+
+    @Test
+    public void crashLosesUnsyncedBatches() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10, 100);
+        StoredBlock genesis = store.getChainHead();
+        Block nextHeader = genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader();
+        StoredBlock next = genesis.build(nextHeader);
+        // Batches are only synced every other commit, so the first one is only on the heap and in the block log.
+        store.setSyncInterval(2);
+        store.beginDatabaseBatchWrite();
+        store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), new ArrayList<Transaction>()));
+        store.addUnspentTransactionOutput(output(1, 25));
+        store.setVerifiedChainHead(next);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getUnspentOutputCount());
+        // Simulate a crash by copying the files of the open store somewhere else and opening the copy.
+        File copyDirectory = copyFiles();
+        try {
+            MappedFullPrunedBlockStore copy = new MappedFullPrunedBlockStore(params, copyDirectory, 10, 100);
+            assertEquals(genesis, copy.getVerifiedChainHead());
+            assertEquals(genesis, copy.getChainHead());
+            assertEquals(0, copy.getUnspentOutputCount());
+            // The records the lost batch appended to the block log are cut off.
+            assertNull(copy.get(next.getHeader().getHash()));
+            copy.close();
+        } finally {
+            delete(copyDirectory);
+            store.close();
+        }
+    }
+
+    @Test
+    public void replaysInterruptedCheckpoint() throws Exception {
+        File file = new File(directory, "table"), overflowFile = new File(directory, "overflow");
+        File journalFile = new File(directory, "table.journal");
+        MappedUTXOTable table = new MappedUTXOTable(file, overflowFile, 10);
+        StoredTransactionOutput a = output(1, 25), b = output(2, 67), c = output(3, 25);
+        table.put(a);
+        table.put(c);
+        table.setMetadata(new byte[] { 1 });
+        table.checkpoint();
+        File before = Files.createTempDir();
+        Files.copy(file, new File(before, "table"));
+        Files.copy(overflowFile, new File(before, "overflow"));
+
+        table.put(b);
+        table.remove(a.getHash(), a.getIndex());
+        table.setMetadata(new byte[] { 2 });
+        // Nothing reaches the mapping before the checkpoint.
+        assertTrue(table.isDirty());
+        assertTrue(table.getPendingSlotCount() > 0);
+        table.checkpoint();
+        // The overflow file is synced before the journal is written, so a crash after either leaves it like this.
+        byte[] journal = Files.toByteArray(journalFile), overflow = Files.toByteArray(overflowFile);
+        table.close();
+        try {
+            // A crash after the journal was synced, but before any slot was copied into the mapping.
+            File crashed = copyOf(before);
+            Files.write(journal, new File(crashed, "table.journal"));
+            Files.write(overflow, new File(crashed, "overflow"));
+            table = new MappedUTXOTable(new File(crashed, "table"), new File(crashed, "overflow"), 10);
+            assertNull(table.get(a.getHash(), a.getIndex()));
+            assertEquals(b, table.get(b.getHash(), b.getIndex()));
+            assertArrayEquals(b.getScriptBytes(), table.get(b.getHash(), b.getIndex()).getScriptBytes());
+            assertEquals(c, table.get(c.getHash(), c.getIndex()));
+            assertEquals(2, table.size());
+            assertEquals(2, table.getMetadata()[0]);
+            table.close();
+            delete(crashed);
+
+            // A crash while the journal was being written leaves the table as of the checkpoint before.
+            crashed = copyOf(before);
+            Files.write(Arrays.copyOf(journal, journal.length - 1), new File(crashed, "table.journal"));
+            Files.write(overflow, new File(crashed, "overflow"));
+            table = new MappedUTXOTable(new File(crashed, "table"), new File(crashed, "overflow"), 10);
+            assertEquals(a, table.get(a.getHash(), a.getIndex()));
+            assertNull(table.get(b.getHash(), b.getIndex()));
+            assertEquals(2, table.size());
+            assertEquals(1, table.getMetadata()[0]);
+            table.close();
+            delete(crashed);
+        } finally {
+            delete(before);
+        }
+    }
+
+    @Test
+    public void finishesOrUndoesInterruptedRehash() throws Exception {
+        File file = new File(directory, "table"), overflowFile = new File(directory, "overflow");
+        MappedUTXOTable table = new MappedUTXOTable(file, overflowFile, 10);
+        List<StoredTransactionOutput> outs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 500; i++) {
+            StoredTransactionOutput out = output(i, i % 10 == 0 ? 67 : 25);
+            outs.add(out);
+            table.put(out);
+        }
+        table.checkpoint();
+        File before = copyOf(directory);
+        table.reserve(MappedUTXOTable.MIN_CAPACITY);
+        long newCapacity = table.capacity();
+        assertTrue(newCapacity > MappedUTXOTable.MIN_CAPACITY);
+        table.close();
+        File after = copyOf(directory);
+        try {
+            // Both new files were written, but neither was swapped in yet.
+            File crashed = copyOf(before);
+            Files.copy(new File(after, "table"), new File(crashed, "table.tmp"));
+            Files.copy(new File(after, "overflow"), new File(crashed, "overflow.tmp"));
+            table = new MappedUTXOTable(new File(crashed, "table"), new File(crashed, "overflow"), 10);
+            assertEquals(MappedUTXOTable.MIN_CAPACITY, table.capacity());
+            for (StoredTransactionOutput out : outs)
+                assertArrayEquals(out.getScriptBytes(), table.get(out.getHash(), out.getIndex()).getScriptBytes());
+            table.close();
+            assertFalse(new File(crashed, "table.tmp").exists());
+            assertFalse(new File(crashed, "overflow.tmp").exists());
+            delete(crashed);
+
+            // The new overflow file was swapped in, but the new table wasn't yet.
+            crashed = copyOf(before);
+            Files.copy(new File(after, "table"), new File(crashed, "table.tmp"));
+            Files.copy(new File(after, "overflow"), new File(crashed, "overflow"));
+            table = new MappedUTXOTable(new File(crashed, "table"), new File(crashed, "overflow"), 10);
+            assertEquals(newCapacity, table.capacity());
+            for (StoredTransactionOutput out : outs)
+                assertArrayEquals(out.getScriptBytes(), table.get(out.getHash(), out.getIndex()).getScriptBytes());
+            table.close();
+            delete(crashed);
+        } finally {
+            delete(before);
+            delete(after);
+        }
+    }
+
+    @Test
+    public void looksUpManyOutputsAtOnce() throws Exception {
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(params, directory, 10, 100);
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        List<StoredTransactionOutput> outs = new ArrayList<StoredTransactionOutput>();
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 2000; i++) {
+            StoredTransactionOutput out = output(i, i % 10 == 0 ? 67 : 25);
+            outs.add(out);
+            store.addUnspentTransactionOutput(out);
+            outPoints.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+        }
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        // Changes in the open batch are seen as well.
+        store.removeUnspentTransactionOutput(outs.get(0));
+        StoredTransactionOutput created = output(5000, 25);
+        store.addUnspentTransactionOutput(created);
+        outPoints.add(new TransactionOutPoint(params, created.getIndex(), created.getHash()));
+        outPoints.add(new TransactionOutPoint(params, 7, outs.get(1).getHash()));
+        Map<TransactionOutPoint, StoredTransactionOutput> found = store.getTransactionOutputs(outPoints);
+        assertEquals(2000, found.size());
+        assertNull(found.get(outPoints.get(0)));
+        for (int i = 1; i < 2000; i++)
+            assertArrayEquals(outs.get(i).getScriptBytes(), found.get(outPoints.get(i)).getScriptBytes());
+        assertEquals(created, found.get(outPoints.get(2000)));
+        store.abortDatabaseBatchWrite();
+        store.close();
+    }
+
+    private File copyFiles() throws Exception {
+        File copyDirectory = Files.createTempDir();
+        Files.copy(new File(directory, "utxo.dat"), new File(copyDirectory, "utxo.dat"));
+        Files.copy(new File(directory, "utxo-scripts.dat"), new File(copyDirectory, "utxo-scripts.dat"));
+        Files.copy(new File(directory, "blocks.dat"), new File(copyDirectory, "blocks.dat"));
+        File journal = new File(directory, "utxo.dat.journal");
+        if (journal.exists())
+            Files.copy(journal, new File(copyDirectory, "utxo.dat.journal"));
+        return copyDirectory;
+    }
+
+    private static File copyOf(File directory) throws Exception {
+        File copyDirectory = Files.createTempDir();
+        for (File file : directory.listFiles())
+            Files.copy(file, new File(copyDirectory, file.getName()));
+        return copyDirectory;
+    }
+
+    private static void delete(File directory) {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ParallelLookupTest {
+    private ParallelLookup pool;
+
+    @Before
+    public void setUp() {
+        pool = new ParallelLookup(3);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void splitsLookupsOverThreads() throws Exception {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 10 * ParallelLookup.MIN_LOOKUPS_PER_THREAD; i++)
+            keys.add(i);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        Map<Integer, String> found = pool.getAll(keys, new ParallelLookup.Lookup<Integer, String>() {
+            @Override
+            public String get(Integer key) {
+                threads.add(Thread.currentThread());
+                return key % 2 == 0 ? null : key.toString();
+            }
+        });
+        assertEquals(keys.size() / 2, found.size());
+        for (int i = 1; i < keys.size(); i += 2)
+            assertEquals(Integer.toString(i), found.get(i));
+        assertEquals(4, threads.size());
+        assertTrue(threads.contains(Thread.currentThread()));
+
+        // Too few to be worth splitting.
+        threads.clear();
+        found = pool.getAll(keys.subList(0, 10), new ParallelLookup.Lookup<Integer, String>() {
+            @Override
+            public String get(Integer key) {
+                threads.add(Thread.currentThread());
+                return key.toString();
+            }
+        });
+        assertEquals(10, found.size());
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void passesOnFailures() throws Exception {
+        final List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 10 * ParallelLookup.MIN_LOOKUPS_PER_THREAD; i++)
+            keys.add(i);
+        pool.getAll(keys, new ParallelLookup.Lookup<Integer, String>() {
+            @Override
+            public String get(Integer key) throws BlockStoreException {
+                if (key == keys.size() - 1)
+                    throw new BlockStoreException("Failed");
+                return null;
+            }
+        });
+    }
+}
@@ -24,8 +24,15 @@ import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +65,108 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void lookupsAfterWrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File indexFile = new File(f.getPath() + ".index");
+        indexFile.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10);
+
+        // Wrap the ring around a few times, so that older blocks are overwritten.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock block = store.getChainHead();
+        for (int i = 0; i < 35; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            blocks.add(block);
+        }
+        store.setChainHead(block);
+        store.close();
+
+        // A new store object has empty caches, so lookups go through the index. Check it again after losing the index.
+        for (int run = 0; run < 2; run++) {
+            store = new SPVBlockStore(params, f, 10);
+            for (int i = 0; i < blocks.size(); i++) {
+                StoredBlock stored = store.get(blocks.get(i).getHeader().getHash());
+                if (i < blocks.size() - 10)
+                    assertNull(stored);
+                else
+                    assertEquals(blocks.get(i), stored);
+            }
+            assertEquals(block, store.getChainHead());
+            store.close();
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void concurrentReadsDuringWrites() throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".index").deleteOnExit();
+        // A small ring, so that readers often hit records that are being overwritten.
+        final SPVBlockStore store = new SPVBlockStore(params, f, 20);
+        final List<StoredBlock> blocks = new CopyOnWriteArrayList<StoredBlock>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Address to = new ECKey().toAddress(params);
+                    StoredBlock block = store.getChainHead();
+                    for (int i = 0; i < 500; i++) {
+                        block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+                        store.put(block);
+                        store.setChainHead(block);
+                        blocks.add(block);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final Random random = new Random(i);
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (writer.isAlive()) {
+                            if (blocks.isEmpty())
+                                continue;
+                            StoredBlock expected = blocks.get(random.nextInt(blocks.size()));
+                            // Make sure reads go to the ring rather than just the cache.
+                            store.blockCache.invalidate(expected.getHeader().getHash());
+                            StoredBlock stored = store.get(expected.getHeader().getHash());
+                            // A block may have been overwritten already, but must never come back wrong.
+                            if (stored != null && !stored.equals(expected))
+                                throw new AssertionError("Read " + stored + " instead of " + expected);
+                            if (store.getChainHead().getHeight() < expected.getHeight())
+                                throw new AssertionError("Chain head went backwards");
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers)
+            reader.start();
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue(store.get(blocks.get(blocks.size() - 1).getHeader().getHash()) != null);
+        store.close();
+    }
 }
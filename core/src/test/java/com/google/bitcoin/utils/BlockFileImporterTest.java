@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 the bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockFileImporterTest {
+    private static final NetworkParameters params = MainNetParams.get();
+    // Not counting the genesis block, which the files start with.
+    private static final int BLOCKS = 400;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        File blockFile = new File(getClass().getResource("/com/google/bitcoin/core/first-100k-blocks.dat").getFile());
+        blocks = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(params, Arrays.asList(blockFile))) {
+            blocks.add(block);
+            if (blocks.size() == BLOCKS + 1)
+                break;
+        }
+        assertEquals(params.getGenesisBlock().getHash(), blocks.get(0).getHash());
+    }
+
+    /** Writes the blocks over two files, each run of ten in reverse order, with garbage and padding around them. */
+    private List<File> writeShuffled(List<Block> blocks) throws IOException {
+        List<File> files = new ArrayList<File>();
+        int half = blocks.size() / 2;
+        files.add(writeFile("blk00000.dat", blocks.subList(0, half)));
+        files.add(writeFile("blk00001.dat", blocks.subList(half, blocks.size())));
+        return files;
+    }
+
+    private File writeFile(String name, List<Block> blocks) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(new byte[] { 1, 2, 3 });
+            for (int start = 0; start < blocks.size(); start += 10) {
+                List<Block> run = blocks.subList(start, Math.min(start + 10, blocks.size()));
+                for (int i = run.size() - 1; i >= 0; i--) {
+                    byte[] bytes = run.get(i).bitcoinSerialize();
+                    byte[] header = new byte[8];
+                    Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+                    Utils.uint32ToByteArrayLE(bytes.length, header, 4);
+                    stream.write(header);
+                    stream.write(bytes);
+                }
+            }
+            stream.write(new byte[1000]);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void importsOutOfOrderBlocks() throws Exception {
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        BlockFileImporter importer = new BlockFileImporter(params, writeShuffled(blocks), 2);
+        assertEquals(BLOCKS, importer.importInto(chain));
+        assertEquals(BLOCKS + 1, importer.getBlocksFound());
+        // The chain has the genesis block already.
+        assertEquals(1, importer.getBlocksSkipped());
+        assertEquals(0, importer.getBlocksUnconnected());
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(BLOCKS, chain.getBestChainHeight());
+        assertEquals(blocks.get(BLOCKS).getHash(), chain.getChainHead().getHash());
+    }
+
+    @Test
+    public void skipsStoredBlocks() throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, new MemoryFullPrunedBlockStore(params, 10));
+        for (Block block : blocks.subList(1, 101))
+            chain.add(block);
+        BlockFileImporter importer = new BlockFileImporter(params, writeShuffled(blocks), 3);
+        assertEquals(BLOCKS - 100, importer.importInto(chain));
+        assertEquals(101, importer.getBlocksSkipped());
+        assertEquals(0, importer.getBlocksUnconnected());
+        assertEquals(BLOCKS, chain.getBestChainHeight());
+        assertEquals(blocks.get(BLOCKS).getHash(), chain.getChainHead().getHash());
+
+        // Everything is stored now.
+        assertEquals(0, importer.importInto(chain));
+        assertEquals(BLOCKS + 1, importer.getBlocksSkipped());
+    }
+
+    @Test
+    public void leavesOutUnconnectedBlocks() throws Exception {
+        // The block at height 201 is missing, so nothing after it can connect.
+        List<Block> gap = new ArrayList<Block>(blocks);
+        gap.remove(201);
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        BlockFileImporter importer = new BlockFileImporter(params, writeShuffled(gap), 1);
+        assertEquals(200, importer.importInto(chain));
+        assertEquals(BLOCKS - 201, importer.getBlocksUnconnected());
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(blocks.get(200).getHash(), chain.getChainHead().getHash());
+    }
+}
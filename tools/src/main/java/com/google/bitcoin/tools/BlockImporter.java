@@ -3,15 +3,19 @@ package com.google.bitcoin.tools;
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.script.SignatureCache;
 import com.google.bitcoin.store.*;
+import com.google.bitcoin.utils.BlockFileImporter;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
+import java.io.IOException;
 
-/** Very thin wrapper around {@link com.google.bitcoin.utils.BlockFileLoader} */
+/** Very thin wrapper around {@link com.google.bitcoin.utils.BlockFileImporter} */
 public class BlockImporter {
-    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
+    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException,
+            IOException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
@@ -43,14 +47,14 @@ public class BlockImporter {
         }
         
         AbstractBlockChain chain = null;
-        if (store instanceof FullPrunedBlockStore)
+        if (store instanceof FullPrunedBlockStore) {
+            SignatureCache.initDefault();
             chain = new FullPrunedBlockChain(params, (FullPrunedBlockStore) store);
-        else
+        } else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        BlockFileImporter importer = new BlockFileImporter(params, BlockFileLoader.getReferenceClientBlockFileList(),
+                Runtime.getRuntime().availableProcessors());
+        importer.importInto(chain);
     }
 }
@@ -0,0 +1,55 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+
+/** Very thin wrapper around {@link com.google.bitcoin.core.UTXOSnapshot} */
+public class UTXOSnapshotTool {
+    public static void main(String[] args) throws BlockStoreException, VerificationException, IOException {
+        System.out.println("USAGE: UTXOSnapshotTool (prod|test) (export|import) blockStore snapshotFile [setHash]");
+        System.out.println("       eg UTXOSnapshotTool prod export /home/user/bitcoinj.h2store /home/user/utxo.dat");
+        System.out.println("       Imports need a new H2 store, and check the snapshot against setHash if given");
+        Preconditions.checkArgument(args.length == 4 || args.length == 5);
+
+        NetworkParameters params;
+        if (args[0].equals("test"))
+            params = TestNet3Params.get();
+        else
+            params = MainNetParams.get();
+
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, args[2], 100);
+        UTXOSnapshot snapshot = new UTXOSnapshot(params);
+        try {
+            UTXOSetHash hash;
+            if (args[1].equals("export")) {
+                Preconditions.checkArgument(args.length == 4);
+                OutputStream out = new FileOutputStream(args[3]);
+                try {
+                    hash = snapshot.export(store, out);
+                } finally {
+                    out.close();
+                }
+            } else if (args[1].equals("import")) {
+                Sha256Hash trustedHash = args.length == 5 ? new Sha256Hash(args[4]) : null;
+                InputStream in = new FileInputStream(args[3]);
+                try {
+                    hash = snapshot.importInto(store, in, trustedHash);
+                } finally {
+                    in.close();
+                }
+            } else {
+                System.err.println("Unknown command " + args[1]);
+                return;
+            }
+            System.out.println(hash.size() + " unspent outputs, set hash " + hash.getHash());
+        } finally {
+            store.close();
+        }
+    }
+}